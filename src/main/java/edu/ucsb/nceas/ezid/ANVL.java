@@ -0,0 +1,140 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encoding and decoding of the ANVL (A Name-Value Language) format used by EZID
+ * for request and response bodies.  Each line holds one "name: value" pair, and
+ * the characters '%', ':', newline and carriage return are percent-encoded within
+ * names and values.
+ * @see <a href="http://ezid.cdlib.org/doc/apidoc.html#request-response-bodies">EZID request and response bodies</a>
+ */
+public final class ANVL {
+
+    private ANVL() {
+    }
+
+    /**
+     * Escape a string to produce it's ANVL escaped equivalent.
+     * @param str the string to be escaped
+     * @return the escaped String
+     */
+    public static String escape(String str) {
+        return str.replace("%", "%25").replace("\n", "%0A").replace("\r", "%0D").replace(":", "%3A");
+    }
+
+    /**
+     * Work out the length of an ANVL body without building it.
+     * @param metadata the name/value pairs, which may be null
+     * @return the number of characters in the serialized body
+     */
+    static long length(Map<String, String> metadata) {
+        long length = 0;
+        if (metadata != null) {
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                length += escapedLength(entry.getKey()) + 2 + escapedLength(entry.getValue()) + 1;
+            }
+        }
+        return length;
+    }
+
+    private static int escapedLength(String str) {
+        if (str == null) {
+            return 0;
+        }
+        int length = str.length();
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '%' || c == '\n' || c == '\r' || c == ':') {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Unescape a percent encoded response from the server.  The string is read in
+     * a single pass, so large values such as DataCite XML unescape in linear time.
+     * @param str the string to be unescaped
+     * @return the unescaped String value
+     * @throws NumberFormatException if a '%' is not followed by two hex digits
+     */
+    public static String unescape(String str) {
+        int i = str.indexOf('%');
+        if (i < 0) {
+            return str;
+        }
+        int length = str.length();
+        StringBuilder buffer = new StringBuilder(length);
+        buffer.append(str, 0, i);
+        while (i < length) {
+            char c = str.charAt(i);
+            if (c != '%') {
+                buffer.append(c);
+                i++;
+                continue;
+            }
+            int high = i + 2 < length ? Character.digit(str.charAt(i + 1), 16) : -1;
+            int low = high < 0 ? -1 : Character.digit(str.charAt(i + 2), 16);
+            if (low < 0) {
+                throw new NumberFormatException("Malformed ANVL escape at " + i + ": "
+                        + str.substring(i, Math.min(length, i + 3)));
+            }
+            buffer.append((char) (high * 16 + low));
+            i += 3;
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Serialize a Map of name/value pairs as ANVL, one escaped pair per line.
+     * @param metadata the name/value pairs, which may be null
+     * @return the ANVL String, which is empty if there are no pairs
+     */
+    public static String serialize(Map<String, String> metadata) {
+        StringBuilder buffer = new StringBuilder();
+        if (metadata != null) {
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                buffer.append(escape(entry.getKey())).append(": ").append(escape(entry.getValue())).append("\n");
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Parse an ANVL body into a HashMap of name/value pairs.  Blank lines and lines
+     * without a name/value separator are ignored.
+     * @param anvl the ANVL String
+     * @return the unescaped name/value pairs
+     */
+    public static HashMap<String, String> parse(String anvl) {
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        for (String l : anvl.split("[\\r\\n]+")) {
+            String[] kv = l.split(":", 2);
+            if (kv.length == 2) {
+                metadata.put(unescape(kv[0]).trim(), unescape(kv[1]).trim());
+            }
+        }
+        return metadata;
+    }
+}
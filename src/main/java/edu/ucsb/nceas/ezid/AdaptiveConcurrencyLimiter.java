@@ -0,0 +1,266 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An AdaptiveConcurrencyLimiter sizes the worker pool of an
+ * {@link edu.ucsb.nceas.ezid.EZIDClient} from the round-trip time of its calls to
+ * EZID, so the client sends as many requests at once as EZID can answer without
+ * queueing them.  It follows the gradient approach: a short-term RTT, the mean
+ * over a window of recent calls, is compared with a long-term RTT, a slow moving
+ * average.  While the two agree EZID is keeping up and the limit grows by about
+ * its square root each window; when the short-term RTT rises above the long-term
+ * RTT times a tolerance, requests are queueing at EZID and the limit shrinks in
+ * proportion, by at most half per window.  Changes are smoothed, and the limit
+ * does not grow while fewer than half of the allowed requests are in flight, since
+ * RTT says nothing about a limit the client does not use.
+ *
+ * Every call gives a sample, including calls EZID answers with an error, so a
+ * degraded service that times out raises the short-term RTT and the limit comes
+ * down.  Calls held back by an open CircuitBreaker give no sample.  The client's
+ * connection pool is grown along with the limit.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final int LONG_WINDOWS = 60;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int windowSize;
+    private final double tolerance;
+    private final double smoothing;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Object lock = new Object();
+
+    private double limit;
+    private volatile int appliedLimit;
+    private volatile double shortRttNanos = 0;
+    private volatile double longRttNanos = 0;
+    private long windowSum = 0;
+    private int windowCount = 0;
+    private int windowMaxInFlight = 0;
+
+    private ThreadPoolExecutor executor = null;
+    private EZIDService service = null;
+
+    protected static Log log = LogFactory.getLog(AdaptiveConcurrencyLimiter.class);
+
+    /**
+     * Construct an AdaptiveConcurrencyLimiter.
+     * @param initialLimit the number of workers to start with
+     * @param minLimit the fewest workers the limit may fall to
+     * @param maxLimit the most workers the limit may rise to
+     * @param windowSize the number of calls averaged for each short-term RTT
+     * @param tolerance how many times the long-term RTT the short-term RTT may reach
+     *          before the limit shrinks, at least 1
+     * @param smoothing the weight (0-1] of each new limit against the current one
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, int windowSize,
+            double tolerance, double smoothing) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= min <= initial <= max.");
+        }
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be positive.");
+        }
+        if (tolerance < 1) {
+            throw new IllegalArgumentException("Tolerance must be at least 1.");
+        }
+        if (smoothing <= 0 || smoothing > 1) {
+            throw new IllegalArgumentException("Smoothing must be in (0, 1].");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.windowSize = windowSize;
+        this.tolerance = tolerance;
+        this.smoothing = smoothing;
+        this.limit = initialLimit;
+        this.appliedLimit = initialLimit;
+    }
+
+    /**
+     * Construct an AdaptiveConcurrencyLimiter that starts at one worker per core,
+     * ranges from 1 to 64 workers, averages windows of 10 calls, tolerates a
+     * short-term RTT of 1.5 times the long-term RTT, and smooths with weight 0.2.
+     */
+    public AdaptiveConcurrencyLimiter() {
+        this(Math.min(64, Runtime.getRuntime().availableProcessors()), 1, 64, 10, 1.5, 0.2);
+    }
+
+    /**
+     * @return the current limit on requests in flight
+     */
+    public int getLimit() {
+        return appliedLimit;
+    }
+
+    /**
+     * @return the number of requests now in flight
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the mean RTT of the last complete window of calls, in milliseconds
+     */
+    public double getShortRttMillis() {
+        return shortRttNanos / 1e6;
+    }
+
+    /**
+     * @return the long-term average RTT, in milliseconds
+     */
+    public double getLongRttMillis() {
+        return longRttNanos / 1e6;
+    }
+
+    public String toString() {
+        return String.format("limit=%d inFlight=%d shortRtt=%.1fms longRtt=%.1fms", getLimit(), getInFlight(),
+                getShortRttMillis(), getLongRttMillis());
+    }
+
+    /**
+     * Apply the limit to an EZIDClient's workers and the service's connection pool,
+     * or stop applying it if both are null.
+     */
+    void attach(ThreadPoolExecutor executor, EZIDService service) {
+        synchronized (lock) {
+            this.executor = executor;
+            this.service = service;
+        }
+        if (executor != null) {
+            resize(appliedLimit);
+        }
+    }
+
+    /**
+     * Record that a call is starting.
+     * @return the start time to pass to {@link #finish(long)}
+     */
+    long start() {
+        int n = inFlight.incrementAndGet();
+        synchronized (lock) {
+            if (n > windowMaxInFlight) {
+                windowMaxInFlight = n;
+            }
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Record that a call has finished and take its RTT as a sample.
+     * @param start the value returned by {@link #start()}
+     */
+    void finish(long start) {
+        long rtt = System.nanoTime() - start;
+        inFlight.decrementAndGet();
+        int newLimit = -1;
+        synchronized (lock) {
+            windowSum += rtt;
+            windowCount++;
+            if (windowCount >= windowSize) {
+                newLimit = endWindow();
+            }
+        }
+        if (newLimit > 0) {
+            resize(newLimit);
+        }
+    }
+
+    /**
+     * Record that a call started with {@link #start()} ended without reaching EZID,
+     * so it gives no sample.
+     */
+    void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Update the RTTs and the limit from a full window.
+     * @return the new limit if the whole number changed, or -1
+     */
+    private int endWindow() {
+        double shortRtt = (double) windowSum / windowCount;
+        boolean appLimited = windowMaxInFlight < limit / 2;
+        windowSum = 0;
+        windowCount = 0;
+        windowMaxInFlight = inFlight.get();
+
+        double longRtt = longRttNanos == 0 ? shortRtt : longRttNanos + (shortRtt - longRttNanos) * 2 / (LONG_WINDOWS + 1);
+        if (longRtt / shortRtt > 2) {
+            // recover quickly after a period of high latency has inflated the average
+            longRtt *= 0.95;
+        }
+        shortRttNanos = shortRtt;
+        longRttNanos = longRtt;
+        if (appLimited) {
+            return -1;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRtt / shortRtt));
+        double target = limit * gradient + Math.sqrt(limit);
+        limit = Math.max(minLimit, Math.min(maxLimit, limit * (1 - smoothing) + target * smoothing));
+        int rounded = (int) limit;
+        if (rounded == appliedLimit) {
+            return -1;
+        }
+        appliedLimit = rounded;
+        return rounded;
+    }
+
+    private void resize(int newLimit) {
+        ThreadPoolExecutor e;
+        EZIDService s;
+        synchronized (lock) {
+            e = executor;
+            s = service;
+        }
+        if (s != null) {
+            s.ensureConnections(newLimit);
+        }
+        if (e != null) {
+            resizePool(e, newLimit);
+        }
+        log.debug("Concurrency limit is now " + newLimit + " (" + this + ")");
+    }
+
+    /**
+     * Set both the core and maximum sizes of a pool.
+     */
+    static void resizePool(ThreadPoolExecutor executor, int size) {
+        synchronized (executor) {
+            // the core size may never exceed the maximum, so order the two changes
+            if (size > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(size);
+                executor.setCorePoolSize(size);
+            } else {
+                executor.setCorePoolSize(size);
+                executor.setMaximumPoolSize(size);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * A request entity that writes {@link StreamingMetadata} as an ANVL body, escaping
+ * each value as it is copied from its source to the connection.  The characters
+ * ANVL escapes are all ASCII, and in UTF-8 no byte of a multi-byte character is
+ * ASCII, so values are escaped byte by byte without being decoded.  Only one
+ * buffer of each value is in memory at a time.  The body is sent with chunked
+ * transfer coding, and is gzip-compressed if requested.
+ */
+class AnvlStreamingEntity extends AbstractHttpEntity {
+
+    private static final int CHUNK_BYTES = 8192;
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final StreamingMetadata metadata;
+    private final boolean gzip;
+
+    AnvlStreamingEntity(StreamingMetadata metadata, boolean gzip) {
+        this.metadata = metadata;
+        this.gzip = gzip;
+        setContentType(ContentType.create("text/plain", StandardCharsets.UTF_8).toString());
+        if (gzip) {
+            setContentEncoding("gzip");
+        }
+        setChunked(true);
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return -1;
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Produce the body as a stream.  HttpClient calls writeTo when sending the
+     * request; this is only used by callers that read the entity directly.
+     */
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    public void writeTo(OutputStream outstream) throws IOException {
+        GZIPOutputStream compressed = gzip ? new GZIPOutputStream(outstream, CHUNK_BYTES) : null;
+        OutputStream out = gzip ? compressed : outstream;
+        byte[] in = new byte[CHUNK_BYTES];
+        byte[] escaped = new byte[CHUNK_BYTES * 3];
+        for (Map.Entry<String, Object> entry : metadata.entries().entrySet()) {
+            out.write(ANVL.escape(entry.getKey()).getBytes(StandardCharsets.UTF_8));
+            out.write(':');
+            out.write(' ');
+            InputStream value = StreamingMetadata.open(entry.getValue());
+            try {
+                int n;
+                while ((n = value.read(in)) >= 0) {
+                    out.write(escaped, 0, escape(in, n, escaped));
+                }
+            } finally {
+                value.close();
+            }
+            out.write('\n');
+        }
+        if (gzip) {
+            // finish rather than close, so the connection's stream is left open
+            compressed.finish();
+        }
+        out.flush();
+    }
+
+    /**
+     * Percent-encode the bytes ANVL escapes: '%', ':', newline and carriage return.
+     * @return the number of bytes written to the output
+     */
+    private static int escape(byte[] in, int length, byte[] out) {
+        int j = 0;
+        for (int i = 0; i < length; i++) {
+            byte b = in[i];
+            if (b == '%' || b == ':' || b == '\n' || b == '\r') {
+                out[j++] = '%';
+                out[j++] = HEX[(b >> 4) & 0xF];
+                out[j++] = HEX[b & 0xF];
+            } else {
+                out[j++] = b;
+            }
+        }
+        return j;
+    }
+}
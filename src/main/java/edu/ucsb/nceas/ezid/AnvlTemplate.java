@@ -0,0 +1,270 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An AnvlTemplate holds the metadata that is the same for every identifier in a
+ * batch, such as the publisher, resource type, _profile and _export, already
+ * ANVL-escaped and encoded as UTF-8.  Each request then escapes and encodes only
+ * its own fields, such as the title and _target, straight into a byte buffer after
+ * the constant part, instead of re-serializing the whole map as a String.  The
+ * buffer is reused by each calling thread, so a templated request creates little
+ * garbage beyond the per-record values themselves.
+ * <p>
+ * A template is immutable and can be shared by any number of threads:
+ * <pre>
+ *   AnvlTemplate template = new AnvlTemplate(constants);
+ *   for (Dataset d : batch) {
+ *       HashMap&lt;String, String&gt; fields = new HashMap&lt;String, String&gt;();
+ *       fields.put(DataCiteProfile.TITLE.toString(), d.getTitle());
+ *       ezid.mintIdentifierFromTemplate(shoulder, template, fields);
+ *   }
+ * </pre>
+ *
+ * @see EZIDService#mintIdentifierFromTemplate(String, AnvlTemplate, Map)
+ * @see EZIDService#createIdentifierFromTemplate(String, AnvlTemplate, Map)
+ * @see EZIDClient#createFromTemplate(String, AnvlTemplate, HashMap)
+ */
+public final class AnvlTemplate {
+
+    /** Buffers larger than this are not kept for reuse by their thread. */
+    private static final int MAX_RETAINED = 1024 * 1024;
+    private static final byte[] SEPARATOR = { ':', ' ' };
+    private static final ThreadLocal<Buffer> BUFFERS = new ThreadLocal<Buffer>() {
+        protected Buffer initialValue() {
+            return new Buffer(4096);
+        }
+    };
+
+    private final Map<String, String> constants;
+    private final byte[] constantBytes;
+    private final ConcurrentMap<String, byte[]> names = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * Compile a template from the metadata shared by every record.
+     * @param constants the shared name/value pairs
+     */
+    public AnvlTemplate(Map<String, String> constants) {
+        this.constants = Collections.unmodifiableMap(new LinkedHashMap<String, String>(constants));
+        Buffer buffer = new Buffer(256);
+        for (Map.Entry<String, String> entry : this.constants.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                throw new IllegalArgumentException("Template names and values must not be null.");
+            }
+            buffer.escaped(entry.getKey());
+            buffer.append(SEPARATOR);
+            buffer.escaped(entry.getValue());
+            buffer.append((byte) '\n');
+        }
+        this.constantBytes = buffer.toByteArray();
+    }
+
+    /**
+     * @return the shared name/value pairs
+     */
+    public Map<String, String> getConstants() {
+        return constants;
+    }
+
+    /**
+     * @return the length in bytes of the encoded shared metadata
+     */
+    public int getConstantLength() {
+        return constantBytes.length;
+    }
+
+    /**
+     * Encode the request body for one record.
+     * @param fields the record's own name/value pairs, which may be null
+     * @return the UTF-8 encoded ANVL body, the same as serializing the merged metadata
+     * @throws IllegalArgumentException if a field repeats a shared name or has a null value
+     */
+    public byte[] render(Map<String, String> fields) {
+        Buffer buffer = new Buffer(constantBytes.length + 256);
+        renderTo(fields, buffer);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Merge the shared and per-record metadata into one map, as the identifier
+     * registry, validator and dead letters expect.
+     * @param fields the record's own name/value pairs, which may be null
+     * @return a new map holding both
+     */
+    public HashMap<String, String> merge(Map<String, String> fields) {
+        HashMap<String, String> merged = new HashMap<String, String>(constants);
+        if (fields != null) {
+            merged.putAll(fields);
+        }
+        return merged;
+    }
+
+    /**
+     * Encode one record's body into this thread's reusable buffer.  The buffer is
+     * overwritten by the thread's next call, so the body must be sent first.
+     * @return the buffer holding the body
+     */
+    Buffer renderShared(Map<String, String> fields) {
+        Buffer buffer = BUFFERS.get();
+        if (buffer.bytes.length > MAX_RETAINED) {
+            buffer = new Buffer(4096);
+            BUFFERS.set(buffer);
+        }
+        buffer.length = 0;
+        renderTo(fields, buffer);
+        return buffer;
+    }
+
+    /**
+     * Check that a record's fields can be added to this template's metadata.
+     * @param fields the record's own name/value pairs, which may be null
+     * @throws IllegalArgumentException if a field repeats a shared name or has a null value
+     */
+    void checkFields(Map<String, String> fields) {
+        if (fields != null) {
+            for (Map.Entry<String, String> entry : fields.entrySet()) {
+                checkField(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void checkField(String name, String value) {
+        if (name == null || value == null) {
+            throw new IllegalArgumentException("Field names and values must not be null.");
+        }
+        if (constants.containsKey(name)) {
+            throw new IllegalArgumentException(name + " is already set by the template.");
+        }
+    }
+
+    private void renderTo(Map<String, String> fields, Buffer buffer) {
+        buffer.append(constantBytes);
+        if (fields == null) {
+            return;
+        }
+        for (Map.Entry<String, String> entry : fields.entrySet()) {
+            String name = entry.getKey();
+            String value = entry.getValue();
+            checkField(name, value);
+            byte[] encoded = names.get(name);
+            if (encoded == null) {
+                Buffer b = new Buffer(name.length() + 2);
+                b.escaped(name);
+                b.append(SEPARATOR);
+                encoded = b.toByteArray();
+                names.putIfAbsent(name, encoded);
+            }
+            buffer.append(encoded);
+            buffer.escaped(value);
+            buffer.append((byte) '\n');
+        }
+    }
+
+    /**
+     * A growable byte array that ANVL-escapes and UTF-8 encodes strings as it
+     * appends them, without creating intermediate Strings.
+     */
+    static final class Buffer {
+        byte[] bytes;
+        int length;
+
+        Buffer(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void append(byte b) {
+            ensure(1);
+            bytes[length++] = b;
+        }
+
+        void append(byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, length, b.length);
+            length += b.length;
+        }
+
+        void escaped(String s) {
+            // at most three bytes per UTF-16 unit, whether escaped or encoded
+            ensure(s.length() * 3);
+            byte[] out = bytes;
+            int n = length;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '%') {
+                    n = percent(out, n, '2', '5');
+                } else if (c == ':') {
+                    n = percent(out, n, '3', 'A');
+                } else if (c == '\n') {
+                    n = percent(out, n, '0', 'A');
+                } else if (c == '\r') {
+                    n = percent(out, n, '0', 'D');
+                } else if (c < 0x80) {
+                    out[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    out[n++] = (byte) (0xc0 | (c >> 6));
+                    out[n++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    out[n++] = (byte) (0xf0 | (cp >> 18));
+                    out[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    out[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    out[n++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    // an unpaired surrogate is replaced, as String.getBytes does
+                    out[n++] = (byte) '?';
+                } else {
+                    out[n++] = (byte) (0xe0 | (c >> 12));
+                    out[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    out[n++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            length = n;
+        }
+
+        byte[] toByteArray() {
+            byte[] copy = new byte[length];
+            System.arraycopy(bytes, 0, copy, 0, length);
+            return copy;
+        }
+
+        private static int percent(byte[] out, int n, char high, char low) {
+            out[n] = '%';
+            out[n + 1] = (byte) high;
+            out[n + 2] = (byte) low;
+            return n + 3;
+        }
+
+        private void ensure(int extra) {
+            if (length + extra > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, length + extra)];
+                System.arraycopy(bytes, 0, grown, 0, length);
+                bytes = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * CallOptions carry a deadline and a cancellation signal for a single call to
+ * the EZIDService.  The deadline covers the whole call: waiting for a pooled
+ * connection, connecting, and reading the response.  When the deadline expires,
+ * or when {@link #cancel()} is called from another thread, the underlying HTTP
+ * request is aborted and its connection is released immediately.
+ *
+ * A CallOptions instance describes one call and should not be reused.
+ * <pre>
+ * {@code
+ * CallOptions options = CallOptions.withTimeout(Duration.ofSeconds(10));
+ * ezid.createIdentifier(identifier, metadata, options);
+ * }
+ * </pre>
+ */
+public class CallOptions {
+
+    private final long deadlineNanos;
+    private final boolean hasDeadline;
+    private boolean cancelled = false;
+    private final List<HttpUriRequest> active = new ArrayList<HttpUriRequest>();
+
+    private CallOptions(boolean hasDeadline, long deadlineNanos) {
+        this.hasDeadline = hasDeadline;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Create options for a call that must complete within the given timeout,
+     * measured from now.
+     * @param timeout the maximum duration of the call
+     * @return the CallOptions
+     */
+    public static CallOptions withTimeout(Duration timeout) {
+        return new CallOptions(true, System.nanoTime() + timeout.toNanos());
+    }
+
+    /**
+     * Create options for a call without a deadline, which can still be cancelled.
+     * @return the CallOptions
+     */
+    public static CallOptions cancellable() {
+        return new CallOptions(false, 0);
+    }
+
+    /**
+     * Cancel the call.  Any HTTP request in progress for the call is aborted and
+     * its connection released; a call that has not yet started will fail without
+     * contacting EZID.
+     */
+    public void cancel() {
+        List<HttpUriRequest> toAbort;
+        synchronized (this) {
+            cancelled = true;
+            toAbort = new ArrayList<HttpUriRequest>(active);
+        }
+        for (HttpUriRequest request : toAbort) {
+            request.abort();
+        }
+    }
+
+    /**
+     * @return true if {@link #cancel()} has been called
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if the call has a deadline and it has passed
+     */
+    public boolean isExpired() {
+        return hasDeadline && System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    /**
+     * @return true if the call has a deadline
+     */
+    public boolean hasDeadline() {
+        return hasDeadline;
+    }
+
+    /**
+     * @return the time remaining before the deadline in milliseconds, zero if it has
+     *          passed, or Long.MAX_VALUE if there is no deadline
+     */
+    public long getRemainingMillis() {
+        if (!hasDeadline) {
+            return Long.MAX_VALUE;
+        }
+        long remaining = deadlineNanos - System.nanoTime();
+        return remaining <= 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+
+    /**
+     * Fail if the call has been cancelled or its deadline has passed.
+     * @param what a description of the call, used in the error message
+     * @throws EZIDException if the call should not proceed
+     */
+    void checkActive(String what) throws EZIDException {
+        if (isCancelled()) {
+            throw new EZIDException("Call cancelled: " + what);
+        }
+        if (isExpired()) {
+            throw new EZIDException("Deadline exceeded: " + what);
+        }
+    }
+
+    /**
+     * Associate an HTTP request with this call so that cancelling the call aborts it.
+     * If the call has already been cancelled, the request is aborted immediately.
+     */
+    void bind(HttpUriRequest request) {
+        boolean abortNow;
+        synchronized (this) {
+            abortNow = cancelled;
+            if (!abortNow) {
+                active.add(request);
+            }
+        }
+        if (abortNow) {
+            request.abort();
+        }
+    }
+
+    /**
+     * Remove the association made by {@link #bind(HttpUriRequest)} once the request completes.
+     */
+    synchronized void unbind(HttpUriRequest request) {
+        active.remove(request);
+    }
+}
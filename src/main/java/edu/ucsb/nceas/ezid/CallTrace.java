@@ -0,0 +1,226 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.ezid.EZIDCallEvent.Operation;
+import edu.ucsb.nceas.ezid.EZIDCallEvent.Phase;
+
+/**
+ * The state of one intercepted or profiled call, used to create its EZIDCallEvents
+ * and time its phases.  A CallTrace exists only when interceptors are registered
+ * or a PhaseProfiler is set; otherwise null is passed along in its place.
+ */
+class CallTrace {
+
+    /** The HttpContext attribute under which the trace of a request is stored. */
+    static final String ATTRIBUTE = "edu.ucsb.nceas.ezid.trace";
+
+    private static final AtomicLong nextCallId = new AtomicLong();
+
+    private final EZIDInterceptor[] chain;
+    private final long callId = nextCallId.incrementAndGet();
+    private final Operation operation;
+    private final String identifier;
+    private final long payloadSize;
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    private final PhaseProfiler profiler;
+    private final boolean sampled;
+    private final Object flightEvent;
+    private boolean finished = false;
+    private int reached = 0;
+    private int statusCode;
+    private long dispatchedNanos;
+    private long leasedNanos;
+    private long sentNanos;
+    private long headersNanos;
+    private long responseNanos;
+    private long dnsNanos;
+    private long connectNanos;
+    private long tlsNanos;
+
+    protected static Log log = LogFactory.getLog(CallTrace.class);
+
+    CallTrace(EZIDInterceptor[] chain, Operation operation, String identifier, long payloadSize) {
+        this(chain, null, operation, identifier, payloadSize);
+    }
+
+    CallTrace(EZIDInterceptor[] chain, PhaseProfiler profiler, Operation operation, String identifier,
+            long payloadSize) {
+        this.chain = chain;
+        this.operation = operation;
+        this.identifier = identifier;
+        this.payloadSize = payloadSize;
+        this.profiler = profiler;
+        this.sampled = profiler != null && profiler.sample();
+        this.flightEvent = profiler == null ? null : profiler.beginEvent();
+    }
+
+    /**
+     * Report that a request has been queued.  Its payload size is left for the
+     * event to work out if an interceptor asks for it.
+     */
+    void enqueued(EZIDServiceRequest request) {
+        if (chain.length == 0) {
+            return;
+        }
+        deliver(new EZIDCallEvent(callId, operation, request, startMillis, System.nanoTime() - startNanos));
+    }
+
+    void dispatched() {
+        if (first(Phase.DISPATCHED)) {
+            dispatchedNanos = System.nanoTime();
+            fire(Phase.DISPATCHED, payloadSize, 0, null);
+        }
+    }
+
+    void leased() {
+        if (first(Phase.LEASED)) {
+            leasedNanos = System.nanoTime();
+            fire(Phase.LEASED, 0, 0, null);
+        }
+    }
+
+    /**
+     * Record that the request has been written to the connection.
+     */
+    void sent() {
+        if (sentNanos == 0) {
+            sentNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Record that the status line and headers of the response have been received.
+     */
+    void headersReceived() {
+        if (headersNanos == 0) {
+            headersNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Add the time spent resolving the host name of a new connection.
+     */
+    synchronized void resolved(long nanos) {
+        dnsNanos += nanos;
+    }
+
+    /**
+     * Add the time spent connecting a new connection and, for https, handshaking.
+     */
+    synchronized void connected(long connectNanos, long tlsNanos) {
+        this.connectNanos += connectNanos;
+        this.tlsNanos += tlsNanos;
+    }
+
+    void response(int statusCode, long size) {
+        if (first(Phase.RESPONSE)) {
+            this.statusCode = statusCode;
+            responseNanos = System.nanoTime();
+            fire(Phase.RESPONSE, size, statusCode, null);
+        }
+    }
+
+    void parsed() {
+        if (first(Phase.PARSED)) {
+            fire(Phase.PARSED, 0, 0, null);
+            finish(false);
+        }
+    }
+
+    void failed(Throwable error) {
+        // a call ends once, either PARSED or FAILED
+        if (first(Phase.PARSED)) {
+            fire(Phase.FAILED, 0, 0, error);
+            finish(true);
+        }
+    }
+
+    /**
+     * Claim a point of the call, so that when a hedged read sends two requests
+     * each point is reported once, by whichever request reaches it first.
+     * @return true if the point had not been reached before
+     */
+    private synchronized boolean first(Phase phase) {
+        int bit = 1 << phase.ordinal();
+        if ((reached & bit) != 0) {
+            return false;
+        }
+        reached |= bit;
+        return true;
+    }
+
+    private void fire(Phase phase, long size, int statusCode, Throwable error) {
+        if (chain.length == 0) {
+            return;
+        }
+        deliver(new EZIDCallEvent(callId, phase, operation, identifier, size, statusCode,
+                startMillis, System.nanoTime() - startNanos, error));
+    }
+
+    private void deliver(EZIDCallEvent event) {
+        for (EZIDInterceptor interceptor : chain) {
+            try {
+                interceptor.onEvent(event);
+            } catch (RuntimeException e) {
+                log.warn("Interceptor " + interceptor.getClass().getName() + " failed on " + event.getPhase() + ": "
+                        + e);
+            }
+        }
+    }
+
+    /**
+     * Report the phases of the finished call to the profiler, if it is sampled or slow.
+     */
+    private synchronized void finish(boolean failed) {
+        if (profiler == null || finished) {
+            return;
+        }
+        finished = true;
+        long endNanos = System.nanoTime();
+        long total = endNanos - startNanos;
+        boolean slow = profiler.isSlow(total);
+        if (!sampled && !slow) {
+            return;
+        }
+        // the wait for the pool is what remains once the new connection's setup is taken out
+        long lease = Math.max(0, between(dispatchedNanos, leasedNanos) - dnsNanos - connectNanos - tlsNanos);
+        PhaseTimings timings = new PhaseTimings(operation, identifier, statusCode, failed, sampled, slow,
+                startMillis, between(startNanos, dispatchedNanos), lease, dnsNanos, connectNanos, tlsNanos,
+                between(leasedNanos, sentNanos), between(sentNanos, headersNanos),
+                between(headersNanos, responseNanos), between(responseNanos, endNanos), total);
+        profiler.report(timings, flightEvent, payloadSize);
+    }
+
+    /**
+     * @return the time from one recorded point of the call to a later one, or zero
+     *          if either was not reached
+     */
+    private static long between(long from, long to) {
+        return from == 0 || to == 0 || to < from ? 0 : to - from;
+    }
+}
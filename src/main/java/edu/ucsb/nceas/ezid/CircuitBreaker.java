@@ -0,0 +1,364 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A CircuitBreaker protects the EZID service call path during an outage.  The
+ * breaker starts CLOSED and passes every call through.  It trips to OPEN after a
+ * run of consecutive failures, or when the failure rate over a sliding window of
+ * recent calls reaches a threshold.  While OPEN, calls made through
+ * {@link edu.ucsb.nceas.ezid.EZIDService} fail fast with a
+ * {@link edu.ucsb.nceas.ezid.CircuitBreakerOpenException}, and requests queued in
+ * an {@link edu.ucsb.nceas.ezid.EZIDClient} are held back until the breaker allows
+ * them through.  Once the open period has elapsed the breaker becomes HALF_OPEN and
+ * admits a small number of probe calls; if they all succeed it closes again, and if
+ * any fails it re-opens.
+ *
+ * Failures are transport errors and HTTP 5xx responses; errors reported by EZID for
+ * an individual request (such as an unauthorized shoulder) do not count.  State
+ * changes are reported to registered {@link CircuitBreakerListener}s.
+ */
+public class CircuitBreaker {
+
+    /** The states of a circuit breaker. */
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int consecutiveFailureThreshold;
+    private final double errorRateThreshold;
+    private final boolean[] window;
+    private final long openMillis;
+    private final int halfOpenPermits;
+
+    private final Object lock = new Object();
+    private final List<CircuitBreakerListener> listeners = new CopyOnWriteArrayList<CircuitBreakerListener>();
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private int windowCount = 0;
+    private int windowNext = 0;
+    private int windowFailures = 0;
+    private long openedAt = 0;
+    private int halfOpenInFlight = 0;
+    private int halfOpenSuccesses = 0;
+    private long rejectedCalls = 0;
+    private long epoch = 0;
+
+    /** Stands for the permit of a caller that did not keep one. */
+    private static final long UNTRACKED = Long.MIN_VALUE;
+
+    protected static Log log = LogFactory.getLog(CircuitBreaker.class);
+
+    /**
+     * Construct a CircuitBreaker.
+     * @param consecutiveFailureThreshold number of consecutive failures that trips the breaker
+     * @param errorRateThreshold failure rate (0-1) over the window that trips the breaker
+     * @param windowSize number of recent calls considered for the failure rate; the rate
+     *          is only evaluated once the window is full
+     * @param openMillis how long the breaker stays OPEN before probing recovery
+     * @param halfOpenPermits number of probe calls admitted while HALF_OPEN
+     */
+    public CircuitBreaker(int consecutiveFailureThreshold, double errorRateThreshold, int windowSize,
+            long openMillis, int halfOpenPermits) {
+        if (consecutiveFailureThreshold < 1 || windowSize < 1 || halfOpenPermits < 1) {
+            throw new IllegalArgumentException("Thresholds, window size and permits must be positive.");
+        }
+        if (errorRateThreshold <= 0 || errorRateThreshold > 1) {
+            throw new IllegalArgumentException("Error rate threshold must be in (0, 1].");
+        }
+        if (openMillis < 0) {
+            throw new IllegalArgumentException("Open duration must not be negative.");
+        }
+        this.consecutiveFailureThreshold = consecutiveFailureThreshold;
+        this.errorRateThreshold = errorRateThreshold;
+        this.window = new boolean[windowSize];
+        this.openMillis = openMillis;
+        this.halfOpenPermits = halfOpenPermits;
+    }
+
+    /**
+     * Construct a CircuitBreaker that trips after 5 consecutive failures or a 50%
+     * failure rate over 20 calls, stays open for 30 seconds, and probes with 2 calls.
+     */
+    public CircuitBreaker() {
+        this(5, 0.5, 20, 30000, 2);
+    }
+
+    /**
+     * Register a listener to be notified of state changes.
+     * @param listener the listener to add
+     */
+    public void addListener(CircuitBreakerListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener the listener to remove
+     */
+    public void removeListener(CircuitBreakerListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the current state of the breaker
+     */
+    public State getState() {
+        synchronized (lock) {
+            return state;
+        }
+    }
+
+    /**
+     * @return the number of calls rejected because the breaker was not CLOSED
+     */
+    public long getRejectedCalls() {
+        synchronized (lock) {
+            return rejectedCalls;
+        }
+    }
+
+    /**
+     * Ask permission to make a call.  Every call that is granted permission must be
+     * followed by exactly one of {@link #onSuccess()}, {@link #onFailure()} or
+     * {@link #onIgnored()}.  The outcome is counted against the state the breaker
+     * is in when it is reported; use {@link #tryAcquirePermit()} to tie it to the
+     * state that admitted the call.
+     * @return true if the call may proceed, false if it should fail fast
+     */
+    public boolean tryAcquirePermission() {
+        return tryAcquirePermit() >= 0;
+    }
+
+    /**
+     * Ask permission to make a call, and receive a permit identifying the state
+     * that admitted it.  Every permitted call must be followed by exactly one of
+     * {@link #onSuccess(long)}, {@link #onFailure(long)} or {@link #onIgnored(long)}
+     * with the permit.  If the breaker has changed state since, the outcome is
+     * ignored: a call admitted while CLOSED that finishes after the breaker went
+     * HALF_OPEN is not a probe, and neither closes nor re-opens the breaker.
+     * @return the permit, or -1 if the call should fail fast
+     */
+    public long tryAcquirePermit() {
+        State from = null;
+        long permit;
+        synchronized (lock) {
+            if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+                from = transition(State.HALF_OPEN);
+            }
+            if (state == State.CLOSED) {
+                permit = epoch;
+            } else if (state == State.HALF_OPEN && halfOpenInFlight < halfOpenPermits) {
+                halfOpenInFlight++;
+                permit = epoch;
+            } else {
+                rejectedCalls++;
+                permit = -1;
+            }
+        }
+        fireStateChanged(from, State.HALF_OPEN);
+        return permit;
+    }
+
+    /**
+     * Record that a permitted call succeeded.
+     */
+    public void onSuccess() {
+        onSuccess(UNTRACKED);
+    }
+
+    /**
+     * Record that the call admitted with the given permit succeeded.
+     * @param permit the permit returned by {@link #tryAcquirePermit()}
+     */
+    public void onSuccess(long permit) {
+        State from = null;
+        State to = null;
+        synchronized (lock) {
+            if (isStale(permit)) {
+                return;
+            }
+            if (state == State.HALF_OPEN) {
+                releaseProbe();
+                halfOpenSuccesses++;
+                if (halfOpenSuccesses >= halfOpenPermits) {
+                    to = State.CLOSED;
+                    from = transition(to);
+                }
+            } else if (state == State.CLOSED) {
+                consecutiveFailures = 0;
+                record(false);
+            }
+        }
+        fireStateChanged(from, to);
+    }
+
+    /**
+     * Record that a permitted call failed with a transport or server error.
+     */
+    public void onFailure() {
+        onFailure(UNTRACKED);
+    }
+
+    /**
+     * Record that the call admitted with the given permit failed with a transport
+     * or server error.
+     * @param permit the permit returned by {@link #tryAcquirePermit()}
+     */
+    public void onFailure(long permit) {
+        State from = null;
+        synchronized (lock) {
+            if (isStale(permit)) {
+                return;
+            }
+            if (state == State.HALF_OPEN) {
+                releaseProbe();
+                from = transition(State.OPEN);
+            } else if (state == State.CLOSED) {
+                consecutiveFailures++;
+                record(true);
+                boolean rateExceeded = windowCount == window.length
+                        && (double) windowFailures / windowCount >= errorRateThreshold;
+                if (consecutiveFailures >= consecutiveFailureThreshold || rateExceeded) {
+                    from = transition(State.OPEN);
+                }
+            }
+        }
+        fireStateChanged(from, State.OPEN);
+    }
+
+    /**
+     * Record that a permitted call ended without a verdict, for example because it
+     * was aborted by the caller.  Releases any probe slot the call held.
+     */
+    public void onIgnored() {
+        onIgnored(UNTRACKED);
+    }
+
+    /**
+     * Record that the call admitted with the given permit ended without a verdict.
+     * @param permit the permit returned by {@link #tryAcquirePermit()}
+     */
+    public void onIgnored(long permit) {
+        synchronized (lock) {
+            if (!isStale(permit) && state == State.HALF_OPEN) {
+                releaseProbe();
+            }
+        }
+    }
+
+    /**
+     * Block until the breaker may admit another call: it is CLOSED, it is HALF_OPEN
+     * with a free probe slot, or its open period has elapsed.  This is used to hold
+     * queued work back during an outage rather than failing it.
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    public void awaitPermission() throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                long wait;
+                if (state == State.CLOSED) {
+                    return;
+                } else if (state == State.OPEN) {
+                    wait = openMillis - (System.currentTimeMillis() - openedAt);
+                    if (wait <= 0) {
+                        return;
+                    }
+                } else if (halfOpenInFlight < halfOpenPermits) {
+                    return;
+                } else {
+                    wait = openMillis;
+                }
+                lock.wait(Math.max(1, wait));
+            }
+        }
+    }
+
+    /**
+     * @return true if the permit was issued before the breaker last changed state.
+     *          Must be called with the lock held.
+     */
+    private boolean isStale(long permit) {
+        return permit != UNTRACKED && permit != epoch;
+    }
+
+    /**
+     * Free the probe slot of a finished HALF_OPEN call.  Must be called with the lock held.
+     */
+    private void releaseProbe() {
+        if (halfOpenInFlight > 0) {
+            halfOpenInFlight--;
+        }
+        lock.notifyAll();
+    }
+
+    /**
+     * Change state and reset the counters for the new state.  Must be called with
+     * the lock held.
+     * @return the previous state
+     */
+    private State transition(State to) {
+        State from = state;
+        state = to;
+        epoch++;
+        consecutiveFailures = 0;
+        windowCount = 0;
+        windowNext = 0;
+        windowFailures = 0;
+        halfOpenInFlight = 0;
+        halfOpenSuccesses = 0;
+        if (to == State.OPEN) {
+            openedAt = System.currentTimeMillis();
+        }
+        lock.notifyAll();
+        return from;
+    }
+
+    /**
+     * Add a call outcome to the sliding window.  Must be called with the lock held.
+     */
+    private void record(boolean failed) {
+        if (windowCount == window.length && window[windowNext]) {
+            windowFailures--;
+        }
+        window[windowNext] = failed;
+        if (failed) {
+            windowFailures++;
+        }
+        windowNext = (windowNext + 1) % window.length;
+        if (windowCount < window.length) {
+            windowCount++;
+        }
+    }
+
+    private void fireStateChanged(State from, State to) {
+        if (from == null || to == null || from == to) {
+            return;
+        }
+        log.info("Circuit breaker changed state from " + from + " to " + to);
+        for (CircuitBreakerListener listener : listeners) {
+            listener.stateChanged(this, from, to);
+        }
+    }
+}
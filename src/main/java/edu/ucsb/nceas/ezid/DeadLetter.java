@@ -0,0 +1,135 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A DeadLetter records a queued request that failed permanently: the operation,
+ * identifier and metadata needed to run it again, the lane it was queued in, the
+ * final error, and the history of its attempts.
+ */
+public class DeadLetter {
+
+    private final long recordedMillis;
+    private final int method;
+    private final String identifier;
+    private final HashMap<String, String> metadata;
+    private final RequestPriority priority;
+    private final String fairnessKey;
+    private final String error;
+    private final List<RequestAttempt> attempts;
+
+    /**
+     * @param recordedMillis when the failure was recorded, in milliseconds since the epoch
+     * @param method the EZIDServiceRequest method constant, such as EZIDServiceRequest.CREATE
+     * @param identifier the identifier of the request
+     * @param metadata the metadata of the request, or null
+     * @param priority the lane the request was queued in
+     * @param fairnessKey the fairness key the request was queued with
+     * @param error the text of the final error
+     * @param attempts the failed attempts, oldest first
+     */
+    public DeadLetter(long recordedMillis, int method, String identifier, HashMap<String, String> metadata,
+            RequestPriority priority, String fairnessKey, String error, List<RequestAttempt> attempts) {
+        if (identifier == null) {
+            throw new IllegalArgumentException("Identifier must not be null.");
+        }
+        this.recordedMillis = recordedMillis;
+        this.method = method;
+        this.identifier = identifier;
+        this.metadata = metadata;
+        this.priority = priority == null ? RequestPriority.NORMAL : priority;
+        this.fairnessKey = fairnessKey == null ? PriorityLaneQueue.DEFAULT_KEY : fairnessKey;
+        this.error = error == null ? "" : error;
+        this.attempts = Collections.unmodifiableList(new ArrayList<RequestAttempt>(attempts));
+    }
+
+    /**
+     * Create a dead letter for a request that has just failed.
+     * @param request the failed request
+     * @param e the error it failed with
+     * @return the dead letter
+     */
+    public static DeadLetter of(EZIDServiceRequest request, EZIDException e) {
+        return new DeadLetter(System.currentTimeMillis(), request.getMethod(), request.getIdentifier(),
+                request.getMetadata(), request.getPriority(), request.getFairnessKey(), e.getMessage(),
+                request.getAttempts());
+    }
+
+    /**
+     * @return when the failure was recorded, in milliseconds since the epoch
+     */
+    public long getRecordedMillis() {
+        return recordedMillis;
+    }
+
+    /**
+     * @return the EZIDServiceRequest method constant of the failed request
+     */
+    public int getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the identifier of the failed request
+     */
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * @return the metadata of the failed request, or null if it had none
+     */
+    public HashMap<String, String> getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * @return the lane the request was queued in
+     */
+    public RequestPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the fairness key the request was queued with
+     */
+    public String getFairnessKey() {
+        return fairnessKey;
+    }
+
+    /**
+     * @return the text of the final error
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return the failed attempts, oldest first
+     */
+    public List<RequestAttempt> getAttempts() {
+        return attempts;
+    }
+}
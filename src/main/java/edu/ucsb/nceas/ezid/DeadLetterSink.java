@@ -0,0 +1,39 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.io.IOException;
+
+/**
+ * A DeadLetterSink receives each request queued through an EZIDClient that failed
+ * permanently, so that it can be inspected and replayed later instead of being
+ * lost once the failure has been logged.  Install a sink with
+ * {@link EZIDClient#setDeadLetterSink(DeadLetterSink)}.  Sinks are called on the
+ * worker thread that ran the request and must be safe for concurrent use.
+ */
+public interface DeadLetterSink {
+
+    /**
+     * Record a permanently failed request.
+     * @param letter the failed request, its error and its attempt history
+     * @throws IOException if the letter could not be recorded
+     */
+    public void record(DeadLetter letter) throws IOException;
+}
@@ -0,0 +1,153 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+/**
+ * An EZIDCallEvent describes one point in the lifecycle of an EZIDService call.
+ * All events of a call share its call id, operation, identifier and start time.
+ * A call produces, in order:
+ * <ul>
+ * <li>DISPATCHED when the HTTP request is handed to the connection pool,</li>
+ * <li>LEASED when a pooled connection has been leased and connected,</li>
+ * <li>RESPONSE when the response body has been received,</li>
+ * <li>PARSED when the response has been parsed and the call succeeded,</li>
+ * </ul>
+ * or FAILED at the point the call failed.  Each of these is reported once per
+ * call; a hedged read sends two HTTP requests under one call id, and each point
+ * is reported by whichever request reaches it first.  An EZIDClient additionally
+ * reports ENQUEUED when a request is queued, as a separate call.
+ */
+public class EZIDCallEvent {
+
+    /** The points in the lifecycle of a call. */
+    public enum Phase { ENQUEUED, DISPATCHED, LEASED, RESPONSE, PARSED, FAILED }
+
+    /** The operations that can be intercepted. */
+    public enum Operation { CREATE, MINT, GET, SET, DELETE, CREATE_OR_UPDATE, LOGOUT }
+
+    private final long callId;
+    private final Phase phase;
+    private final Operation operation;
+    private final String identifier;
+    private final long payloadSize;
+    private final EZIDServiceRequest queued;
+    private final int statusCode;
+    private final long callStartMillis;
+    private final long elapsedNanos;
+    private final Throwable error;
+
+    EZIDCallEvent(long callId, Phase phase, Operation operation, String identifier, long payloadSize,
+            int statusCode, long callStartMillis, long elapsedNanos, Throwable error) {
+        this(callId, phase, operation, identifier, payloadSize, null, statusCode, callStartMillis, elapsedNanos,
+                error);
+    }
+
+    /**
+     * Create the ENQUEUED event of a queued request, whose payload size is worked
+     * out only if an interceptor asks for it.
+     */
+    EZIDCallEvent(long callId, Operation operation, EZIDServiceRequest queued, long callStartMillis,
+            long elapsedNanos) {
+        this(callId, Phase.ENQUEUED, operation, queued.getIdentifier(), 0, queued, 0, callStartMillis, elapsedNanos,
+                null);
+    }
+
+    private EZIDCallEvent(long callId, Phase phase, Operation operation, String identifier, long payloadSize,
+            EZIDServiceRequest queued, int statusCode, long callStartMillis, long elapsedNanos, Throwable error) {
+        this.callId = callId;
+        this.phase = phase;
+        this.operation = operation;
+        this.identifier = identifier;
+        this.payloadSize = payloadSize;
+        this.queued = queued;
+        this.statusCode = statusCode;
+        this.callStartMillis = callStartMillis;
+        this.elapsedNanos = elapsedNanos;
+        this.error = error;
+    }
+
+    /**
+     * @return an id, unique within the JVM, shared by all events of one call
+     */
+    public long getCallId() {
+        return callId;
+    }
+
+    /**
+     * @return the point in the lifecycle this event reports
+     */
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * @return the operation being performed
+     */
+    public Operation getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return the identifier, or for a mint the shoulder, the call is about
+     */
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * @return the size in characters of the ANVL request body for ENQUEUED and
+     *          DISPATCHED, of the response body for RESPONSE, and otherwise zero;
+     *          for ENQUEUED it is worked out when first asked for
+     */
+    public long getPayloadSize() {
+        if (queued != null) {
+            return queued.getPayloadSize();
+        }
+        return payloadSize;
+    }
+
+    /**
+     * @return the HTTP status code for RESPONSE, or zero
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return when the call started, in milliseconds since the epoch
+     */
+    public long getCallStartMillis() {
+        return callStartMillis;
+    }
+
+    /**
+     * @return the time from the start of the call to this event, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the error for FAILED, or null
+     */
+    public Throwable getError() {
+        return error;
+    }
+}
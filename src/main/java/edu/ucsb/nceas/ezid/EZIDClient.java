@@ -19,13 +19,25 @@
 
 package edu.ucsb.nceas.ezid;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import edu.ucsb.nceas.ezid.noid.NoidMinter;
+import edu.ucsb.nceas.ezid.registry.IdentifierRegistry;
+import edu.ucsb.nceas.ezid.schedule.TransitionScheduler;
+
 /**
  * A simple client application for the EZID Service that allows calling applications
  * to set up a connection to EZID and maintain that connection across a series of
@@ -35,6 +47,11 @@ import org.apache.commons.logging.LogFactory;
  * the calling application to be notified of the error status of service invocations.
  * This client should be mainly useful to calling applications that need to issue many
  * requests to the EZID service.
+ *
+ * Each request may be given a {@link RequestPriority} and a fairness key.  Requests
+ * are queued in one lane per priority, and lanes share the workers by weight, so an
+ * interactive request does not wait behind a large bulk load.  Within a lane, callers
+ * with different fairness keys (for example different tenants) are served in turn.
  * 
  * @author Matthew Jones, NCEAS, UC Santa Barbara
  */
@@ -42,12 +59,22 @@ public class EZIDClient  {
     private String USERNAME = "apitest";
     private String PASSWORD = "apitest";
     private EZIDService ezid = null;
-    private ExecutorService executor = null;
+    private ThreadPoolExecutor executor = null;
+    private PriorityLaneQueue queue = null;
+    private final List<EZIDRequestListener> listeners = new CopyOnWriteArrayList<EZIDRequestListener>();
+    private final ConcurrentLinkedQueue<EZIDServiceRequest> abandoned = new ConcurrentLinkedQueue<EZIDServiceRequest>();
+    private Thread shutdownHook = null;
+    private long progressIntervalMillis = 5000;
+    private volatile DeadLetterSink deadLetterSink = null;
+    private volatile ShoulderAuthorizer authorizer = null;
+    private volatile MetadataValidator validator = null;
+    private volatile AdaptiveConcurrencyLimiter limiter = null;
 
     protected static Log log = LogFactory.getLog(EZIDClient.class);
 
     public EZIDClient(String baseURL) {
         ezid = new EZIDService(baseURL);
+        listeners.add(new DeadLetterListener());
         startExecutorLoop();
     }
     
@@ -69,25 +96,171 @@ public class EZIDClient  {
     }
     
     public void create(String identifier, HashMap<String, String> metadata) throws InterruptedException {
-        EZIDServiceRequest request = new EZIDServiceRequest(ezid, EZIDServiceRequest.CREATE, identifier, metadata);
-        executor.execute(request);
+        create(identifier, metadata, RequestPriority.NORMAL, PriorityLaneQueue.DEFAULT_KEY);
+    }
+
+    /**
+     * Queue a request to create an identifier in the given priority lane.
+     * @param identifier to be created
+     * @param metadata name/value pairs to be associated with the identifier
+     * @param priority the lane in which the request is queued
+     * @param fairnessKey the caller or tenant on whose behalf the request is made, or null
+     */
+    public void create(String identifier, HashMap<String, String> metadata, RequestPriority priority,
+            String fairnessKey) throws InterruptedException {
+        preflight(identifier, true);
+        validate(identifier, metadata, true);
+        EZIDServiceRequest request = new EZIDServiceRequest(ezid, EZIDServiceRequest.CREATE, identifier, metadata,
+                priority, fairnessKey);
+        submit(request);
+    }
+
+    /**
+     * Queue a request to create an identifier whose metadata is the template's
+     * shared values plus the given per-record fields, as when creating a large
+     * batch of identifiers with common metadata.
+     * @param identifier to be created
+     * @param template the compiled shared metadata
+     * @param fields the record's own name/value pairs, or null for none
+     * @throws IllegalArgumentException if a field repeats a name set by the template
+     */
+    public void createFromTemplate(String identifier, AnvlTemplate template, HashMap<String, String> fields)
+            throws InterruptedException {
+        createFromTemplate(identifier, template, fields, RequestPriority.NORMAL, PriorityLaneQueue.DEFAULT_KEY);
+    }
+
+    /**
+     * Queue a request to create an identifier from a template in the given priority lane.
+     * @param identifier to be created
+     * @param template the compiled shared metadata
+     * @param fields the record's own name/value pairs, or null for none
+     * @param priority the lane in which the request is queued
+     * @param fairnessKey the caller or tenant on whose behalf the request is made, or null
+     * @throws IllegalArgumentException if a field repeats a name set by the template
+     */
+    public void createFromTemplate(String identifier, AnvlTemplate template, HashMap<String, String> fields,
+            RequestPriority priority, String fairnessKey) throws InterruptedException {
+        if (template == null) {
+            throw new IllegalArgumentException("Template must not be null.");
+        }
+        template.checkFields(fields);
+        preflight(identifier, true);
+        if (validator != null) {
+            validate(identifier, template.merge(fields), true);
+        }
+        EZIDServiceRequest request = new EZIDServiceRequest(ezid, EZIDServiceRequest.CREATE, identifier, fields,
+                priority, fairnessKey);
+        request.setTemplate(template);
+        submit(request);
     }
 
     public void delete(String identifier) throws InterruptedException {
-        EZIDServiceRequest request = new EZIDServiceRequest(ezid, EZIDServiceRequest.DELETE, identifier);
-        executor.execute(request);
+        delete(identifier, RequestPriority.NORMAL, PriorityLaneQueue.DEFAULT_KEY);
+    }
+
+    /**
+     * Queue a request to delete an identifier in the given priority lane.
+     * @param identifier to be deleted
+     * @param priority the lane in which the request is queued
+     * @param fairnessKey the caller or tenant on whose behalf the request is made, or null
+     */
+    public void delete(String identifier, RequestPriority priority, String fairnessKey) throws InterruptedException {
+        preflight(identifier, false);
+        EZIDServiceRequest request = new EZIDServiceRequest(ezid, EZIDServiceRequest.DELETE, identifier, null,
+                priority, fairnessKey);
+        submit(request);
     }
 
     public void setMetadata(String identifier, HashMap<String, String> metadata) throws InterruptedException {
-        EZIDServiceRequest request = new EZIDServiceRequest(ezid, EZIDServiceRequest.SETMETADATA, identifier, metadata);
-        executor.execute(request);
+        setMetadata(identifier, metadata, RequestPriority.NORMAL, PriorityLaneQueue.DEFAULT_KEY);
+    }
 
+    /**
+     * Queue a request to set metadata on an identifier in the given priority lane.
+     * @param identifier of the resource for which metadata is being set
+     * @param metadata name/value pairs to be set
+     * @param priority the lane in which the request is queued
+     * @param fairnessKey the caller or tenant on whose behalf the request is made, or null
+     */
+    public void setMetadata(String identifier, HashMap<String, String> metadata, RequestPriority priority,
+            String fairnessKey) throws InterruptedException {
+        preflight(identifier, false);
+        validate(identifier, metadata, false);
+        EZIDServiceRequest request = new EZIDServiceRequest(ezid, EZIDServiceRequest.SETMETADATA, identifier, metadata,
+                priority, fairnessKey);
+        submit(request);
     }
     
     public void createOrUpdate(String identifier, HashMap<String, String> metadata) throws InterruptedException {
-        EZIDServiceRequest request = new EZIDServiceRequest(ezid, EZIDServiceRequest.SMARTCREATE, identifier, metadata);
-        executor.execute(request);
+        createOrUpdate(identifier, metadata, RequestPriority.NORMAL, PriorityLaneQueue.DEFAULT_KEY);
+    }
 
+    /**
+     * Queue a request to create an identifier, or update its metadata if it already
+     * exists, in the given priority lane.
+     * @param identifier to be created or updated
+     * @param metadata name/value pairs to be associated with the identifier
+     * @param priority the lane in which the request is queued
+     * @param fairnessKey the caller or tenant on whose behalf the request is made, or null
+     */
+    public void createOrUpdate(String identifier, HashMap<String, String> metadata, RequestPriority priority,
+            String fairnessKey) throws InterruptedException {
+        // the identifier may already exist, so only the values supplied are checked
+        preflight(identifier, true);
+        validate(identifier, metadata, false);
+        EZIDServiceRequest request = new EZIDServiceRequest(ezid, EZIDServiceRequest.SMARTCREATE, identifier, metadata,
+                priority, fairnessKey);
+        submit(request);
+    }
+
+    /**
+     * Report the depth of each priority lane and the time requests have spent
+     * waiting in it before being dispatched to a worker.
+     * @return a snapshot of the statistics for each lane
+     */
+    public Map<RequestPriority, LaneStatistics> getLaneStatistics() {
+        return queue.getStatistics();
+    }
+
+    /**
+     * Register a listener to be notified of the outcome of each queued request.
+     * @param listener the listener to add
+     */
+    public void addRequestListener(EZIDRequestListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Record every queued request that fails permanently in the given sink, or stop
+     * recording failures by passing null.
+     * @param sink the DeadLetterSink to record failed requests in, or null
+     */
+    public void setDeadLetterSink(DeadLetterSink sink) {
+        deadLetterSink = sink;
+    }
+
+    /**
+     * @param listener the listener to remove
+     */
+    public void removeRequestListener(EZIDRequestListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Note: unlike the queued methods in this class, the thread blocks until the metadata is returned
+     * @param identifier for which metadata should be returned
+     * @return HashMap of name/value pairs of metadata properties
+     * @throws EZIDException
+     */
+    public HashMap<String, String> getMetadata(String identifier) throws EZIDException {
+        ShoulderAuthorizer a = authorizer;
+        if (a != null) {
+            String reason = a.checkExisting(identifier);
+            if (reason != null) {
+                throw new EZIDException("Rejected before sending: " + reason);
+            }
+        }
+        return ezid.getMetadata(identifier);
     }
 
     /**
@@ -98,25 +271,333 @@ public class EZIDClient  {
      * @throws EZIDException
      */
     public String mintIdentifier(String shoulder, HashMap<String, String> metadata) throws EZIDException {
+        ShoulderAuthorizer a = authorizer;
+        if (a != null) {
+            String reason = a.checkMint(shoulder);
+            if (reason != null) {
+                throw new EZIDException("Rejected before sending: " + reason);
+            }
+        }
+        MetadataValidator v = validator;
+        if (v != null) {
+            v.check(shoulder, metadata, Collections.<String>emptySet(), true);
+        }
         String identifier = ezid.mintIdentifier(shoulder, metadata);
         return identifier;
     }
     
+    /**
+     * Protect this client's calls to EZID with a CircuitBreaker.  While the breaker is
+     * open, queued requests are held in the queue and by the workers until the breaker
+     * admits calls again, so no work is dropped during an outage.
+     * @param breaker the CircuitBreaker to use, or null to disable it
+     */
+    public void setCircuitBreaker(CircuitBreaker breaker) {
+        ezid.setCircuitBreaker(breaker);
+    }
+
+    /**
+     * Keep the given IdentifierRegistry up to date as this client's requests succeed.
+     * @param registry the registry to update, or null to stop updating it
+     */
+    public void setRegistry(IdentifierRegistry registry) {
+        ezid.setRegistry(registry);
+    }
+
+    /**
+     * Check identifiers locally before requests are queued, so that malformed
+     * identifiers and new identifiers outside the account's shoulders are rejected
+     * with an IllegalArgumentException on the caller's thread instead of taking a
+     * worker and a round trip.  The synchronous getMetadata and mintIdentifier calls
+     * are checked too, and fail with an EZIDException.  Pass null to turn the checks off.
+     * @param authorizer the ShoulderAuthorizer to use, or null
+     */
+    public void setShoulderAuthorizer(ShoulderAuthorizer authorizer) {
+        this.authorizer = authorizer;
+    }
+
+    /**
+     * Check metadata locally before requests are queued, so that records EZID would
+     * reject are refused with an IllegalArgumentException on the caller's thread,
+     * whose cause is a MetadataValidationException listing the problems.  The
+     * synchronous mintIdentifier call is checked too, and fails with the
+     * MetadataValidationException itself.  Pass null to turn the checks off.
+     * @param validator the MetadataValidator to use, or null
+     */
+    public void setMetadataValidator(MetadataValidator validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * Share a rate and in-flight limit with the other processes on this host that
+     * use the same state file, so that together they stay within EZID's limits.
+     * Each call made by a worker waits for a permit before it is sent.
+     * @param limiter the SharedRateLimiter to use, or null to stop sharing
+     */
+    public void setSharedRateLimiter(SharedRateLimiter limiter) {
+        ezid.setSharedRateLimiter(limiter);
+    }
+
+    /**
+     * Register an interceptor to be notified of the lifecycle of each call made by
+     * this client, including when requests are queued.
+     * @param interceptor the interceptor to add
+     */
+    public void addInterceptor(EZIDInterceptor interceptor) {
+        ezid.addInterceptor(interceptor);
+    }
+
+    /**
+     * @param interceptor the interceptor to remove
+     */
+    public void removeInterceptor(EZIDInterceptor interceptor) {
+        ezid.removeInterceptor(interceptor);
+    }
+
+    /**
+     * Gzip-compress request bodies longer than the given number of characters.
+     * @see EZIDService#setCompressionThreshold(int)
+     * @param thresholdChars the body length above which requests are compressed, or -1
+     */
+    public void setCompressionThreshold(int thresholdChars) {
+        ezid.setCompressionThreshold(thresholdChars);
+    }
+
+    /**
+     * Limit the duration of each call made by this client's workers, so that an
+     * unresponsive connection cannot hold a worker indefinitely.
+     * @param timeoutMillis the deadline for each call in milliseconds, or zero for none
+     */
+    public void setDefaultTimeout(long timeoutMillis) {
+        ezid.setDefaultTimeout(timeoutMillis);
+    }
+
+    /**
+     * Mint an identifier locally and queue a request to create it, so the identifier
+     * is known at once and no mint call is made to EZID.
+     * @param minter the local minter for a shoulder this account may create on
+     * @param metadata name/value pairs to be associated with the identifier
+     * @return the identifier queued for creation
+     * @throws EZIDException if the minter cannot mint an identifier
+     */
+    public String create(NoidMinter minter, HashMap<String, String> metadata) throws EZIDException,
+            InterruptedException {
+        String identifier = minter.mint();
+        create(identifier, metadata);
+        return identifier;
+    }
+
+    /**
+     * Open a journal of scheduled transitions, such as embargo releases, and start
+     * firing them through this client as they fall due.
+     * @see TransitionScheduler
+     * @param journal the journal file, which may be shared with other processes
+     * @param owner a name for this process, stable across restarts and unique among
+     *          the processes sharing the journal
+     * @return the running scheduler, to which transitions can be added
+     * @throws IOException if the journal cannot be opened
+     * @throws InterruptedException if interrupted while queueing resumed transitions
+     */
+    public TransitionScheduler startScheduler(Path journal, String owner) throws IOException, InterruptedException {
+        TransitionScheduler scheduler = new TransitionScheduler(this, journal, owner);
+        scheduler.start();
+        return scheduler;
+    }
+
+    /**
+     * Size the worker pool adaptively from the round-trip time of EZID calls, instead
+     * of using one worker per core.  The limiter applies its current limit at once;
+     * requests queued before it was set do not give samples.
+     * @param limiter the limiter to use, or null to return to one worker per core
+     */
+    public synchronized void setConcurrencyLimiter(AdaptiveConcurrencyLimiter limiter) {
+        if (this.limiter != null) {
+            this.limiter.attach(null, null);
+        }
+        if (limiter != null) {
+            limiter.attach(executor, ezid);
+        } else {
+            AdaptiveConcurrencyLimiter.resizePool(executor, Runtime.getRuntime().availableProcessors());
+        }
+        this.limiter = limiter;
+    }
+
+    /**
+     * @return the limiter sizing the worker pool, or null if the pool has one worker per core
+     */
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Check an identifier with the ShoulderAuthorizer, if one is set, before the
+     * request is queued.
+     * @throws IllegalArgumentException if the identifier is rejected
+     */
+    private void preflight(String identifier, boolean create) {
+        ShoulderAuthorizer a = authorizer;
+        if (a != null) {
+            String reason = create ? a.checkCreate(identifier) : a.checkExisting(identifier);
+            if (reason != null) {
+                throw new IllegalArgumentException("Rejected before queueing: " + reason);
+            }
+        }
+    }
+
+    private void validate(String identifier, HashMap<String, String> metadata, boolean create) {
+        MetadataValidator v = validator;
+        if (v != null) {
+            try {
+                v.check(identifier, metadata, Collections.<String>emptySet(), create);
+            } catch (MetadataValidationException e) {
+                throw new IllegalArgumentException(e.getMessage().replace("before sending", "before queueing"), e);
+            }
+        }
+    }
+
+    private void submit(EZIDServiceRequest request) {
+        request.setListeners(listeners);
+        request.setAbandoned(abandoned);
+        request.setLimiter(limiter);
+        ezid.enqueued(request);
+        executor.execute(request);
+    }
+
     private void startExecutorLoop() {
         // Query the runtime to see how many CPUs are available, and configure that many threads
         Runtime runtime = Runtime.getRuntime();        
         int numCores = runtime.availableProcessors();
         log.debug("Number of cores available: " + numCores);
-        executor = Executors.newFixedThreadPool(numCores);
+        queue = new PriorityLaneQueue();
+        executor = new ThreadPoolExecutor(numCores, numCores, 0L, TimeUnit.MILLISECONDS, queue);
     }
     
+    /**
+     * Stop accepting requests and wait, without a deadline, until every queued
+     * request has been executed.
+     */
     public void shutdown() {
+        try {
+            shutdown(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while waiting for queued EZID requests to finish.");
+        }
+    }
+
+    /**
+     * Stop accepting requests and drain the queue until it is empty or the timeout
+     * expires.  The calling thread blocks without spinning and progress is logged
+     * periodically.  At the deadline, queued requests are removed without being run
+     * and the workers are interrupted; requests already in flight finish their
+     * current call, and requests held by an open CircuitBreaker or waiting for a
+     * connection or rate limit lease are given up and returned with the others.
+     * @param timeout the longest time to wait for the queue to drain
+     * @param unit the unit of the timeout
+     * @return the requests that were not run, so that they can be persisted or
+     *          resubmitted; empty if the queue drained in time
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public List<EZIDServiceRequest> shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        removeShutdownHook();
         log.debug("Shutting down executor...");
-        // Stop the executor from accepting new requests and finishing existing Runnables
+        // Stop the executor from accepting new requests and finish existing Runnables
         executor.shutdown();
-        // Wait until all Runnables are finished
+        long start = System.nanoTime();
+        long deadline = start + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        long interval = TimeUnit.MILLISECONDS.toNanos(progressIntervalMillis);
         while (!executor.isTerminated()) {
-//            log.debug("...");
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            if (executor.awaitTermination(Math.min(remaining, interval), TimeUnit.NANOSECONDS)) {
+                break;
+            }
+            log.info("Draining EZID requests: " + queue.size() + " queued, " + executor.getActiveCount()
+                    + " in progress, " + executor.getCompletedTaskCount() + " completed, "
+                    + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + "s elapsed.");
+        }
+        List<EZIDServiceRequest> leftover = new ArrayList<EZIDServiceRequest>();
+        if (!executor.isTerminated()) {
+            for (Runnable r : executor.shutdownNow()) {
+                leftover.add((EZIDServiceRequest) r);
+            }
+            // give interrupted workers a moment to hand back requests held by the breaker
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+            log.warn("Shutdown deadline reached with " + leftover.size() + " EZID requests not run.");
+        }
+        EZIDServiceRequest r;
+        while ((r = abandoned.poll()) != null) {
+            leftover.add(r);
+        }
+        return leftover;
+    }
+
+    /**
+     * Set how often shutdown logs the progress of the drain.
+     * @param intervalMillis the interval between progress messages in milliseconds
+     */
+    public void setShutdownProgressInterval(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Progress interval must be positive.");
+        }
+        progressIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Register a JVM shutdown hook that drains this client with the given deadline
+     * when the JVM exits in an orderly way, logging any requests that could not be
+     * run.  The hook is removed when the client is shut down explicitly.
+     * @param timeout the longest time the hook waits for the queue to drain
+     * @param unit the unit of the timeout
+     */
+    public synchronized void registerShutdownHook(final long timeout, final TimeUnit unit) {
+        if (shutdownHook != null) {
+            return;
+        }
+        shutdownHook = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (EZIDServiceRequest r : shutdown(timeout, unit)) {
+                        log.warn("NOT RUN Request " + r.getMethod() + " for: " + r.getIdentifier());
+                    }
+                } catch (InterruptedException e) {
+                    log.warn("Interrupted while draining EZID requests at JVM shutdown.");
+                }
+            }
+        }, "ezid-client-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    private synchronized void removeShutdownHook() {
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // the JVM is already shutting down and the hook is running or has run
+            }
+        }
+        shutdownHook = null;
+    }
+
+    /**
+     * Passes failed requests to the DeadLetterSink, if one is set.
+     */
+    private class DeadLetterListener implements EZIDRequestListener {
+        public void requestCompleted(EZIDServiceRequest request) {
+        }
+
+        public void requestFailed(EZIDServiceRequest request, EZIDException e) {
+            DeadLetterSink sink = deadLetterSink;
+            if (sink != null) {
+                try {
+                    sink.record(DeadLetter.of(request, e));
+                } catch (IOException ioe) {
+                    log.error("Could not record failed request " + request.getMethod() + " for: "
+                            + request.getIdentifier() + " as a dead letter: " + ioe.getMessage());
+                }
+            }
         }
     }
 }
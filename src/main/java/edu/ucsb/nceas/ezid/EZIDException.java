@@ -28,4 +28,8 @@ public class EZIDException extends Exception {
         super(msg);
     }
 
+    public EZIDException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+
 }
@@ -0,0 +1,41 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+/**
+ * An EZIDInterceptor is notified as each EZIDService call passes through the key
+ * points of its lifecycle, for tracing, auditing or accounting without changing
+ * EZIDService itself.  Register interceptors with
+ * {@link EZIDService#addInterceptor(EZIDInterceptor)} or
+ * {@link EZIDClient#addInterceptor(EZIDInterceptor)}.  When no interceptor is
+ * registered, no events are created at all.
+ *
+ * Interceptors are called synchronously on the thread making the call, so they
+ * must be thread safe and return quickly.  An exception thrown by an interceptor
+ * is logged and otherwise ignored.
+ */
+public interface EZIDInterceptor {
+
+    /**
+     * Called at each point in the lifecycle of a call.
+     * @param event the call and the point it has reached
+     */
+    public void onEvent(EZIDCallEvent event);
+}
@@ -21,36 +21,68 @@ package edu.ucsb.nceas.ezid;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpClientConnection;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.AuthCache;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.CookieStore;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.ClientContext;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionRequest;
 import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicAuthCache;
-import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.DefaultHttpClient;
@@ -59,10 +91,18 @@ import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
 import org.apache.http.util.EntityUtils;
 
+import edu.ucsb.nceas.ezid.EZIDCallEvent.Operation;
 import edu.ucsb.nceas.ezid.profile.InternalProfile;
+import edu.ucsb.nceas.ezid.registry.IdentifierRegistry;
+import edu.ucsb.nceas.ezid.replay.RecordingHttpClient;
+import edu.ucsb.nceas.ezid.replay.ReplayHttpClient;
+import edu.ucsb.nceas.ezid.replay.TrafficRecorder;
 
 /**
  * EZIDService provides access to the EZID identifier service maintained by the
@@ -104,7 +144,18 @@ public class EZIDService
     private static final int PUT = 2;
     private static final int POST = 3;
     private static final int DELETE = 4;
+    private static final int MAX_CONNECTIONS = 5;
     private static final int CONNECTIONS_PER_ROUTE = 8;
+    private static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT = 60000;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+    private static final int DEFAULT_SOCKET_TIMEOUT = 120000;
+    private static final long DEFAULT_RATE_LIMIT_WAIT = 60000;
+    private static final RequestConfig DEFAULT_REQUEST_CONFIG = RequestConfig.custom()
+            .setConnectionRequestTimeout(DEFAULT_CONNECTION_REQUEST_TIMEOUT)
+            .setConnectTimeout(DEFAULT_CONNECT_TIMEOUT)
+            .setSocketTimeout(DEFAULT_SOCKET_TIMEOUT)
+            .build();
+    private static ScheduledExecutorService deadlineTimer = null;
     
     private String serviceBaseUrl = "https://ezid.cdlib.org/";
     private String loginServiceEndpoint = null;
@@ -112,7 +163,23 @@ public class EZIDService
     private String idServiceEndpoint = null;
     private String mintServiceEndpoint = null;
     
-    private CloseableHttpClient httpclient = null;
+    private volatile CloseableHttpClient httpclient = null;
+    private CloseableHttpClient liveClient = null;
+    private TrafficRecorder recorder = null;
+    private PoolingHttpClientConnectionManager[] connectionManagers = null;
+    private Future<WarmupReport> warmup = null;
+    private volatile HedgingPolicy hedgingPolicy = null;
+    private ExecutorService hedgeExecutor = null;
+    private volatile CircuitBreaker circuitBreaker = null;
+    private volatile long defaultTimeoutMillis = 0;
+    private volatile IdentifierRegistry registry = null;
+    private volatile int compressionThreshold = -1;
+    private volatile ShoulderAuthorizer authorizer = null;
+    private volatile MetadataValidator validator = null;
+    private volatile SharedRateLimiter rateLimiter = null;
+    private volatile EZIDInterceptor[] interceptors = new EZIDInterceptor[0];
+    private volatile PhaseProfiler phaseProfiler = null;
+    private volatile String loginUsername = null;
 
     protected static Log log = LogFactory.getLog(EZIDService.class);
 
@@ -124,9 +191,35 @@ public class EZIDService
      * 			like http://n2t-stage.cdlib.org/ezid
      */
     public EZIDService(String baseUrl) {
-        httpclient = createThreadSafeClient();
+        this(baseUrl, 1, ShardSelection.THREAD);
+    }
+
+    /**
+     * Construct an EZIDService whose calls are spread over several independent
+     * connection pools.  Every lease and release of a connection takes its pool's
+     * lock, so when many threads make fast calls a single pool becomes a point of
+     * contention; with shards, each pool serves only some of the threads or
+     * identifiers.  The session cookie from login is shared by all the shards.
+     * Each shard has a pool of the default size, so a sharded service keeps more
+     * connections to EZID.  Sharding only pays off with many concurrent callers
+     * and short response times; see ShardingBenchmark in the test sources.
+     * @param baseUrl the EZID base URL, or null for the default
+     * @param shards the number of connection pools, at least 1
+     * @param selection how a call's pool is chosen
+     */
+    public EZIDService(String baseUrl, int shards, ShardSelection selection) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("There must be at least one shard.");
+        }
+        SharedCookieStore cookieStore = new SharedCookieStore();
+        connectionManagers = new PoolingHttpClientConnectionManager[shards];
+        CloseableHttpClient[] clients = new CloseableHttpClient[shards];
+        for (int i = 0; i < shards; i++) {
+            connectionManagers[i] = TimedConnections.createConnectionManager();
+            clients[i] = createThreadSafeClient(connectionManagers[i], cookieStore);
+        }
+        httpclient = shards == 1 ? clients[0] : new ShardedHttpClient(clients, selection);
 
-        
         // use override if provided
         if (baseUrl != null) {
             serviceBaseUrl = baseUrl;
@@ -137,6 +230,23 @@ public class EZIDService
         mintServiceEndpoint = serviceBaseUrl + "/shoulder";
     }
     
+    /**
+     * Construct an EZIDService and start warming it up in the background, so that
+     * DNS resolution, connection setup and login overlap with the rest of the
+     * application's startup.  Calls made before the warm-up finishes are not
+     * blocked, but may not yet be logged in; wait on {@link #getWarmup()} first
+     * if that matters.
+     * @param baseUrl the EZID base URL, or null for the default
+     * @param connections the number of connections to open and keep in the pool
+     * @param username the account to log in with, or null to skip login
+     * @param password the password of the account
+     * @see #warmUp(int, String, String)
+     */
+    public EZIDService(String baseUrl, int connections, String username, String password) {
+        this(baseUrl);
+        warmup = warmUpAsync(connections, username, password);
+    }
+
     /**
      * Default EZID service constructor uses default service base URL
      */
@@ -182,8 +292,9 @@ public class EZIDService
           
             HttpGet httpget = new HttpGet(loginServiceEndpoint);
             body = httpclient.execute(httpget, handler, localcontext);
-            String message = new String(body);
+            String message = new String(body, StandardCharsets.UTF_8);
             String msg = parseIdentifierResponse(message);
+            loginUsername = username;
         } catch (URISyntaxException e) {
             throw new EZIDException(e.getMessage());
         } catch (ClientProtocolException e) {
@@ -193,14 +304,203 @@ public class EZIDService
         }
     }
     
+    /**
+     * Prepare the service for fast first requests.  The host name is resolved, a
+     * first request is timed on a new connection, then the given number of pooled
+     * connections are opened (including any TLS handshake) in parallel with the
+     * login, and finally the same request is timed again on a warm connection.
+     * The request used is EZID's lightweight status check.  The connections stay
+     * in the pool until EZID closes them as idle.
+     * @param connections the number of connections to open, capped at the pool size
+     * @param username the account to log in with, or null to skip login
+     * @param password the password of the account
+     * @return the timings of the warm-up, including a failed login if there was one
+     * @throws EZIDException if the host cannot be resolved or EZID cannot be reached
+     */
+    public WarmupReport warmUp(int connections, final String username, final String password) throws EZIDException {
+        if (connections < 1) {
+            throw new IllegalArgumentException("At least one connection must be opened.");
+        }
+        long start = System.nanoTime();
+        URI uri;
+        try {
+            uri = new URI(serviceBaseUrl);
+        } catch (URISyntaxException e) {
+            throw new EZIDException(e.getMessage());
+        }
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort() > 0 ? uri.getPort() : (secure ? 443 : 80);
+        final HttpRoute route = new HttpRoute(new HttpHost(uri.getHost(), port, uri.getScheme()), null, secure);
+
+        long t = System.nanoTime();
+        try {
+            InetAddress.getAllByName(uri.getHost());
+        } catch (IOException e) {
+            throw new EZIDException("Could not resolve " + uri.getHost() + ": " + e.getMessage());
+        }
+        long dns = System.nanoTime() - t;
+        String statusEndpoint = serviceBaseUrl + "/status";
+        t = System.nanoTime();
+        sendRequest(GET, statusEndpoint, null, null, null);
+        long cold = System.nanoTime() - t;
+
+        // each task holds its lease until all are connected, so that every task
+        // gets a distinct connection; one of them may reuse the probe's connection
+        // spread the connections over the shards
+        int capacity = 0;
+        for (PoolingHttpClientConnectionManager manager : connectionManagers) {
+            capacity += Math.min(manager.getMaxTotal(), manager.getDefaultMaxPerRoute());
+        }
+        int count = Math.min(connections, capacity);
+        final CountDownLatch connected = new CountDownLatch(count);
+        List<FutureTask<Boolean>> tasks = new ArrayList<FutureTask<Boolean>>();
+        for (int i = 0; i < count; i++) {
+            final PoolingHttpClientConnectionManager manager = connectionManagers[i % connectionManagers.length];
+            tasks.add(new FutureTask<Boolean>(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    openConnection(manager, route, connected);
+                    return Boolean.TRUE;
+                }
+            }));
+        }
+        final String[] loginError = new String[1];
+        final long[] loginNanos = new long[1];
+        if (username != null) {
+            tasks.add(new FutureTask<Boolean>(new Callable<Boolean>() {
+                public Boolean call() {
+                    long begin = System.nanoTime();
+                    try {
+                        login(username, password);
+                    } catch (EZIDException e) {
+                        loginError[0] = e.getMessage();
+                    }
+                    loginNanos[0] = System.nanoTime() - begin;
+                    return Boolean.FALSE;
+                }
+            }));
+        }
+        for (FutureTask<Boolean> task : tasks) {
+            Thread thread = new Thread(task, "ezid-warmup");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        int opened = 0;
+        for (FutureTask<Boolean> task : tasks) {
+            try {
+                if (task.get()) {
+                    opened++;
+                }
+            } catch (ExecutionException e) {
+                log.warn("Could not open a warm connection to " + route + ": " + e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EZIDException("Interrupted while warming up connections.");
+            }
+        }
+
+        t = System.nanoTime();
+        sendRequest(GET, statusEndpoint, null, null, null);
+        long warm = System.nanoTime() - t;
+        WarmupReport report = new WarmupReport(dns / 1000, cold / 1000, warm / 1000, opened, loginNanos[0] / 1000,
+                (System.nanoTime() - start) / 1000, loginError[0]);
+        log.info(report);
+        return report;
+    }
+
+    /**
+     * Warm up the service on a background thread.
+     * @see #warmUp(int, String, String)
+     * @param connections the number of connections to open
+     * @param username the account to log in with, or null to skip login
+     * @param password the password of the account
+     * @return a Future holding the report, or the reason the warm-up failed
+     */
+    public Future<WarmupReport> warmUpAsync(final int connections, final String username, final String password) {
+        FutureTask<WarmupReport> task = new FutureTask<WarmupReport>(new Callable<WarmupReport>() {
+            public WarmupReport call() throws EZIDException {
+                return warmUp(connections, username, password);
+            }
+        });
+        Thread thread = new Thread(task, "ezid-warmup");
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+
+    /**
+     * @return the background warm-up started by the constructor, or null if none was requested
+     */
+    public Future<WarmupReport> getWarmup() {
+        return warmup;
+    }
+
+    /**
+     * Lease a connection for the route, connect it if it is new, and return it to
+     * the pool once every other warm-up task has connected too.  A connection that
+     * fails to connect is discarded by the pool.
+     */
+    private void openConnection(PoolingHttpClientConnectionManager connectionManager, HttpRoute route,
+            CountDownLatch connected) throws Exception {
+        HttpClientConnection conn = null;
+        try {
+            ConnectionRequest request = connectionManager.requestConnection(route, null);
+            conn = request.get(DEFAULT_CONNECTION_REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (!conn.isOpen()) {
+                HttpClientContext context = HttpClientContext.create();
+                connectionManager.connect(conn, route, DEFAULT_CONNECT_TIMEOUT, context);
+                connectionManager.routeComplete(conn, route, context);
+            }
+        } finally {
+            connected.countDown();
+            if (conn != null) {
+                connected.await(DEFAULT_CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+                connectionManager.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return the number of idle connections kept in the pools, ready for use
+     */
+    public int getIdleConnections() {
+        return getPoolStats().getAvailable();
+    }
+
+    /**
+     * @return the number of connection pools the service's calls are spread over
+     */
+    public int getShardCount() {
+        return connectionManagers.length;
+    }
+
+    /**
+     * @return the connection counts summed over every shard's pool: connections
+     *          leased, callers waiting for one, idle connections, and the maximum
+     */
+    public PoolStats getPoolStats() {
+        int leased = 0;
+        int pending = 0;
+        int available = 0;
+        int max = 0;
+        for (PoolingHttpClientConnectionManager manager : connectionManagers) {
+            PoolStats stats = manager.getTotalStats();
+            leased += stats.getLeased();
+            pending += stats.getPending();
+            available += stats.getAvailable();
+            max += stats.getMax();
+        }
+        return new PoolStats(leased, pending, available, max);
+    }
+
     /**
      * Log out of the EZID service, invalidating the current session.
      */
     public void logout() throws EZIDException {
         String ezidEndpoint = logoutServiceEndpoint;
-        byte[] response = sendRequest(GET, ezidEndpoint);
-        String message = new String(response);
-        String msg = parseIdentifierResponse(message);
+        CallTrace trace = startTrace(Operation.LOGOUT, null, null);
+        byte[] response = sendRequest(GET, ezidEndpoint, null, null, trace);
+        String message = new String(response, StandardCharsets.UTF_8);
+        String msg = parseIdentifierResponse(message, trace);
     }
     
     /**
@@ -221,16 +521,38 @@ public class EZIDService
      * @throws EZIDException if an error occurs while creating the identifier
      */
     public String createIdentifier(String identifier, HashMap<String, String> metadata) throws EZIDException {
-        String newId = null;
+        return createIdentifier(identifier, metadata, null);
+    }
+
+    /**
+     * Request that an identifier be created in the EZID system, subject to the
+     * deadline and cancellation signal carried by the given CallOptions.
+     * @see #createIdentifier(String, HashMap)
+     * @param identifier to be created
+     * @param metadata a HashMap containing name/value pairs to be associated with the identifier
+     * @param options the deadline and cancellation for this call, or null for the defaults
+     * @return String identifier that was created
+     * @throws EZIDException if an error occurs while creating the identifier, or the
+     *          call is cancelled or exceeds its deadline
+     */
+    public String createIdentifier(String identifier, HashMap<String, String> metadata, CallOptions options) throws EZIDException {
+        ShoulderAuthorizer a = authorizer;
+        if (a != null) {
+            reject(a.checkCreate(identifier));
+        }
+        validate(identifier, metadata, true);
         String ezidEndpoint = idServiceEndpoint + "/" + identifier;
 
         String anvl = serializeAsANVL(metadata);
 
-        byte[] response = sendRequest(PUT, ezidEndpoint, anvl);
-        String responseMsg = new String(response);
+        CallTrace trace = startTrace(Operation.CREATE, identifier, anvl);
+        byte[] response = sendRequest(PUT, ezidEndpoint, anvl, options, trace);
+        String responseMsg = new String(response, StandardCharsets.UTF_8);
         log.debug(responseMsg);
 
-        return parseIdentifierResponse(responseMsg);
+        String createdId = parseIdentifierResponse(responseMsg, trace);
+        registerCreate(createdId, metadata);
+        return createdId;
     }
 
     /**
@@ -247,40 +569,97 @@ public class EZIDService
      * @throws EZIDException if an error occurs while minting the identifier
      */
     public String mintIdentifier(String shoulder, HashMap<String, String> metadata) throws EZIDException {
+            return mintIdentifier(shoulder, metadata, null);
+    }
+
+    /**
+     * Mint a new identifier within the given shoulder, subject to the deadline and
+     * cancellation signal carried by the given CallOptions.
+     * @see #mintIdentifier(String, HashMap)
+     * @param shoulder to be used to prefix the identifier
+     * @param metadata a HashMap containing name/value pairs to be associated with the identifier
+     * @param options the deadline and cancellation for this call, or null for the defaults
+     * @return String identifier that was created
+     * @throws EZIDException if an error occurs while minting the identifier, or the
+     *          call is cancelled or exceeds its deadline
+     */
+    public String mintIdentifier(String shoulder, HashMap<String, String> metadata, CallOptions options) throws EZIDException {
+            ShoulderAuthorizer a = authorizer;
+            if (a != null) {
+                reject(a.checkMint(shoulder));
+            }
+            validate(shoulder, metadata, true);
             String ezidEndpoint = mintServiceEndpoint + "/" + shoulder;
             
             String anvl = serializeAsANVL(metadata);
 
-            byte[] response = sendRequest(POST, ezidEndpoint, anvl);
-            String responseMsg = new String(response);
+            CallTrace trace = startTrace(Operation.MINT, shoulder, anvl);
+            byte[] response = sendRequest(POST, ezidEndpoint, anvl, options, trace);
+            String responseMsg = new String(response, StandardCharsets.UTF_8);
             log.debug(responseMsg);
-            return parseIdentifierResponse(responseMsg);
+            String mintedId = parseIdentifierResponse(responseMsg, trace);
+            registerCreate(mintedId, metadata);
+            return mintedId;
     }
 
     /**
      * Return a HashMap containing the EZID metadata associated with an identifier as
      * a set of name/value pairs.  Each key and associated value in the HashMap 
-     * represents a single metadata property.
+     * represents a single metadata property.  If a HedgingPolicy has been set, a
+     * slow read is hedged with a second request and the first response is used.
      * @param identifier for which metadata should be returned
      * @return HashMap of name/value pairs of metadata properties
      * @throws EZIDException if EZID produces an error during the service call
      */
     public HashMap<String, String> getMetadata(String identifier) throws EZIDException {
+        return getMetadata(identifier, null);
+    }
+
+    /**
+     * Return the EZID metadata associated with an identifier, subject to the deadline
+     * and cancellation signal carried by the given CallOptions.  When the read is
+     * hedged, the deadline and cancellation apply to both requests.
+     * @see #getMetadata(String)
+     * @param identifier for which metadata should be returned
+     * @param options the deadline and cancellation for this call, or null for the defaults
+     * @return HashMap of name/value pairs of metadata properties
+     * @throws EZIDException if EZID produces an error during the service call, or the
+     *          call is cancelled or exceeds its deadline
+     */
+    public HashMap<String, String> getMetadata(String identifier, CallOptions options) throws EZIDException {
+        ShoulderAuthorizer a = authorizer;
+        if (a != null) {
+            reject(a.checkExisting(identifier));
+        }
         String ezidEndpoint = idServiceEndpoint + "/" + identifier;
-        byte [] response = sendRequest(GET, ezidEndpoint);
-        String anvl = new String(response);
+        HedgingPolicy policy = hedgingPolicy;
+        CallTrace trace = startTrace(Operation.GET, identifier, null);
+        byte [] response = null;
+        if (policy != null) {
+            response = sendHedgedRequest(policy, ezidEndpoint, defaultOptions(options), trace);
+        } else {
+            response = sendRequest(GET, ezidEndpoint, null, options, trace);
+        }
+        String anvl = new String(response, StandardCharsets.UTF_8);
         
         HashMap<String, String> metadata = new HashMap<String, String>();
         for (String l : anvl.split("[\\r\\n]+")) {
           String[] kv = l.split(":", 2);
-          String key = unescape(kv[0]).trim();
-          String value = unescape(kv[1]).trim();
+          String key = ANVL.unescape(kv[0]).trim();
+          String value = ANVL.unescape(kv[1]).trim();
           // report the error
           if (key.equals(InternalProfile.ERROR.toString())) {
-        	  throw new EZIDException(value);
+        	  EZIDException e = new EZIDException(value);
+        	  if (trace != null) {
+        	      trace.failed(e);
+        	  }
+        	  throw e;
           }
           metadata.put(key, value);
         }
+        if (trace != null) {
+            trace.parsed();
+        }
         return metadata;
     }
     
@@ -295,14 +674,264 @@ public class EZIDService
      * @throws EZIDException if the EZID service returns an error on setting metadata
      */
     public void setMetadata(String identifier, HashMap<String, String> metadata) throws EZIDException {
+        setMetadata(identifier, metadata, null);
+    }
+
+    /**
+     * Set a series of metadata properties for the given identifier, subject to the
+     * deadline and cancellation signal carried by the given CallOptions.
+     * @see #setMetadata(String, HashMap)
+     * @param identifier of the resource for which metadata is being set
+     * @param metadata HashMap containing name/value metadata pairs
+     * @param options the deadline and cancellation for this call, or null for the defaults
+     * @throws EZIDException if the EZID service returns an error on setting metadata, or
+     *          the call is cancelled or exceeds its deadline
+     */
+    public void setMetadata(String identifier, HashMap<String, String> metadata, CallOptions options) throws EZIDException {
+        ShoulderAuthorizer a = authorizer;
+        if (a != null) {
+            reject(a.checkExisting(identifier));
+        }
+        validate(identifier, metadata, false);
         String ezidEndpoint = idServiceEndpoint + "/" + identifier;
         
         String anvl = serializeAsANVL(metadata);
 
-        byte[] response = sendRequest(POST, ezidEndpoint, anvl);
-        String responseMsg = new String(response);
+        CallTrace trace = startTrace(Operation.SET, identifier, anvl);
+        byte[] response = sendRequest(POST, ezidEndpoint, anvl, options, trace);
+        String responseMsg = new String(response, StandardCharsets.UTF_8);
         log.debug(responseMsg);
-        String modifiedId = parseIdentifierResponse(responseMsg);
+        String modifiedId = parseIdentifierResponse(responseMsg, trace);
+        IdentifierRegistry r = registry;
+        if (r != null) {
+            try {
+                r.recordUpdate(identifier, metadata);
+            } catch (IOException e) {
+                log.warn("Could not record update of " + identifier + " in the registry: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Create an identifier with metadata that is streamed to EZID rather than
+     * held in memory, for values such as large DataCite documents.
+     * @see #createIdentifier(String, HashMap)
+     * @param identifier to be created
+     * @param metadata the metadata, whose file and source values are read as the request is sent
+     * @return String identifier that was created
+     * @throws EZIDException if an error occurs while creating the identifier
+     */
+    public String createIdentifierStreaming(String identifier, StreamingMetadata metadata) throws EZIDException {
+        return createIdentifierStreaming(identifier, metadata, null);
+    }
+
+    /**
+     * Create an identifier with streamed metadata, subject to the deadline and
+     * cancellation signal carried by the given CallOptions.
+     * @see #createIdentifierStreaming(String, StreamingMetadata)
+     * @param identifier to be created
+     * @param metadata the metadata, whose file and source values are read as the request is sent
+     * @param options the deadline and cancellation for this call, or null for the defaults
+     * @return String identifier that was created
+     * @throws EZIDException if an error occurs while creating the identifier
+     */
+    public String createIdentifierStreaming(String identifier, StreamingMetadata metadata, CallOptions options)
+            throws EZIDException {
+        ShoulderAuthorizer a = authorizer;
+        if (a != null) {
+            reject(a.checkCreate(identifier));
+        }
+        validate(identifier, metadata, true);
+        String ezidEndpoint = idServiceEndpoint + "/" + identifier;
+        CallTrace trace = startTrace(Operation.CREATE, identifier, metadata.estimateSize());
+        byte[] response = sendEntity(PUT, ezidEndpoint, createEntity(metadata), options, trace);
+        String responseMsg = new String(response, StandardCharsets.UTF_8);
+        log.debug(responseMsg);
+        String createdId = parseIdentifierResponse(responseMsg, trace);
+        registerCreate(createdId, metadata.getStringValues());
+        return createdId;
+    }
+
+    /**
+     * Mint an identifier with metadata that is streamed to EZID rather than held
+     * in memory.
+     * @see #mintIdentifier(String, HashMap)
+     * @param shoulder to be used to prefix the identifier
+     * @param metadata the metadata, whose file and source values are read as the request is sent
+     * @return String identifier that was created
+     * @throws EZIDException if an error occurs while minting the identifier
+     */
+    public String mintIdentifierStreaming(String shoulder, StreamingMetadata metadata) throws EZIDException {
+        return mintIdentifierStreaming(shoulder, metadata, null);
+    }
+
+    /**
+     * Mint an identifier with streamed metadata, subject to the deadline and
+     * cancellation signal carried by the given CallOptions.
+     * @see #mintIdentifierStreaming(String, StreamingMetadata)
+     * @param shoulder to be used to prefix the identifier
+     * @param metadata the metadata, whose file and source values are read as the request is sent
+     * @param options the deadline and cancellation for this call, or null for the defaults
+     * @return String identifier that was created
+     * @throws EZIDException if an error occurs while minting the identifier
+     */
+    public String mintIdentifierStreaming(String shoulder, StreamingMetadata metadata, CallOptions options)
+            throws EZIDException {
+        ShoulderAuthorizer a = authorizer;
+        if (a != null) {
+            reject(a.checkMint(shoulder));
+        }
+        validate(shoulder, metadata, true);
+        String ezidEndpoint = mintServiceEndpoint + "/" + shoulder;
+        CallTrace trace = startTrace(Operation.MINT, shoulder, metadata.estimateSize());
+        byte[] response = sendEntity(POST, ezidEndpoint, createEntity(metadata), options, trace);
+        String responseMsg = new String(response, StandardCharsets.UTF_8);
+        log.debug(responseMsg);
+        String mintedId = parseIdentifierResponse(responseMsg, trace);
+        registerCreate(mintedId, metadata.getStringValues());
+        return mintedId;
+    }
+
+    /**
+     * Create an identifier whose metadata is the template's shared values plus the
+     * given per-record fields.  Only the fields are encoded for this request; the
+     * shared values were encoded once when the template was compiled.
+     * @see #createIdentifier(String, HashMap)
+     * @param identifier to be created
+     * @param template the compiled shared metadata
+     * @param fields the record's own name/value pairs, or null for none
+     * @return String identifier that was created
+     * @throws EZIDException if an error occurs while creating the identifier
+     */
+    public String createIdentifierFromTemplate(String identifier, AnvlTemplate template,
+            Map<String, String> fields) throws EZIDException {
+        return createIdentifierFromTemplate(identifier, template, fields, null);
+    }
+
+    /**
+     * Create an identifier from a template, subject to the deadline and cancellation
+     * signal carried by the given CallOptions.
+     * @see #createIdentifierFromTemplate(String, AnvlTemplate, Map)
+     * @param identifier to be created
+     * @param template the compiled shared metadata
+     * @param fields the record's own name/value pairs, or null for none
+     * @param options the deadline and cancellation for this call, or null for the defaults
+     * @return String identifier that was created
+     * @throws EZIDException if an error occurs while creating the identifier
+     */
+    public String createIdentifierFromTemplate(String identifier, AnvlTemplate template,
+            Map<String, String> fields, CallOptions options) throws EZIDException {
+        ShoulderAuthorizer a = authorizer;
+        if (a != null) {
+            reject(a.checkCreate(identifier));
+        }
+        AnvlTemplate.Buffer body = template.renderShared(fields);
+        HashMap<String, String> merged = mergeIfNeeded(template, fields);
+        if (merged != null) {
+            validate(identifier, merged, true);
+        }
+        String ezidEndpoint = idServiceEndpoint + "/" + identifier;
+        CallTrace trace = startTrace(Operation.CREATE, identifier, body.length);
+        byte[] response = sendEntity(PUT, ezidEndpoint, createEntity(body), options, trace);
+        String responseMsg = new String(response, StandardCharsets.UTF_8);
+        log.debug(responseMsg);
+        String createdId = parseIdentifierResponse(responseMsg, trace);
+        if (merged != null) {
+            registerCreate(createdId, merged);
+        }
+        return createdId;
+    }
+
+    /**
+     * Mint an identifier whose metadata is the template's shared values plus the
+     * given per-record fields, as when minting a large batch with common metadata.
+     * @see #mintIdentifier(String, HashMap)
+     * @param shoulder to be used to prefix the identifier
+     * @param template the compiled shared metadata
+     * @param fields the record's own name/value pairs, or null for none
+     * @return String identifier that was created
+     * @throws EZIDException if an error occurs while minting the identifier
+     */
+    public String mintIdentifierFromTemplate(String shoulder, AnvlTemplate template,
+            Map<String, String> fields) throws EZIDException {
+        return mintIdentifierFromTemplate(shoulder, template, fields, null);
+    }
+
+    /**
+     * Mint an identifier from a template, subject to the deadline and cancellation
+     * signal carried by the given CallOptions.
+     * @see #mintIdentifierFromTemplate(String, AnvlTemplate, Map)
+     * @param shoulder to be used to prefix the identifier
+     * @param template the compiled shared metadata
+     * @param fields the record's own name/value pairs, or null for none
+     * @param options the deadline and cancellation for this call, or null for the defaults
+     * @return String identifier that was created
+     * @throws EZIDException if an error occurs while minting the identifier
+     */
+    public String mintIdentifierFromTemplate(String shoulder, AnvlTemplate template,
+            Map<String, String> fields, CallOptions options) throws EZIDException {
+        ShoulderAuthorizer a = authorizer;
+        if (a != null) {
+            reject(a.checkMint(shoulder));
+        }
+        AnvlTemplate.Buffer body = template.renderShared(fields);
+        HashMap<String, String> merged = mergeIfNeeded(template, fields);
+        if (merged != null) {
+            validate(shoulder, merged, true);
+        }
+        String ezidEndpoint = mintServiceEndpoint + "/" + shoulder;
+        CallTrace trace = startTrace(Operation.MINT, shoulder, body.length);
+        byte[] response = sendEntity(POST, ezidEndpoint, createEntity(body), options, trace);
+        String responseMsg = new String(response, StandardCharsets.UTF_8);
+        log.debug(responseMsg);
+        String mintedId = parseIdentifierResponse(responseMsg, trace);
+        if (merged != null) {
+            registerCreate(mintedId, merged);
+        }
+        return mintedId;
+    }
+
+    /**
+     * Set metadata that is streamed to EZID rather than held in memory.
+     * @see #setMetadata(String, HashMap)
+     * @param identifier the identifier to be modified
+     * @param metadata the metadata, whose file and source values are read as the request is sent
+     * @throws EZIDException if an error occurs while setting the metadata
+     */
+    public void setMetadataStreaming(String identifier, StreamingMetadata metadata) throws EZIDException {
+        setMetadataStreaming(identifier, metadata, null);
+    }
+
+    /**
+     * Set streamed metadata, subject to the deadline and cancellation signal
+     * carried by the given CallOptions.
+     * @see #setMetadataStreaming(String, StreamingMetadata)
+     * @param identifier the identifier to be modified
+     * @param metadata the metadata, whose file and source values are read as the request is sent
+     * @param options the deadline and cancellation for this call, or null for the defaults
+     * @throws EZIDException if an error occurs while setting the metadata
+     */
+    public void setMetadataStreaming(String identifier, StreamingMetadata metadata, CallOptions options)
+            throws EZIDException {
+        ShoulderAuthorizer a = authorizer;
+        if (a != null) {
+            reject(a.checkExisting(identifier));
+        }
+        validate(identifier, metadata, false);
+        String ezidEndpoint = idServiceEndpoint + "/" + identifier;
+        CallTrace trace = startTrace(Operation.SET, identifier, metadata.estimateSize());
+        byte[] response = sendEntity(POST, ezidEndpoint, createEntity(metadata), options, trace);
+        String responseMsg = new String(response, StandardCharsets.UTF_8);
+        log.debug(responseMsg);
+        parseIdentifierResponse(responseMsg, trace);
+        IdentifierRegistry r = registry;
+        if (r != null) {
+            try {
+                r.recordUpdate(identifier, metadata.getStringValues());
+            } catch (IOException e) {
+                log.warn("Could not record update of " + identifier + " in the registry: " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -314,45 +943,597 @@ public class EZIDService
      * @throws EZIDException if the delete operation fails with an error from EZID
      */
     public void deleteIdentifier(String identifier) throws EZIDException {
+        deleteIdentifier(identifier, null);
+    }
+
+    /**
+     * Delete an identifier from EZID, subject to the deadline and cancellation
+     * signal carried by the given CallOptions.
+     * @see #deleteIdentifier(String)
+     * @param identifier to be deleted
+     * @param options the deadline and cancellation for this call, or null for the defaults
+     * @throws EZIDException if the delete operation fails with an error from EZID, or
+     *          the call is cancelled or exceeds its deadline
+     */
+    public void deleteIdentifier(String identifier, CallOptions options) throws EZIDException {
+        ShoulderAuthorizer a = authorizer;
+        if (a != null) {
+            reject(a.checkExisting(identifier));
+        }
         String ezidEndpoint = idServiceEndpoint + "/" + identifier;
-        byte[] response = sendRequest(DELETE, ezidEndpoint);
-        String responseMsg = new String(response);
-        String deletedId = parseIdentifierResponse(responseMsg);
+        CallTrace trace = startTrace(Operation.DELETE, identifier, null);
+        byte[] response = sendRequest(DELETE, ezidEndpoint, null, options, trace);
+        String responseMsg = new String(response, StandardCharsets.UTF_8);
+        String deletedId = parseIdentifierResponse(responseMsg, trace);
+        IdentifierRegistry r = registry;
+        if (r != null) {
+            try {
+                r.recordDelete(identifier);
+            } catch (IOException e) {
+                log.warn("Could not record deletion of " + identifier + " in the registry: " + e.getMessage());
+            }
+        }
     }
     
+    /**
+     * Enable hedged reads for getMetadata using the given policy, or disable hedging
+     * by passing null.  Hedging is opt-in and never applies to operations that
+     * modify identifiers (create, mint, setMetadata, delete).
+     * @param policy the HedgingPolicy to use, or null to disable hedging
+     */
+    public synchronized void setHedgingPolicy(HedgingPolicy policy) {
+        if (policy != null && hedgeExecutor == null) {
+            hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ezid-hedged-read");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        hedgingPolicy = policy;
+    }
+
+    /**
+     * @return the HedgingPolicy currently in use, or null if reads are not hedged
+     */
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    /**
+     * Protect calls to EZID with the given CircuitBreaker, or remove the breaker by
+     * passing null.  While the breaker is open, service calls fail fast with a
+     * CircuitBreakerOpenException instead of waiting on an unresponsive server.
+     * @param breaker the CircuitBreaker to use, or null to disable it
+     */
+    public void setCircuitBreaker(CircuitBreaker breaker) {
+        circuitBreaker = breaker;
+    }
+
+    /**
+     * @return the CircuitBreaker protecting this service, or null if there is none
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Keep the given IdentifierRegistry up to date as a side effect of successful
+     * create, mint, setMetadata and delete calls, or stop updating it by passing null.
+     * A failure to write the registry is logged and does not fail the EZID call.
+     * @param registry the registry to update, or null
+     */
+    public void setRegistry(IdentifierRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * @return the IdentifierRegistry updated by this service, or null if there is none
+     */
+    public IdentifierRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Gzip-compress request bodies longer than the given number of characters, and
+     * send them with "Content-Encoding: gzip".  Compression is off by default because
+     * the server must accept compressed request bodies; pass a negative value to turn
+     * it off again.  Compressed responses are always accepted and decoded, whatever
+     * this setting.
+     * @param thresholdChars the body length above which requests are compressed, or -1
+     */
+    public void setCompressionThreshold(int thresholdChars) {
+        compressionThreshold = thresholdChars;
+    }
+
+    /**
+     * Check identifiers locally with the given ShoulderAuthorizer before any request
+     * is sent, or turn the checks off by passing null.  Malformed identifiers, and new
+     * identifiers or mint shoulders outside the authorized shoulders, then fail with
+     * an EZIDException without contacting EZID.
+     * @param authorizer the ShoulderAuthorizer to use, or null
+     */
+    public void setShoulderAuthorizer(ShoulderAuthorizer authorizer) {
+        this.authorizer = authorizer;
+    }
+
+    /**
+     * @return the ShoulderAuthorizer checking identifiers, or null if there is none
+     */
+    public ShoulderAuthorizer getShoulderAuthorizer() {
+        return authorizer;
+    }
+
+    /**
+     * Check metadata locally with the given MetadataValidator before any create,
+     * mint or setMetadata request is sent, or turn the checks off by passing null.
+     * Records EZID would reject, such as a public DOI without the required DataCite
+     * fields, then fail with a MetadataValidationException listing every problem,
+     * without contacting EZID.
+     * @param validator the MetadataValidator to use, or null
+     */
+    public void setMetadataValidator(MetadataValidator validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * @return the MetadataValidator checking metadata, or null if there is none
+     */
+    public MetadataValidator getMetadataValidator() {
+        return validator;
+    }
+
+    /**
+     * Take a permit from the given SharedRateLimiter before each request is sent,
+     * so that this service keeps within a rate and in-flight limit shared with other
+     * processes on the host, or stop by passing null.  A call waits for a permit
+     * until its CallOptions deadline, or for a minute if it has none, and then fails
+     * with an EZIDException.
+     * @param limiter the SharedRateLimiter to use, or null
+     */
+    public void setSharedRateLimiter(SharedRateLimiter limiter) {
+        this.rateLimiter = limiter;
+    }
+
+    /**
+     * @return the SharedRateLimiter admitting requests, or null if there is none
+     */
+    public SharedRateLimiter getSharedRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Register an interceptor to be notified of the lifecycle of each call.
+     * @param interceptor the interceptor to add
+     */
+    public synchronized void addInterceptor(EZIDInterceptor interceptor) {
+        if (interceptor == null) {
+            throw new IllegalArgumentException("Interceptor must not be null.");
+        }
+        EZIDInterceptor[] chain = Arrays.copyOf(interceptors, interceptors.length + 1);
+        chain[chain.length - 1] = interceptor;
+        interceptors = chain;
+    }
+
+    /**
+     * @param interceptor the interceptor to remove
+     */
+    public synchronized void removeInterceptor(EZIDInterceptor interceptor) {
+        List<EZIDInterceptor> chain = new ArrayList<EZIDInterceptor>(Arrays.asList(interceptors));
+        chain.remove(interceptor);
+        interceptors = chain.toArray(new EZIDInterceptor[chain.size()]);
+    }
+
+    /**
+     * Set a PhaseProfiler to time the phases of every call, from the connection
+     * pool lease to parsing the response, and report the sampled and slow calls
+     * as Java Flight Recorder events and to its listeners.
+     * @param profiler the PhaseProfiler to use, or null to stop profiling
+     */
+    public void setPhaseProfiler(PhaseProfiler profiler) {
+        this.phaseProfiler = profiler;
+    }
+
+    /**
+     * @return the PhaseProfiler timing calls, or null if there is none
+     */
+    public PhaseProfiler getPhaseProfiler() {
+        return phaseProfiler;
+    }
+
+    /**
+     * Set a deadline that applies to every call made without explicit CallOptions,
+     * including calls made by an EZIDClient's workers.  A value of zero disables the
+     * default deadline; the HTTP client's connect and read timeouts still apply.
+     * @param timeoutMillis the default deadline for each call in milliseconds
+     */
+    public void setDefaultTimeout(long timeoutMillis) {
+        if (timeoutMillis < 0) {
+            throw new IllegalArgumentException("Timeout must not be negative.");
+        }
+        defaultTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Start the trace of a call if any interceptors are registered or a
+     * PhaseProfiler is set.
+     * @param operation the operation being called
+     * @param identifier the identifier or shoulder the call is about
+     * @param requestBody the ANVL request body, or null
+     * @return the trace, or null if there are no interceptors and no profiler
+     */
+    private CallTrace startTrace(Operation operation, String identifier, String requestBody) {
+        return startTrace(operation, identifier, requestBody == null ? 0 : requestBody.length());
+    }
+
+    /**
+     * Start tracing a call whose request body has the given size.
+     */
+    private CallTrace startTrace(Operation operation, String identifier, long payloadSize) {
+        EZIDInterceptor[] chain = interceptors;
+        PhaseProfiler profiler = phaseProfiler;
+        if (chain.length == 0 && profiler == null) {
+            return null;
+        }
+        return new CallTrace(chain, profiler, operation, identifier, payloadSize);
+    }
+
+    /**
+     * Start recording every HTTP exchange with EZID, with its timing, to a file that
+     * can later be replayed with {@link #startReplay(Path, double)}.  Paths are
+     * recorded relative to this service's base URL.
+     * @param file the recording file, which is replaced if it exists
+     * @throws IOException if the file cannot be created
+     * @throws IllegalStateException if the service is already recording or replaying
+     */
+    public synchronized void startRecording(Path file) throws IOException {
+        if (recorder != null || liveClient != null) {
+            throw new IllegalStateException("The service is already recording or replaying.");
+        }
+        recorder = new TrafficRecorder(file);
+        httpclient = new RecordingHttpClient(httpclient, recorder, serviceBaseUrl);
+    }
+
+    /**
+     * Stop recording and complete the recording file.  Does nothing if the service
+     * is not recording.
+     * @throws IOException if the recording cannot be completed
+     */
+    public synchronized void stopRecording() throws IOException {
+        if (recorder == null) {
+            return;
+        }
+        httpclient = ((RecordingHttpClient) httpclient).getDelegate();
+        try {
+            recorder.close();
+        } finally {
+            recorder = null;
+        }
+    }
+
+    /**
+     * Answer requests from a recording instead of EZID until {@link #stopReplay()}
+     * is called.  Nothing is sent over the network while replaying.
+     * @param file a recording made with {@link #startRecording(Path)}
+     * @param timeScale the factor applied to recorded response times: 1 for the
+     *          original timing, less than 1 to compress it, or 0 for no delay
+     * @throws IOException if the recording cannot be read
+     * @throws IllegalStateException if the service is already recording or replaying
+     * @see ReplayHttpClient
+     */
+    public synchronized void startReplay(Path file, double timeScale) throws IOException {
+        if (recorder != null || liveClient != null) {
+            throw new IllegalStateException("The service is already recording or replaying.");
+        }
+        ReplayHttpClient replay = new ReplayHttpClient(TrafficRecorder.read(file), serviceBaseUrl, timeScale);
+        liveClient = httpclient;
+        httpclient = replay;
+    }
+
+    /**
+     * Stop replaying and send requests to EZID again.  Does nothing if the service
+     * is not replaying.
+     */
+    public synchronized void stopReplay() {
+        if (liveClient != null) {
+            httpclient = liveClient;
+            liveClient = null;
+        }
+    }
+
+    /**
+     * Set the number of connections the service may keep open to EZID, spread
+     * evenly over the shards.  The default is 5 per shard.
+     * @param connections the number of connections, at least one per shard
+     */
+    public void setMaxConnections(int connections) {
+        if (connections < connectionManagers.length) {
+            throw new IllegalArgumentException("There must be at least one connection per shard.");
+        }
+        int perShard = (connections + connectionManagers.length - 1) / connectionManagers.length;
+        for (PoolingHttpClientConnectionManager connectionManager : connectionManagers) {
+            synchronized (connectionManager) {
+                connectionManager.setMaxTotal(perShard);
+                connectionManager.setDefaultMaxPerRoute(perShard);
+            }
+        }
+    }
+
+    /**
+     * Grow the connection pools, if needed, so that the given number of calls can be
+     * in flight at once across the shards.  A pool never shrinks below its default size.
+     * @param connections the number of concurrent calls to allow
+     */
+    void ensureConnections(int connections) {
+        int perShard = (connections + connectionManagers.length - 1) / connectionManagers.length;
+        for (PoolingHttpClientConnectionManager connectionManager : connectionManagers) {
+            synchronized (connectionManager) {
+                connectionManager.setMaxTotal(Math.max(MAX_CONNECTIONS, perShard));
+                connectionManager.setDefaultMaxPerRoute(Math.max(CONNECTIONS_PER_ROUTE, perShard));
+            }
+        }
+    }
+
+    /**
+     * Report that an EZIDClient has queued a request, if any interceptors are registered.
+     * @param request the queued request
+     */
+    void enqueued(EZIDServiceRequest request) {
+        EZIDInterceptor[] chain = interceptors;
+        if (chain.length == 0) {
+            return;
+        }
+        Operation operation;
+        switch (request.getMethod()) {
+        case EZIDServiceRequest.SETMETADATA:
+            operation = Operation.SET;
+            break;
+        case EZIDServiceRequest.DELETE:
+            operation = Operation.DELETE;
+            break;
+        case EZIDServiceRequest.SMARTCREATE:
+            operation = Operation.CREATE_OR_UPDATE;
+            break;
+        default:
+            operation = Operation.CREATE;
+        }
+        new CallTrace(chain, operation, request.getIdentifier(), 0).enqueued(request);
+    }
+
+    /**
+     * Fail a call that was rejected by the ShoulderAuthorizer.
+     * @param reason the reason for the rejection, or null if the call was accepted
+     */
+    private void reject(String reason) throws EZIDException {
+        if (reason != null) {
+            throw new EZIDException("Rejected before sending: " + reason);
+        }
+    }
+
+    /**
+     * Fail a call whose metadata is rejected by the MetadataValidator, if there is one.
+     * @param create true for a new identifier, whose required fields are checked too
+     */
+    private void validate(String identifier, HashMap<String, String> metadata, boolean create)
+            throws MetadataValidationException {
+        MetadataValidator v = validator;
+        if (v != null) {
+            v.check(identifier, metadata, Collections.<String>emptySet(), create);
+        }
+    }
+
+    /**
+     * Fail a streamed call whose in-memory values are rejected by the MetadataValidator;
+     * streamed values count as present but are not read.
+     */
+    private void validate(String identifier, StreamingMetadata metadata, boolean create)
+            throws MetadataValidationException {
+        MetadataValidator v = validator;
+        if (v != null) {
+            List<String> streamed = new ArrayList<String>();
+            for (Map.Entry<String, Object> entry : metadata.entries().entrySet()) {
+                if (!(entry.getValue() instanceof String)) {
+                    streamed.add(entry.getKey());
+                }
+            }
+            v.check(identifier, metadata.getStringValues(), streamed, create);
+        }
+    }
+
+    /**
+     * Record a newly created or minted identifier in the registry, if there is one.
+     */
+    private void registerCreate(String identifier, HashMap<String, String> metadata) {
+        IdentifierRegistry r = registry;
+        if (r != null && identifier != null) {
+            try {
+                r.recordCreate(identifier, metadata, loginUsername);
+            } catch (IOException e) {
+                log.warn("Could not record creation of " + identifier + " in the registry: " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Generate an HTTP Client for communicating with web services that is
      * thread safe and can be used in the context of a multi-threaded application.
      * @return DefaultHttpClient
      */
-    private static CloseableHttpClient createThreadSafeClient()  {
-        BasicCookieStore cookieStore = new BasicCookieStore();
-        
-        PoolingHttpClientConnectionManager poolingConnManager = new PoolingHttpClientConnectionManager();
-        CloseableHttpClient client = HttpClients.custom().setConnectionManager(poolingConnManager).setDefaultCookieStore(cookieStore).build();
-        poolingConnManager.setMaxTotal(5);
+    private static CloseableHttpClient createThreadSafeClient(PoolingHttpClientConnectionManager poolingConnManager,
+            CookieStore cookieStore)  {
+        // content compression is left enabled, so responses are requested with
+        // "Accept-Encoding: gzip,deflate" and decoded transparently
+        CloseableHttpClient client = HttpClients.custom().setConnectionManager(poolingConnManager)
+                .setDefaultCookieStore(cookieStore).setDefaultRequestConfig(DEFAULT_REQUEST_CONFIG)
+                .setRequestExecutor(new TracingRequestExecutor()).build();
+        poolingConnManager.setMaxTotal(MAX_CONNECTIONS);
         poolingConnManager.setDefaultMaxPerRoute(CONNECTIONS_PER_ROUTE);
         return client;
     }
 
     /**
-     * Send an HTTP request to the EZID service without a request body.
+     * Send an HTTP request to the EZID service with a request body (for POST and PUT requests).
      * @param requestType the type of the service as an integer
      * @param uri endpoint to be accessed in the request
+     * @param requestBody the String body to be encoded into the body of the request
+     * @param options the deadline and cancellation for this call, or null for the defaults
+     * @param trace the trace of the call if interceptors are registered, or null
      * @return byte[] containing the response body
      */
-    private byte[] sendRequest(int requestType, String uri) throws EZIDException {
-        return sendRequest(requestType, uri, null);
+    private byte[] sendRequest(int requestType, String uri, String requestBody, CallOptions options,
+            CallTrace trace) throws EZIDException {
+        HttpEntity entity = requestBody != null && requestBody.length() > 0 ? createEntity(requestBody) : null;
+        return sendEntity(requestType, uri, entity, options, trace);
     }
-    
+
     /**
-     * Send an HTTP request to the EZID service with a request body (for POST and PUT requests).
+     * Send an HTTP request to the EZID service with the given request entity.
      * @param requestType the type of the service as an integer
      * @param uri endpoint to be accessed in the request
-     * @param requestBody the String body to be encoded into the body of the request
+     * @param entity the body of the request, or null
+     * @param options the deadline and cancellation for this call, or null for the defaults
+     * @param trace the trace of the call if interceptors are registered, or null
      * @return byte[] containing the response body
      */
-    private byte[] sendRequest(int requestType, String uri, String requestBody) throws EZIDException {
+    private byte[] sendEntity(int requestType, String uri, HttpEntity entity, CallOptions options,
+            CallTrace trace) throws EZIDException {
+        HttpUriRequest request = buildRequest(requestType, uri, entity);
+        if (trace == null) {
+            return execute(request, defaultOptions(options), null);
+        }
+        try {
+            return execute(request, defaultOptions(options), trace);
+        } catch (EZIDException e) {
+            trace.failed(e);
+            throw e;
+        } catch (RuntimeException e) {
+            trace.failed(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Return the given options, or when they are null, fresh options carrying the
+     * default deadline if one is set.
+     */
+    private CallOptions defaultOptions(CallOptions options) {
+        long timeout = defaultTimeoutMillis;
+        if (options == null && timeout > 0) {
+            return CallOptions.withTimeout(Duration.ofMillis(timeout));
+        }
+        return options;
+    }
+
+    /**
+     * Send a GET request, and if no response arrives within the policy's hedge delay,
+     * send a second identical request on another pooled connection.  The first
+     * successful response wins and the outstanding request is aborted, which
+     * releases its connection.
+     * @param policy the HedgingPolicy governing the delay and hedge budget
+     * @param uri endpoint to be accessed in the request
+     * @param options the deadline and cancellation shared by both requests, or null
+     * @param trace the trace of the call if interceptors are registered, or null
+     * @return byte[] containing the response body
+     */
+    private byte[] sendHedgedRequest(final HedgingPolicy policy, String uri, CallOptions options,
+            CallTrace trace) throws EZIDException {
+        if (trace == null) {
+            return hedgedRead(policy, uri, options, null);
+        }
+        try {
+            return hedgedRead(policy, uri, options, trace);
+        } catch (EZIDException e) {
+            trace.failed(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Perform the reads of a hedged request.
+     * @see #sendHedgedRequest(HedgingPolicy, String, CallOptions, CallTrace)
+     */
+    private byte[] hedgedRead(final HedgingPolicy policy, String uri, CallOptions options,
+            CallTrace trace) throws EZIDException {
+        CompletionService<byte[]> completion = new ExecutorCompletionService<byte[]>(hedgeExecutor);
+        HttpUriRequest primary = buildRequest(GET, uri, null);
+        HttpUriRequest hedge = null;
+        completion.submit(timedRead(policy, primary, options, trace));
+        int pending = 1;
+        EZIDException failure = null;
+        try {
+            Future<byte[]> done = completion.poll(policy.getHedgeDelayMillis(), TimeUnit.MILLISECONDS);
+            if (done == null && policy.tryAcquireHedge()) {
+                log.debug("Hedging read request: " + uri);
+                hedge = buildRequest(GET, uri, null);
+                completion.submit(timedRead(policy, hedge, options, trace));
+                pending++;
+            }
+            while (pending > 0) {
+                if (done == null) {
+                    done = completion.take();
+                }
+                pending--;
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof EZIDException) {
+                        failure = (EZIDException) cause;
+                    } else {
+                        failure = new EZIDException(String.valueOf(cause.getMessage()));
+                    }
+                }
+                done = null;
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EZIDException("Interrupted while waiting for response from: " + uri);
+        } finally {
+            // Aborting a request that already completed is a no-op
+            primary.abort();
+            if (hedge != null) {
+                hedge.abort();
+            }
+        }
+    }
+
+    /**
+     * Wrap a read request in a Callable that records its latency, or when it fails
+     * or is aborted, the time it had been running as a censored sample.
+     */
+    private Callable<byte[]> timedRead(final HedgingPolicy policy, final HttpUriRequest request,
+            final CallOptions options, final CallTrace trace) {
+        return new Callable<byte[]>() {
+            public byte[] call() throws EZIDException {
+                long start = System.nanoTime();
+                boolean completed = false;
+                try {
+                    byte[] body = execute(request, options, trace);
+                    completed = true;
+                    return body;
+                } finally {
+                    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    if (completed) {
+                        policy.recordLatency(elapsed);
+                    } else {
+                        policy.recordCensoredLatency(elapsed);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Build the HTTP request for the given service type, attaching a request body
+     * for POST and PUT requests.
+     * @param requestType the type of the service as an integer
+     * @param uri endpoint to be accessed in the request
+     * @param requestBody the String body to be encoded into the body of the request
+     * @return the HttpUriRequest, ready to be executed
+     */
+    private HttpUriRequest buildRequest(int requestType, String uri, HttpEntity entity) throws EZIDException {
         HttpUriRequest request = null;
         log.debug("Trying uri: " + uri);
         switch (requestType) {
@@ -361,16 +1542,14 @@ public class EZIDService
             break;
         case PUT:
             request = new HttpPut(uri);
-            if (requestBody != null && requestBody.length() > 0) {
-                StringEntity myEntity = new StringEntity(requestBody, "UTF-8");
-				((HttpPut) request).setEntity(myEntity);
+            if (entity != null) {
+				((HttpPut) request).setEntity(entity);
             }
             break;
         case POST:
             request = new HttpPost(uri);
-            if (requestBody != null && requestBody.length() > 0) {
-                StringEntity myEntity = new StringEntity(requestBody, "UTF-8");
-				((HttpPost) request).setEntity(myEntity);
+            if (entity != null) {
+				((HttpPost) request).setEntity(entity);
             }
             break;
         case DELETE:
@@ -380,29 +1559,246 @@ public class EZIDService
             throw new EZIDException("Unrecognized HTTP method requested.");
         }
         request.addHeader("Accept", "text/plain");
-        
+        return request;
+    }
+
+    /**
+     * Create the entity for a request body, compressing it when it is larger than
+     * the compression threshold.
+     * @param requestBody the String body of the request
+     * @return the entity to attach to the request
+     */
+    private HttpEntity createEntity(String requestBody) {
+        int threshold = compressionThreshold;
+        if (threshold >= 0 && requestBody.length() > threshold) {
+            return new GzipStringEntity(requestBody);
+        }
+        return new StringEntity(requestBody, "UTF-8");
+    }
+
+    /**
+     * Create the entity for a body rendered from an AnvlTemplate, compressing it
+     * when it is larger than the compression threshold.  The entity refers to the
+     * calling thread's buffer rather than copying it, so it must be sent before the
+     * thread renders another body.
+     * @param body the rendered body
+     * @return the entity to attach to the request
+     */
+    private HttpEntity createEntity(AnvlTemplate.Buffer body) {
+        ByteArrayEntity entity = new ByteArrayEntity(body.bytes, 0, body.length,
+                ContentType.create("text/plain", StandardCharsets.UTF_8));
+        int threshold = compressionThreshold;
+        if (threshold >= 0 && body.length > threshold) {
+            return new GzipCompressingEntity(entity);
+        }
+        return entity;
+    }
+
+    /**
+     * Merge a template's shared metadata with a record's fields, but only when the
+     * merged map is needed by a MetadataValidator or IdentifierRegistry.
+     * @return the merged metadata, or null if neither is set
+     */
+    private HashMap<String, String> mergeIfNeeded(AnvlTemplate template, Map<String, String> fields) {
+        if (validator == null && registry == null) {
+            return null;
+        }
+        return template.merge(fields);
+    }
+
+    /**
+     * Create the entity for streamed metadata, compressing it when its estimated
+     * size is larger than the compression threshold.
+     * @param metadata the metadata to stream
+     * @return the entity to attach to the request
+     */
+    private HttpEntity createEntity(StreamingMetadata metadata) {
+        int threshold = compressionThreshold;
+        return new AnvlStreamingEntity(metadata, threshold >= 0 && metadata.estimateSize() > threshold);
+    }
+
+    /**
+     * Execute a prepared HTTP request and return the body of the response.  If a
+     * SharedRateLimiter is set, a permit is held for the duration of the call.  If a
+     * CircuitBreaker is set, the call must first be permitted by the breaker, and
+     * its outcome is reported back to it.  If CallOptions are given, the request's
+     * pool lease, connect and read timeouts are limited to the time remaining, and
+     * the request is aborted when the deadline passes or the call is cancelled.
+     * @param request the request to be executed
+     * @param options the deadline and cancellation for this call, or null
+     * @param trace the trace of the call if interceptors are registered, or null
+     * @return byte[] containing the response body
+     * @throws CircuitBreakerOpenException if the breaker rejects the call
+     */
+    private byte[] execute(final HttpUriRequest request, CallOptions options, final CallTrace trace)
+            throws EZIDException {
+        SharedRateLimiter limiter = rateLimiter;
+        if (limiter == null) {
+            return dispatch(request, options, trace);
+        }
+        long wait = options != null && options.hasDeadline() ? options.getRemainingMillis() : DEFAULT_RATE_LIMIT_WAIT;
+        try {
+            if (!limiter.tryAcquire(Math.max(0, wait), TimeUnit.MILLISECONDS)) {
+                throw new EZIDException("Timed out after " + wait + " ms waiting for the shared rate limit: "
+                        + request.getURI());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EZIDException("Interrupted waiting for the shared rate limit: " + request.getURI());
+        } catch (IOException e) {
+            throw new EZIDException("Could not use the shared rate limit: " + e.getMessage());
+        }
+        try {
+            return dispatch(request, options, trace);
+        } finally {
+            try {
+                limiter.release();
+            } catch (IOException e) {
+                log.warn("Could not release the shared rate limit: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Send a request once the shared rate limit, if any, has admitted it.
+     */
+    private byte[] dispatch(final HttpUriRequest request, CallOptions options, final CallTrace trace)
+            throws EZIDException {
+        final int[] status = new int[1];
         ResponseHandler<byte[]> handler = new ResponseHandler<byte[]>() {
             public byte[] handleResponse(
                     HttpResponse response) throws ClientProtocolException, IOException {
+                status[0] = response.getStatusLine().getStatusCode();
                 HttpEntity entity = response.getEntity();
-                if (entity != null) {
-                    return EntityUtils.toByteArray(entity);
-                } else {
-                    return null;
+                byte[] content = entity == null ? null : EntityUtils.toByteArray(entity);
+                if (trace != null) {
+                    trace.response(status[0], content == null ? 0 : content.length);
                 }
+                return content;
             }
         };
         byte[] body = null;
-        
+
+        ScheduledFuture<?> deadline = null;
+        if (options != null) {
+            options.checkActive(request.getURI().toString());
+            if (options.hasDeadline()) {
+                int remaining = (int) Math.min(Integer.MAX_VALUE, options.getRemainingMillis());
+                ((HttpRequestBase) request).setConfig(RequestConfig.copy(DEFAULT_REQUEST_CONFIG)
+                        .setConnectionRequestTimeout(Math.min(remaining, DEFAULT_CONNECTION_REQUEST_TIMEOUT))
+                        .setConnectTimeout(Math.min(remaining, DEFAULT_CONNECT_TIMEOUT))
+                        .setSocketTimeout(Math.min(remaining, DEFAULT_SOCKET_TIMEOUT))
+                        .build());
+                deadline = getDeadlineTimer().schedule(new Runnable() {
+                    public void run() {
+                        request.abort();
+                    }
+                }, remaining, TimeUnit.MILLISECONDS);
+            }
+            options.bind(request);
+        }
+
+        CircuitBreaker breaker = circuitBreaker;
+        long permit = breaker == null ? -1 : breaker.tryAcquirePermit();
+        if (breaker != null && permit < 0) {
+            release(request, options, deadline);
+            throw new CircuitBreakerOpenException("Circuit breaker is open, request not sent: "
+                    + request.getURI(), breaker);
+        }
         try {
-            body = httpclient.execute(request, handler);
+            if (trace == null) {
+                body = httpclient.execute(request, handler);
+            } else {
+                HttpClientContext context = HttpClientContext.create();
+                context.setAttribute(CallTrace.ATTRIBUTE, trace);
+                trace.dispatched();
+                TimedConnections.bind(trace);
+                try {
+                    body = httpclient.execute(request, handler, context);
+                } finally {
+                    TimedConnections.bind(null);
+                }
+            }
         } catch (ClientProtocolException e) {
-            throw new EZIDException(e.getMessage());
+            recordFailure(breaker, permit, request, options);
+            throw callFailure(e, request, options);
         } catch (IOException e) {
-            throw new EZIDException(e.getMessage());
+            recordFailure(breaker, permit, request, options);
+            throw callFailure(e, request, options);
+        } catch (RuntimeException e) {
+            recordFailure(breaker, permit, request, options);
+            throw e;
+        } finally {
+            release(request, options, deadline);
+        }
+        if (breaker != null) {
+            if (status[0] >= 500) {
+                breaker.onFailure(permit);
+            } else {
+                breaker.onSuccess(permit);
+            }
         }
         return body;
     }
+
+    /**
+     * Report a failed call to the breaker, unless the request was deliberately aborted.
+     * A call aborted because its deadline passed counts as a failure.
+     */
+    private void recordFailure(CircuitBreaker breaker, long permit, HttpUriRequest request, CallOptions options) {
+        if (breaker == null) {
+            return;
+        }
+        if (request.isAborted() && !(options != null && options.isExpired())) {
+            breaker.onIgnored(permit);
+        } else {
+            breaker.onFailure(permit);
+        }
+    }
+
+    /**
+     * Translate an I/O failure into an EZIDException, reporting cancellation and
+     * deadline expiry explicitly.
+     */
+    private EZIDException callFailure(IOException e, HttpUriRequest request, CallOptions options) {
+        if (options != null && options.isCancelled()) {
+            return new EZIDException("Call cancelled: " + request.getURI());
+        }
+        if (options != null && options.isExpired()) {
+            return new EZIDException("Deadline exceeded: " + request.getURI());
+        }
+        return new EZIDException(e.getMessage(), e);
+    }
+
+    /**
+     * Detach a finished request from its CallOptions and cancel its deadline timer.
+     */
+    private void release(HttpUriRequest request, CallOptions options, ScheduledFuture<?> deadline) {
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+        if (options != null) {
+            options.unbind(request);
+        }
+    }
+
+    /**
+     * @return the shared timer used to abort requests whose deadline has passed
+     */
+    private static synchronized ScheduledExecutorService getDeadlineTimer() {
+        if (deadlineTimer == null) {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ezid-deadline-timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            timer.setRemoveOnCancelPolicy(true);
+            deadlineTimer = timer;
+        }
+        return deadlineTimer;
+    }
     
     /**
      * Parse the response from EZID and extract out the identifier that is returned
@@ -411,16 +1807,36 @@ public class EZIDService
      * @return the identifier from the message
      * @throws EZIDException if the response contains an error message
      */
+    private String parseIdentifierResponse(String responseMsg, CallTrace trace) throws EZIDException {
+        if (trace == null) {
+            return parseIdentifierResponse(responseMsg);
+        }
+        try {
+            String identifier = parseIdentifierResponse(responseMsg);
+            trace.parsed();
+            return identifier;
+        } catch (EZIDException e) {
+            trace.failed(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Parse the response from EZID and extract the identifier from the response,
+     * throwing an EZIDException if EZID reported an error.
+     * @param responseMsg the response body
+     * @return the identifier in the response
+     */
     private String parseIdentifierResponse(String responseMsg) throws EZIDException {
         String newId;
         String[] responseArray = responseMsg.split(":", 2);
-        String resultCode = unescape(responseArray[0]).trim();
+        String resultCode = ANVL.unescape(responseArray[0]).trim();
         if (resultCode.equals(InternalProfile.SUCCESS.toString())) {
-            String idList[] = (unescape(responseArray[1]).trim()).split("\\|");
+            String idList[] = (ANVL.unescape(responseArray[1]).trim()).split("\\|");
             newId = idList[0].trim();
             return newId;
         } else {
-            String msg = unescape(responseArray[1]).trim();
+            String msg = ANVL.unescape(responseArray[1]).trim();
             throw new EZIDException(msg);
         }
     }
@@ -435,7 +1851,7 @@ public class EZIDService
         StringBuffer buffer = new StringBuffer();
         if (metadata != null && metadata.size() > 0) {            
             for (Map.Entry<String, String> entry : metadata.entrySet()) {
-                buffer.append(escape(entry.getKey()) + ": " + escape(entry.getValue()) + "\n");
+                buffer.append(ANVL.escape(entry.getKey()) + ": " + ANVL.escape(entry.getValue()) + "\n");
             }
         }
         String anvl = null;
@@ -446,28 +1862,38 @@ public class EZIDService
     }
 
     /**
-     * Escape a string to produce it's ANVL escaped equivalent.
-     * @param str the string to be escaped
-     * @return the escaped String
+     * Reports the LEASED event of a traced request, and when the request has been
+     * sent and the response headers received.  The HttpRequestExecutor is called
+     * once a connection has been leased from the pool and connected.
      */
-    private String escape(String str) {
-        return str.replace("%", "%25").replace("\n", "%0A").replace("\r", "%0D").replace(":", "%3A");
-    }
+    private static class TracingRequestExecutor extends HttpRequestExecutor {
+        public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws IOException, HttpException {
+            CallTrace trace = (CallTrace) context.getAttribute(CallTrace.ATTRIBUTE);
+            if (trace != null) {
+                trace.leased();
+            }
+            return super.execute(request, conn, context);
+        }
 
-    /**
-     * Unescape a percent encoded response from the server.
-     * @param str the string to be unescaped
-     * @return the unescaped String value
-     */
-    private String unescape (String str) {
-        StringBuffer buffer = new StringBuffer();
-        int i;
-        while ((i = str.indexOf("%")) >= 0) {
-          buffer.append(str.substring(0, i));
-          buffer.append((char) Integer.parseInt(str.substring(i+1, i+3), 16));
-          str = str.substring(i+3);
-        }
-        buffer.append(str);
-        return buffer.toString();
-      }
+        protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context)
+                throws IOException, HttpException {
+            HttpResponse response = super.doSendRequest(request, conn, context);
+            CallTrace trace = (CallTrace) context.getAttribute(CallTrace.ATTRIBUTE);
+            if (trace != null) {
+                trace.sent();
+            }
+            return response;
+        }
+
+        protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn,
+                HttpContext context) throws IOException, HttpException {
+            HttpResponse response = super.doReceiveResponse(request, conn, context);
+            CallTrace trace = (CallTrace) context.getAttribute(CallTrace.ATTRIBUTE);
+            if (trace != null) {
+                trace.headersReceived();
+            }
+            return response;
+        }
+    }
 }
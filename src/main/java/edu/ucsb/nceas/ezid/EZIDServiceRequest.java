@@ -19,7 +19,12 @@
 
 package edu.ucsb.nceas.ezid;
 
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -41,10 +46,22 @@ public class EZIDServiceRequest implements Runnable
     public static final int DELETE = 3;
     public static final int SMARTCREATE = 4;
 
+    /** The number of most recent failed attempts kept in a request's history. */
+    private static final int MAX_ATTEMPTS = 20;
+
     private EZIDService ezid = null;
     private int method;
     private String identifier;
     private HashMap<String, String> metadata = null;
+    private AnvlTemplate template = null;
+    private RequestPriority priority = RequestPriority.NORMAL;
+    private String fairnessKey = PriorityLaneQueue.DEFAULT_KEY;
+    private final long createdNanos = System.nanoTime();
+    private volatile long payloadSize = -1;
+    private List<EZIDRequestListener> listeners = null;
+    private Collection<EZIDServiceRequest> abandoned = null;
+    private AdaptiveConcurrencyLimiter limiter = null;
+    private final List<RequestAttempt> attempts = new ArrayList<RequestAttempt>();
     
     protected static Log log = LogFactory.getLog(EZIDServiceRequest.class);
 
@@ -68,39 +85,180 @@ public class EZIDServiceRequest implements Runnable
         this.metadata = metadata;
     }
 
+    protected EZIDServiceRequest(EZIDService ezid, int method, String identifier, HashMap<String, String> metadata,
+            RequestPriority priority, String fairnessKey) {
+        this(ezid, method, identifier, metadata);
+        if (priority == null) {
+            throw new IllegalArgumentException("Priority must not be null.");
+        }
+        this.priority = priority;
+        this.fairnessKey = fairnessKey == null ? PriorityLaneQueue.DEFAULT_KEY : fairnessKey;
+    }
+
+    /**
+     * Execute the request against the EZIDService.  If the service's CircuitBreaker
+     * is open, the request is held on this worker until the breaker admits calls
+     * again, rather than being dropped.  If the worker is interrupted while holding
+     * the request, as happens when a client shutdown reaches its deadline, the
+     * request is handed back to the client as not run.  This includes a call that
+     * fails because the interrupt cut short its wait for a connection, a rate limit
+     * lease or a response: such a failure says nothing about the request, so it is
+     * neither reported to listeners nor dead-lettered.
+     */
     public void run() {
         log.debug("Service to execute: " + method + "/" + identifier + "/" + metadata);
-        try {
-            switch (method) {
-            case CREATE:
-                String newID = ezid.createIdentifier(identifier, metadata);
+        while (true) {
+            long start = System.currentTimeMillis();
+            AdaptiveConcurrencyLimiter l = limiter;
+            long sampleStart = l == null ? 0 : l.start();
+            try {
+                execute();
+                if (l != null) {
+                    l.finish(sampleStart);
+                }
+                notifyCompleted();
+                return;
+            } catch (CircuitBreakerOpenException e) {
+                // the call never reached EZID, so it is not a sample
+                if (l != null) {
+                    l.cancel();
+                }
+                recordAttempt(start, e);
+                log.debug("Holding request " + method + " for: " + identifier + " while circuit is open.");
+                try {
+                    e.getCircuitBreaker().awaitPermission();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    log.error("INTERRUPTED Request " + method + " for: " + identifier + " while circuit was open.");
+                    if (abandoned != null) {
+                        abandoned.add(this);
+                    }
+                    return;
+                }
+            } catch (EZIDException e) {
+                if (abandoned != null && isInterruption(e)) {
+                    if (l != null) {
+                        l.cancel();
+                    }
+                    recordAttempt(start, e);
+                    log.error("INTERRUPTED Request " + method + " for: " + identifier + ". " + e.getMessage());
+                    abandoned.add(this);
+                    return;
+                }
+                if (l != null) {
+                    l.finish(sampleStart);
+                }
+                recordAttempt(start, e);
+                log.error("FAILED Request " + method + " for: " + identifier + ". " + e.getMessage());
+                notifyFailed(e);
+                return;
+            } catch (RuntimeException e) {
+                if (l != null) {
+                    l.cancel();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return true if the failure was caused by interrupting this worker rather
+     *          than by EZID or the network
+     */
+    private static boolean isInterruption(EZIDException e) {
+        return Thread.currentThread().isInterrupted() || e.getCause() instanceof InterruptedIOException;
+    }
+
+    /**
+     * Set the template whose shared metadata is sent along with this request's own
+     * metadata.  Only CREATE requests may have a template.
+     */
+    void setTemplate(AnvlTemplate template) {
+        this.template = template;
+    }
+
+    /**
+     * Set the listeners to be notified when the request completes or fails.
+     */
+    void setListeners(List<EZIDRequestListener> listeners) {
+        this.listeners = listeners;
+    }
+
+    /**
+     * Set the collection to which the request adds itself if it is interrupted
+     * before it could be executed.
+     */
+    void setAbandoned(Collection<EZIDServiceRequest> abandoned) {
+        this.abandoned = abandoned;
+    }
+
+    /**
+     * Set the limiter that takes the round-trip time of this request as a sample.
+     */
+    void setLimiter(AdaptiveConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    private void recordAttempt(long start, EZIDException e) {
+        synchronized (attempts) {
+            if (attempts.size() == MAX_ATTEMPTS) {
+                attempts.remove(0);
+            }
+            attempts.add(new RequestAttempt(start, System.currentTimeMillis() - start, e.getMessage()));
+        }
+    }
+
+    private void notifyCompleted() {
+        if (listeners != null) {
+            for (EZIDRequestListener listener : listeners) {
+                listener.requestCompleted(this);
+            }
+        }
+    }
+
+    private void notifyFailed(EZIDException e) {
+        if (listeners != null) {
+            for (EZIDRequestListener listener : listeners) {
+                listener.requestFailed(this, e);
+            }
+        }
+    }
+
+    private void execute() throws EZIDException {
+        switch (method) {
+        case CREATE:
+            if (template != null) {
+                ezid.createIdentifierFromTemplate(identifier, template, metadata);
                 log.debug("Completed CREATE request for: " + identifier);
                 break;
-            case SETMETADATA:
+            }
+            String newID = ezid.createIdentifier(identifier, metadata);
+            log.debug("Completed CREATE request for: " + identifier);
+            break;
+        case SETMETADATA:
+            ezid.setMetadata(identifier, metadata);
+            log.debug("Completed SETMETADATA request for: " + identifier);
+            break;
+        case DELETE:
+            ezid.deleteIdentifier(identifier);
+            log.debug("Completed DELETE request for: " + identifier);
+            break;
+        case SMARTCREATE:
+            HashMap<String, String> existingMetadata = null;
+            try {
+            	existingMetadata = ezid.getMetadata(identifier);
+            } catch (CircuitBreakerOpenException e) {
+                throw e;
+            } catch (Exception e) {
+            	// not there
+            }
+            if (existingMetadata == null) {
+                ezid.createIdentifier(identifier, metadata);
+            } else {
                 ezid.setMetadata(identifier, metadata);
-                log.debug("Completed SETMETADATA request for: " + identifier);
-                break;
-            case DELETE:
-                ezid.deleteIdentifier(identifier);
-                log.debug("Completed DELETE request for: " + identifier);
-                break;
-	        case SMARTCREATE:
-	            HashMap<String, String> existingMetadata = null;
-	            try {
-	            	existingMetadata = ezid.getMetadata(identifier);
-	            } catch (Exception e) {
-	            	// not there
-	            }
-	            if (existingMetadata == null) {
-	                ezid.createIdentifier(identifier, metadata);
-	            } else {
-	                ezid.setMetadata(identifier, metadata);
-	            }
-	            log.debug("Completed SMARTCREATE request for: " + identifier);
-	            break;
-	        }
-        } catch (EZIDException e) {
-            log.error("FAILED Request " + method + " for: " + identifier + ". " + e.getMessage());
+            }
+            log.debug("Completed SMARTCREATE request for: " + identifier);
+            break;
         }
     }
     
@@ -120,9 +278,64 @@ public class EZIDServiceRequest implements Runnable
     }
 
     /**
-     * @return the metadata
+     * @return the metadata, including the shared metadata of the request's template if it has one
      */
     public HashMap<String, String> getMetadata() {
+        if (template != null) {
+            return template.merge(metadata);
+        }
         return metadata;
     }
+
+    /**
+     * Work out the size of the request body on first use, without serializing the
+     * metadata or merging it with the template.
+     * @return the size in characters of the ANVL body, counting a template's shared
+     *          metadata by its encoded length
+     */
+    long getPayloadSize() {
+        long size = payloadSize;
+        if (size < 0) {
+            size = ANVL.length(metadata) + (template == null ? 0 : template.getConstantLength());
+            payloadSize = size;
+        }
+        return size;
+    }
+
+    /**
+     * @return the template whose shared metadata is sent with the request, or null
+     */
+    public AnvlTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return the attempts to execute this request that did not succeed, oldest first
+     */
+    public List<RequestAttempt> getAttempts() {
+        synchronized (attempts) {
+            return Collections.unmodifiableList(new ArrayList<RequestAttempt>(attempts));
+        }
+    }
+
+    /**
+     * @return the System.nanoTime() at which the request was created and queued
+     */
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * @return the priority lane of the request
+     */
+    public RequestPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the key used to share the lane fairly between callers
+     */
+    public String getFairnessKey() {
+        return fairnessKey;
+    }
 }
@@ -0,0 +1,88 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * A request entity that gzip-compresses a String body as it is written to the
+ * connection.  The characters are encoded and compressed in small pieces, so
+ * neither the UTF-8 bytes nor the compressed bytes of the whole body are ever
+ * held in memory.  Because the compressed length is not known in advance, the
+ * body is sent with chunked transfer coding.
+ */
+class GzipStringEntity extends AbstractHttpEntity {
+
+    private static final int CHUNK_CHARS = 8192;
+
+    private final String content;
+
+    GzipStringEntity(String content) {
+        this.content = content;
+        setContentType(ContentType.create("text/plain", StandardCharsets.UTF_8).toString());
+        setContentEncoding("gzip");
+        setChunked(true);
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return -1;
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Produce the compressed body as a stream.  HttpClient calls writeTo when sending
+     * the request; this is only used by callers that read the entity directly.
+     */
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    public void writeTo(OutputStream outstream) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(outstream, CHUNK_CHARS);
+        Writer writer = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
+        for (int i = 0; i < content.length(); i += CHUNK_CHARS) {
+            writer.write(content, i, Math.min(CHUNK_CHARS, content.length() - i));
+        }
+        writer.flush();
+        // finish rather than close, so the connection's stream is left open
+        gzip.finish();
+        gzip.flush();
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.util.Arrays;
+
+/**
+ * A HedgingPolicy controls when the EZIDService issues a second, hedged request
+ * for a read operation whose first request has not yet answered.  The hedge delay
+ * is derived from a percentile of recently observed read latencies, so that only
+ * the slowest requests are hedged, and the number of hedges is capped by a budget
+ * expressed as a fraction of the read traffic (for example 0.05 for at most 5% extra
+ * load on EZID).  Only read operations are ever hedged; writes are always sent once.
+ *
+ * A policy is installed on a service with
+ * {@link edu.ucsb.nceas.ezid.EZIDService#setHedgingPolicy(HedgingPolicy)}, and is
+ * safe to share between threads.
+ */
+public class HedgingPolicy {
+
+    private static final int DEFAULT_WINDOW = 1000;
+    private static final int RECOMPUTE_INTERVAL = 100;
+    private static final double MAX_BUDGET_TOKENS = 10.0;
+
+    private final double percentile;
+    private final long minDelayMillis;
+    private final long maxDelayMillis;
+    private final double budgetRatio;
+
+    private final long[] samples;
+    private int sampleCount = 0;
+    private int nextSample = 0;
+    private int samplesSinceRecompute = 0;
+    private long hedgeDelayMillis;
+    private double budgetTokens = 0.0;
+    private long hedgesIssued = 0;
+    private long hedgesDenied = 0;
+
+    /**
+     * Construct a policy that hedges reads at the given latency percentile.
+     * @param percentile the latency percentile (0-100) after which a hedge is sent, e.g. 95.0
+     * @param minDelayMillis lower bound on the hedge delay, also used before enough samples exist
+     * @param maxDelayMillis upper bound on the hedge delay
+     * @param budgetRatio maximum fraction of reads that may be hedged, e.g. 0.05
+     */
+    public HedgingPolicy(double percentile, long minDelayMillis, long maxDelayMillis, double budgetRatio) {
+        if (percentile <= 0 || percentile >= 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100.");
+        }
+        if (minDelayMillis < 0 || maxDelayMillis < minDelayMillis) {
+            throw new IllegalArgumentException("Hedge delay bounds must satisfy 0 <= min <= max.");
+        }
+        if (budgetRatio < 0 || budgetRatio > 1) {
+            throw new IllegalArgumentException("Budget ratio must be between 0 and 1.");
+        }
+        this.percentile = percentile;
+        this.minDelayMillis = minDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.budgetRatio = budgetRatio;
+        this.samples = new long[DEFAULT_WINDOW];
+        this.hedgeDelayMillis = minDelayMillis;
+    }
+
+    /**
+     * Construct a policy hedging at the 95th percentile with at most 5% extra load.
+     */
+    public HedgingPolicy() {
+        this(95.0, 50, 5000, 0.05);
+    }
+
+    /**
+     * @return the current delay after which an unanswered read is hedged
+     */
+    public synchronized long getHedgeDelayMillis() {
+        return hedgeDelayMillis;
+    }
+
+    /**
+     * Record the latency of a completed read so that the hedge delay tracks the
+     * service's current latency distribution.  Each read also earns a fraction of
+     * a hedge token according to the budget ratio.
+     * @param latencyMillis the observed latency of a read request
+     */
+    public synchronized void recordLatency(long latencyMillis) {
+        budgetTokens = Math.min(MAX_BUDGET_TOKENS, budgetTokens + budgetRatio);
+        addSample(latencyMillis);
+    }
+
+    /**
+     * Record the time a read had been running when it failed or was aborted,
+     * such as the losing request of a hedged pair.  Its real latency is at least
+     * this long, so leaving it out would bias the hedge delay low and hedges would
+     * fire too early.  A censored sample does not earn hedge budget.
+     * @param elapsedMillis how long the read had been running
+     */
+    public synchronized void recordCensoredLatency(long elapsedMillis) {
+        addSample(elapsedMillis);
+    }
+
+    /**
+     * Ask the policy for permission to send a hedge.  Permission is granted only
+     * when the budget has accumulated a full token.
+     * @return true if a hedged request may be sent
+     */
+    public synchronized boolean tryAcquireHedge() {
+        if (budgetTokens >= 1.0) {
+            budgetTokens -= 1.0;
+            hedgesIssued++;
+            return true;
+        }
+        hedgesDenied++;
+        return false;
+    }
+
+    /**
+     * @return the number of hedged requests that have been sent
+     */
+    public synchronized long getHedgesIssued() {
+        return hedgesIssued;
+    }
+
+    /**
+     * @return the number of hedges that were suppressed because the budget was exhausted
+     */
+    public synchronized long getHedgesDenied() {
+        return hedgesDenied;
+    }
+
+    private void addSample(long latencyMillis) {
+        samples[nextSample] = latencyMillis;
+        nextSample = (nextSample + 1) % samples.length;
+        if (sampleCount < samples.length) {
+            sampleCount++;
+        }
+        if (++samplesSinceRecompute >= RECOMPUTE_INTERVAL) {
+            samplesSinceRecompute = 0;
+            recomputeDelay();
+        }
+    }
+
+    private void recomputeDelay() {
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        long delay = sorted[Math.max(0, index)];
+        hedgeDelayMillis = Math.max(minDelayMillis, Math.min(maxDelayMillis, delay));
+    }
+}
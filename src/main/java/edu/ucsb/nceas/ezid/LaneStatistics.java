@@ -0,0 +1,84 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+/**
+ * A snapshot of the queue depth and queue wait times of one priority lane in an
+ * EZIDClient.  Wait time is measured from when a request is enqueued until a
+ * worker takes it from the queue.
+ */
+public class LaneStatistics {
+
+    private final RequestPriority priority;
+    private final int queued;
+    private final long dispatched;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+
+    LaneStatistics(RequestPriority priority, int queued, long dispatched, long totalWaitNanos, long maxWaitNanos) {
+        this.priority = priority;
+        this.queued = queued;
+        this.dispatched = dispatched;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    /**
+     * @return the lane these statistics describe
+     */
+    public RequestPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the number of requests currently waiting in the lane
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return the number of requests dispatched from the lane to a worker
+     */
+    public long getDispatched() {
+        return dispatched;
+    }
+
+    /**
+     * @return the mean queue wait of dispatched requests in milliseconds
+     */
+    public double getMeanWaitMillis() {
+        return dispatched == 0 ? 0.0 : totalWaitNanos / 1e6 / dispatched;
+    }
+
+    /**
+     * @return the longest queue wait of any dispatched request in milliseconds
+     */
+    public double getMaxWaitMillis() {
+        return maxWaitNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return priority + ": queued=" + queued + " dispatched=" + dispatched
+                + " meanWaitMs=" + String.format("%.1f", getMeanWaitMillis())
+                + " maxWaitMs=" + String.format("%.1f", getMaxWaitMillis());
+    }
+}
@@ -0,0 +1,360 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import edu.ucsb.nceas.ezid.profile.DataCiteProfile;
+import edu.ucsb.nceas.ezid.profile.DataCiteProfileResourceTypeValues;
+import edu.ucsb.nceas.ezid.profile.DublinCoreProfile;
+import edu.ucsb.nceas.ezid.profile.ErcMissingValueCode;
+import edu.ucsb.nceas.ezid.profile.ErcProfile;
+import edu.ucsb.nceas.ezid.profile.InternalProfile;
+import edu.ucsb.nceas.ezid.profile.InternalProfileValues;
+
+/**
+ * A MetadataValidator checks an identifier's metadata locally before it is sent
+ * to EZID, so that records EZID would certainly reject fail at once on the
+ * caller's thread with a list of {@link ValidationError}s, instead of after a
+ * round trip or, for queued EZIDClient requests, as a log line.  The checks are:
+ * <ul>
+ * <li>required fields: a new DOI that is not reserved must carry DataCite
+ *     metadata, either as a "datacite" XML document or as the five
+ *     {@link DataCiteProfile} fields creator, title, publisher, publicationyear
+ *     and resourcetype;</li>
+ * <li>allowed values: datacite.publicationyear must be a four digit year, the
+ *     general type of datacite.resourcetype must be one of the
+ *     {@link DataCiteProfileResourceTypeValues}, and _status, _export and
+ *     _profile must be values EZID accepts;</li>
+ * <li>missing value codes: any value starting with "(:" must start with one of
+ *     the {@link ErcMissingValueCode}s, which EZID accepts in place of a value
+ *     in every profile;</li>
+ * <li>internal fields that only EZID sets, such as _owner and _created, must not
+ *     be supplied.</li>
+ * </ul>
+ * An embedded "datacite" document is read with a single StAX pass, checking that
+ * it is well formed and has the required elements; the schema is not loaded.  ERC
+ * and Dublin Core fields have no required elements in EZID, so they are only
+ * checked for missing value codes.  A validator is thread safe and holds no state
+ * besides its counts of accepted and rejected records.
+ */
+public class MetadataValidator {
+
+    private static final String DATACITE = DataCiteProfile.TITLE.toString().split("\\.")[0];
+    private static final Pattern YEAR = Pattern.compile("[0-9]{4}");
+    private static final DataCiteProfile[] REQUIRED = { DataCiteProfile.CREATOR, DataCiteProfile.TITLE,
+            DataCiteProfile.PUBLISHER, DataCiteProfile.PUBLICATION_YEAR, DataCiteProfile.RESOURCE_TYPE };
+
+    private static final Set<String> RESOURCE_TYPES = new HashSet<String>();
+    private static final Set<String> MISSING_CODES = new HashSet<String>();
+    private static final Set<String> PROFILES = new HashSet<String>();
+    private static final Set<String> READ_ONLY = new HashSet<String>();
+    static {
+        for (DataCiteProfileResourceTypeValues type : DataCiteProfileResourceTypeValues.values()) {
+            RESOURCE_TYPES.add(type.toString());
+        }
+        for (ErcMissingValueCode code : ErcMissingValueCode.values()) {
+            MISSING_CODES.add(code.toString());
+        }
+        PROFILES.add(DATACITE);
+        PROFILES.add(ErcProfile.WHO.toString().split("\\.")[0]);
+        PROFILES.add(DublinCoreProfile.TITLE.toString().split("\\.")[0]);
+        PROFILES.add("crossref");
+        for (InternalProfile field : new InternalProfile[] { InternalProfile.OWNER, InternalProfile.OWNER_GROUP,
+                InternalProfile.CREATED, InternalProfile.UPDATED, InternalProfile.SHADOWS,
+                InternalProfile.SHADOWED_BY }) {
+            READ_ONLY.add(field.toString());
+        }
+    }
+
+    private final XMLInputFactory xmlFactory;
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public MetadataValidator() {
+        xmlFactory = XMLInputFactory.newInstance();
+        // DataCite documents are read for their content only; never fetch anything
+        xmlFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        xmlFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        xmlFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    }
+
+    /**
+     * Check the metadata of an identifier that is to be created, or minted on the
+     * given shoulder.  Required fields are checked as well as values.
+     * @param identifier the identifier to be created, or the shoulder to mint on
+     * @param metadata the metadata to send, or null for none
+     * @return the problems found, or an empty list if the record is acceptable
+     */
+    public List<ValidationError> validateCreate(String identifier, Map<String, String> metadata) {
+        return validate(identifier, metadata, Collections.<String>emptySet(), true);
+    }
+
+    /**
+     * Check metadata that is to be set on an existing identifier.  Only the values
+     * supplied are checked, since the fields already held by EZID are not known.
+     * @param identifier the identifier being updated
+     * @param metadata the metadata to send, or null for none
+     * @return the problems found, or an empty list if the update is acceptable
+     */
+    public List<ValidationError> validateUpdate(String identifier, Map<String, String> metadata) {
+        return validate(identifier, metadata, Collections.<String>emptySet(), false);
+    }
+
+    /**
+     * Check metadata, some of whose values are streamed and so cannot be inspected;
+     * those count as present when required fields are checked.
+     * @param identifier the identifier, or the shoulder to mint on
+     * @param metadata the values that can be inspected, or null for none
+     * @param streamed the names of elements whose values are streamed
+     * @param create true to check required fields as well as values
+     * @return the problems found
+     */
+    List<ValidationError> validate(String identifier, Map<String, String> metadata, Collection<String> streamed,
+            boolean create) {
+        List<ValidationError> errors = new ArrayList<ValidationError>();
+        if (metadata != null) {
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                if (entry.getValue() != null) {
+                    checkField(entry.getKey(), entry.getValue(), errors);
+                }
+            }
+        }
+        if (create && needsDataCite(identifier, metadata)) {
+            String xml = metadata == null ? null : metadata.get(DATACITE);
+            if (xml != null) {
+                checkDataCiteXml(xml, errors);
+            } else if (!streamed.contains(DATACITE)) {
+                for (DataCiteProfile field : REQUIRED) {
+                    String name = field.toString();
+                    String value = metadata == null ? null : metadata.get(name);
+                    if ((value == null || value.trim().isEmpty()) && !streamed.contains(name)) {
+                        errors.add(new ValidationError(name, ValidationError.Kind.MISSING,
+                                "required for a public DOI unless a \"datacite\" document is given"));
+                    }
+                }
+            }
+        } else if (metadata != null && metadata.get(DATACITE) != null) {
+            checkDataCiteXml(metadata.get(DATACITE), errors);
+        }
+        (errors.isEmpty() ? accepted : rejected).incrementAndGet();
+        return errors;
+    }
+
+    /**
+     * Check metadata, throwing if there are problems.
+     * @throws MetadataValidationException listing the problems, if any are found
+     */
+    void check(String identifier, Map<String, String> metadata, Collection<String> streamed, boolean create)
+            throws MetadataValidationException {
+        List<ValidationError> errors = validate(identifier, metadata, streamed, create);
+        if (!errors.isEmpty()) {
+            StringBuilder msg = new StringBuilder("Rejected before sending: invalid metadata for ")
+                    .append(identifier);
+            for (ValidationError error : errors) {
+                msg.append("; ").append(error);
+            }
+            throw new MetadataValidationException(msg.toString(), errors);
+        }
+    }
+
+    /**
+     * @return the number of records and updates found acceptable
+     */
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    /**
+     * @return the number of records and updates with at least one problem
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * EZID requires DataCite metadata for DOIs, except while they are reserved.
+     */
+    private static boolean needsDataCite(String identifier, Map<String, String> metadata) {
+        if (identifier == null || !identifier.regionMatches(true, 0, "doi:", 0, 4)) {
+            return false;
+        }
+        String status = metadata == null ? null : metadata.get(InternalProfile.STATUS.toString());
+        return status == null || !status.trim().equals(InternalProfileValues.RESERVED.toString());
+    }
+
+    private static void checkField(String name, String value, List<ValidationError> errors) {
+        if (READ_ONLY.contains(name)) {
+            errors.add(new ValidationError(name, ValidationError.Kind.READ_ONLY, "is set by EZID and cannot be supplied"));
+            return;
+        }
+        if (value.startsWith("(:")) {
+            checkMissingCode(name, value, errors);
+            return;
+        }
+        if (name.equals(InternalProfile.STATUS.toString())) {
+            String status = value.trim();
+            int bar = status.indexOf('|');
+            if (bar >= 0 && status.substring(0, bar).trim().equals(InternalProfileValues.UNAVAILABLE.toString())) {
+                return;
+            }
+            if (!status.equals(InternalProfileValues.PUBLIC.toString())
+                    && !status.equals(InternalProfileValues.RESERVED.toString())
+                    && !status.equals(InternalProfileValues.UNAVAILABLE.toString())) {
+                errors.add(new ValidationError(name, ValidationError.Kind.INVALID_VALUE,
+                        "must be public, reserved or unavailable, not \"" + value + "\""));
+            }
+        } else if (name.equals(InternalProfile.EXPORT.toString())) {
+            if (!value.equals(InternalProfileValues.YES.toString()) && !value.equals(InternalProfileValues.NO.toString())) {
+                errors.add(new ValidationError(name, ValidationError.Kind.INVALID_VALUE,
+                        "must be yes or no, not \"" + value + "\""));
+            }
+        } else if (name.equals(InternalProfile.PROFILE.toString())) {
+            if (!PROFILES.contains(value)) {
+                errors.add(new ValidationError(name, ValidationError.Kind.INVALID_VALUE,
+                        "is not a known metadata profile: \"" + value + "\""));
+            }
+        } else if (name.equals(InternalProfile.TARGET.toString())) {
+            try {
+                if (new URI(value).getScheme() == null) {
+                    errors.add(new ValidationError(name, ValidationError.Kind.INVALID_VALUE,
+                            "must be an absolute URL, not \"" + value + "\""));
+                }
+            } catch (URISyntaxException e) {
+                errors.add(new ValidationError(name, ValidationError.Kind.INVALID_VALUE,
+                        "is not a valid URL: " + e.getMessage()));
+            }
+        } else if (name.equals(DataCiteProfile.PUBLICATION_YEAR.toString())) {
+            checkYear(name, value.trim(), errors);
+        } else if (name.equals(DataCiteProfile.RESOURCE_TYPE.toString())) {
+            int slash = value.indexOf('/');
+            checkResourceType(name, (slash < 0 ? value : value.substring(0, slash)).trim(), errors);
+        }
+    }
+
+    private static void checkMissingCode(String name, String value, List<ValidationError> errors) {
+        int close = value.indexOf(')');
+        String code = close < 0 ? value : value.substring(0, close + 1);
+        if (!MISSING_CODES.contains(code)) {
+            errors.add(new ValidationError(name, ValidationError.Kind.INVALID_MISSING_CODE,
+                    "\"" + code + "\" is not an ERC missing value code"));
+        } else if (code.equals(ErcMissingValueCode.AT.toString()) && value.substring(close + 1).trim().isEmpty()) {
+            errors.add(new ValidationError(name, ValidationError.Kind.INVALID_VALUE,
+                    "(:at) must be followed by the URL or identifier holding the value"));
+        }
+    }
+
+    private static void checkYear(String name, String year, List<ValidationError> errors) {
+        if (!YEAR.matcher(year).matches()) {
+            errors.add(new ValidationError(name, ValidationError.Kind.INVALID_VALUE,
+                    "must be a four digit year, not \"" + year + "\""));
+        }
+    }
+
+    private static void checkResourceType(String name, String general, List<ValidationError> errors) {
+        if (!RESOURCE_TYPES.contains(general)) {
+            errors.add(new ValidationError(name, ValidationError.Kind.INVALID_VALUE,
+                    "\"" + general + "\" is not a DataCite resource type"));
+        }
+    }
+
+    /**
+     * Read a DataCite XML document in one pass, checking that it is well formed and
+     * has a creator name, title, publisher, publication year and general resource type.
+     */
+    private void checkDataCiteXml(String xml, List<ValidationError> errors) {
+        boolean creator = false;
+        boolean title = false;
+        boolean publisher = false;
+        boolean year = false;
+        boolean resourceType = false;
+        try {
+            XMLStreamReader reader = xmlFactory.createXMLStreamReader(new StringReader(xml));
+            try {
+                boolean root = true;
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    String element = reader.getLocalName();
+                    if (root) {
+                        root = false;
+                        if (!element.equals("resource")) {
+                            errors.add(new ValidationError(DATACITE, ValidationError.Kind.INVALID_VALUE,
+                                    "the root element must be <resource>, not <" + element + ">"));
+                            return;
+                        }
+                    } else if (element.equals("creatorName")) {
+                        creator |= !reader.getElementText().trim().isEmpty();
+                    } else if (element.equals("title")) {
+                        title |= !reader.getElementText().trim().isEmpty();
+                    } else if (element.equals("publisher")) {
+                        publisher |= !reader.getElementText().trim().isEmpty();
+                    } else if (element.equals("publicationYear")) {
+                        year = true;
+                        checkYear(DATACITE + "/publicationYear", reader.getElementText().trim(), errors);
+                    } else if (element.equals("resourceType")) {
+                        resourceType = true;
+                        String general = reader.getAttributeValue(null, "resourceTypeGeneral");
+                        if (general == null) {
+                            errors.add(new ValidationError(DATACITE + "/resourceType", ValidationError.Kind.MISSING,
+                                    "the resourceTypeGeneral attribute is required"));
+                        } else {
+                            checkResourceType(DATACITE + "/resourceType", general.trim(), errors);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            errors.add(new ValidationError(DATACITE, ValidationError.Kind.MALFORMED_XML, e.getMessage()));
+            return;
+        }
+        missingElement(creator, "creatorName", errors);
+        missingElement(title, "title", errors);
+        missingElement(publisher, "publisher", errors);
+        missingElement(year, "publicationYear", errors);
+        missingElement(resourceType, "resourceType", errors);
+    }
+
+    private static void missingElement(boolean found, String element, List<ValidationError> errors) {
+        if (!found) {
+            errors.add(new ValidationError(DATACITE + "/" + element, ValidationError.Kind.MISSING,
+                    "a non-empty <" + element + "> element is required"));
+        }
+    }
+}
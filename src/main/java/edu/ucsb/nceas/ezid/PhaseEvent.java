@@ -0,0 +1,164 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The Java Flight Recorder event for one EZIDService call and its phases.  The
+ * event begins when the call starts, so a recording shows it over the call's real
+ * duration.  This is the only class compiled against the jdk.jfr API, in a
+ * compilation of its own; a {@link PhaseProfiler} reaches it through its
+ * {@link Recorder}, which is only loaded once the jdk.jfr module has been found.
+ */
+@Name(PhaseEvent.NAME)
+@Label("EZID Call")
+@Description("The time spent in each phase of one EZID service call")
+@Category({ "EZID" })
+@StackTrace(false)
+class PhaseEvent extends Event {
+
+    /** The name under which the event is recorded, for use in recording settings. */
+    static final String NAME = "edu.ucsb.nceas.ezid.Call";
+
+    private static final EventType TYPE = EventType.getEventType(PhaseEvent.class);
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Identifier")
+    String identifier;
+
+    @Label("Status Code")
+    int statusCode;
+
+    @Label("Failed")
+    boolean failed;
+
+    @Label("Slow")
+    @Description("The call took at least the slow-call threshold")
+    boolean slow;
+
+    @Label("Prepare")
+    @Timespan(Timespan.NANOSECONDS)
+    long prepare;
+
+    @Label("Lease")
+    @Timespan(Timespan.NANOSECONDS)
+    long lease;
+
+    @Label("DNS")
+    @Timespan(Timespan.NANOSECONDS)
+    long dns;
+
+    @Label("Connect")
+    @Timespan(Timespan.NANOSECONDS)
+    long connect;
+
+    @Label("TLS")
+    @Timespan(Timespan.NANOSECONDS)
+    long tls;
+
+    @Label("Send")
+    @Timespan(Timespan.NANOSECONDS)
+    long send;
+
+    @Label("Time to First Byte")
+    @Timespan(Timespan.NANOSECONDS)
+    long timeToFirstByte;
+
+    @Label("Body")
+    @Timespan(Timespan.NANOSECONDS)
+    long body;
+
+    @Label("Parse")
+    @Timespan(Timespan.NANOSECONDS)
+    long parse;
+
+    @Label("Request Size")
+    @DataAmount
+    long requestSize;
+
+
+    /**
+     * Begin an event for a call that is starting, if a recording has the event enabled.
+     * @return the event, or null if it is not being recorded
+     */
+    static PhaseEvent beginIfEnabled() {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        PhaseEvent event = new PhaseEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End the event and commit it with the phases of the finished call.
+     * @param timings the phases of the call
+     * @param requestSize the size of the request body
+     */
+    void commit(PhaseTimings timings, long requestSize) {
+        end();
+        if (!shouldCommit()) {
+            return;
+        }
+        operation = timings.getOperation().toString();
+        identifier = timings.getIdentifier();
+        statusCode = timings.getStatusCode();
+        failed = timings.isFailed();
+        slow = timings.isSlow();
+        prepare = timings.getPrepareNanos();
+        lease = timings.getLeaseNanos();
+        dns = timings.getDnsNanos();
+        connect = timings.getConnectNanos();
+        tls = timings.getTlsNanos();
+        send = timings.getSendNanos();
+        timeToFirstByte = timings.getTimeToFirstByteNanos();
+        body = timings.getBodyNanos();
+        parse = timings.getParseNanos();
+        this.requestSize = requestSize;
+        commit();
+    }
+
+    /** The PhaseRecorder that a PhaseProfiler loads by name. */
+    static final class Recorder implements PhaseRecorder {
+        public boolean isAvailable() {
+            return FlightRecorder.isAvailable();
+        }
+
+        public Object begin() {
+            return beginIfEnabled();
+        }
+
+        public void commit(Object event, PhaseTimings timings, long requestSize) {
+            ((PhaseEvent) event).commit(timings, requestSize);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A PhaseProfiler times each phase of the calls an EZIDService makes, from
+ * waiting for a pooled connection through DNS, connect, TLS, the server's time to
+ * first byte and the response body, to parsing the response.  Timing a call costs
+ * only a few clock reads, so every call is timed, but the result is only reported
+ * for a sample of the calls and for every call that takes at least the slow-call
+ * threshold.  Continuous profiling in production stays cheap, and slow calls can
+ * still be diagnosed one by one.
+ * <p>
+ * A reported call is committed as an "edu.ucsb.nceas.ezid.Call" Java Flight
+ * Recorder event, when the JVM has the jdk.jfr module and a recording has the
+ * event enabled, and is passed to any registered {@link PhaseTimingListener}s:
+ * <pre>
+ *   ezid.setPhaseProfiler(new PhaseProfiler(0.01, 2000));
+ *   java -XX:StartFlightRecording:filename=ezid.jfr ...
+ *   jfr print --events edu.ucsb.nceas.ezid.Call ezid.jfr
+ * </pre>
+ *
+ * @see EZIDService#setPhaseProfiler(PhaseProfiler)
+ */
+public class PhaseProfiler {
+
+    private static final PhaseRecorder FLIGHT_RECORDER = loadFlightRecorder();
+
+    private final double sampleRate;
+    private final long slowThresholdNanos;
+    private final List<PhaseTimingListener> listeners = new CopyOnWriteArrayList<PhaseTimingListener>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong sampledCalls = new AtomicLong();
+    private final AtomicLong slowCalls = new AtomicLong();
+
+    protected static Log log = LogFactory.getLog(PhaseProfiler.class);
+
+    /**
+     * Construct a PhaseProfiler that reports 1% of calls and every call that takes
+     * at least one second.
+     */
+    public PhaseProfiler() {
+        this(0.01, 1000);
+    }
+
+    /**
+     * Construct a PhaseProfiler.
+     * @param sampleRate the fraction of calls to report, from 0 to 1
+     * @param slowThresholdMillis the duration at or above which every call is reported,
+     *          or a negative number to report only sampled calls
+     */
+    public PhaseProfiler(double sampleRate, long slowThresholdMillis) {
+        if (!(sampleRate >= 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1.");
+        }
+        this.sampleRate = sampleRate;
+        this.slowThresholdNanos = slowThresholdMillis < 0 ? Long.MAX_VALUE
+                : TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+    }
+
+    /**
+     * Register a listener to receive the timings of reported calls.
+     * @param listener the listener to add
+     */
+    public void addListener(PhaseTimingListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener the listener to remove
+     */
+    public void removeListener(PhaseTimingListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the fraction of calls that are reported regardless of their duration
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return the duration in milliseconds at or above which every call is reported,
+     *          or -1 if only sampled calls are reported
+     */
+    public long getSlowThresholdMillis() {
+        return slowThresholdNanos == Long.MAX_VALUE ? -1 : TimeUnit.NANOSECONDS.toMillis(slowThresholdNanos);
+    }
+
+    /**
+     * @return the number of calls that have been timed
+     */
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    /**
+     * @return the number of calls reported because they were sampled
+     */
+    public long getSampledCount() {
+        return sampledCalls.get();
+    }
+
+    /**
+     * @return the number of calls that took at least the slow-call threshold
+     */
+    public long getSlowCount() {
+        return slowCalls.get();
+    }
+
+    /**
+     * @return true if reported calls can be committed as Java Flight Recorder events
+     */
+    public static boolean isFlightRecorderAvailable() {
+        return FLIGHT_RECORDER != null;
+    }
+
+    /**
+     * Count a call that is starting and decide whether it is in the sample.
+     * @return true if the call is to be reported whatever its duration
+     */
+    boolean sample() {
+        calls.incrementAndGet();
+        if (sampleRate >= 1) {
+            return true;
+        }
+        return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * Begin the flight recorder event of a call that is starting.
+     * @return the event, or null if the event is not being recorded
+     */
+    Object beginEvent() {
+        return FLIGHT_RECORDER == null ? null : FLIGHT_RECORDER.begin();
+    }
+
+    /**
+     * @return true if a call of the given duration is to be reported as slow
+     */
+    boolean isSlow(long totalNanos) {
+        return totalNanos >= slowThresholdNanos;
+    }
+
+    /**
+     * Report a sampled or slow call to the flight recorder and the listeners.
+     * @param timings the phases of the call
+     * @param event the call's flight recorder event, or null
+     * @param requestSize the size of the request body
+     */
+    void report(PhaseTimings timings, Object event, long requestSize) {
+        if (timings.isSampled()) {
+            sampledCalls.incrementAndGet();
+        }
+        if (timings.isSlow()) {
+            slowCalls.incrementAndGet();
+            log.debug("Slow call: " + timings);
+        }
+        if (event != null) {
+            FLIGHT_RECORDER.commit(event, timings, requestSize);
+        }
+        for (PhaseTimingListener listener : listeners) {
+            try {
+                listener.callTimed(timings);
+            } catch (RuntimeException e) {
+                log.warn("Listener " + listener.getClass().getName() + " failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Load the flight recorder support by name, so that this class never links
+     * against the jdk.jfr types that a Java 8 runtime may lack.
+     * @return the recorder, or null if this JVM cannot make flight recordings
+     */
+    private static PhaseRecorder loadFlightRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            PhaseRecorder recorder = (PhaseRecorder) Class.forName("edu.ucsb.nceas.ezid.PhaseEvent$Recorder")
+                    .getDeclaredConstructor().newInstance();
+            return recorder.isAvailable() ? recorder : null;
+        } catch (ReflectiveOperationException e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+/**
+ * Commits the phases of calls as Java Flight Recorder events.  The library is
+ * built for Java 8, where the jdk.jfr API may be missing, so the only
+ * implementation, in {@link PhaseEvent}, is compiled on its own and loaded by name
+ * when the JVM has jdk.jfr.  Events are passed around as Objects so that nothing
+ * else refers to the jdk.jfr types.
+ */
+interface PhaseRecorder {
+
+    /**
+     * @return true if this JVM can make flight recordings
+     */
+    boolean isAvailable();
+
+    /**
+     * Begin an event for a call that is starting, if a recording has the event enabled.
+     * @return the event, or null if it is not being recorded
+     */
+    Object begin();
+
+    /**
+     * End an event begun by {@link #begin()} and commit it with the phases of the
+     * finished call.
+     * @param event the event
+     * @param timings the phases of the call
+     * @param requestSize the size of the request body
+     */
+    void commit(Object event, PhaseTimings timings, long requestSize);
+}
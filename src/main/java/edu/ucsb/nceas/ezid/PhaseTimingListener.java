@@ -0,0 +1,34 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+/**
+ * Receives the {@link PhaseTimings} of the calls a {@link PhaseProfiler} reports,
+ * that is the sampled calls and the slow ones.  Listeners are called on the
+ * thread that made the call, after it completed, and so should return quickly.
+ */
+public interface PhaseTimingListener {
+
+    /**
+     * Called when a sampled or slow call has completed or failed.
+     * @param timings the phases of the call
+     */
+    public void callTimed(PhaseTimings timings);
+}
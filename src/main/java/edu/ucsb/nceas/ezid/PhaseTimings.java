@@ -0,0 +1,219 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.ucsb.nceas.ezid.EZIDCallEvent.Operation;
+
+/**
+ * PhaseTimings break the time of one EZIDService call down into the phases it
+ * went through, as measured by a {@link PhaseProfiler}.  A phase the call did not
+ * reach, such as DNS and connect when a pooled connection was reused, or the
+ * response phases of a call that failed, takes zero time.  The phases are:
+ * <ul>
+ * <li>prepare: from the start of the call until the HTTP request is dispatched,
+ *     including any wait for the shared rate limit,</li>
+ * <li>lease: waiting for a connection from the pool,</li>
+ * <li>DNS, connect and TLS: resolving, connecting and handshaking a new connection,</li>
+ * <li>send: writing the request line, headers and body,</li>
+ * <li>time to first byte: waiting for EZID to process the request and start its response,</li>
+ * <li>body: reading the response body,</li>
+ * <li>parse: decoding and parsing the response.</li>
+ * </ul>
+ * A hedged read dispatches two requests under one call; the setup of their new
+ * connections is added together, and each other point of the call is taken from
+ * whichever request reached it first.
+ */
+public class PhaseTimings {
+
+    private final Operation operation;
+    private final String identifier;
+    private final int statusCode;
+    private final boolean failed;
+    private final boolean sampled;
+    private final boolean slow;
+    private final long callStartMillis;
+    private final long prepareNanos;
+    private final long leaseNanos;
+    private final long dnsNanos;
+    private final long connectNanos;
+    private final long tlsNanos;
+    private final long sendNanos;
+    private final long timeToFirstByteNanos;
+    private final long bodyNanos;
+    private final long parseNanos;
+    private final long totalNanos;
+
+    PhaseTimings(Operation operation, String identifier, int statusCode, boolean failed, boolean sampled,
+            boolean slow, long callStartMillis, long prepareNanos, long leaseNanos, long dnsNanos,
+            long connectNanos, long tlsNanos, long sendNanos, long timeToFirstByteNanos, long bodyNanos,
+            long parseNanos, long totalNanos) {
+        this.operation = operation;
+        this.identifier = identifier;
+        this.statusCode = statusCode;
+        this.failed = failed;
+        this.sampled = sampled;
+        this.slow = slow;
+        this.callStartMillis = callStartMillis;
+        this.prepareNanos = prepareNanos;
+        this.leaseNanos = leaseNanos;
+        this.dnsNanos = dnsNanos;
+        this.connectNanos = connectNanos;
+        this.tlsNanos = tlsNanos;
+        this.sendNanos = sendNanos;
+        this.timeToFirstByteNanos = timeToFirstByteNanos;
+        this.bodyNanos = bodyNanos;
+        this.parseNanos = parseNanos;
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * @return the operation that was performed
+     */
+    public Operation getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return the identifier, or for a mint the shoulder, the call was about
+     */
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * @return the HTTP status code of the response, or zero if none was received
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return true if the call failed
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return true if the call was chosen by the profiler's sample rate
+     */
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * @return true if the call took at least the profiler's slow-call threshold
+     */
+    public boolean isSlow() {
+        return slow;
+    }
+
+    /**
+     * @return when the call started, in milliseconds since the epoch
+     */
+    public long getCallStartMillis() {
+        return callStartMillis;
+    }
+
+    /**
+     * @return the time before the request was dispatched, in nanoseconds
+     */
+    public long getPrepareNanos() {
+        return prepareNanos;
+    }
+
+    /**
+     * @return the time spent waiting for a pooled connection, in nanoseconds
+     */
+    public long getLeaseNanos() {
+        return leaseNanos;
+    }
+
+    /**
+     * @return the time spent resolving the host name, in nanoseconds
+     */
+    public long getDnsNanos() {
+        return dnsNanos;
+    }
+
+    /**
+     * @return the time spent opening the TCP connection, in nanoseconds
+     */
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    /**
+     * @return the time spent in the TLS handshake, in nanoseconds
+     */
+    public long getTlsNanos() {
+        return tlsNanos;
+    }
+
+    /**
+     * @return the time spent writing the request, in nanoseconds
+     */
+    public long getSendNanos() {
+        return sendNanos;
+    }
+
+    /**
+     * @return the time from sending the request to receiving the response headers, in nanoseconds
+     */
+    public long getTimeToFirstByteNanos() {
+        return timeToFirstByteNanos;
+    }
+
+    /**
+     * @return the time spent reading the response body, in nanoseconds
+     */
+    public long getBodyNanos() {
+        return bodyNanos;
+    }
+
+    /**
+     * @return the time spent parsing the response, in nanoseconds
+     */
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    /**
+     * @return the time of the whole call, in nanoseconds
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public String toString() {
+        return operation + " " + identifier + (failed ? " failed" : " " + statusCode)
+                + " in " + millis(totalNanos) + " ms: prepare=" + millis(prepareNanos)
+                + " lease=" + millis(leaseNanos) + " dns=" + millis(dnsNanos)
+                + " connect=" + millis(connectNanos) + " tls=" + millis(tlsNanos)
+                + " send=" + millis(sendNanos) + " ttfb=" + millis(timeToFirstByteNanos)
+                + " body=" + millis(bodyNanos) + " parse=" + millis(parseNanos);
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,352 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A PriorityLaneQueue is the work queue behind an EZIDClient's workers.  Requests
+ * are held in one lane per {@link RequestPriority}, and lanes are served by smooth
+ * weighted round robin, so each busy lane receives a share of dispatches in
+ * proportion to its weight and no lane is starved.  Within a lane, requests are
+ * grouped by a fairness key (for example a tenant or caller name) and the keys are
+ * served round robin, so a single producer cannot monopolize the lane.  Requests
+ * with the same key are dispatched in FIFO order.
+ *
+ * Runnables that are not EZIDServiceRequests are placed in the NORMAL lane under
+ * the default key.  Queue wait time is recorded per lane and can be read with
+ * {@link #getStatistics()}.
+ */
+public class PriorityLaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /** The fairness key used for requests submitted without one. */
+    public static final String DEFAULT_KEY = "";
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final EnumMap<RequestPriority, Lane> lanes = new EnumMap<RequestPriority, Lane>(RequestPriority.class);
+    private int count = 0;
+
+    public PriorityLaneQueue() {
+        for (RequestPriority priority : RequestPriority.values()) {
+            lanes.put(priority, new Lane(priority));
+        }
+    }
+
+    /**
+     * @return a snapshot of the depth and wait time of each lane
+     */
+    public Map<RequestPriority, LaneStatistics> getStatistics() {
+        lock.lock();
+        try {
+            Map<RequestPriority, LaneStatistics> stats = new EnumMap<RequestPriority, LaneStatistics>(RequestPriority.class);
+            for (Lane lane : lanes.values()) {
+                stats.put(lane.priority, new LaneStatistics(lane.priority, lane.size,
+                        lane.dispatched, lane.totalWaitNanos, lane.maxWaitNanos));
+            }
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean offer(Runnable task) {
+        if (task instanceof EZIDServiceRequest) {
+            EZIDServiceRequest request = (EZIDServiceRequest) task;
+            return offer(task, request.getPriority(), request.getFairnessKey());
+        }
+        return offer(task, RequestPriority.NORMAL, DEFAULT_KEY);
+    }
+
+    /**
+     * Insert a task into the lane for the given priority under the given fairness key.
+     * @param task the task to be queued
+     * @param priority the lane in which to queue the task
+     * @param fairnessKey the key whose turn the task waits for, or null for the default key
+     * @return true, as the queue is unbounded
+     */
+    public boolean offer(Runnable task, RequestPriority priority, String fairnessKey) {
+        if (task == null || priority == null) {
+            throw new NullPointerException();
+        }
+        String key = fairnessKey == null ? DEFAULT_KEY : fairnessKey;
+        lock.lock();
+        try {
+            lanes.get(priority).add(key, new Entry(task, System.nanoTime()));
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(Runnable task) {
+        offer(task);
+    }
+
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+        return offer(task);
+    }
+
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Runnable peek() {
+        lock.lock();
+        try {
+            for (Lane lane : lanes.values()) {
+                Entry head = lane.peek();
+                if (head != null) {
+                    return head.task;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            for (Lane lane : lanes.values()) {
+                if (lane.remove(o)) {
+                    count--;
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements && count > 0) {
+                c.add(dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return an iterator over a snapshot of the queued tasks; it does not support removal
+     */
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<Runnable>(count);
+            for (Lane lane : lanes.values()) {
+                lane.collect(snapshot);
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Choose the next lane by smooth weighted round robin over the non-empty lanes
+     * and remove the next task from it.  Must be called with the lock held and the
+     * queue non-empty.
+     */
+    private Runnable dequeue() {
+        int totalWeight = 0;
+        Lane best = null;
+        for (Lane lane : lanes.values()) {
+            if (lane.size == 0) {
+                continue;
+            }
+            lane.currentWeight += lane.priority.getWeight();
+            totalWeight += lane.priority.getWeight();
+            if (best == null || lane.currentWeight > best.currentWeight) {
+                best = lane;
+            }
+        }
+        best.currentWeight -= totalWeight;
+        Entry entry = best.poll();
+        long wait = System.nanoTime() - entry.enqueuedNanos;
+        best.dispatched++;
+        best.totalWaitNanos += wait;
+        best.maxWaitNanos = Math.max(best.maxWaitNanos, wait);
+        count--;
+        return entry.task;
+    }
+
+    /** A queued task and the time it was enqueued. */
+    private static class Entry {
+        final Runnable task;
+        final long enqueuedNanos;
+
+        Entry(Runnable task, long enqueuedNanos) {
+            this.task = task;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    /**
+     * One priority lane, holding a FIFO queue per fairness key and a round robin
+     * order over the keys that currently have queued tasks.
+     */
+    private static class Lane {
+        final RequestPriority priority;
+        final Map<String, ArrayDeque<Entry>> byKey = new HashMap<String, ArrayDeque<Entry>>();
+        final ArrayDeque<String> activeKeys = new ArrayDeque<String>();
+        int size = 0;
+        int currentWeight = 0;
+        long dispatched = 0;
+        long totalWaitNanos = 0;
+        long maxWaitNanos = 0;
+
+        Lane(RequestPriority priority) {
+            this.priority = priority;
+        }
+
+        void add(String key, Entry entry) {
+            ArrayDeque<Entry> queue = byKey.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<Entry>();
+                byKey.put(key, queue);
+                activeKeys.addLast(key);
+            }
+            queue.addLast(entry);
+            size++;
+        }
+
+        Entry peek() {
+            String key = activeKeys.peekFirst();
+            return key == null ? null : byKey.get(key).peekFirst();
+        }
+
+        Entry poll() {
+            String key = activeKeys.pollFirst();
+            ArrayDeque<Entry> queue = byKey.get(key);
+            Entry entry = queue.pollFirst();
+            if (queue.isEmpty()) {
+                byKey.remove(key);
+            } else {
+                activeKeys.addLast(key);
+            }
+            size--;
+            if (size == 0) {
+                currentWeight = 0;
+            }
+            return entry;
+        }
+
+        boolean remove(Object task) {
+            for (Map.Entry<String, ArrayDeque<Entry>> keyed : byKey.entrySet()) {
+                Iterator<Entry> it = keyed.getValue().iterator();
+                while (it.hasNext()) {
+                    if (it.next().task == task) {
+                        it.remove();
+                        size--;
+                        if (keyed.getValue().isEmpty()) {
+                            activeKeys.remove(keyed.getKey());
+                            byKey.remove(keyed.getKey());
+                        }
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        void collect(List<Runnable> into) {
+            for (String key : activeKeys) {
+                for (Entry entry : byKey.get(key)) {
+                    into.add(entry.task);
+                }
+            }
+        }
+    }
+}
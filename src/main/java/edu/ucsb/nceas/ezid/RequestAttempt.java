@@ -0,0 +1,63 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+/**
+ * One attempt to execute a queued EZIDServiceRequest that did not succeed: when
+ * it started, how long it took, and the error it ended with.
+ */
+public class RequestAttempt {
+
+    private final long startMillis;
+    private final long elapsedMillis;
+    private final String error;
+
+    /**
+     * @param startMillis when the attempt started, in milliseconds since the epoch
+     * @param elapsedMillis how long the attempt took in milliseconds
+     * @param error the error text the attempt ended with
+     */
+    public RequestAttempt(long startMillis, long elapsedMillis, String error) {
+        this.startMillis = startMillis;
+        this.elapsedMillis = elapsedMillis;
+        this.error = error == null ? "" : error;
+    }
+
+    /**
+     * @return when the attempt started, in milliseconds since the epoch
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * @return how long the attempt took in milliseconds
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return the error text the attempt ended with
+     */
+    public String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+/**
+ * Priority classes for requests queued in an EZIDClient.  Each class is served
+ * from its own lane, and lanes share the workers in proportion to their weights,
+ * so interactive requests are dispatched ahead of bulk work without bulk work
+ * ever being starved.
+ *
+ * INTERACTIVE	requests a user is waiting on, such as publishing a dataset now
+ * NORMAL		the default for requests submitted without a priority
+ * BULK		background work such as backfills and batch updates
+ */
+public enum RequestPriority {
+    INTERACTIVE(16),
+    NORMAL(4),
+    BULK(1);
+
+    private final int weight;
+
+    private RequestPriority(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * @return the relative share of dispatches given to this lane when all lanes are busy
+     */
+    public int getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+/**
+ * How a sharded EZIDService picks the connection pool for a call.
+ *
+ * THREAD		by the calling thread, so each worker keeps to one pool and its
+ * 			connections stay warm
+ * IDENTIFIER	by the identifier (the request path), so calls for the same
+ * 			identifier share a pool whichever thread makes them
+ *
+ * @see EZIDService#EZIDService(String, int, ShardSelection)
+ */
+public enum ShardSelection {
+    THREAD,
+    IDENTIFIER
+}
@@ -0,0 +1,82 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.io.IOException;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * An HttpClient that spreads calls over several independent clients, each with
+ * its own connection pool, so that threads leasing and releasing connections
+ * contend on one pool's lock instead of all of them contending on a single lock.
+ */
+class ShardedHttpClient extends CloseableHttpClient {
+
+    private final CloseableHttpClient[] shards;
+    private final ShardSelection selection;
+
+    ShardedHttpClient(CloseableHttpClient[] shards, ShardSelection selection) {
+        this.shards = shards;
+        this.selection = selection;
+    }
+
+    protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+            throws IOException, ClientProtocolException {
+        return shards[select(request)].execute(target, request, context);
+    }
+
+    private int select(HttpRequest request) {
+        int hash;
+        if (selection == ShardSelection.IDENTIFIER) {
+            hash = request instanceof HttpUriRequest ? ((HttpUriRequest) request).getURI().getRawPath().hashCode()
+                    : request.getRequestLine().getUri().hashCode();
+            // spread the bits of String hashes, which differ mostly in the low bits
+            hash ^= hash >>> 16;
+        } else {
+            hash = (int) Thread.currentThread().getId();
+        }
+        return (hash & Integer.MAX_VALUE) % shards.length;
+    }
+
+    public void close() throws IOException {
+        for (CloseableHttpClient shard : shards) {
+            shard.close();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return shards[0].getParams();
+    }
+
+    @SuppressWarnings("deprecation")
+    public ClientConnectionManager getConnectionManager() {
+        return shards[0].getConnectionManager();
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.http.client.CookieStore;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.CookieIdentityComparator;
+
+/**
+ * A CookieStore shared by every connection pool of an EZIDService, so the session
+ * cookie from login is sent whichever pool a call uses.  HttpClient reads the
+ * cookies on every request but EZID only sets them at login, so the store is
+ * copy-on-write: reads take no lock, and each change publishes a new list.
+ * Cookies replace earlier cookies with the same name, domain and path, as in
+ * BasicCookieStore.
+ */
+class SharedCookieStore implements CookieStore {
+
+    private volatile List<Cookie> cookies = Collections.emptyList();
+
+    public synchronized void addCookie(Cookie cookie) {
+        if (cookie == null) {
+            return;
+        }
+        TreeSet<Cookie> updated = new TreeSet<Cookie>(new CookieIdentityComparator());
+        updated.addAll(cookies);
+        updated.remove(cookie);
+        if (!cookie.isExpired(new Date())) {
+            updated.add(cookie);
+        }
+        cookies = Collections.unmodifiableList(new ArrayList<Cookie>(updated));
+    }
+
+    public List<Cookie> getCookies() {
+        return cookies;
+    }
+
+    public synchronized boolean clearExpired(Date date) {
+        if (date == null) {
+            return false;
+        }
+        List<Cookie> kept = new ArrayList<Cookie>();
+        for (Cookie cookie : cookies) {
+            if (!cookie.isExpired(date)) {
+                kept.add(cookie);
+            }
+        }
+        boolean removed = kept.size() < cookies.size();
+        if (removed) {
+            cookies = Collections.unmodifiableList(kept);
+        }
+        return removed;
+    }
+
+    public synchronized void clear() {
+        cookies = Collections.emptyList();
+    }
+
+    public String toString() {
+        return cookies.toString();
+    }
+}
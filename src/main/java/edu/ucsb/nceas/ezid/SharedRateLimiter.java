@@ -0,0 +1,513 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A SharedRateLimiter holds one rate budget and one in-flight limit for every
+ * process on a host that calls EZID with the same account, so that several JVMs,
+ * each with its own EZIDService or EZIDClient, together stay within the rate EZID
+ * allows instead of each assuming it has the whole budget.  The state is kept in
+ * a small memory-mapped file that every participant opens:
+ * <ul>
+ * <li>a token bucket, refilled at the configured rate up to the burst size, from
+ *     which each call takes one token;</li>
+ * <li>a table of participant slots, each holding a process's count of calls in
+ *     flight and the time of its last heartbeat.  The counts are summed against
+ *     the in-flight limit.</li>
+ * </ul>
+ * Each update is made while holding an exclusive lock on the file, so the state is
+ * consistent across processes without a coordinating server.  A participant renews
+ * its heartbeat in the background; a slot whose heartbeat is older than the lease
+ * timeout belongs to a process that has crashed or hung, and is reclaimed along
+ * with its calls in flight.
+ * <p>
+ * The first process to create the file sets the rate, burst and in-flight limit;
+ * later participants adopt the values in the file, so one limit holds for all.
+ * The live participants are also numbered in the order they joined, which lets a
+ * bulk job partition its work between processes with {@link #isAssigned(String)}.
+ */
+public class SharedRateLimiter implements Closeable {
+
+    /** The greatest number of processes that can share one state file. */
+    public static final int MAX_PARTICIPANTS = 64;
+
+    /** The default time after which a silent participant's slot is reclaimed. */
+    public static final long DEFAULT_LEASE_TIMEOUT = 10000;
+
+    private static final int MAGIC = 0x455a524c;
+    private static final int VERSION = 1;
+    private static final long MICROS = 1000000L;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 32;
+    private static final int FILE_SIZE = HEADER_SIZE + MAX_PARTICIPANTS * SLOT_SIZE;
+    private static final long MAX_POLL_MILLIS = 50;
+
+    // header offsets
+    private static final int RATE = 8;
+    private static final int BURST = 16;
+    private static final int MAX_IN_FLIGHT = 20;
+    private static final int TOKENS = 24;
+    private static final int REFILLED = 32;
+    private static final int NEXT_OWNER = 40;
+    // slot offsets
+    private static final int OWNER = 0;
+    private static final int HEARTBEAT = 8;
+    private static final int IN_FLIGHT = 16;
+
+    /** Monitors for state files, since FileLock excludes other processes but not other threads. */
+    private static final ConcurrentMap<Path, Object> FILE_MONITORS = new ConcurrentHashMap<Path, Object>();
+    private static ScheduledExecutorService heartbeatTimer = null;
+
+    protected static Log log = LogFactory.getLog(SharedRateLimiter.class);
+
+    private final Path file;
+    private final Object monitor;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final MappedByteBuffer state;
+    private final ScheduledFuture<?> heartbeat;
+    private final long leaseTimeout;
+    private long owner;
+    private int slot = -1;
+    private int localInFlight;
+    private volatile int participants = 1;
+    private volatile int participantIndex = 0;
+    private boolean closed;
+
+    /**
+     * Join the limiter kept in the given file, creating the file with the given
+     * limits if it does not exist yet.
+     * @param file the state file, shared by every participating process
+     * @param permitsPerSecond the calls per second allowed across all processes
+     * @param burst the number of calls that may be made at once after a quiet period
+     * @param maxInFlight the number of calls allowed in flight across all processes
+     * @throws IOException if the file cannot be opened, or all participant slots are taken
+     */
+    public SharedRateLimiter(Path file, double permitsPerSecond, int burst, int maxInFlight) throws IOException {
+        this(file, permitsPerSecond, burst, maxInFlight, DEFAULT_LEASE_TIMEOUT);
+    }
+
+    /**
+     * Join the limiter kept in the given file, with the given lease timeout.  The
+     * heartbeat is renewed at a third of the lease timeout, and every participant
+     * should use the same timeout, or a participant with a longer one may have its
+     * slot reclaimed while it is alive.
+     * @param file the state file, shared by every participating process
+     * @param permitsPerSecond the calls per second allowed across all processes
+     * @param burst the number of calls that may be made at once after a quiet period
+     * @param maxInFlight the number of calls allowed in flight across all processes
+     * @param leaseTimeoutMillis the time after which a silent participant's slot is reclaimed
+     * @throws IOException if the file cannot be opened, or all participant slots are taken
+     */
+    public SharedRateLimiter(Path file, double permitsPerSecond, int burst, int maxInFlight, long leaseTimeoutMillis)
+            throws IOException {
+        if (leaseTimeoutMillis < 3) {
+            throw new IllegalArgumentException("The lease timeout must be at least 3 ms.");
+        }
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("The rate must be positive.");
+        }
+        if (burst < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("The burst and in-flight limit must be at least 1.");
+        }
+        this.leaseTimeout = leaseTimeoutMillis;
+        this.file = file.toAbsolutePath().normalize();
+        Object m = new Object();
+        Object existing = FILE_MONITORS.putIfAbsent(this.file, m);
+        this.monitor = existing == null ? m : existing;
+        this.raf = new RandomAccessFile(this.file.toFile(), "rw");
+        boolean joined = false;
+        try {
+            this.channel = raf.getChannel();
+            synchronized (monitor) {
+                FileLock lock = channel.lock();
+                try {
+                    if (channel.size() < FILE_SIZE) {
+                        raf.setLength(FILE_SIZE);
+                    }
+                    state = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+                    if (state.getInt(0) != MAGIC) {
+                        initialize(permitsPerSecond, burst, maxInFlight);
+                    } else if (state.getInt(4) != VERSION) {
+                        throw new IOException("Unsupported rate limiter state version " + state.getInt(4) + " in " + file);
+                    } else if (state.getDouble(RATE) != permitsPerSecond || state.getInt(BURST) != burst
+                            || state.getInt(MAX_IN_FLIGHT) != maxInFlight) {
+                        log.warn("Using the limits already in " + file + ": " + state.getDouble(RATE)
+                                + " calls/s, burst " + state.getInt(BURST) + ", " + state.getInt(MAX_IN_FLIGHT)
+                                + " in flight");
+                    }
+                    long now = System.currentTimeMillis();
+                    reclaim(now);
+                    join(now);
+                } finally {
+                    lock.release();
+                }
+            }
+            heartbeat = getHeartbeatTimer().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        heartbeat();
+                    } catch (IOException e) {
+                        log.warn("Could not renew the lease in " + SharedRateLimiter.this.file + ": " + e.getMessage());
+                    }
+                }
+            }, leaseTimeout / 3, leaseTimeout / 3, TimeUnit.MILLISECONDS);
+            joined = true;
+        } finally {
+            if (!joined) {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Take a token and an in-flight place, waiting until both are available or the
+     * timeout passes.  Every successful call must be followed by {@link #release()}.
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return true if a permit was taken, false if the timeout passed first
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * @throws IOException if the state file cannot be locked
+     */
+    public boolean tryAcquire(long timeout, TimeUnit unit) throws InterruptedException, IOException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            long wait = attempt();
+            if (wait == 0) {
+                return true;
+            }
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            Thread.sleep(Math.max(1, Math.min(wait, Math.min(remaining, MAX_POLL_MILLIS))));
+        }
+    }
+
+    /**
+     * Give back the in-flight place taken by a successful {@link #tryAcquire}.
+     * @throws IOException if the state file cannot be locked
+     */
+    public void release() throws IOException {
+        synchronized (monitor) {
+            if (closed || localInFlight == 0) {
+                return;
+            }
+            FileLock lock = channel.lock();
+            try {
+                localInFlight--;
+                long now = System.currentTimeMillis();
+                if (ownsSlot()) {
+                    state.putInt(slotOffset(slot) + IN_FLIGHT, localInFlight);
+                    state.putLong(slotOffset(slot) + HEARTBEAT, now);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * @return the number of calls in flight across all participants
+     * @throws IOException if the state file cannot be locked
+     */
+    public int getInFlight() throws IOException {
+        synchronized (monitor) {
+            FileLock lock = channel.lock();
+            try {
+                return totalInFlight();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * @return the number of calls in flight from this participant
+     */
+    public int getLocalInFlight() {
+        synchronized (monitor) {
+            return localInFlight;
+        }
+    }
+
+    /**
+     * @return the calls per second allowed across all participants, as held in the file
+     */
+    public double getPermitsPerSecond() {
+        return state.getDouble(RATE);
+    }
+
+    /**
+     * @return the number of live participants when this one last updated the state
+     */
+    public int getParticipantCount() {
+        return participants;
+    }
+
+    /**
+     * @return this participant's position, from 0, among the live participants
+     *          in the order they joined, when it last updated the state
+     */
+    public int getParticipantIndex() {
+        return participantIndex;
+    }
+
+    /**
+     * Decide whether a unit of work belongs to this participant, by hashing its
+     * key over the live participants.  While a process joins or leaves, until the
+     * next heartbeat, a key may briefly belong to two participants or to none, so
+     * the work should be safe to repeat.
+     * @param key a key identifying the unit of work, such as an identifier
+     * @return true if this participant should do the work
+     */
+    public boolean isAssigned(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % participants == participantIndex;
+    }
+
+    /**
+     * Leave the limiter, giving up this participant's slot and any calls it still
+     * has in flight.
+     * @throws IOException if the state file cannot be updated
+     */
+    public void close() throws IOException {
+        heartbeat.cancel(false);
+        synchronized (monitor) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                FileLock lock = channel.lock();
+                try {
+                    if (ownsSlot()) {
+                        clearSlot(slot);
+                    }
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Try to take a permit.
+     * @return 0 if a permit was taken, or the time in milliseconds to wait before trying again
+     */
+    private long attempt() throws IOException {
+        synchronized (monitor) {
+            if (closed) {
+                throw new IOException("The rate limiter for " + file + " is closed.");
+            }
+            FileLock lock = channel.lock();
+            try {
+                long now = System.currentTimeMillis();
+                reclaim(now);
+                if (!ownsSlot()) {
+                    join(now);
+                }
+                int base = slotOffset(slot);
+                state.putLong(base + HEARTBEAT, now);
+                countParticipants();
+                long tokens = refill(now);
+                if (totalInFlight() >= state.getInt(MAX_IN_FLIGHT)) {
+                    // a release will make room; poll for it
+                    return MAX_POLL_MILLIS / 5;
+                }
+                if (tokens < MICROS) {
+                    double microsPerMilli = state.getDouble(RATE) * 1000;
+                    return (long) Math.ceil((MICROS - tokens) / microsPerMilli);
+                }
+                state.putLong(TOKENS, tokens - MICROS);
+                localInFlight++;
+                state.putInt(base + IN_FLIGHT, localInFlight);
+                return 0;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private void heartbeat() throws IOException {
+        synchronized (monitor) {
+            if (closed) {
+                return;
+            }
+            FileLock lock = channel.lock();
+            try {
+                long now = System.currentTimeMillis();
+                reclaim(now);
+                if (ownsSlot()) {
+                    state.putLong(slotOffset(slot) + HEARTBEAT, now);
+                } else {
+                    join(now);
+                }
+                countParticipants();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private void initialize(double permitsPerSecond, int burst, int maxInFlight) {
+        for (int i = 0; i < FILE_SIZE; i++) {
+            state.put(i, (byte) 0);
+        }
+        state.putInt(4, VERSION);
+        state.putDouble(RATE, permitsPerSecond);
+        state.putInt(BURST, burst);
+        state.putInt(MAX_IN_FLIGHT, maxInFlight);
+        state.putLong(TOKENS, burst * MICROS);
+        state.putLong(REFILLED, System.currentTimeMillis());
+        state.putLong(NEXT_OWNER, 1);
+        // written last, so a half-initialized file is initialized again
+        state.putInt(0, MAGIC);
+    }
+
+    /**
+     * Add the tokens accrued since the last refill, up to the burst size.
+     * @return the tokens now in the bucket, in millionths of a token
+     */
+    private long refill(long now) {
+        long elapsed = Math.max(0, now - state.getLong(REFILLED));
+        long capacity = state.getInt(BURST) * MICROS;
+        long tokens = state.getLong(TOKENS);
+        if (elapsed > 0) {
+            tokens = (long) Math.min(capacity, tokens + elapsed * state.getDouble(RATE) * 1000);
+            state.putLong(TOKENS, tokens);
+            state.putLong(REFILLED, now);
+        }
+        return tokens;
+    }
+
+    /**
+     * Take a free slot, carrying over the calls this participant still has in flight
+     * if its previous slot was reclaimed while it was paused.
+     */
+    private void join(long now) throws IOException {
+        for (int i = 0; i < MAX_PARTICIPANTS; i++) {
+            int base = slotOffset(i);
+            if (state.getLong(base + OWNER) == 0) {
+                owner = state.getLong(NEXT_OWNER);
+                state.putLong(NEXT_OWNER, owner + 1);
+                state.putLong(base + OWNER, owner);
+                state.putLong(base + HEARTBEAT, now);
+                state.putInt(base + IN_FLIGHT, localInFlight);
+                slot = i;
+                countParticipants();
+                return;
+            }
+        }
+        throw new IOException("All " + MAX_PARTICIPANTS + " participant slots in " + file + " are taken.");
+    }
+
+    /**
+     * Free the slots of participants whose heartbeat is older than the lease timeout.
+     */
+    private void reclaim(long now) {
+        for (int i = 0; i < MAX_PARTICIPANTS; i++) {
+            int base = slotOffset(i);
+            long slotOwner = state.getLong(base + OWNER);
+            if (slotOwner != 0 && !(i == slot && slotOwner == owner)
+                    && now - state.getLong(base + HEARTBEAT) > leaseTimeout) {
+                log.info("Reclaiming " + state.getInt(base + IN_FLIGHT) + " calls in flight from a participant in "
+                        + file + " that has not renewed its lease.");
+                clearSlot(i);
+            }
+        }
+    }
+
+    private void countParticipants() {
+        int count = 0;
+        int index = 0;
+        for (int i = 0; i < MAX_PARTICIPANTS; i++) {
+            long slotOwner = state.getLong(slotOffset(i) + OWNER);
+            if (slotOwner != 0) {
+                count++;
+                if (slotOwner < owner) {
+                    index++;
+                }
+            }
+        }
+        participants = Math.max(1, count);
+        participantIndex = index;
+    }
+
+    private int totalInFlight() {
+        int total = 0;
+        for (int i = 0; i < MAX_PARTICIPANTS; i++) {
+            int base = slotOffset(i);
+            if (state.getLong(base + OWNER) != 0) {
+                total += state.getInt(base + IN_FLIGHT);
+            }
+        }
+        return total;
+    }
+
+    private boolean ownsSlot() {
+        return slot >= 0 && state.getLong(slotOffset(slot) + OWNER) == owner;
+    }
+
+    private void clearSlot(int i) {
+        int base = slotOffset(i);
+        state.putLong(base + OWNER, 0);
+        state.putLong(base + HEARTBEAT, 0);
+        state.putInt(base + IN_FLIGHT, 0);
+    }
+
+    private static int slotOffset(int i) {
+        return HEADER_SIZE + i * SLOT_SIZE;
+    }
+
+    private static synchronized ScheduledExecutorService getHeartbeatTimer() {
+        if (heartbeatTimer == null) {
+            heartbeatTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ezid-rate-limit-heartbeat");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return heartbeatTimer;
+    }
+}
@@ -0,0 +1,292 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * A ShoulderAuthorizer checks identifiers locally before they are sent to EZID,
+ * so that requests EZID would certainly reject fail at once on the caller's thread
+ * instead of costing a round trip and a worker.  Two checks are made:
+ * <ul>
+ * <li>syntax: the identifier must be a well formed doi:, ark:/ or urn: identifier
+ *     without whitespace or control characters;</li>
+ * <li>authorization: a new identifier, or the shoulder passed to mint, must start
+ *     with one of the account's shoulders.</li>
+ * </ul>
+ * The shoulders are compiled into an immutable prefix trie, so a check costs one
+ * pass over the identifier regardless of how many shoulders the account has.  DOI
+ * shoulders and identifiers are compared case-insensitively, as DOIs are; ARKs and
+ * URNs are compared exactly.  An authorizer with no shoulders checks syntax only.
+ * The counts of accepted and rejected identifiers are kept for reporting.
+ */
+public class ShoulderAuthorizer {
+
+    private static final Pattern DOI = Pattern.compile("doi:10\\.[0-9]{4,}(\\.[0-9]+)*/\\S+");
+    private static final Pattern ARK = Pattern.compile("ark:/[0-9bcdfghjkmnpqrstvwxz]{5,}/\\S+");
+    private static final Pattern URN = Pattern.compile("urn:[A-Za-z0-9][A-Za-z0-9-]{1,31}:\\S+");
+
+    private final Node root;
+    private final boolean checkShoulders;
+    private final List<String> shoulders;
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong rejectedSyntax = new AtomicLong();
+    private final AtomicLong rejectedShoulder = new AtomicLong();
+
+    /**
+     * Compile an authorizer for the given shoulders, such as "doi:10.5072/FK2" and
+     * "ark:/99999/fk4".
+     * @param shoulders the shoulders the account may create identifiers under
+     */
+    public ShoulderAuthorizer(Collection<String> shoulders) {
+        this.shoulders = new ArrayList<String>();
+        Builder trie = new Builder();
+        for (String shoulder : shoulders) {
+            if (shoulder == null || shoulder.isEmpty()) {
+                throw new IllegalArgumentException("Shoulders must not be empty.");
+            }
+            this.shoulders.add(shoulder);
+            trie.add(normalize(shoulder));
+        }
+        this.root = trie.compile();
+        this.checkShoulders = !this.shoulders.isEmpty();
+    }
+
+    /**
+     * Compile an authorizer for the given shoulders.
+     * @param shoulders the shoulders the account may create identifiers under
+     */
+    public ShoulderAuthorizer(String... shoulders) {
+        this(Arrays.asList(shoulders));
+    }
+
+    /**
+     * Check an identifier that is about to be created.
+     * @param identifier the identifier
+     * @return null if the identifier is acceptable, otherwise the reason it is not
+     */
+    public String checkCreate(String identifier) {
+        String reason = syntaxError(identifier);
+        if (reason != null) {
+            rejectedSyntax.incrementAndGet();
+            return reason;
+        }
+        if (checkShoulders && !matches(normalize(identifier))) {
+            rejectedShoulder.incrementAndGet();
+            return "identifier is not under an authorized shoulder: " + identifier;
+        }
+        accepted.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Check the shoulder passed to a mint request.
+     * @param shoulder the shoulder to mint under
+     * @return null if the shoulder is acceptable, otherwise the reason it is not
+     */
+    public String checkMint(String shoulder) {
+        if (shoulder == null || scheme(shoulder) == null || hasBadCharacter(shoulder)) {
+            rejectedSyntax.incrementAndGet();
+            return "malformed shoulder: " + shoulder;
+        }
+        if (checkShoulders && !matches(normalize(shoulder))) {
+            rejectedShoulder.incrementAndGet();
+            return "shoulder is not authorized: " + shoulder;
+        }
+        accepted.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Check the syntax of an existing identifier that is about to be updated or deleted.
+     * @param identifier the identifier
+     * @return null if the identifier is well formed, otherwise the reason it is not
+     */
+    public String checkExisting(String identifier) {
+        String reason = syntaxError(identifier);
+        if (reason != null) {
+            rejectedSyntax.incrementAndGet();
+            return reason;
+        }
+        accepted.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return the shoulders this authorizer was compiled from
+     */
+    public List<String> getShoulders() {
+        return new ArrayList<String>(shoulders);
+    }
+
+    /**
+     * @return the number of identifiers and shoulders that passed the checks
+     */
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+    /**
+     * @return the number rejected because they were malformed
+     */
+    public long getRejectedSyntaxCount() {
+        return rejectedSyntax.get();
+    }
+
+    /**
+     * @return the number rejected because they were outside the authorized shoulders
+     */
+    public long getRejectedShoulderCount() {
+        return rejectedShoulder.get();
+    }
+
+    /**
+     * @return the total number rejected
+     */
+    public long getRejectedCount() {
+        return rejectedSyntax.get() + rejectedShoulder.get();
+    }
+
+    private static String syntaxError(String identifier) {
+        if (identifier == null || identifier.isEmpty()) {
+            return "identifier must not be empty";
+        }
+        if (hasBadCharacter(identifier)) {
+            return "identifier contains whitespace or control characters: " + identifier;
+        }
+        String scheme = scheme(identifier);
+        Pattern pattern = scheme == null ? null : scheme.equals("doi") ? DOI : scheme.equals("ark") ? ARK : URN;
+        if (pattern == null) {
+            return "identifier must start with doi:, ark:/ or urn: " + identifier;
+        }
+        String normalized = scheme + identifier.substring(scheme.length());
+        if (!pattern.matcher(normalized).matches()) {
+            return "malformed " + scheme + " identifier: " + identifier;
+        }
+        return null;
+    }
+
+    private static String scheme(String identifier) {
+        int colon = identifier.indexOf(':');
+        if (colon < 0) {
+            return null;
+        }
+        String scheme = identifier.substring(0, colon).toLowerCase(Locale.ROOT);
+        return scheme.equals("doi") || scheme.equals("ark") || scheme.equals("urn") ? scheme : null;
+    }
+
+    private static boolean hasBadCharacter(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c) || Character.isISOControl(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Normalize for comparison: schemes are lower case, and DOIs upper case after
+     * the scheme, since DOIs are case-insensitive.
+     */
+    private static String normalize(String identifier) {
+        String scheme = scheme(identifier);
+        if (scheme == null) {
+            return identifier;
+        }
+        String rest = identifier.substring(scheme.length());
+        return scheme + (scheme.equals("doi") ? rest.toUpperCase(Locale.ROOT) : rest);
+    }
+
+    /**
+     * @return true if some shoulder in the trie is a prefix of the identifier
+     */
+    private boolean matches(String identifier) {
+        Node node = root;
+        for (int i = 0; ; i++) {
+            if (node.terminal) {
+                return true;
+            }
+            if (i == identifier.length()) {
+                return false;
+            }
+            node = node.child(identifier.charAt(i));
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    /** A compiled trie node with its children in sorted arrays for binary search. */
+    private static class Node {
+        final boolean terminal;
+        final char[] labels;
+        final Node[] children;
+
+        Node(boolean terminal, char[] labels, Node[] children) {
+            this.terminal = terminal;
+            this.labels = labels;
+            this.children = children;
+        }
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(labels, c);
+            return i < 0 ? null : children[i];
+        }
+    }
+
+    /** A mutable trie that is compiled into Nodes once all shoulders are added. */
+    private static class Builder {
+        boolean terminal = false;
+        final TreeMap<Character, Builder> children = new TreeMap<Character, Builder>();
+
+        void add(String shoulder) {
+            Builder node = this;
+            for (int i = 0; i < shoulder.length(); i++) {
+                Builder next = node.children.get(shoulder.charAt(i));
+                if (next == null) {
+                    next = new Builder();
+                    node.children.put(shoulder.charAt(i), next);
+                }
+                node = next;
+            }
+            node.terminal = true;
+        }
+
+        Node compile() {
+            char[] labels = new char[children.size()];
+            Node[] compiled = new Node[children.size()];
+            int i = 0;
+            for (Character c : children.keySet()) {
+                labels[i] = c;
+                compiled[i] = children.get(c).compile();
+                i++;
+            }
+            return new Node(terminal, labels, compiled);
+        }
+    }
+}
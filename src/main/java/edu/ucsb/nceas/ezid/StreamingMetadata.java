@@ -0,0 +1,154 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Metadata whose values may be streamed from files or other sources when the
+ * request is sent, instead of being held in memory as Strings.  A multi-megabyte
+ * DataCite document can be added as a Path and is read, ANVL-escaped and written
+ * to the connection a few kilobytes at a time, so sending it costs no more heap
+ * than sending a short value.  Small values can be mixed in as Strings.
+ *
+ * Streamed values must be UTF-8.  Each source is opened when the request body is
+ * written, and again if the body has to be written more than once.
+ *
+ * @see EZIDService#createIdentifierStreaming(String, StreamingMetadata)
+ */
+public class StreamingMetadata {
+
+    /**
+     * A source of a metadata value that can be opened each time the value is sent.
+     */
+    public interface ValueSource {
+        /**
+         * @return a new stream of the UTF-8 value, which the caller closes
+         * @throws IOException if the value cannot be read
+         */
+        InputStream open() throws IOException;
+    }
+
+    private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+
+    /**
+     * Add a value held in memory.
+     * @param name the metadata element name
+     * @param value the value
+     * @return this metadata, for chaining
+     */
+    public StreamingMetadata put(String name, String value) {
+        values.put(name, value);
+        return this;
+    }
+
+    /**
+     * Add a value read from a file when the request is sent.
+     * @param name the metadata element name
+     * @param file the UTF-8 file holding the value
+     * @return this metadata, for chaining
+     */
+    public StreamingMetadata put(String name, Path file) {
+        values.put(name, file);
+        return this;
+    }
+
+    /**
+     * Add a value read from a source when the request is sent.
+     * @param name the metadata element name
+     * @param source the source of the UTF-8 value
+     * @return this metadata, for chaining
+     */
+    public StreamingMetadata put(String name, ValueSource source) {
+        values.put(name, source);
+        return this;
+    }
+
+    /**
+     * @return the number of elements
+     */
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * @return the elements whose values are held in memory, such as "_target" and
+     *          "_status", as the identifier registry records them
+     */
+    public HashMap<String, String> getStringValues() {
+        HashMap<String, String> strings = new HashMap<String, String>();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getValue() instanceof String) {
+                strings.put(entry.getKey(), (String) entry.getValue());
+            }
+        }
+        return strings;
+    }
+
+    /**
+     * Estimate the unescaped size of the body in bytes, counting String values and
+     * files but not other sources.
+     * @return the estimated size
+     */
+    public long estimateSize() {
+        long size = 0;
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            size += entry.getKey().length() + 3;
+            Object value = entry.getValue();
+            if (value instanceof String) {
+                size += ((String) value).length();
+            } else if (value instanceof Path) {
+                try {
+                    size += Files.size((Path) value);
+                } catch (IOException e) {
+                    // the error is reported when the file is sent
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the elements in the order they were added; values are String, Path or ValueSource
+     */
+    Map<String, Object> entries() {
+        return values;
+    }
+
+    /**
+     * Open a value for streaming.
+     */
+    static InputStream open(Object value) throws IOException {
+        if (value instanceof Path) {
+            return Files.newInputStream((Path) value);
+        } else if (value instanceof ValueSource) {
+            return ((ValueSource) value).open();
+        }
+        return new ByteArrayInputStream(((String) value).getBytes(StandardCharsets.UTF_8));
+    }
+}
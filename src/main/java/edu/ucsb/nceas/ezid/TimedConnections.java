@@ -0,0 +1,164 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import org.apache.http.HttpHost;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+
+/**
+ * Creates connection pools whose host name resolution, TCP connects and TLS
+ * handshakes are timed for the CallTrace of the request that opens the
+ * connection.  The socket factories find the trace in the request's HttpContext;
+ * the DnsResolver is not given the context, so the trace of the calling thread's
+ * request is bound for it while the request executes.  Requests without a trace
+ * go through unchanged.
+ */
+final class TimedConnections {
+
+    private static final ThreadLocal<CallTrace> CURRENT = new ThreadLocal<CallTrace>();
+
+    private TimedConnections() {
+    }
+
+    /**
+     * @return a pool with the default http and https socket factories and DNS
+     *          resolver, timed for traced requests
+     */
+    static PoolingHttpClientConnectionManager createConnectionManager() {
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", new TimedPlainSocketFactory())
+                .register("https", new TimedSSLSocketFactory())
+                .build();
+        return new PoolingHttpClientConnectionManager(registry, new TimedDnsResolver());
+    }
+
+    /**
+     * Bind the trace of the request the calling thread is about to execute.
+     * @param trace the trace, or null to unbind
+     */
+    static void bind(CallTrace trace) {
+        if (trace == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(trace);
+        }
+    }
+
+    private static CallTrace trace(HttpContext context) {
+        return context == null ? null : (CallTrace) context.getAttribute(CallTrace.ATTRIBUTE);
+    }
+
+    private static class TimedDnsResolver implements DnsResolver {
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            CallTrace trace = CURRENT.get();
+            if (trace == null) {
+                return SystemDefaultDnsResolver.INSTANCE.resolve(host);
+            }
+            long start = System.nanoTime();
+            try {
+                return SystemDefaultDnsResolver.INSTANCE.resolve(host);
+            } finally {
+                trace.resolved(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static class TimedPlainSocketFactory extends PlainConnectionSocketFactory {
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host,
+                InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context)
+                throws IOException {
+            CallTrace trace = trace(context);
+            if (trace == null) {
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            }
+            long start = System.nanoTime();
+            try {
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            } finally {
+                trace.connected(System.nanoTime() - start, 0);
+            }
+        }
+    }
+
+    /**
+     * Times the TCP connect and the handshake separately.  The handshake runs in
+     * createLayeredSocket, which connectSocket calls for a direct connection and
+     * the pool calls on its own when tunnelling through a proxy.
+     */
+    private static class TimedSSLSocketFactory extends SSLConnectionSocketFactory {
+        private final ThreadLocal<long[]> handshake = new ThreadLocal<long[]>() {
+            protected long[] initialValue() {
+                return new long[1];
+            }
+        };
+
+        TimedSSLSocketFactory() {
+            super(SSLContexts.createDefault(), getDefaultHostnameVerifier());
+        }
+
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host,
+                InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context)
+                throws IOException {
+            CallTrace trace = trace(context);
+            if (trace == null) {
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            }
+            long[] tls = handshake.get();
+            tls[0] = 0;
+            long start = System.nanoTime();
+            try {
+                return super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            } finally {
+                trace.connected(System.nanoTime() - start - tls[0], 0);
+            }
+        }
+
+        public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+                throws IOException {
+            CallTrace trace = trace(context);
+            if (trace == null) {
+                return super.createLayeredSocket(socket, target, port, context);
+            }
+            long start = System.nanoTime();
+            try {
+                return super.createLayeredSocket(socket, target, port, context);
+            } finally {
+                long nanos = System.nanoTime() - start;
+                handshake.get()[0] += nanos;
+                trace.connected(0, nanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+/**
+ * A problem found in an identifier's metadata by a {@link MetadataValidator},
+ * naming the element at fault and the kind of problem so that callers can
+ * report or correct it without parsing the message.
+ */
+public class ValidationError {
+
+    /**
+     * The kinds of problem a MetadataValidator reports.
+     */
+    public enum Kind {
+        /** a field the profile requires is absent or empty */
+        MISSING,
+        /** a value is not one of the values the profile allows */
+        INVALID_VALUE,
+        /** a value starts with "(:" but is not a known ERC missing value code */
+        INVALID_MISSING_CODE,
+        /** an internal field that only EZID may set was supplied */
+        READ_ONLY,
+        /** the DataCite XML document could not be parsed */
+        MALFORMED_XML
+    }
+
+    private final String field;
+    private final Kind kind;
+    private final String message;
+
+    public ValidationError(String field, Kind kind, String message) {
+        this.field = field;
+        this.kind = kind;
+        this.message = message;
+    }
+
+    /**
+     * @return the metadata element at fault, such as "datacite.title", or the XML
+     *          element within the "datacite" document, such as "datacite/publisher"
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return the kind of problem
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return a description of the problem
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return field + ": " + message;
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid;
+
+import java.io.PrintStream;
+
+/**
+ * The timings of an EZIDService warm-up: how long the host name took to resolve,
+ * how long the first request took on a new connection (cold) and on a pooled
+ * connection afterwards (warm), how many connections were opened, and how long
+ * login took.  A cold first request costs the DNS time plus the cold request time.
+ */
+public class WarmupReport {
+
+    private final long dnsMicros;
+    private final long coldRequestMicros;
+    private final long warmRequestMicros;
+    private final int connectionsOpened;
+    private final long loginMicros;
+    private final long totalMicros;
+    private final String loginError;
+
+    WarmupReport(long dnsMicros, long coldRequestMicros, long warmRequestMicros, int connectionsOpened,
+            long loginMicros, long totalMicros, String loginError) {
+        this.dnsMicros = dnsMicros;
+        this.coldRequestMicros = coldRequestMicros;
+        this.warmRequestMicros = warmRequestMicros;
+        this.connectionsOpened = connectionsOpened;
+        this.loginMicros = loginMicros;
+        this.totalMicros = totalMicros;
+        this.loginError = loginError;
+    }
+
+    /**
+     * @return the time taken to resolve the service host, in microseconds
+     */
+    public long getDnsMicros() {
+        return dnsMicros;
+    }
+
+    /**
+     * @return the latency of a request on a newly opened connection, including the
+     *          TCP connect and TLS handshake, in microseconds
+     */
+    public long getColdRequestMicros() {
+        return coldRequestMicros;
+    }
+
+    /**
+     * @return the latency of the same request on a warm pooled connection, in microseconds
+     */
+    public long getWarmRequestMicros() {
+        return warmRequestMicros;
+    }
+
+    /**
+     * @return the number of connections opened, or found open, and left in the pool
+     */
+    public int getConnectionsOpened() {
+        return connectionsOpened;
+    }
+
+    /**
+     * @return the time taken to log in, in microseconds, or zero if no login was made
+     */
+    public long getLoginMicros() {
+        return loginMicros;
+    }
+
+    /**
+     * @return the wall-clock time of the whole warm-up, in microseconds
+     */
+    public long getTotalMicros() {
+        return totalMicros;
+    }
+
+    /**
+     * @return true unless a login was attempted and failed
+     */
+    public boolean isLoggedIn() {
+        return loginError == null;
+    }
+
+    /**
+     * @return the reason the login failed, or null
+     */
+    public String getLoginError() {
+        return loginError;
+    }
+
+    /**
+     * Print the report.
+     * @param out the stream to print to
+     */
+    public void print(PrintStream out) {
+        out.println(toString());
+    }
+
+    public String toString() {
+        return String.format("EZID warm-up: dns=%.3fms cold first request=%.3fms warm request=%.3fms "
+                + "connections=%d login=%.3fms%s total=%.3fms",
+                dnsMicros / 1000.0, (dnsMicros + coldRequestMicros) / 1000.0, warmRequestMicros / 1000.0,
+                connectionsOpened, loginMicros / 1000.0, loginError == null ? "" : " (failed: " + loginError + ")",
+                totalMicros / 1000.0);
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.cli;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.ucsb.nceas.ezid.ANVL;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+
+/**
+ * A command-line client for EZID, for scripts that need one-off mint, create, get,
+ * set and delete calls, or a batch of them read from standard input.
+ * <pre>
+ * ezid [--url URL] [--user USER] [--password PASSWORD] COMMAND ...
+ *   mint SHOULDER [NAME=VALUE ...]
+ *   create IDENTIFIER [NAME=VALUE ...]
+ *   get IDENTIFIER
+ *   set IDENTIFIER NAME=VALUE ...
+ *   delete IDENTIFIER
+ *   batch
+ * </pre>
+ * A single "-" in place of the metadata reads it as ANVL from standard input.  The
+ * URL and credentials may also be given with the EZID_URL, EZID_USER and
+ * EZID_PASSWORD environment variables, which keeps the password off the command
+ * line; without a user no login is made, which is enough for get.
+ *
+ * <p>In batch mode standard input holds records separated by blank lines.  The first
+ * line of a record names the command and its identifier or shoulder as an ANVL
+ * pair, such as "create: doi:10.5072/FK2/X", and the remaining lines are the
+ * metadata.  One result is written per record, in order: "success: IDENTIFIER",
+ * followed for get by the metadata and a blank line, or "error: COMMAND IDENTIFIER:
+ * MESSAGE".</p>
+ *
+ * <p>The exit status is 0 if every command succeeded, 1 if any failed and 2 for a
+ * usage error.  Logging goes to standard error through commons-logging's SimpleLog
+ * at warn level unless another Log implementation is configured, which also skips
+ * the reflective discovery of a logging framework at startup.  The client makes no
+ * other reflective calls, so it can be compiled ahead of time with the "native"
+ * Maven profile.</p>
+ */
+public class EZIDCommandLine {
+
+    private static final String LOG_PROPERTY = "org.apache.commons.logging.Log";
+
+    private final PrintStream out;
+    private final PrintStream err;
+    private final InputStream in;
+
+    /**
+     * Create a command line reading and writing the given streams.
+     * @param in the standard input, for batch mode and "-" metadata
+     * @param out the standard output, for results
+     * @param err the standard error, for errors and usage
+     */
+    public EZIDCommandLine(InputStream in, PrintStream out, PrintStream err) {
+        this.in = in;
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args) {
+        if (System.getProperty(LOG_PROPERTY) == null) {
+            System.setProperty(LOG_PROPERTY, "org.apache.commons.logging.impl.SimpleLog");
+            System.setProperty("org.apache.commons.logging.simplelog.defaultlog", "warn");
+        }
+        System.exit(new EZIDCommandLine(System.in, System.out, System.err).run(args));
+    }
+
+    /**
+     * Run one command line.
+     * @param args the arguments, as given to main
+     * @return the exit status
+     */
+    public int run(String[] args) {
+        Map<String, String> opts = new HashMap<String, String>();
+        opts.put("url", System.getenv("EZID_URL"));
+        opts.put("user", System.getenv("EZID_USER"));
+        opts.put("password", System.getenv("EZID_PASSWORD"));
+        int i = 0;
+        while (i < args.length && args[i].startsWith("--")) {
+            String name = args[i].substring(2);
+            if (!opts.containsKey(name) || i + 1 >= args.length) {
+                return usage("Unrecognized option: " + args[i]);
+            }
+            opts.put(name, args[i + 1]);
+            i += 2;
+        }
+        if (i >= args.length) {
+            return usage(null);
+        }
+        String command = args[i++];
+        List<String> rest = new ArrayList<String>();
+        while (i < args.length) {
+            rest.add(args[i++]);
+        }
+        if (!command.equals("batch") && rest.isEmpty()) {
+            return usage(command + " needs an identifier or shoulder.");
+        }
+
+        EZIDService ezid = new EZIDService(opts.get("url"));
+        try {
+            if (opts.get("user") != null) {
+                ezid.login(opts.get("user"), opts.get("password"));
+            }
+            if (command.equals("batch")) {
+                return batch(ezid);
+            }
+            HashMap<String, String> metadata = metadataArguments(rest.subList(1, rest.size()));
+            if (metadata == null) {
+                return usage("Metadata must be given as NAME=VALUE or -.");
+            }
+            execute(ezid, command, rest.get(0), metadata);
+            return 0;
+        } catch (IllegalArgumentException e) {
+            return usage(e.getMessage());
+        } catch (EZIDException e) {
+            err.println("error: " + e.getMessage());
+            return 1;
+        } catch (IOException e) {
+            err.println("error: " + e.getMessage());
+            return 1;
+        } finally {
+            out.flush();
+        }
+    }
+
+    /**
+     * Run the records of a batch from standard input, continuing past failures.
+     */
+    private int batch(EZIDService ezid) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        int status = 0;
+        List<String> record = new ArrayList<String>();
+        String line;
+        do {
+            line = reader.readLine();
+            if (line != null && !line.trim().isEmpty()) {
+                record.add(line);
+                continue;
+            }
+            if (record.isEmpty()) {
+                continue;
+            }
+            String[] head = record.get(0).split(":", 2);
+            String command = ANVL.unescape(head[0]).trim();
+            String id = head.length == 2 ? ANVL.unescape(head[1]).trim() : "";
+            StringBuilder anvl = new StringBuilder();
+            for (String l : record.subList(1, record.size())) {
+                anvl.append(l).append('\n');
+            }
+            record.clear();
+            try {
+                execute(ezid, command, id, ANVL.parse(anvl.toString()));
+            } catch (EZIDException e) {
+                out.println("error: " + command + " " + id + ": " + e.getMessage());
+                status = 1;
+            } catch (IllegalArgumentException e) {
+                out.println("error: " + command + " " + id + ": " + e.getMessage());
+                status = 1;
+            }
+        } while (line != null);
+        return status;
+    }
+
+    /**
+     * Run one command and write its result.
+     */
+    private void execute(EZIDService ezid, String command, String id, HashMap<String, String> metadata)
+            throws EZIDException {
+        if (id.isEmpty()) {
+            throw new IllegalArgumentException(command + " needs an identifier or shoulder.");
+        }
+        HashMap<String, String> md = metadata.isEmpty() ? null : metadata;
+        if (command.equals("mint")) {
+            out.println("success: " + ezid.mintIdentifier(id, md));
+        } else if (command.equals("create")) {
+            out.println("success: " + ezid.createIdentifier(id, md));
+        } else if (command.equals("get")) {
+            HashMap<String, String> result = ezid.getMetadata(id);
+            out.println("success: " + id);
+            out.print(ANVL.serialize(new TreeMap<String, String>(result)));
+            out.println();
+        } else if (command.equals("set")) {
+            if (md == null) {
+                throw new IllegalArgumentException("set needs metadata.");
+            }
+            ezid.setMetadata(id, md);
+            out.println("success: " + id);
+        } else if (command.equals("delete")) {
+            ezid.deleteIdentifier(id);
+            out.println("success: " + id);
+        } else {
+            throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+
+    /**
+     * @return the metadata given as NAME=VALUE arguments or as ANVL on standard
+     *          input for "-", or null if an argument is malformed
+     */
+    private HashMap<String, String> metadataArguments(List<String> args) throws IOException {
+        if (args.size() == 1 && args.get(0).equals("-")) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            StringBuilder anvl = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                anvl.append(line).append('\n');
+            }
+            return ANVL.parse(anvl.toString());
+        }
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                return null;
+            }
+            metadata.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        return metadata;
+    }
+
+    private int usage(String message) {
+        if (message != null) {
+            err.println(message);
+        }
+        err.println("Usage: ezid [--url URL] [--user USER] [--password PASSWORD] COMMAND ...");
+        err.println("  mint SHOULDER [NAME=VALUE ... | -]");
+        err.println("  create IDENTIFIER [NAME=VALUE ... | -]");
+        err.println("  get IDENTIFIER");
+        err.println("  set IDENTIFIER NAME=VALUE ... | -");
+        err.println("  delete IDENTIFIER");
+        err.println("  batch < records");
+        return 2;
+    }
+}
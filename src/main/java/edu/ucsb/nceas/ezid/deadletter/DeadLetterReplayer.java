@@ -0,0 +1,198 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.deadletter;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.ezid.DeadLetter;
+import edu.ucsb.nceas.ezid.EZIDClient;
+import edu.ucsb.nceas.ezid.EZIDServiceRequest;
+
+/**
+ * A DeadLetterReplayer resubmits dead letters through an EZIDClient at a fixed
+ * rate, in their original priority lanes and with their original fairness keys,
+ * so that a backlog of failures can be retried without flooding EZID.  Letters
+ * can be selected by position, identifier prefix, method and error text.  Requests
+ * that fail again are recorded by the client's own DeadLetterSink, if it has one.
+ *
+ * It can be run from the command line with:
+ * <pre>
+ *   java edu.ucsb.nceas.ezid.deadletter.DeadLetterReplayer --file failed.anvl
+ *       [--url baseUrl] [--user apitest] [--password apitest] [--rate 5]
+ *       [--entries 1,4,7] [--prefix doi:10.5072/FK2] [--method create]
+ *       [--error "no such identifier"] [--failed refailed.anvl] [--dry-run]
+ * </pre>
+ */
+public class DeadLetterReplayer {
+
+    private final EZIDClient client;
+    private final double ratePerSecond;
+
+    protected static Log log = LogFactory.getLog(DeadLetterReplayer.class);
+
+    /**
+     * @param client the client to resubmit requests through
+     * @param ratePerSecond the rate at which requests are submitted
+     */
+    public DeadLetterReplayer(EZIDClient client, double ratePerSecond) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive.");
+        }
+        this.client = client;
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    /**
+     * Select dead letters.  A null or empty criterion matches every letter.
+     * @param letters the letters to select from, in file order
+     * @param entries 1-based positions of the letters to select
+     * @param prefix an identifier prefix
+     * @param method a method name such as "create"
+     * @param errorText text that the final error must contain
+     * @return the selected letters, in their original order
+     */
+    public static List<DeadLetter> select(List<DeadLetter> letters, Set<Integer> entries, String prefix,
+            String method, String errorText) {
+        int code = method == null || method.isEmpty() ? 0 : FileDeadLetterSink.methodCode(method);
+        List<DeadLetter> selected = new ArrayList<DeadLetter>();
+        for (int i = 0; i < letters.size(); i++) {
+            DeadLetter letter = letters.get(i);
+            if ((entries == null || entries.isEmpty() || entries.contains(i + 1))
+                    && (prefix == null || letter.getIdentifier().startsWith(prefix))
+                    && (code == 0 || letter.getMethod() == code)
+                    && (errorText == null || letter.getError().contains(errorText))) {
+                selected.add(letter);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Queue the given letters on the client, pacing submissions at the configured
+     * rate.  The call returns when the last letter has been queued; the requests
+     * themselves complete asynchronously.
+     * @param letters the letters to resubmit
+     * @return the number of requests queued
+     * @throws InterruptedException if interrupted while pacing or queueing
+     */
+    public int replay(List<DeadLetter> letters) throws InterruptedException {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        long next = System.nanoTime();
+        int queued = 0;
+        for (DeadLetter letter : letters) {
+            long now;
+            while ((now = System.nanoTime()) < next) {
+                LockSupport.parkNanos(next - now);
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            submit(letter);
+            queued++;
+            next += interval;
+        }
+        log.info("Replayed " + queued + " dead letters.");
+        return queued;
+    }
+
+    private void submit(DeadLetter letter) throws InterruptedException {
+        switch (letter.getMethod()) {
+        case EZIDServiceRequest.CREATE:
+            client.create(letter.getIdentifier(), letter.getMetadata(), letter.getPriority(), letter.getFairnessKey());
+            break;
+        case EZIDServiceRequest.SETMETADATA:
+            client.setMetadata(letter.getIdentifier(), letter.getMetadata(), letter.getPriority(),
+                    letter.getFairnessKey());
+            break;
+        case EZIDServiceRequest.DELETE:
+            client.delete(letter.getIdentifier(), letter.getPriority(), letter.getFairnessKey());
+            break;
+        case EZIDServiceRequest.SMARTCREATE:
+            client.createOrUpdate(letter.getIdentifier(), letter.getMetadata(), letter.getPriority(),
+                    letter.getFairnessKey());
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown request method: " + letter.getMethod());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--dry-run")) {
+                opts.put("dry-run", "true");
+            } else if (args[i].startsWith("--") && i + 1 < args.length) {
+                opts.put(args[i].substring(2), args[++i]);
+            } else {
+                System.err.println("Unrecognized argument: " + args[i]);
+                System.exit(2);
+            }
+        }
+        if (!opts.containsKey("file")) {
+            System.err.println("A dead letter file must be given with --file.");
+            System.exit(2);
+        }
+        Set<Integer> entries = new HashSet<Integer>();
+        if (opts.containsKey("entries")) {
+            for (String entry : opts.get("entries").split(",")) {
+                entries.add(Integer.valueOf(entry.trim()));
+            }
+        }
+        List<DeadLetter> letters = select(FileDeadLetterSink.read(Paths.get(opts.get("file"))), entries,
+                opts.get("prefix"), opts.get("method"), opts.get("error"));
+        if (opts.containsKey("dry-run")) {
+            for (DeadLetter letter : letters) {
+                System.out.println(FileDeadLetterSink.methodName(letter.getMethod()) + " " + letter.getIdentifier()
+                        + " (" + letter.getAttempts().size() + " attempts): " + letter.getError());
+            }
+            System.out.println(letters.size() + " dead letters selected.");
+            return;
+        }
+
+        EZIDClient client = new EZIDClient(opts.get("url"));
+        if (!client.login(opts.containsKey("user") ? opts.get("user") : "apitest",
+                opts.containsKey("password") ? opts.get("password") : "apitest")) {
+            System.err.println("Login failed.");
+            System.exit(1);
+        }
+        FileDeadLetterSink refailed = null;
+        if (opts.containsKey("failed")) {
+            refailed = new FileDeadLetterSink(Paths.get(opts.get("failed")));
+            client.setDeadLetterSink(refailed);
+        }
+        double rate = Double.parseDouble(opts.containsKey("rate") ? opts.get("rate") : "5");
+        new DeadLetterReplayer(client, rate).replay(letters);
+        client.shutdown();
+        if (refailed != null) {
+            refailed.close();
+        }
+    }
+}
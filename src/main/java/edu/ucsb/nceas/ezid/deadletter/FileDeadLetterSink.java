@@ -0,0 +1,273 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.deadletter;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.ezid.ANVL;
+import edu.ucsb.nceas.ezid.DeadLetter;
+import edu.ucsb.nceas.ezid.DeadLetterSink;
+import edu.ucsb.nceas.ezid.RequestAttempt;
+import edu.ucsb.nceas.ezid.RequestPriority;
+
+/**
+ * A DeadLetterSink that appends each dead letter to a local file.  Every letter
+ * is written in a single write as a blank line followed by a block of ANVL lines,
+ * so the file can be read with a text editor.  The block always starts with
+ * dl.recorded and ends with a dl.end line giving the number of lines before it.
+ * A crash can leave a torn block, which the blank line of the next letter cuts
+ * off; {@link #read(Path)} skips any block whose dl.end is missing or does not
+ * match.  Fields of the letter are named "dl.*" and the request metadata "md.*",
+ * and missing values are written as empty, for example:
+ * <pre>
+ *   dl.recorded: 1700000000000
+ *   dl.method: create
+ *   dl.identifier: doi%3A10.5072/FK2/ABC
+ *   dl.priority: NORMAL
+ *   dl.key: tenant-a
+ *   dl.error: bad request - no such identifier
+ *   dl.attempt: 1700000000000 412 bad request - no such identifier
+ *   md.datacite.title: An example
+ *   dl.end: 8
+ * </pre>
+ * By default each letter is forced to the storage device before record returns.
+ */
+public class FileDeadLetterSink implements DeadLetterSink, Closeable {
+
+    private static final String[] METHOD_NAMES = {null, "create", "setmetadata", "delete", "createorupdate"};
+    private static final String FIELD = "dl.";
+    private static final String METADATA = "md.";
+    private static final String RECORDED = FIELD + "recorded";
+    private static final String END = FIELD + "end";
+
+    private final Path path;
+    private final FileChannel channel;
+    private volatile boolean sync = true;
+
+    protected static Log log = LogFactory.getLog(FileDeadLetterSink.class);
+
+    /**
+     * Open the given file for appending, creating it if necessary.
+     * @param path the dead letter file
+     * @throws IOException if the file cannot be opened
+     */
+    public FileDeadLetterSink(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * @param sync whether each letter is forced to the storage device before record returns
+     */
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * @return the dead letter file
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    public void record(DeadLetter letter) throws IOException {
+        ByteBuffer block = ByteBuffer.wrap(format(letter).getBytes(StandardCharsets.UTF_8));
+        synchronized (channel) {
+            while (block.hasRemaining()) {
+                channel.write(block);
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Read all complete dead letters from a file, in the order they were recorded.
+     * Torn letters left by a crash are skipped.
+     * @param path the dead letter file
+     * @return the letters, or an empty list if the file does not exist
+     * @throws IOException if the file cannot be read
+     */
+    public static List<DeadLetter> read(Path path) throws IOException {
+        List<DeadLetter> letters = new ArrayList<DeadLetter>();
+        BufferedReader reader;
+        try {
+            reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return letters;
+        }
+        try {
+            List<String> block = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // a letter starts after a blank line, and always with dl.recorded
+                if (line.isEmpty() || line.startsWith(RECORDED + ":")) {
+                    take(block, letters, path);
+                }
+                if (!line.isEmpty()) {
+                    block.add(line);
+                }
+            }
+            take(block, letters, path);
+        } finally {
+            reader.close();
+        }
+        return letters;
+    }
+
+    /**
+     * @param method an EZIDServiceRequest method constant
+     * @return the name used for the method in dead letter files
+     */
+    public static String methodName(int method) {
+        if (method < 1 || method >= METHOD_NAMES.length) {
+            throw new IllegalArgumentException("Unknown request method: " + method);
+        }
+        return METHOD_NAMES[method];
+    }
+
+    /**
+     * @param name a method name as used in dead letter files
+     * @return the EZIDServiceRequest method constant
+     */
+    public static int methodCode(String name) {
+        for (int i = 1; i < METHOD_NAMES.length; i++) {
+            if (METHOD_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown request method: " + name);
+    }
+
+    /**
+     * Parse a block of lines into a letter if it is complete, then clear it.
+     */
+    private static void take(List<String> block, List<DeadLetter> letters, Path path) {
+        if (block.isEmpty()) {
+            return;
+        }
+        String last = block.get(block.size() - 1);
+        String expected = END + ": " + (block.size() - 1);
+        if (!last.equals(expected)) {
+            log.warn("Ignoring incomplete dead letter in " + path + " starting: " + block.get(0));
+        } else {
+            DeadLetter letter = parse(block.subList(0, block.size() - 1));
+            if (letter != null) {
+                letters.add(letter);
+            }
+        }
+        block.clear();
+    }
+
+    private static String format(DeadLetter letter) {
+        // the leading newline ends any line torn by a crash during the previous write
+        StringBuilder out = new StringBuilder("\n");
+        line(out, RECORDED, Long.toString(letter.getRecordedMillis()));
+        line(out, FIELD + "method", methodName(letter.getMethod()));
+        line(out, FIELD + "identifier", letter.getIdentifier());
+        line(out, FIELD + "priority", letter.getPriority() == null ? null : letter.getPriority().name());
+        line(out, FIELD + "key", letter.getFairnessKey());
+        line(out, FIELD + "error", letter.getError());
+        for (RequestAttempt attempt : letter.getAttempts()) {
+            line(out, FIELD + "attempt", attempt.getStartMillis() + " " + attempt.getElapsedMillis() + " "
+                    + (attempt.getError() == null ? "" : attempt.getError()));
+        }
+        if (letter.getMetadata() != null) {
+            for (Map.Entry<String, String> entry : letter.getMetadata().entrySet()) {
+                line(out, METADATA + entry.getKey(), entry.getValue());
+            }
+        }
+        int lines = 0;
+        for (int i = 1; i < out.length(); i++) {
+            if (out.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        line(out, END, Integer.toString(lines));
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, String value) {
+        out.append(ANVL.escape(name)).append(": ").append(value == null ? "" : ANVL.escape(value)).append('\n');
+    }
+
+    private static DeadLetter parse(List<String> block) {
+        Map<String, String> fields = new HashMap<String, String>();
+        List<RequestAttempt> attempts = new ArrayList<RequestAttempt>();
+        HashMap<String, String> metadata = null;
+        for (String line : block) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = ANVL.unescape(line.substring(0, colon));
+            String value = ANVL.unescape(line.substring(Math.min(colon + 2, line.length())));
+            if (name.equals(FIELD + "attempt")) {
+                String[] parts = value.split(" ", 3);
+                attempts.add(new RequestAttempt(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                        parts.length > 2 ? parts[2] : ""));
+            } else if (name.startsWith(METADATA)) {
+                if (metadata == null) {
+                    metadata = new HashMap<String, String>();
+                }
+                metadata.put(name.substring(METADATA.length()), value);
+            } else {
+                fields.put(name, value);
+            }
+        }
+        String identifier = fields.get(FIELD + "identifier");
+        if (identifier == null || !fields.containsKey(FIELD + "method")) {
+            log.warn("Ignoring dead letter without an identifier and method.");
+            return null;
+        }
+        String recorded = fields.get(RECORDED);
+        String priority = fields.get(FIELD + "priority");
+        return new DeadLetter(recorded == null ? 0 : Long.parseLong(recorded), methodCode(fields.get(FIELD + "method")),
+                identifier, metadata, priority == null || priority.isEmpty() ? RequestPriority.NORMAL
+                        : RequestPriority.valueOf(priority),
+                emptyToNull(fields.get(FIELD + "key")), emptyToNull(fields.get(FIELD + "error")), attempts);
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.export;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+
+/**
+ * Reads the metadata of many identifiers with bounded parallelism and streams
+ * the results to a {@link MetadataSink} in completion order.  Identifiers are
+ * pulled from the iterator only as permits become free, so at most
+ * {@code parallelism} identifiers are in flight and memory use does not grow with
+ * the length of the list.  An identifier whose metadata cannot be read is
+ * reported to the sink as an error and the export carries on.
+ *
+ * <p>The reads go through the given EZIDService and share its connection pool,
+ * circuit breaker and hedging policy.  Parallelism beyond the pool's size gains
+ * nothing, since the extra reads wait for a connection.</p>
+ */
+public class BulkMetadataExporter {
+
+    protected static Log log = LogFactory.getLog(BulkMetadataExporter.class);
+
+    private final EZIDService ezid;
+    private final int parallelism;
+
+    /**
+     * @param ezid the service to read through, logged in if the metadata is not public
+     * @param parallelism the greatest number of reads in flight at once
+     */
+    public BulkMetadataExporter(EZIDService ezid, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1.");
+        }
+        this.ezid = ezid;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Export the metadata of a stream of identifiers.
+     * @see #export(Iterator, MetadataSink)
+     */
+    public ExportSummary export(Stream<String> identifiers, MetadataSink sink)
+            throws IOException, InterruptedException {
+        return export(identifiers.iterator(), sink);
+    }
+
+    /**
+     * Export the metadata of each identifier to the sink, returning once every read
+     * has finished.  The sink is not closed.
+     * @param identifiers the identifiers to read
+     * @param sink the destination of the results
+     * @return the numbers of identifiers exported and failed
+     * @throws IOException if the sink fails, which stops the export
+     * @throws InterruptedException if interrupted, which stops the export and abandons reads in flight
+     */
+    public ExportSummary export(Iterator<String> identifiers, final MetadataSink sink)
+            throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        final Semaphore permits = new Semaphore(parallelism);
+        final AtomicLong exported = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicReference<IOException> sinkFailure = new AtomicReference<IOException>();
+        ExecutorService readers = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ezid-bulk-export");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            while (identifiers.hasNext() && sinkFailure.get() == null) {
+                final String identifier = identifiers.next();
+                permits.acquire();
+                readers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            read(identifier, sink, exported, failed);
+                        } catch (IOException e) {
+                            sinkFailure.compareAndSet(null, e);
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            }
+            // wait for the reads in flight
+            permits.acquire(parallelism);
+        } finally {
+            readers.shutdownNow();
+        }
+        if (sinkFailure.get() != null) {
+            throw sinkFailure.get();
+        }
+        ExportSummary summary = new ExportSummary(exported.get(), failed.get(), System.currentTimeMillis() - start);
+        log.info("Bulk metadata export: " + summary);
+        return summary;
+    }
+
+    private void read(String identifier, MetadataSink sink, AtomicLong exported, AtomicLong failed)
+            throws IOException {
+        HashMap<String, String> metadata = null;
+        String error = null;
+        try {
+            metadata = ezid.getMetadata(identifier);
+        } catch (EZIDException e) {
+            error = e.getMessage();
+        } catch (RuntimeException e) {
+            error = e.toString();
+        }
+        synchronized (sink) {
+            if (metadata != null) {
+                sink.metadata(identifier, metadata);
+                exported.incrementAndGet();
+            } else {
+                sink.error(identifier, error);
+                failed.incrementAndGet();
+            }
+        }
+    }
+}
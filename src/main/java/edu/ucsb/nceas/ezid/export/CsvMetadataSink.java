@@ -0,0 +1,99 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.export;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes exported metadata as CSV (RFC 4180), one row per identifier with a fixed
+ * set of columns: "identifier", "error", and then each requested metadata name.
+ * Because rows are written as results arrive, the columns must be chosen up
+ * front; metadata names that are not among them are left out, so use
+ * {@link JsonLinesMetadataSink} to export everything.  The header row is written
+ * when the sink is created; closing the sink flushes and closes the Writer.
+ */
+public class CsvMetadataSink implements MetadataSink {
+
+    private final Writer writer;
+    private final List<String> columns;
+
+    /**
+     * Create a sink and write the header row.
+     * @param writer the destination, which should be buffered
+     * @param columns the metadata names to write, in order
+     * @throws IOException if the header cannot be written
+     */
+    public CsvMetadataSink(Writer writer, List<String> columns) throws IOException {
+        this.writer = writer;
+        this.columns = new ArrayList<String>(columns);
+        List<String> header = new ArrayList<String>();
+        header.add("identifier");
+        header.add("error");
+        header.addAll(this.columns);
+        writeRow(header);
+    }
+
+    public void metadata(String identifier, Map<String, String> metadata) throws IOException {
+        List<String> row = new ArrayList<String>(columns.size() + 2);
+        row.add(identifier);
+        row.add("");
+        for (String column : columns) {
+            String value = metadata.get(column);
+            row.add(value == null ? "" : value);
+        }
+        writeRow(row);
+    }
+
+    public void error(String identifier, String message) throws IOException {
+        List<String> row = new ArrayList<String>(columns.size() + 2);
+        row.add(identifier);
+        row.add(message == null ? "" : message);
+        for (int i = 0; i < columns.size(); i++) {
+            row.add("");
+        }
+        writeRow(row);
+    }
+
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private void writeRow(List<String> fields) throws IOException {
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            String field = fields.get(i);
+            if (field.indexOf(',') >= 0 || field.indexOf('"') >= 0 || field.indexOf('\n') >= 0
+                    || field.indexOf('\r') >= 0) {
+                writer.write('"');
+                writer.write(field.replace("\"", "\"\""));
+                writer.write('"');
+            } else {
+                writer.write(field);
+            }
+        }
+        writer.write("\r\n");
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.export;
+
+/**
+ * The outcome of a bulk metadata export.
+ */
+public class ExportSummary {
+
+    private final long exported;
+    private final long failed;
+    private final long elapsedMillis;
+
+    ExportSummary(long exported, long failed, long elapsedMillis) {
+        this.exported = exported;
+        this.failed = failed;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return the number of identifiers whose metadata was written to the sink
+     */
+    public long getExported() {
+        return exported;
+    }
+
+    /**
+     * @return the number of identifiers reported to the sink as errors
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the wall-clock time of the export in milliseconds
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public String toString() {
+        return exported + " exported, " + failed + " failed in " + elapsedMillis + " ms";
+    }
+}
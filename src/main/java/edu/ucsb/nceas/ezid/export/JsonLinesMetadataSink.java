@@ -0,0 +1,90 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.export;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes exported metadata as JSON Lines, one object per identifier:
+ * <pre>
+ * {"identifier":"doi:10.5072/FK2/X","metadata":{"_status":"public","datacite.title":"..."}}
+ * {"identifier":"doi:10.5072/FK2/Y","error":"no such identifier"}
+ * </pre>
+ * Names are written in sorted order.  Each line is written to the Writer as it
+ * is received; closing the sink flushes and closes the Writer.
+ */
+public class JsonLinesMetadataSink implements MetadataSink {
+
+    private final Writer writer;
+
+    /**
+     * @param writer the destination, which should be buffered
+     */
+    public JsonLinesMetadataSink(Writer writer) {
+        this.writer = writer;
+    }
+
+    public void metadata(String identifier, Map<String, String> metadata) throws IOException {
+        writer.write("{\"identifier\":");
+        writer.write(quote(identifier));
+        writer.write(",\"metadata\":{");
+        boolean first = true;
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(metadata).entrySet()) {
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            writer.write(quote(entry.getKey()));
+            writer.write(':');
+            writer.write(quote(entry.getValue()));
+        }
+        writer.write("}}\n");
+    }
+
+    public void error(String identifier, String message) throws IOException {
+        writer.write("{\"identifier\":");
+        writer.write(quote(identifier));
+        writer.write(",\"error\":");
+        writer.write(quote(message == null ? "" : message));
+        writer.write("}\n");
+    }
+
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.export;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A MetadataSink receives the results of a bulk metadata export, one identifier
+ * at a time and in completion order.  The BulkMetadataExporter never calls a sink
+ * from two threads at once, so implementations need not be thread-safe.  An
+ * IOException from a sink stops the export.
+ */
+public interface MetadataSink extends Closeable {
+
+    /**
+     * Receive the metadata of an identifier.
+     * @param identifier the identifier
+     * @param metadata its name/value pairs
+     * @throws IOException if the result cannot be written
+     */
+    void metadata(String identifier, Map<String, String> metadata) throws IOException;
+
+    /**
+     * Receive the error that prevented an identifier's metadata from being read.
+     * @param identifier the identifier
+     * @param message the error message
+     * @throws IOException if the result cannot be written
+     */
+    void error(String identifier, String message) throws IOException;
+}
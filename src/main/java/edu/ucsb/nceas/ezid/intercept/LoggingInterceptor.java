@@ -0,0 +1,68 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.intercept;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.ezid.EZIDCallEvent;
+import edu.ucsb.nceas.ezid.EZIDCallEvent.Phase;
+import edu.ucsb.nceas.ezid.EZIDInterceptor;
+
+/**
+ * An EZIDInterceptor that logs each event as a single line of key=value pairs,
+ * which log processors can parse without patterns, for example:
+ * <pre>
+ *   ezid.call id=42 op=CREATE phase=RESPONSE identifier=doi:10.5072/FK2ABC size=33 status=201 elapsed_ms=84.211
+ * </pre>
+ * Failures are logged at WARN and other events at DEBUG, so in normal operation
+ * only failures cost anything beyond a level check.
+ */
+public class LoggingInterceptor implements EZIDInterceptor {
+
+    protected static Log log = LogFactory.getLog(LoggingInterceptor.class);
+
+    public void onEvent(EZIDCallEvent event) {
+        boolean failed = event.getPhase() == Phase.FAILED;
+        if (failed ? !log.isWarnEnabled() : !log.isDebugEnabled()) {
+            return;
+        }
+        StringBuilder line = new StringBuilder(160);
+        line.append("ezid.call id=").append(event.getCallId())
+                .append(" op=").append(event.getOperation())
+                .append(" phase=").append(event.getPhase());
+        if (event.getIdentifier() != null) {
+            line.append(" identifier=").append(event.getIdentifier());
+        }
+        if (event.getPayloadSize() > 0) {
+            line.append(" size=").append(event.getPayloadSize());
+        }
+        if (event.getStatusCode() > 0) {
+            line.append(" status=").append(event.getStatusCode());
+        }
+        line.append(" elapsed_ms=").append(String.format("%.3f", event.getElapsedNanos() / 1e6));
+        if (failed) {
+            line.append(" error=\"").append(String.valueOf(event.getError().getMessage()).replace('"', '\'')).append('"');
+            log.warn(line);
+        } else {
+            log.debug(line);
+        }
+    }
+}
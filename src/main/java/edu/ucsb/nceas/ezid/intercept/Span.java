@@ -0,0 +1,135 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.intercept;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Span is the record of one EZIDService call produced by a TracingInterceptor:
+ * its ids, name, start time and duration, tags describing the call, and the
+ * time of each lifecycle event as an annotation.
+ */
+public class Span {
+
+    private final String traceId;
+    private final String spanId;
+    private final String name;
+    private final long startMicros;
+    private long durationMicros;
+    private final Map<String, String> tags = new LinkedHashMap<String, String>();
+    private final List<Annotation> annotations = new ArrayList<Annotation>();
+
+    Span(String traceId, String spanId, String name, long startMicros) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.name = name;
+        this.startMicros = startMicros;
+    }
+
+    void tag(String key, String value) {
+        tags.put(key, value);
+    }
+
+    void annotate(long timestampMicros, String value) {
+        annotations.add(new Annotation(timestampMicros, value));
+    }
+
+    void finish(long durationMicros) {
+        this.durationMicros = durationMicros;
+    }
+
+    /**
+     * @return the trace id as 16 hexadecimal digits
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * @return the span id as 16 hexadecimal digits
+     */
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * @return the span name, such as "ezid create"
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return when the call started, in microseconds since the epoch
+     */
+    public long getStartMicros() {
+        return startMicros;
+    }
+
+    /**
+     * @return the duration of the call in microseconds
+     */
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    /**
+     * @return the tags describing the call, in the order they were added
+     */
+    public Map<String, String> getTags() {
+        return Collections.unmodifiableMap(tags);
+    }
+
+    /**
+     * @return the lifecycle events of the call, in order
+     */
+    public List<Annotation> getAnnotations() {
+        return Collections.unmodifiableList(annotations);
+    }
+
+    /** A timestamped event within a span. */
+    public static class Annotation {
+        private final long timestampMicros;
+        private final String value;
+
+        Annotation(long timestampMicros, String value) {
+            this.timestampMicros = timestampMicros;
+            this.value = value;
+        }
+
+        /**
+         * @return when the event happened, in microseconds since the epoch
+         */
+        public long getTimestampMicros() {
+            return timestampMicros;
+        }
+
+        /**
+         * @return the name of the event
+         */
+        public String getValue() {
+            return value;
+        }
+    }
+}
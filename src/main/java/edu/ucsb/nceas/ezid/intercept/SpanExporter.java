@@ -0,0 +1,36 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.intercept;
+
+import java.io.IOException;
+
+/**
+ * A SpanExporter sends finished spans to a tracing backend.  Exporters are
+ * called on the thread that finished the call and must be thread safe.
+ */
+public interface SpanExporter {
+
+    /**
+     * Export a finished span.
+     * @param span the span
+     * @throws IOException if the span could not be exported
+     */
+    public void export(Span span) throws IOException;
+}
@@ -0,0 +1,128 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.intercept;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.ezid.EZIDCallEvent;
+import edu.ucsb.nceas.ezid.EZIDCallEvent.Phase;
+import edu.ucsb.nceas.ezid.EZIDInterceptor;
+
+/**
+ * An EZIDInterceptor that turns each EZIDService call into a Span and hands it to
+ * a SpanExporter when the call finishes.  The span is tagged with the operation,
+ * identifier, request and response sizes, HTTP status and any error, and carries
+ * one annotation per lifecycle event, so the time spent waiting for a pooled
+ * connection, waiting for EZID and parsing can be seen separately.  ENQUEUED
+ * events are exported as zero-length spans of their own.
+ */
+public class TracingInterceptor implements EZIDInterceptor {
+
+    private final SpanExporter exporter;
+    private final Map<Long, Span> open = new ConcurrentHashMap<Long, Span>();
+    private final Random random = new Random();
+
+    protected static Log log = LogFactory.getLog(TracingInterceptor.class);
+
+    /**
+     * @param exporter where finished spans are sent
+     */
+    public TracingInterceptor(SpanExporter exporter) {
+        if (exporter == null) {
+            throw new IllegalArgumentException("Exporter must not be null.");
+        }
+        this.exporter = exporter;
+    }
+
+    public void onEvent(EZIDCallEvent event) {
+        long timestamp = event.getCallStartMillis() * 1000 + event.getElapsedNanos() / 1000;
+        Span span;
+        switch (event.getPhase()) {
+        case ENQUEUED:
+            span = start(event);
+            span.annotate(timestamp, "enqueued");
+            export(span);
+            return;
+        case DISPATCHED:
+            span = open.get(event.getCallId());
+            if (span == null) {
+                span = start(event);
+                open.put(event.getCallId(), span);
+            }
+            span.annotate(timestamp, "dispatched");
+            if (event.getPayloadSize() > 0) {
+                span.tag("ezid.request_size", Long.toString(event.getPayloadSize()));
+            }
+            return;
+        case LEASED:
+        case RESPONSE:
+            span = open.get(event.getCallId());
+            if (span != null) {
+                span.annotate(timestamp, event.getPhase() == Phase.LEASED ? "connection_leased" : "response");
+                if (event.getPhase() == Phase.RESPONSE) {
+                    span.tag("http.status_code", Integer.toString(event.getStatusCode()));
+                    span.tag("ezid.response_size", Long.toString(event.getPayloadSize()));
+                }
+            }
+            return;
+        default:
+            span = open.remove(event.getCallId());
+            if (span == null) {
+                // the call failed before it was dispatched
+                span = start(event);
+            }
+            span.annotate(timestamp, event.getPhase() == Phase.PARSED ? "parsed" : "failed");
+            if (event.getError() != null) {
+                span.tag("error", String.valueOf(event.getError().getMessage()));
+            }
+            span.finish(event.getElapsedNanos() / 1000);
+            export(span);
+        }
+    }
+
+    private Span start(EZIDCallEvent event) {
+        long id;
+        synchronized (random) {
+            id = random.nextLong();
+        }
+        String hex = String.format("%016x", id);
+        Span span = new Span(hex, hex, "ezid " + event.getOperation().name().toLowerCase(),
+                event.getCallStartMillis() * 1000);
+        span.tag("ezid.operation", event.getOperation().name());
+        if (event.getIdentifier() != null) {
+            span.tag("ezid.identifier", event.getIdentifier());
+        }
+        return span;
+    }
+
+    private void export(Span span) {
+        try {
+            exporter.export(span);
+        } catch (IOException e) {
+            log.warn("Could not export span " + span.getSpanId() + ": " + e.getMessage());
+        }
+    }
+}
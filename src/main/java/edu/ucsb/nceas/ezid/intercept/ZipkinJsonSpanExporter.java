@@ -0,0 +1,88 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.intercept;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * A SpanExporter that writes each span as one line of JSON in the Zipkin v2 span
+ * format, which can be posted to a Zipkin collector or loaded by most tracing
+ * tools.  Lines are flushed as they are written.
+ */
+public class ZipkinJsonSpanExporter implements SpanExporter {
+
+    private final Writer out;
+    private final String serviceName;
+
+    /**
+     * @param out where the JSON lines are written
+     * @param serviceName the local service name recorded on each span
+     */
+    public ZipkinJsonSpanExporter(Writer out, String serviceName) {
+        this.out = out;
+        this.serviceName = serviceName;
+    }
+
+    public void export(Span span) throws IOException {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"traceId\":").append(quote(span.getTraceId()))
+                .append(",\"id\":").append(quote(span.getSpanId()))
+                .append(",\"kind\":\"CLIENT\"")
+                .append(",\"name\":").append(quote(span.getName()))
+                .append(",\"timestamp\":").append(span.getStartMicros())
+                .append(",\"duration\":").append(span.getDurationMicros())
+                .append(",\"localEndpoint\":{\"serviceName\":").append(quote(serviceName)).append('}');
+        json.append(",\"annotations\":[");
+        String separator = "";
+        for (Span.Annotation annotation : span.getAnnotations()) {
+            json.append(separator).append("{\"timestamp\":").append(annotation.getTimestampMicros())
+                    .append(",\"value\":").append(quote(annotation.getValue())).append('}');
+            separator = ",";
+        }
+        json.append("],\"tags\":{");
+        separator = "";
+        for (Map.Entry<String, String> tag : span.getTags().entrySet()) {
+            json.append(separator).append(quote(tag.getKey())).append(':').append(quote(tag.getValue()));
+            separator = ",";
+        }
+        json.append("}}\n");
+        synchronized (out) {
+            out.write(json.toString());
+            out.flush();
+        }
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
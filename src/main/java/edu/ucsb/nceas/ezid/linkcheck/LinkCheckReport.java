@@ -0,0 +1,105 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.linkcheck;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A LinkCheckReport accumulates the results of a link check.  Only the results
+ * that need attention (redirected, broken, unreachable or missing targets) are
+ * kept; healthy targets are only counted, so memory stays proportional to the
+ * number of problems rather than the number of identifiers checked.
+ */
+public class LinkCheckReport {
+
+    private final Map<LinkCheckResult.Status, Long> counts =
+            new EnumMap<LinkCheckResult.Status, Long>(LinkCheckResult.Status.class);
+    private final List<LinkCheckResult> problems = new ArrayList<LinkCheckResult>();
+    private long cacheHits = 0;
+
+    public LinkCheckReport() {
+        for (LinkCheckResult.Status status : LinkCheckResult.Status.values()) {
+            counts.put(status, 0L);
+        }
+    }
+
+    synchronized void add(LinkCheckResult result, boolean cached) {
+        counts.put(result.getStatus(), counts.get(result.getStatus()) + 1);
+        if (result.getStatus() != LinkCheckResult.Status.OK) {
+            problems.add(result);
+        }
+        if (cached) {
+            cacheHits++;
+        }
+    }
+
+    /**
+     * @param status an outcome
+     * @return the number of identifiers with that outcome
+     */
+    public synchronized long getCount(LinkCheckResult.Status status) {
+        return counts.get(status);
+    }
+
+    /**
+     * @return the number of identifiers whose result came from the duplicate-target cache
+     */
+    public synchronized long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return the results that were not OK
+     */
+    public synchronized List<LinkCheckResult> getProblems() {
+        return new ArrayList<LinkCheckResult>(problems);
+    }
+
+    /**
+     * @param status an outcome
+     * @return the results with that outcome
+     */
+    public synchronized List<LinkCheckResult> getResults(LinkCheckResult.Status status) {
+        List<LinkCheckResult> selected = new ArrayList<LinkCheckResult>();
+        for (LinkCheckResult result : problems) {
+            if (result.getStatus() == status) {
+                selected.add(result);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Print a summary followed by one tab-separated line per problem: identifier,
+     * status, HTTP status, target, final URL and message.
+     * @param out the stream to print to
+     */
+    public synchronized void print(PrintStream out) {
+        out.println("# " + counts + " cacheHits=" + cacheHits);
+        out.println("# identifier\tstatus\thttp\ttarget\tfinal\tmessage");
+        for (LinkCheckResult result : problems) {
+            out.println(result);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.linkcheck;
+
+/**
+ * The outcome of checking the _target URL of one identifier.
+ *
+ * OK			the target answered with a 2xx status
+ * REDIRECTED	the target redirects; the final location is recorded
+ * BROKEN		the target, or the end of its redirect chain, answered with a 4xx or 5xx status
+ * ERROR		the target could not be reached (DNS, connection or timeout failure)
+ * MISSING		the identifier has no _target, or its metadata could not be read
+ */
+public class LinkCheckResult {
+
+    /** The possible outcomes of a link check. */
+    public enum Status { OK, REDIRECTED, BROKEN, ERROR, MISSING }
+
+    private final String identifier;
+    private final String target;
+    private final Status status;
+    private final int httpStatus;
+    private final String finalUrl;
+    private final String message;
+
+    public LinkCheckResult(String identifier, String target, Status status, int httpStatus, String finalUrl,
+            String message) {
+        this.identifier = identifier;
+        this.target = target;
+        this.status = status;
+        this.httpStatus = httpStatus;
+        this.finalUrl = finalUrl;
+        this.message = message;
+    }
+
+    /**
+     * Return a copy of this result for another identifier sharing the same target.
+     */
+    LinkCheckResult forIdentifier(String otherIdentifier) {
+        return new LinkCheckResult(otherIdentifier, target, status, httpStatus, finalUrl, message);
+    }
+
+    /**
+     * @return the identifier whose target was checked
+     */
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * @return the _target URL that was checked
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return the outcome of the check
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the HTTP status of the last response received, or 0 if there was none
+     */
+    public int getHttpStatus() {
+        return httpStatus;
+    }
+
+    /**
+     * @return the URL at the end of the redirect chain, or the target itself
+     */
+    public String getFinalUrl() {
+        return finalUrl;
+    }
+
+    /**
+     * @return a description of the failure, or null
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return identifier + "\t" + status + "\t" + httpStatus + "\t" + target + "\t"
+                + (finalUrl == null ? "" : finalUrl) + "\t" + (message == null ? "" : message);
+    }
+}
@@ -0,0 +1,648 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.linkcheck;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import edu.ucsb.nceas.ezid.ANVL;
+import edu.ucsb.nceas.ezid.EZIDClient;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.profile.InternalProfile;
+
+/**
+ * A TargetLinkChecker verifies the _target URLs of registered identifiers, many at
+ * a time.  Identifiers are streamed from an Iterator, either as bare identifiers
+ * whose _target is read through EZIDService.getMetadata, or as identifier/target
+ * pairs read from an EZID metadata export with {@link #readExport(BufferedReader)}.
+ * Only a bounded number of checks are in flight at once, so arbitrarily long
+ * inputs are processed in constant memory apart from the report of problems.
+ *
+ * Each target is checked with an HTTP HEAD request (falling back to GET when HEAD
+ * is not supported), following redirects manually so that redirected targets can
+ * be reported with their final location.  Requests to any one host are limited to
+ * a small number of connections and spaced by a politeness delay, and targets
+ * shared by several identifiers are checked only once.  A request waiting for its
+ * host's turn is scheduled for later rather than holding a worker thread.  The
+ * checked targets and per-host state belong to one run; the targets are kept in a
+ * bounded cache and a host's state is dropped once it has been idle for the delay.
+ * Redirected targets can be repaired in bulk with
+ * {@link #fixRedirects(LinkCheckReport, EZIDClient)}.
+ */
+public class TargetLinkChecker {
+
+    private final EZIDService ezid;
+    private int concurrency = 32;
+    private int perHostConnections = 2;
+    private long politenessDelayMillis = 250;
+    private int timeoutMillis = 15000;
+    private int maxRedirects = 5;
+    private int maxCachedTargets = 10000;
+
+    protected static Log log = LogFactory.getLog(TargetLinkChecker.class);
+
+    /**
+     * @param ezid the service used to read _target values, or null when only
+     *          identifier/target pairs will be checked
+     */
+    public TargetLinkChecker(EZIDService ezid) {
+        this.ezid = ezid;
+    }
+
+    /**
+     * @param concurrency the number of checks in flight at once
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @param perHostConnections the maximum number of simultaneous connections to one host
+     */
+    public void setPerHostConnections(int perHostConnections) {
+        this.perHostConnections = perHostConnections;
+    }
+
+    /**
+     * @param politenessDelayMillis the minimum spacing between requests to one host
+     */
+    public void setPolitenessDelayMillis(long politenessDelayMillis) {
+        this.politenessDelayMillis = politenessDelayMillis;
+    }
+
+    /**
+     * @param timeoutMillis the connect and read timeout for each target request
+     */
+    public void setTimeoutMillis(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param maxCachedTargets the number of checked targets remembered during a run, so
+     *          that identifiers sharing a target reuse its result
+     */
+    public void setMaxCachedTargets(int maxCachedTargets) {
+        if (maxCachedTargets < 0) {
+            throw new IllegalArgumentException("The target cache size must not be negative.");
+        }
+        this.maxCachedTargets = maxCachedTargets;
+    }
+
+    /**
+     * Check the targets of identifiers, reading each _target with getMetadata.
+     * @param identifiers the identifiers to check
+     * @return the report of targets that need attention
+     */
+    public LinkCheckReport checkIdentifiers(final Iterator<String> identifiers) throws InterruptedException {
+        if (ezid == null) {
+            throw new IllegalStateException("An EZIDService is required to read _target values.");
+        }
+        return check(new Iterator<Map.Entry<String, String>>() {
+            public boolean hasNext() {
+                return identifiers.hasNext();
+            }
+
+            public Map.Entry<String, String> next() {
+                return new AbstractMap.SimpleImmutableEntry<String, String>(identifiers.next(), null);
+            }
+        });
+    }
+
+    /**
+     * Check identifier/target pairs, for example from {@link #readExport(BufferedReader)}.
+     * @param targets pairs of identifier and _target URL
+     * @return the report of targets that need attention
+     */
+    public LinkCheckReport checkTargets(Iterator<Map.Entry<String, String>> targets) throws InterruptedException {
+        return check(targets);
+    }
+
+    /**
+     * Queue a _target update through the EZIDClient for every redirected target
+     * whose final location answered successfully.  The client's queue controls the
+     * rate at which the updates reach EZID.
+     * @param report a report produced by this checker
+     * @param client the client through which updates are queued
+     * @return the number of updates queued
+     */
+    public int fixRedirects(LinkCheckReport report, EZIDClient client) throws InterruptedException {
+        int queued = 0;
+        for (LinkCheckResult result : report.getResults(LinkCheckResult.Status.REDIRECTED)) {
+            HashMap<String, String> metadata = new HashMap<String, String>();
+            metadata.put(InternalProfile.TARGET.toString(), result.getFinalUrl());
+            client.setMetadata(result.getIdentifier(), metadata);
+            queued++;
+        }
+        log.info("Queued _target updates for " + queued + " redirected identifiers.");
+        return queued;
+    }
+
+    /**
+     * Read identifier/target pairs from an EZID metadata export in ANVL format, where
+     * each record starts with a ":: identifier" line and records are separated by
+     * blank lines.  Records without a _target are returned with a null target.
+     * @param reader the export to read
+     * @return a lazy iterator over the pairs in the export
+     */
+    public static Iterator<Map.Entry<String, String>> readExport(final BufferedReader reader) {
+        return new Iterator<Map.Entry<String, String>>() {
+            private Map.Entry<String, String> next = null;
+            private String pendingHeader = null;
+            private boolean done = false;
+
+            public boolean hasNext() {
+                if (next == null && !done) {
+                    next = readRecord();
+                }
+                return next != null;
+            }
+
+            public Map.Entry<String, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> result = next;
+                next = null;
+                return result;
+            }
+
+            private Map.Entry<String, String> readRecord() {
+                try {
+                    String identifier = pendingHeader;
+                    String target = null;
+                    pendingHeader = null;
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("::")) {
+                            if (identifier != null) {
+                                pendingHeader = line.substring(2).trim();
+                                break;
+                            }
+                            identifier = line.substring(2).trim();
+                        } else if (line.startsWith(InternalProfile.TARGET.toString() + ":")) {
+                            target = ANVL.unescape(
+                                    line.substring(InternalProfile.TARGET.toString().length() + 1)).trim();
+                        }
+                    }
+                    if (line == null) {
+                        done = true;
+                    }
+                    return identifier == null ? null
+                            : new AbstractMap.SimpleImmutableEntry<String, String>(identifier, target);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    private LinkCheckReport check(Iterator<Map.Entry<String, String>> input) throws InterruptedException {
+        LinkCheckReport report = new LinkCheckReport();
+        PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+        pool.setMaxTotal(concurrency);
+        pool.setDefaultMaxPerRoute(perHostConnections);
+        CloseableHttpClient http = HttpClients.custom().setConnectionManager(pool)
+                .disableRedirectHandling().disableCookieManagement().build();
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        ScheduledExecutorService pacer = Executors.newSingleThreadScheduledExecutor();
+        int permits = concurrency * 2;
+        Semaphore inFlight = new Semaphore(permits);
+        Run run = new Run(http, report, workers, pacer, inFlight);
+        try {
+            while (input.hasNext()) {
+                Map.Entry<String, String> entry = input.next();
+                inFlight.acquire();
+                run.submit(entry.getKey(), entry.getValue());
+            }
+            // every permit comes back once the last check has been reported
+            inFlight.acquire(permits);
+        } finally {
+            pacer.shutdownNow();
+            workers.shutdownNow();
+            try {
+                http.close();
+            } catch (IOException e) {
+                log.debug("Error closing link checker client: " + e.getMessage());
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Send one request and return its status and the Location header of a
+     * redirect.  The response body is never read.
+     */
+    private Response request(CloseableHttpClient http, HttpRequestBase request) throws IOException {
+        request.setConfig(RequestConfig.custom().setConnectTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis).setConnectionRequestTimeout(timeoutMillis)
+                .setRedirectsEnabled(false).build());
+        CloseableHttpResponse response = http.execute(request);
+        try {
+            Header location = response.getFirstHeader("Location");
+            return new Response(response.getStatusLine().getStatusCode(),
+                    location == null ? null : location.getValue());
+        } finally {
+            // closing without consuming the body discards the connection rather than downloading
+            request.abort();
+            response.close();
+        }
+    }
+
+    /**
+     * The state of one run of the checker: the targets checked so far and the
+     * gates of the hosts being contacted.  Each identifier holds one in-flight
+     * permit, released once its result has been reported.
+     */
+    private class Run {
+        private final CloseableHttpClient http;
+        private final LinkCheckReport report;
+        private final ExecutorService workers;
+        private final ScheduledExecutorService pacer;
+        private final Semaphore inFlight;
+        private final Map<String, TargetCheck> targets;
+        private final Map<String, HostGate> hosts = new HashMap<String, HostGate>();
+
+        Run(CloseableHttpClient http, LinkCheckReport report, ExecutorService workers,
+                ScheduledExecutorService pacer, Semaphore inFlight) {
+            this.http = http;
+            this.report = report;
+            this.workers = workers;
+            this.pacer = pacer;
+            this.inFlight = inFlight;
+            this.targets = new LinkedHashMap<String, TargetCheck>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, TargetCheck> eldest) {
+                    return size() > maxCachedTargets;
+                }
+            };
+        }
+
+        void submit(final String identifier, final String target) {
+            execute(new Runnable() {
+                public void run() {
+                    resolve(identifier, target);
+                }
+            });
+        }
+
+        private void execute(Runnable task) {
+            try {
+                workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                // the run has been abandoned
+                log.debug("Link check not started: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Look up the identifier's target if it was not given, then join the check
+         * of that target, starting it if no check of it is remembered.
+         */
+        private void resolve(String identifier, String target) {
+            if (target == null && ezid != null) {
+                try {
+                    target = ezid.getMetadata(identifier).get(InternalProfile.TARGET.toString());
+                } catch (EZIDException e) {
+                    finish(new LinkCheckResult(identifier, null, LinkCheckResult.Status.MISSING, 0, null,
+                            e.getMessage()), false);
+                    return;
+                }
+            }
+            if (target == null || target.isEmpty()) {
+                finish(new LinkCheckResult(identifier, null, LinkCheckResult.Status.MISSING, 0, null,
+                        "No _target"), false);
+                return;
+            }
+            TargetCheck check;
+            boolean started = false;
+            synchronized (targets) {
+                check = targets.get(target);
+                if (check == null) {
+                    check = new TargetCheck(this, target);
+                    targets.put(target, check);
+                    started = true;
+                }
+            }
+            LinkCheckResult result = check.join(identifier);
+            if (result != null) {
+                finish(result.forIdentifier(identifier), true);
+            } else if (started) {
+                check.next();
+            }
+        }
+
+        void finish(LinkCheckResult result, boolean cached) {
+            report.add(result, cached);
+            inFlight.release();
+        }
+
+        /**
+         * Admit a request to its host: run it now if the host has a free connection
+         * and its politeness delay has passed, schedule it for when the delay will
+         * have passed, or park it until one of the host's requests finishes.
+         */
+        void admit(String host, final Runnable request) {
+            String key = host == null ? "" : host.toLowerCase();
+            long wait;
+            synchronized (hosts) {
+                HostGate gate = hosts.get(key);
+                if (gate == null) {
+                    gate = new HostGate(perHostConnections, politenessDelayMillis);
+                    hosts.put(key, gate);
+                }
+                wait = gate.reserve(request);
+            }
+            dispatch(request, wait);
+        }
+
+        /**
+         * Return a host's connection after a request, admitting the next parked
+         * request, and forget the host once it is idle past its politeness delay.
+         */
+        void release(final String host) {
+            final String key = host == null ? "" : host.toLowerCase();
+            Runnable parked;
+            long wait = 0;
+            long expiry = -1;
+            synchronized (hosts) {
+                HostGate gate = hosts.get(key);
+                parked = gate.release();
+                if (parked != null) {
+                    wait = gate.reserve(parked);
+                } else if (gate.isIdle() && !gate.expiring) {
+                    gate.expiring = true;
+                    expiry = Math.max(0, gate.nextStartNanos - System.nanoTime());
+                }
+            }
+            if (parked != null) {
+                // the gate had a connection to give back, so the parked request is admitted
+                dispatch(parked, wait);
+            }
+            if (expiry >= 0) {
+                schedule(new Runnable() {
+                    public void run() {
+                        expire(key);
+                    }
+                }, expiry);
+            }
+        }
+
+        private void expire(final String key) {
+            long expiry = -1;
+            synchronized (hosts) {
+                HostGate gate = hosts.get(key);
+                if (gate == null) {
+                    return;
+                }
+                gate.expiring = false;
+                if (!gate.isIdle()) {
+                    return;
+                }
+                long remaining = gate.nextStartNanos - System.nanoTime();
+                if (remaining <= 0) {
+                    hosts.remove(key);
+                    return;
+                }
+                gate.expiring = true;
+                expiry = remaining;
+            }
+            schedule(new Runnable() {
+                public void run() {
+                    expire(key);
+                }
+            }, expiry);
+        }
+
+        /**
+         * Run an admitted request after its wait; a parked request, with a wait of
+         * -1, is dispatched later by {@link #release(String)}.
+         */
+        private void dispatch(final Runnable request, long waitNanos) {
+            if (waitNanos < 0) {
+                return;
+            } else if (waitNanos == 0) {
+                execute(request);
+            } else {
+                schedule(new Runnable() {
+                    public void run() {
+                        execute(request);
+                    }
+                }, waitNanos);
+            }
+        }
+
+        private void schedule(Runnable task, long delayNanos) {
+            try {
+                pacer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                log.debug("Link check not scheduled: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The check of one target URL, shared by every identifier with that target.
+     * Each request it makes, including those that follow redirects or fall back
+     * from HEAD to GET, is admitted through the gate of its host and runs on a
+     * worker thread.
+     */
+    private class TargetCheck implements Runnable {
+        private final Run run;
+        private final String target;
+        private String url;
+        private String host;
+        private boolean head = true;
+        private int status = 0;
+        private int redirects = 0;
+        private List<String> waiting = new ArrayList<String>();
+        private LinkCheckResult result = null;
+
+        TargetCheck(Run run, String target) {
+            this.run = run;
+            this.target = target;
+            this.url = target;
+        }
+
+        /**
+         * @return the result if the check has finished, or null if the identifier
+         *          will be reported when it does
+         */
+        synchronized LinkCheckResult join(String identifier) {
+            if (result == null) {
+                waiting.add(identifier);
+            }
+            return result;
+        }
+
+        /** Admit the next request of this check to its host. */
+        void next() {
+            try {
+                host = URI.create(url).getHost();
+            } catch (IllegalArgumentException e) {
+                complete(new LinkCheckResult(null, target, LinkCheckResult.Status.ERROR, status, url,
+                        e.getMessage()));
+                return;
+            }
+            run.admit(host, this);
+        }
+
+        /** Send the admitted request and decide what follows it. */
+        public void run() {
+            Response response;
+            try {
+                response = request(run.http, head ? new HttpHead(url) : new HttpGet(url));
+            } catch (IOException e) {
+                complete(new LinkCheckResult(null, target, LinkCheckResult.Status.ERROR, status, url, e.toString()));
+                return;
+            } catch (RuntimeException e) {
+                complete(new LinkCheckResult(null, target, LinkCheckResult.Status.ERROR, status, url,
+                        e.getMessage()));
+                return;
+            } finally {
+                run.release(host);
+            }
+            if (head && (response.status == 405 || response.status == 501)) {
+                head = false;
+                next();
+                return;
+            }
+            status = response.status;
+            if (status >= 300 && status < 400 && redirects < maxRedirects && response.location != null) {
+                try {
+                    url = URI.create(url).resolve(response.location).toString();
+                } catch (IllegalArgumentException e) {
+                    complete(new LinkCheckResult(null, target, LinkCheckResult.Status.ERROR, status, url,
+                            e.getMessage()));
+                    return;
+                }
+                redirects++;
+                head = true;
+                next();
+                return;
+            }
+            if (status >= 200 && status < 300) {
+                complete(new LinkCheckResult(null, target,
+                        redirects > 0 ? LinkCheckResult.Status.REDIRECTED : LinkCheckResult.Status.OK, status, url,
+                        null));
+            } else {
+                complete(new LinkCheckResult(null, target, LinkCheckResult.Status.BROKEN, status, url, null));
+            }
+        }
+
+        private void complete(LinkCheckResult result) {
+            List<String> identifiers;
+            synchronized (this) {
+                this.result = result;
+                identifiers = waiting;
+                waiting = null;
+            }
+            for (int i = 0; i < identifiers.size(); i++) {
+                run.finish(result.forIdentifier(identifiers.get(i)), i > 0);
+            }
+        }
+    }
+
+    /** The status and redirect location of one target response. */
+    private static class Response {
+        final int status;
+        final String location;
+
+        Response(int status, String location) {
+            this.status = status;
+            this.location = location;
+        }
+    }
+
+    /**
+     * Limits the connections to one host and spaces the start of its requests by
+     * the politeness delay.  Guarded by the run's map of hosts.
+     */
+    private static class HostGate {
+        private final int connections;
+        private final long delayNanos;
+        private final ArrayDeque<Runnable> parked = new ArrayDeque<Runnable>();
+        private int active = 0;
+        long nextStartNanos = System.nanoTime();
+        boolean expiring = false;
+
+        HostGate(int connections, long delayMillis) {
+            this.connections = Math.max(1, connections);
+            this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        }
+
+        /**
+         * Take a connection and the next start slot for a request, or park it.
+         * @return how long the request must wait before starting, or -1 if parked
+         */
+        long reserve(Runnable request) {
+            if (active >= connections) {
+                parked.add(request);
+                return -1;
+            }
+            active++;
+            long now = System.nanoTime();
+            long start = nextStartNanos - now > 0 ? nextStartNanos : now;
+            nextStartNanos = start + delayNanos;
+            return start - now;
+        }
+
+        /**
+         * Return a connection.
+         * @return the next parked request, or null if none is waiting
+         */
+        Runnable release() {
+            active--;
+            return parked.poll();
+        }
+
+        boolean isIdle() {
+            return active == 0 && parked.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.noid;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.ezid.EZIDException;
+
+/**
+ * A NoidMinter mints identifiers locally under a shoulder the account may create
+ * on, so that an identifier can be passed straight to createIdentifier without a
+ * round trip to EZID's mint operation.  Names are produced from a
+ * {@link NoidTemplate}; with an 'r' template the counter is passed through a
+ * keyed permutation of the template's name space, so names are opaque and
+ * unordered but never repeat.
+ *
+ * <p>The counter is kept in a small file shared by every minter for the same
+ * shoulder and template.  A minter reserves a block of counter values at a time
+ * while holding an exclusive lock on the file, then hands them out from memory, so
+ * threads and processes sharing the file never mint the same name and the file is
+ * only touched once per block.  Values left in a block when a process exits are
+ * never used, which leaves gaps but no collisions.  The permutation key is created
+ * with the file and stored in it, so all minters agree on the order.</p>
+ *
+ * <p>The counter file is never changed in place: each update is written to a
+ * temporary file, forced to the storage device and renamed over it, so a crash
+ * leaves either the old or the new counter.  Minters therefore lock a separate
+ * file named after the counter file with a ".lock" suffix, which is never
+ * replaced.  An empty counter file can only be the result of damage and is
+ * reported as corrupt rather than started again from zero.</p>
+ *
+ * <p>Check characters are computed over the identifier without its "ark:/" or
+ * "doi:" scheme, as NOID computes them over the NAAN, shoulder and name.  DOIs
+ * are case-insensitive and EZID shows them in upper case, so DOI names are upper
+ * cased after the check character is computed over the lower case form.</p>
+ */
+public class NoidMinter {
+
+    /** The default number of counter values reserved from the file at a time. */
+    public static final int DEFAULT_BLOCK_SIZE = 100;
+
+    private static final String MAGIC = "ezid-noid-counter";
+    private static final int ROUNDS = 4;
+
+    /** Monitors for counter files, since FileLock excludes other processes but not other threads. */
+    private static final ConcurrentMap<Path, Object> FILE_MONITORS = new ConcurrentHashMap<Path, Object>();
+
+    protected static Log log = LogFactory.getLog(NoidMinter.class);
+
+    private final String shoulder;
+    private final NoidTemplate template;
+    private final Path counterFile;
+    private final Path lockFile;
+    private final boolean doi;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    private long[] keys;
+    private int halfBits;
+    private long next;
+    private long blockEnd;
+
+    /**
+     * Create a minter.  The counter file is created on first use.
+     * @param shoulder the shoulder to mint under, such as "ark:/99999/fk4" or "doi:10.5072/FK2"
+     * @param template the NOID template for the names
+     * @param counterFile the file holding the shared counter
+     */
+    public NoidMinter(String shoulder, NoidTemplate template, Path counterFile) {
+        if (shoulder == null || !(shoulder.startsWith("ark:/") || shoulder.startsWith("doi:"))) {
+            throw new IllegalArgumentException("Shoulder must be an ark:/ or doi: shoulder: " + shoulder);
+        }
+        this.shoulder = shoulder;
+        this.template = template;
+        this.counterFile = counterFile.toAbsolutePath().normalize();
+        this.lockFile = this.counterFile.resolveSibling(this.counterFile.getFileName() + ".lock");
+        this.doi = shoulder.startsWith("doi:");
+    }
+
+    /**
+     * Set the number of counter values reserved from the counter file at a time.
+     * Larger blocks lock the file less often; smaller blocks leave fewer gaps.
+     * @param blockSize the block size, at least 1
+     */
+    public synchronized void setBlockSize(int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be at least 1.");
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return the shoulder identifiers are minted under
+     */
+    public String getShoulder() {
+        return shoulder;
+    }
+
+    /**
+     * @return the template names are produced from
+     */
+    public NoidTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * Mint a new identifier.  No request is made to EZID; the identifier still has
+     * to be created with createIdentifier.
+     * @return the identifier, made of the shoulder, template prefix, name and check character
+     * @throws EZIDException if the counter file cannot be used or the template is exhausted
+     */
+    public synchronized String mint() throws EZIDException {
+        if (next >= blockEnd) {
+            reserveBlock();
+        }
+        long n = next++;
+        if (template.getGenerator() == 'r') {
+            n = permute(n);
+        }
+        String name;
+        try {
+            name = template.format(n);
+        } catch (IllegalStateException e) {
+            throw new EZIDException(e.getMessage());
+        }
+        String body = checkBase(shoulder) + template.getPrefix() + name;
+        if (template.hasCheckCharacter()) {
+            body = body + NoidTemplate.checkCharacter(body);
+        }
+        String identifier = (doi ? "doi:" : "ark:/") + body;
+        return doi ? identifier.toUpperCase(Locale.ROOT) : identifier;
+    }
+
+    /**
+     * Check that an identifier could have been minted by this minter: that it
+     * starts with the shoulder and template prefix and, if the template has one,
+     * ends with a correct check character.
+     * @param identifier the identifier to check
+     * @return true if the identifier is valid
+     */
+    public boolean isValid(String identifier) {
+        if (identifier == null) {
+            return false;
+        }
+        String start = shoulder + template.getPrefix();
+        boolean prefixed = doi ? identifier.regionMatches(true, 0, start, 0, start.length())
+                : identifier.startsWith(start);
+        if (!prefixed || identifier.length() == start.length()) {
+            return false;
+        }
+        return !template.hasCheckCharacter() || NoidTemplate.verifyCheckCharacter(checkBase(identifier));
+    }
+
+    /**
+     * @return the identifier without its scheme, lower cased for DOIs
+     */
+    private String checkBase(String identifier) {
+        return doi ? identifier.substring("doi:".length()).toLowerCase(Locale.ROOT)
+                : identifier.substring("ark:/".length());
+    }
+
+    /**
+     * Reserve the next block of counter values from the counter file, creating it
+     * if needed, while holding both the JVM-wide monitor for the file and an
+     * exclusive lock on its lock file.
+     */
+    private void reserveBlock() throws EZIDException {
+        Object monitor = FILE_MONITORS.get(counterFile);
+        if (monitor == null) {
+            Object created = new Object();
+            monitor = FILE_MONITORS.putIfAbsent(counterFile, created);
+            if (monitor == null) {
+                monitor = created;
+            }
+        }
+        synchronized (monitor) {
+            FileChannel lockChannel = null;
+            FileLock lock = null;
+            try {
+                lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                lock = lockChannel.lock();
+                Properties state = read();
+                long seed;
+                long start;
+                if (state == null) {
+                    seed = new SecureRandom().nextLong();
+                    start = 0;
+                } else {
+                    if (!MAGIC.equals(state.getProperty("format"))
+                            || !template.getTemplate().equals(state.getProperty("template"))
+                            || !shoulder.equals(state.getProperty("shoulder"))) {
+                        throw new EZIDException("Counter file " + counterFile + " belongs to "
+                                + state.getProperty("shoulder") + " " + state.getProperty("template"));
+                    }
+                    seed = Long.parseLong(state.getProperty("seed"));
+                    start = Long.parseLong(state.getProperty("next"));
+                }
+                long capacity = template.getCapacity();
+                if (template.getGenerator() != 'z' && start >= capacity) {
+                    throw new EZIDException("NOID template " + template.getTemplate() + " is exhausted.");
+                }
+                long end = template.getGenerator() == 'z' ? start + blockSize : Math.min(capacity, start + blockSize);
+                write(seed, end);
+                if (keys == null) {
+                    initPermutation(seed);
+                }
+                next = start;
+                blockEnd = end;
+                log.debug("Reserved counters " + start + " to " + end + " from " + counterFile);
+            } catch (IOException e) {
+                throw new EZIDException("Unable to reserve counters from " + counterFile + ": " + e.getMessage());
+            } catch (NumberFormatException e) {
+                throw new EZIDException("Corrupt counter file " + counterFile + ": " + e.getMessage());
+            } finally {
+                release(lock, lockChannel);
+            }
+        }
+    }
+
+    private void release(FileLock lock, FileChannel lockChannel) {
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to release the lock on " + lockFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the state in the counter file, or null if there is no counter file yet
+     */
+    private Properties read() throws IOException, EZIDException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(counterFile);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (bytes.length == 0) {
+            throw new EZIDException("Corrupt counter file " + counterFile + ": the file is empty.");
+        }
+        Properties state = new Properties();
+        state.load(new StringReader(new String(bytes, StandardCharsets.UTF_8)));
+        return state;
+    }
+
+    /**
+     * Replace the counter file with one holding the given state.
+     */
+    private void write(long seed, long next) throws IOException {
+        String text = "format=" + MAGIC + "\n"
+                + "shoulder=" + shoulder + "\n"
+                + "template=" + template.getTemplate() + "\n"
+                + "seed=" + seed + "\n"
+                + "next=" + next + "\n";
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        Path tmp = counterFile.resolveSibling(counterFile.getFileName() + ".tmp");
+        FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        Files.move(tmp, counterFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+    }
+
+    /**
+     * Force the rename of the counter file to the storage device, where the
+     * platform allows a directory to be opened.
+     */
+    private void syncDirectory() {
+        Path directory = counterFile.getParent();
+        if (directory == null) {
+            return;
+        }
+        try {
+            FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.debug("Unable to sync " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Derive the round keys of the permutation from the file's seed.  The
+     * permutation works on a bit domain at least as large as the name space.
+     */
+    private void initPermutation(long seed) {
+        long capacity = template.getCapacity();
+        int bits = Math.max(2, 64 - Long.numberOfLeadingZeros(capacity - 1));
+        halfBits = (bits + 1) / 2;
+        keys = new long[ROUNDS];
+        long k = seed;
+        for (int i = 0; i < ROUNDS; i++) {
+            k = mix(k + 0x9E3779B97F4A7C15L);
+            keys[i] = k;
+        }
+    }
+
+    /**
+     * Map a counter value to a distinct value below the template's capacity with
+     * a balanced Feistel network, walking the cycle until the result is in range.
+     * The network is a bijection on its bit domain, and the domain is less than
+     * four times the capacity, so the walk ends quickly and never repeats a value.
+     */
+    private long permute(long n) {
+        long capacity = template.getCapacity();
+        long mask = (1L << halfBits) - 1;
+        do {
+            long left = n >>> halfBits;
+            long right = n & mask;
+            for (int i = 0; i < ROUNDS; i++) {
+                long t = left ^ (mix(right ^ keys[i]) & mask);
+                left = right;
+                right = t;
+            }
+            n = (left << halfBits) | right;
+        } while (n >= capacity);
+        return n;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
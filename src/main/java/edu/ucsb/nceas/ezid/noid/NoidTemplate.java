@@ -0,0 +1,186 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.noid;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A NoidTemplate is a NOID (Nice Opaque Identifier) minting template, such as
+ * "fk4.reeddeeedk", made of an optional prefix, a dot, and a mask.  The mask
+ * starts with the generator type:
+ * <ul>
+ * <li>r - counters are used in a pseudo-random order (see {@link NoidMinter}),</li>
+ * <li>s - counters are used in sequence,</li>
+ * <li>z - counters are used in sequence, and the identifiers grow when the mask
+ *     is exhausted by repeating its first character,</li>
+ * </ul>
+ * followed by one character per position of the generated name: 'd' for a digit,
+ * 'e' for an "extended digit" from the 29 betanumeric characters
+ * "0123456789bcdfghjkmnpqrstvwxz".  A final 'k' appends a check character that
+ * detects any single character error and any transposition of two adjacent
+ * characters, computed with the NOID algorithm.
+ *
+ * @see <a href="https://metacpan.org/dist/Noid/view/noid">The NOID utility</a>
+ */
+public class NoidTemplate {
+
+    /** The NOID extended digits, in order. */
+    public static final String XDIGITS = "0123456789bcdfghjkmnpqrstvwxz";
+
+    private static final Pattern TEMPLATE = Pattern.compile("(?:(.*)\\.)?([rsz])([de]+)(k?)");
+
+    private final String template;
+    private final String prefix;
+    private final char generator;
+    private final String mask;
+    private final boolean check;
+    private final long capacity;
+
+    /**
+     * Parse a template.
+     * @param template the template, for example "fk4.reeddeeedk" or "seeddk"
+     * @throws IllegalArgumentException if the template is malformed, or a random
+     *          template has more names than can be counted
+     */
+    public NoidTemplate(String template) {
+        Matcher m = TEMPLATE.matcher(template == null ? "" : template);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Malformed NOID template: " + template);
+        }
+        this.template = template;
+        this.prefix = m.group(1) == null ? "" : m.group(1);
+        this.generator = m.group(2).charAt(0);
+        this.mask = m.group(3);
+        this.check = m.group(4).length() > 0;
+        this.capacity = capacity(mask);
+        if (capacity < 0 && generator != 'z') {
+            throw new IllegalArgumentException("NOID template has too many names to count: " + template);
+        }
+    }
+
+    /**
+     * @return the template as given
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return the prefix placed before each generated name, which may be empty
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return the generator type: 'r', 's' or 'z'
+     */
+    public char getGenerator() {
+        return generator;
+    }
+
+    /**
+     * @return true if a check character is appended
+     */
+    public boolean hasCheckCharacter() {
+        return check;
+    }
+
+    /**
+     * @return the number of distinct names the mask can produce, or -1 if it is too
+     *          large to count; names from a 'z' template are unbounded
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Produce the name for a counter value, without the prefix or check character.
+     * @param n the counter value
+     * @return the name
+     * @throws IllegalStateException if the counter is beyond the capacity of an 'r' or 's' mask
+     */
+    public String format(long n) {
+        String m = mask;
+        if (capacity >= 0 && n >= capacity) {
+            if (generator != 'z') {
+                throw new IllegalStateException("NOID template " + template + " is exhausted.");
+            }
+            // z templates grow by repeating the first mask character
+            StringBuilder grown = new StringBuilder(mask);
+            long c = capacity;
+            while (c >= 0 && n >= c) {
+                grown.insert(0, mask.charAt(0));
+                c = capacity(grown.toString());
+            }
+            m = grown.toString();
+        }
+        char[] name = new char[m.length()];
+        for (int i = m.length() - 1; i >= 0; i--) {
+            int radix = m.charAt(i) == 'd' ? 10 : XDIGITS.length();
+            name[i] = XDIGITS.charAt((int) (n % radix));
+            n /= radix;
+        }
+        return new String(name);
+    }
+
+    /**
+     * Compute the NOID check character of a string: the sum of each character's
+     * extended digit value times its position (starting at 1), modulo 29, with
+     * characters outside the extended digits counting as zero.
+     * @param s the string to protect, normally the identifier without its scheme
+     * @return the check character
+     */
+    public static char checkCharacter(String s) {
+        long sum = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int value = XDIGITS.indexOf(s.charAt(i));
+            if (value > 0) {
+                sum += (long) value * (i + 1);
+            }
+        }
+        return XDIGITS.charAt((int) (sum % XDIGITS.length()));
+    }
+
+    /**
+     * @param s a string ending with a NOID check character
+     * @return true if the final character is the check character of the rest
+     */
+    public static boolean verifyCheckCharacter(String s) {
+        return s != null && s.length() > 1
+                && checkCharacter(s.substring(0, s.length() - 1)) == s.charAt(s.length() - 1);
+    }
+
+    /**
+     * @return the number of names a mask can produce, or -1 on overflow
+     */
+    private static long capacity(String mask) {
+        long c = 1;
+        for (int i = 0; i < mask.length(); i++) {
+            int radix = mask.charAt(i) == 'd' ? 10 : XDIGITS.length();
+            if (c > Long.MAX_VALUE / 4 / radix) {
+                return -1;
+            }
+            c *= radix;
+        }
+        return c;
+    }
+}
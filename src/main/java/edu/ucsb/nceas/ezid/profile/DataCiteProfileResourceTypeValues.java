@@ -1,7 +1,9 @@
 package edu.ucsb.nceas.ezid.profile;
 
 /**
- * Values for EZID DataCite profile resourcetype
+ * Values for EZID DataCite profile resourcetype, the resourceTypeGeneral values
+ * of the DataCite Metadata Schema up to version 4.5.  New values are added at the
+ * end so that the ordinals of existing values do not change.
  * @see http://ezid.cdlib.org/doc/apidoc.html#profile-datacite
  * @author leinfelder
  *
@@ -18,7 +20,26 @@ public enum DataCiteProfileResourceTypeValues {
 	SERVICE("Service"),
 	SOFTWARE("Software"),
 	SOUND("Sound"),
-	TEXT("Text");
+	TEXT("Text"),
+	AUDIOVISUAL("Audiovisual"),
+	DATA_PAPER("DataPaper"),
+	WORKFLOW("Workflow"),
+	OTHER("Other"),
+	BOOK("Book"),
+	BOOK_CHAPTER("BookChapter"),
+	COMPUTATIONAL_NOTEBOOK("ComputationalNotebook"),
+	CONFERENCE_PAPER("ConferencePaper"),
+	CONFERENCE_PROCEEDING("ConferenceProceeding"),
+	DISSERTATION("Dissertation"),
+	INSTRUMENT("Instrument"),
+	JOURNAL("Journal"),
+	JOURNAL_ARTICLE("JournalArticle"),
+	OUTPUT_MANAGEMENT_PLAN("OutputManagementPlan"),
+	PEER_REVIEW("PeerReview"),
+	PREPRINT("Preprint"),
+	REPORT("Report"),
+	STANDARD("Standard"),
+	STUDY_REGISTRATION("StudyRegistration");
 		
     private final String value;
 
@@ -0,0 +1,512 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.registry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.ezid.profile.InternalProfile;
+import edu.ucsb.nceas.ezid.profile.InternalProfileValues;
+
+/**
+ * An IdentifierRegistry is a persistent, local record of the identifiers this
+ * application has created, minted, updated and deleted through EZID, so that
+ * questions such as "which identifiers under doi:10.5072/FK2 are still reserved"
+ * or "what did we mint yesterday" can be answered without calling EZID.
+ *
+ * Only the internal metadata fields (those whose names start with "_", such as
+ * _status, _created, _owner and _target) are recorded.  Records are appended to a
+ * memory-mapped log file, and on open the log is replayed into in-memory indexes:
+ * a sorted index of identifiers that serves prefix queries, a sorted index per
+ * indexed field (by default _status and _owner), and a numeric index of _created
+ * for time range queries.  Queries never touch the file and return in microseconds.
+ * Use {@link #compact()} to drop superseded records from the log.
+ *
+ * An EZIDService keeps a registry up to date as a side effect of successful calls
+ * when one is installed with
+ * {@link edu.ucsb.nceas.ezid.EZIDService#setRegistry(IdentifierRegistry)}.
+ * The log survives a crash of the process; call {@link #sync()} to also force it
+ * to the storage device.
+ */
+public class IdentifierRegistry implements Closeable {
+
+    private static final int MAGIC = 0x455a5247; // "EZRG"
+    private static final int HEADER_SIZE = 16;
+    private static final int INITIAL_SIZE = 4 * 1024 * 1024;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+
+    private static final String STATUS = InternalProfile.STATUS.toString();
+    private static final String OWNER = InternalProfile.OWNER.toString();
+    private static final String CREATED = InternalProfile.CREATED.toString();
+
+    private final Path path;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long end;
+
+    private final ConcurrentSkipListMap<String, Map<String, String>> byIdentifier =
+            new ConcurrentSkipListMap<String, Map<String, String>>();
+    private final Map<String, ConcurrentSkipListMap<String, NavigableSet<String>>> fieldIndexes =
+            new ConcurrentHashMap<String, ConcurrentSkipListMap<String, NavigableSet<String>>>();
+    private final ConcurrentSkipListMap<Long, NavigableSet<String>> byCreated =
+            new ConcurrentSkipListMap<Long, NavigableSet<String>>();
+
+    protected static Log log = LogFactory.getLog(IdentifierRegistry.class);
+
+    /**
+     * Open or create a registry stored in the given file, indexing _status and _owner.
+     * @param path the registry log file
+     * @throws IOException if the file cannot be opened or is not a registry
+     */
+    public IdentifierRegistry(Path path) throws IOException {
+        this(path, STATUS, OWNER);
+    }
+
+    /**
+     * Open or create a registry stored in the given file, indexing the given fields.
+     * @param path the registry log file
+     * @param indexedFields internal field names to index for equality queries
+     * @throws IOException if the file cannot be opened or is not a registry
+     */
+    public IdentifierRegistry(Path path, String... indexedFields) throws IOException {
+        this.path = path;
+        for (String field : indexedFields) {
+            fieldIndexes.put(field, new ConcurrentSkipListMap<String, NavigableSet<String>>());
+        }
+        open();
+        replay();
+    }
+
+    /**
+     * Record that an identifier was created or minted.  Unless supplied in the
+     * metadata, _created is set to the current time and _status to public.
+     * @param identifier the new identifier
+     * @param metadata the metadata sent with the request, which may be null
+     * @param owner the account that created the identifier, or null if unknown
+     */
+    public void recordCreate(String identifier, Map<String, String> metadata, String owner) throws IOException {
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put(CREATED, Long.toString(System.currentTimeMillis() / 1000));
+        fields.put(STATUS, InternalProfileValues.PUBLIC.toString());
+        if (owner != null) {
+            fields.put(OWNER, owner);
+        }
+        fields.putAll(internalFields(metadata));
+        put(identifier, fields);
+    }
+
+    /**
+     * Record that metadata was set on an identifier; the internal fields are merged
+     * into any existing record.
+     * @param identifier the identifier that was updated
+     * @param metadata the metadata sent with the request
+     */
+    public void recordUpdate(String identifier, Map<String, String> metadata) throws IOException {
+        Map<String, String> changes = internalFields(metadata);
+        synchronized (this) {
+            Map<String, String> existing = byIdentifier.get(identifier);
+            Map<String, String> fields = existing == null ? new HashMap<String, String>()
+                    : new HashMap<String, String>(existing);
+            fields.putAll(changes);
+            fields.put(InternalProfile.UPDATED.toString(), Long.toString(System.currentTimeMillis() / 1000));
+            put(identifier, fields);
+        }
+    }
+
+    /**
+     * Record that an identifier was deleted.
+     * @param identifier the identifier that was deleted
+     */
+    public synchronized void recordDelete(String identifier) throws IOException {
+        if (!byIdentifier.containsKey(identifier)) {
+            return;
+        }
+        append(OP_DELETE, identifier, Collections.<String, String>emptyMap());
+        unindex(identifier);
+    }
+
+    /**
+     * @param identifier an identifier
+     * @return the recorded internal fields of the identifier, or null if it is not registered
+     */
+    public Map<String, String> get(String identifier) {
+        Map<String, String> fields = byIdentifier.get(identifier);
+        return fields == null ? null : Collections.unmodifiableMap(fields);
+    }
+
+    /**
+     * @return the number of registered identifiers
+     */
+    public int size() {
+        return byIdentifier.size();
+    }
+
+    /**
+     * @param prefix an identifier prefix, such as a shoulder
+     * @return the registered identifiers starting with the prefix, in sorted order
+     */
+    public NavigableSet<String> findByPrefix(String prefix) {
+        return Collections.unmodifiableNavigableSet(prefixRange(prefix).navigableKeySet());
+    }
+
+    /**
+     * Find identifiers with a given value of an indexed field.
+     * @param field an indexed internal field, such as _status
+     * @param value the value to match
+     * @return the matching identifiers, in sorted order
+     * @throws IllegalArgumentException if the field is not indexed
+     */
+    public NavigableSet<String> findByField(String field, String value) {
+        ConcurrentSkipListMap<String, NavigableSet<String>> index = fieldIndexes.get(field);
+        if (index == null) {
+            throw new IllegalArgumentException("Field is not indexed: " + field);
+        }
+        NavigableSet<String> ids = index.get(value);
+        return ids == null ? Collections.<String>emptyNavigableSet() : Collections.unmodifiableNavigableSet(ids);
+    }
+
+    /**
+     * Find identifiers under a prefix with a given value of an indexed field, for
+     * example the reserved identifiers under a shoulder.
+     * @param prefix an identifier prefix
+     * @param field an indexed internal field
+     * @param value the value to match
+     * @return the matching identifiers, in sorted order
+     */
+    public List<String> findByPrefixAndField(String prefix, String field, String value) {
+        NavigableSet<String> matches = findByField(field, value);
+        String last = prefix + Character.MAX_VALUE;
+        return new ArrayList<String>(matches.subSet(prefix, true, last, false));
+    }
+
+    /**
+     * Find identifiers whose _created time falls in a range.
+     * @param fromSeconds start of the range as a Unix timestamp, inclusive
+     * @param toSeconds end of the range as a Unix timestamp, exclusive
+     * @return the matching identifiers, ordered by creation time
+     */
+    public List<String> findCreatedBetween(long fromSeconds, long toSeconds) {
+        List<String> ids = new ArrayList<String>();
+        for (NavigableSet<String> set : byCreated.subMap(fromSeconds, true, toSeconds, false).values()) {
+            ids.addAll(set);
+        }
+        return ids;
+    }
+
+    /**
+     * Force the log to the storage device.
+     */
+    public synchronized void sync() {
+        buffer.force();
+    }
+
+    /**
+     * Rewrite the log so that it holds only the current record of each identifier.
+     * The indexes already describe the compacted log, so they are left in place and
+     * queries running during compaction see the same results throughout.
+     * @throws IOException if the compacted log cannot be written
+     */
+    public synchronized void compact() throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+        Files.deleteIfExists(tmp);
+        IdentifierRegistry compacted = new IdentifierRegistry(tmp);
+        for (Map.Entry<String, Map<String, String>> entry : byIdentifier.entrySet()) {
+            compacted.append(OP_PUT, entry.getKey(), entry.getValue());
+        }
+        compacted.close();
+        close();
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // reopens the original log if the move failed
+            open();
+        }
+    }
+
+    /**
+     * Flush and close the registry file.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            buffer.force();
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void put(String identifier, Map<String, String> fields) throws IOException {
+        synchronized (this) {
+            append(OP_PUT, identifier, fields);
+            index(identifier, fields);
+        }
+    }
+
+    /**
+     * Open and map the file, checking its header.  The indexes are not touched.
+     */
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean fresh = channel.size() == 0;
+        map(Math.max(channel.size(), INITIAL_SIZE));
+        if (fresh) {
+            buffer.putInt(0, MAGIC);
+            buffer.putLong(4, HEADER_SIZE);
+        } else if (buffer.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IOException("Not an identifier registry: " + path);
+        }
+        end = buffer.getLong(4);
+        if (end < HEADER_SIZE || end > buffer.capacity()) {
+            log.warn("Registry log " + path + " records an end of " + end + "; replaying up to the mapped size.");
+            end = buffer.capacity();
+        }
+    }
+
+    private void map(long size) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Replay the records of the log into the indexes.  A record that runs past the
+     * end of the log, or that cannot be decoded, marks the start of a torn or
+     * corrupt tail, which is dropped so that later records are appended after the
+     * last good one.
+     */
+    private void replay() {
+        long position = HEADER_SIZE;
+        int records = 0;
+        String problem = null;
+        while (position < end) {
+            if (end - position < 5) {
+                problem = "a truncated record header";
+                break;
+            }
+            int length = buffer.getInt((int) position);
+            byte op = buffer.get((int) position + 4);
+            if (length < 0 || length > end - position - 5) {
+                problem = "a record length of " + length;
+                break;
+            }
+            if (op != OP_PUT && op != OP_DELETE) {
+                problem = "an unknown record type " + op;
+                break;
+            }
+            String identifier;
+            Map<String, String> fields = new HashMap<String, String>();
+            try {
+                byte[] payload = new byte[length];
+                // through Buffer, which binds to the Java 8 method rather than the JDK 13 override
+                ((Buffer) buffer).position((int) position + 5);
+                buffer.get(payload);
+                Decoder decoder = new Decoder(payload);
+                identifier = decoder.string();
+                int count = decoder.count();
+                for (int i = 0; i < count; i++) {
+                    fields.put(decoder.string(), decoder.string());
+                }
+            } catch (RuntimeException e) {
+                problem = "an undecodable record (" + e + ")";
+                break;
+            }
+            if (op == OP_PUT) {
+                index(identifier, fields);
+            } else {
+                unindex(identifier);
+            }
+            position += 5 + length;
+            records++;
+        }
+        if (problem != null) {
+            log.warn("Registry log " + path + " has " + problem + " at " + position + "; ignoring the remainder.");
+            end = position;
+            buffer.putLong(4, end);
+        }
+        log.debug("Replayed " + records + " registry records for " + byIdentifier.size() + " identifiers.");
+    }
+
+    private void append(byte op, String identifier, Map<String, String> fields) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, identifier);
+        out.writeInt(fields.size());
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            writeString(out, field.getKey());
+            writeString(out, field.getValue());
+        }
+        byte[] payload = bytes.toByteArray();
+        long required = end + 5 + payload.length;
+        if (required > buffer.capacity()) {
+            long size = buffer.capacity();
+            while (size < required) {
+                size *= 2;
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Registry log is full; compact it or start a new registry.");
+            }
+            buffer.force();
+            map(size);
+        }
+        buffer.putInt((int) end, payload.length);
+        buffer.put((int) end + 4, op);
+        ((Buffer) buffer).position((int) end + 5);
+        buffer.put(payload);
+        end = required;
+        buffer.putLong(4, end);
+    }
+
+    private void index(String identifier, Map<String, String> fields) {
+        unindex(identifier);
+        byIdentifier.put(identifier, fields);
+        for (Map.Entry<String, ConcurrentSkipListMap<String, NavigableSet<String>>> index : fieldIndexes.entrySet()) {
+            String value = fields.get(index.getKey());
+            if (value != null) {
+                setFor(index.getValue(), value).add(identifier);
+            }
+        }
+        Long created = createdOf(fields);
+        if (created != null) {
+            setFor(byCreated, created).add(identifier);
+        }
+    }
+
+    private void unindex(String identifier) {
+        Map<String, String> old = byIdentifier.remove(identifier);
+        if (old == null) {
+            return;
+        }
+        for (Map.Entry<String, ConcurrentSkipListMap<String, NavigableSet<String>>> index : fieldIndexes.entrySet()) {
+            String value = old.get(index.getKey());
+            if (value != null) {
+                removeFrom(index.getValue(), value, identifier);
+            }
+        }
+        Long created = createdOf(old);
+        if (created != null) {
+            removeFrom(byCreated, created, identifier);
+        }
+    }
+
+    private NavigableMap<String, Map<String, String>> prefixRange(String prefix) {
+        return byIdentifier.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private static <K> NavigableSet<String> setFor(ConcurrentSkipListMap<K, NavigableSet<String>> index, K key) {
+        NavigableSet<String> set = index.get(key);
+        if (set == null) {
+            NavigableSet<String> created = new ConcurrentSkipListSet<String>();
+            set = index.putIfAbsent(key, created);
+            if (set == null) {
+                set = created;
+            }
+        }
+        return set;
+    }
+
+    private static <K> void removeFrom(ConcurrentSkipListMap<K, NavigableSet<String>> index, K key, String identifier) {
+        NavigableSet<String> set = index.get(key);
+        if (set != null) {
+            set.remove(identifier);
+            if (set.isEmpty()) {
+                index.remove(key, set);
+            }
+        }
+    }
+
+    private static Long createdOf(Map<String, String> fields) {
+        String created = fields.get(CREATED);
+        if (created == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(created.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, String> internalFields(Map<String, String> metadata) {
+        Map<String, String> fields = new HashMap<String, String>();
+        if (metadata != null) {
+            for (Map.Entry<String, String> entry : metadata.entrySet()) {
+                if (entry.getKey().startsWith("_")) {
+                    fields.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return fields;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Reads the fields of one record payload. */
+    private static class Decoder {
+        private final java.nio.ByteBuffer in;
+
+        Decoder(byte[] payload) {
+            in = java.nio.ByteBuffer.wrap(payload);
+        }
+
+        int count() {
+            int count = in.getInt();
+            if (count < 0 || count > in.remaining()) {
+                throw new IllegalArgumentException("Field count " + count + " exceeds the record");
+            }
+            return count;
+        }
+
+        String string() {
+            int length = in.getInt();
+            if (length < 0 || length > in.remaining()) {
+                throw new IllegalArgumentException("String length " + length + " exceeds the record");
+            }
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
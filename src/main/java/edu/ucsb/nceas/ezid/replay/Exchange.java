@@ -0,0 +1,150 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.replay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+
+/**
+ * One recorded HTTP request and its response.  The path is relative to the
+ * EZIDService base URL, so a recording can be replayed under any base URL.  The
+ * request body is kept as it was sent, which may be compressed; the response body
+ * is kept as the client decoded it.
+ */
+public class Exchange {
+
+    private final long offsetMicros;
+    private final long durationMicros;
+    private final String method;
+    private final String path;
+    private final Header[] requestHeaders;
+    private final byte[] requestBody;
+    private final int status;
+    private final String reason;
+    private final Header[] responseHeaders;
+    private final byte[] responseBody;
+
+    /**
+     * @param offsetMicros when the request was sent, from the start of the recording
+     * @param durationMicros how long the response took to arrive in full
+     * @param method the HTTP method
+     * @param path the request path and query, relative to the base URL
+     * @param requestHeaders the headers describing the request body
+     * @param requestBody the request body, or null
+     * @param status the response status code
+     * @param reason the response reason phrase
+     * @param responseHeaders the response headers
+     * @param responseBody the decoded response body, or null
+     */
+    public Exchange(long offsetMicros, long durationMicros, String method, String path, Header[] requestHeaders,
+            byte[] requestBody, int status, String reason, Header[] responseHeaders, byte[] responseBody) {
+        this.offsetMicros = offsetMicros;
+        this.durationMicros = durationMicros;
+        this.method = method;
+        this.path = path;
+        this.requestHeaders = requestHeaders;
+        this.requestBody = requestBody;
+        this.status = status;
+        this.reason = reason;
+        this.responseHeaders = responseHeaders;
+        this.responseBody = responseBody;
+    }
+
+    public long getOffsetMicros() {
+        return offsetMicros;
+    }
+
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Header[] getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    public byte[] getRequestBody() {
+        return requestBody;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public Header[] getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    public byte[] getResponseBody() {
+        return responseBody;
+    }
+
+    /**
+     * @return the request body decoded as UTF-8 text after undoing any gzip or
+     *          deflate content coding, or null if there was no body
+     * @throws IOException if the body cannot be decompressed
+     */
+    public String getRequestText() throws IOException {
+        if (requestBody == null) {
+            return null;
+        }
+        String coding = null;
+        for (Header h : requestHeaders) {
+            if (h.getName().equalsIgnoreCase("Content-Encoding")) {
+                coding = h.getValue();
+            }
+        }
+        InputStream in = new ByteArrayInputStream(requestBody);
+        if ("gzip".equalsIgnoreCase(coding)) {
+            in = new GZIPInputStream(in);
+        } else if ("deflate".equalsIgnoreCase(coding)) {
+            in = new InflaterInputStream(in);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    public String toString() {
+        return method + " " + path + " -> " + status + " in " + durationMicros + "us";
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.replay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * An HttpClient that passes each request to another client and records the
+ * request, the response and the time between them with a {@link TrafficRecorder}.
+ * Request bodies are buffered so they can be both recorded and sent, and response
+ * bodies are buffered so they can be both recorded and handed to the caller.  The
+ * recorded time therefore includes reading the whole response.  Headers carrying
+ * credentials or session cookies are never recorded, so a recording can be shared
+ * without exposing the account it was made with.
+ */
+public class RecordingHttpClient extends CloseableHttpClient {
+
+    /** Headers that carry credentials or sessions, in lower case. */
+    private static final Set<String> UNRECORDED = new HashSet<String>(Arrays.asList(
+            "authorization", "proxy-authorization", "cookie", "set-cookie", "set-cookie2"));
+
+    private final CloseableHttpClient delegate;
+    private final TrafficRecorder recorder;
+    private final String baseUrl;
+
+    protected static Log log = LogFactory.getLog(RecordingHttpClient.class);
+
+    /**
+     * @param delegate the client that sends the requests
+     * @param recorder where the exchanges are recorded
+     * @param baseUrl the base URL removed from request URIs to give recorded paths
+     */
+    public RecordingHttpClient(CloseableHttpClient delegate, TrafficRecorder recorder, String baseUrl) {
+        this.delegate = delegate;
+        this.recorder = recorder;
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * @return the client that sends the requests
+     */
+    public CloseableHttpClient getDelegate() {
+        return delegate;
+    }
+
+    protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+            throws IOException, ClientProtocolException {
+        List<Header> requestHeaders = new ArrayList<Header>();
+        byte[] requestBody = null;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntityEnclosingRequest enclosing = (HttpEntityEnclosingRequest) request;
+            HttpEntity entity = enclosing.getEntity();
+            if (entity != null) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                entity.writeTo(buffer);
+                requestBody = buffer.toByteArray();
+                ByteArrayEntity copy = new ByteArrayEntity(requestBody);
+                copy.setContentType(entity.getContentType());
+                copy.setContentEncoding(entity.getContentEncoding());
+                enclosing.setEntity(copy);
+                if (entity.getContentType() != null) {
+                    requestHeaders.add(entity.getContentType());
+                }
+                if (entity.getContentEncoding() != null) {
+                    requestHeaders.add(entity.getContentEncoding());
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        CloseableHttpResponse response = delegate.execute(target, request, context);
+        byte[] responseBody = null;
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            responseBody = EntityUtils.toByteArray(entity);
+            ByteArrayEntity copy = new ByteArrayEntity(responseBody);
+            copy.setContentType(entity.getContentType());
+            response.setEntity(copy);
+        }
+        long end = System.nanoTime();
+
+        List<Header> responseHeaders = new ArrayList<Header>();
+        for (Header h : response.getAllHeaders()) {
+            // the body is recorded decoded, so its coding and length no longer apply
+            String name = h.getName();
+            if (!name.equalsIgnoreCase("Content-Encoding") && !name.equalsIgnoreCase("Content-Length")
+                    && !name.equalsIgnoreCase("Transfer-Encoding") && isRecorded(name)) {
+                responseHeaders.add(new BasicHeader(name, h.getValue()));
+            }
+        }
+        Exchange exchange = new Exchange(recorder.elapsedMicros(start), (end - start) / 1000,
+                request.getRequestLine().getMethod(), relativePath(request), toArray(requestHeaders), requestBody,
+                response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase(),
+                toArray(responseHeaders), responseBody);
+        try {
+            recorder.record(exchange);
+        } catch (IOException e) {
+            log.warn("Could not record " + exchange + ": " + e.getMessage());
+        }
+        return response;
+    }
+
+    private String relativePath(HttpRequest request) {
+        String uri = request instanceof HttpUriRequest ? ((HttpUriRequest) request).getURI().toString()
+                : request.getRequestLine().getUri();
+        return uri.startsWith(baseUrl) ? uri.substring(baseUrl.length()) : uri;
+    }
+
+    /**
+     * @return false for headers that carry credentials or session cookies
+     */
+    private static boolean isRecorded(String name) {
+        return !UNRECORDED.contains(name.toLowerCase(Locale.ROOT));
+    }
+
+    private static Header[] toArray(List<Header> headers) {
+        return headers.toArray(new Header[headers.size()]);
+    }
+
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return delegate.getParams();
+    }
+
+    @SuppressWarnings("deprecation")
+    public ClientConnectionManager getConnectionManager() {
+        return delegate.getConnectionManager();
+    }
+}
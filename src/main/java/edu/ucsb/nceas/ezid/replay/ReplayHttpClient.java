@@ -0,0 +1,167 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.replay;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * An HttpClient that answers requests from a recording instead of the network.
+ * A request is matched to the recorded exchanges with the same method and path,
+ * which are served in the order they were recorded, starting again from the
+ * first once they run out, so a recorded workload can be run repeatedly.  A
+ * request with no recorded exchange fails with a ClientProtocolException.
+ *
+ * Each response is delayed by its recorded duration multiplied by a time scale:
+ * {@link #ORIGINAL_TIMING} reproduces the recorded latency, a scale between 0 and
+ * 1 compresses it, and {@link #NO_DELAY} answers at once, which leaves only the
+ * library's own CPU time in a measurement.
+ */
+public class ReplayHttpClient extends CloseableHttpClient {
+
+    /** Replay each response after its recorded duration. */
+    public static final double ORIGINAL_TIMING = 1.0;
+
+    /** Replay each response at once. */
+    public static final double NO_DELAY = 0.0;
+
+    private final Map<String, List<Exchange>> exchanges = new HashMap<String, List<Exchange>>();
+    private final Map<String, Integer> cursors = new HashMap<String, Integer>();
+    private final String baseUrl;
+    private final double timeScale;
+    private final AtomicLong delayedMicros = new AtomicLong();
+
+    /**
+     * @param recorded the exchanges to serve
+     * @param baseUrl the base URL removed from request URIs to give the paths to match
+     * @param timeScale the factor applied to recorded durations, 0 or more
+     */
+    public ReplayHttpClient(List<Exchange> recorded, String baseUrl, double timeScale) {
+        if (timeScale < 0) {
+            throw new IllegalArgumentException("Time scale must not be negative.");
+        }
+        for (Exchange e : recorded) {
+            String key = e.getMethod() + " " + e.getPath();
+            List<Exchange> list = exchanges.get(key);
+            if (list == null) {
+                list = new ArrayList<Exchange>();
+                exchanges.put(key, list);
+            }
+            list.add(e);
+        }
+        this.baseUrl = baseUrl;
+        this.timeScale = timeScale;
+    }
+
+    protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+            throws IOException, ClientProtocolException {
+        String uri = request instanceof HttpUriRequest ? ((HttpUriRequest) request).getURI().toString()
+                : request.getRequestLine().getUri();
+        String path = uri.startsWith(baseUrl) ? uri.substring(baseUrl.length()) : uri;
+        Exchange exchange = next(request.getRequestLine().getMethod() + " " + path);
+        long delayMicros = (long) (exchange.getDurationMicros() * timeScale);
+        if (delayMicros > 0) {
+            try {
+                TimeUnit.MICROSECONDS.sleep(delayMicros);
+                delayedMicros.addAndGet(delayMicros);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while replaying " + exchange);
+            }
+        }
+        ReplayedResponse response = new ReplayedResponse(exchange.getStatus(), exchange.getReason());
+        for (Header h : exchange.getResponseHeaders()) {
+            response.addHeader(h);
+        }
+        if (exchange.getResponseBody() != null) {
+            Header type = response.getFirstHeader("Content-Type");
+            response.setEntity(new ByteArrayEntity(exchange.getResponseBody(),
+                    type == null ? ContentType.DEFAULT_TEXT : ContentType.parse(type.getValue())));
+        }
+        return response;
+    }
+
+    /**
+     * @return the total time in microseconds for which responses have been held back
+     *          to reproduce their scaled recorded durations
+     */
+    public long getDelayedMicros() {
+        return delayedMicros.get();
+    }
+
+    private synchronized Exchange next(String key) throws ClientProtocolException {
+        List<Exchange> list = exchanges.get(key);
+        if (list == null) {
+            throw new ClientProtocolException("No recorded exchange for " + key);
+        }
+        Integer cursor = cursors.get(key);
+        int i = cursor == null ? 0 : cursor;
+        cursors.put(key, (i + 1) % list.size());
+        return list.get(i);
+    }
+
+    public void close() {
+    }
+
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return new BasicHttpParams();
+    }
+
+    @SuppressWarnings("deprecation")
+    public ClientConnectionManager getConnectionManager() {
+        return null;
+    }
+
+    /**
+     * A response served from a recording, which holds no connection to close.
+     */
+    private static class ReplayedResponse extends BasicHttpResponse implements CloseableHttpResponse {
+        ReplayedResponse(int status, String reason) {
+            super(new BasicStatusLine(HttpVersion.HTTP_1_1, status, reason));
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.replay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * A TrafficRecorder writes {@link Exchange}s to a compact recording file: a
+ * gzip-compressed stream of fixed binary records written with DataOutputStream.
+ * The file is complete once the recorder is closed; a recording cut short by a
+ * crash can still be read up to its last whole record.
+ */
+public class TrafficRecorder implements Closeable {
+
+    private static final int MAGIC = 0x455a5252; // "EZRR"
+    private static final int VERSION = 1;
+
+    private final DataOutputStream out;
+    private final long startNanos = System.nanoTime();
+    private long count = 0;
+
+    protected static Log log = LogFactory.getLog(TrafficRecorder.class);
+
+    /**
+     * Create a recording file, replacing any file of the same name.
+     * @param file the recording file
+     * @throws IOException if the file cannot be written
+     */
+    public TrafficRecorder(Path file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(file))));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * @return microseconds since the recording started, for an exchange's offset
+     */
+    long elapsedMicros(long nanoTime) {
+        return (nanoTime - startNanos) / 1000;
+    }
+
+    /**
+     * Append an exchange to the recording.
+     * @param exchange the exchange to write
+     * @throws IOException if it cannot be written
+     */
+    public synchronized void record(Exchange exchange) throws IOException {
+        out.writeByte(1);
+        out.writeLong(exchange.getOffsetMicros());
+        out.writeLong(exchange.getDurationMicros());
+        out.writeUTF(exchange.getMethod());
+        out.writeUTF(exchange.getPath());
+        writeHeaders(exchange.getRequestHeaders());
+        writeBytes(exchange.getRequestBody());
+        out.writeShort(exchange.getStatus());
+        out.writeUTF(exchange.getReason() == null ? "" : exchange.getReason());
+        writeHeaders(exchange.getResponseHeaders());
+        writeBytes(exchange.getResponseBody());
+        count++;
+    }
+
+    /**
+     * @return the number of exchanges recorded so far
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized void close() throws IOException {
+        out.writeByte(0);
+        out.close();
+        log.debug("Recorded " + count + " exchanges.");
+    }
+
+    /**
+     * Read every exchange in a recording, in the order they were recorded.
+     * @param file the recording file
+     * @return the exchanges
+     * @throws IOException if the file is not a recording or cannot be read
+     */
+    public static List<Exchange> read(Path file) throws IOException {
+        List<Exchange> exchanges = new ArrayList<Exchange>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                Files.newInputStream(file))));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a traffic recording.");
+            }
+            in.readLong();
+            while (in.readByte() == 1) {
+                long offset = in.readLong();
+                long duration = in.readLong();
+                String method = in.readUTF();
+                String path = in.readUTF();
+                Header[] requestHeaders = readHeaders(in);
+                byte[] requestBody = readBytes(in);
+                int status = in.readUnsignedShort();
+                String reason = in.readUTF();
+                Header[] responseHeaders = readHeaders(in);
+                byte[] responseBody = readBytes(in);
+                exchanges.add(new Exchange(offset, duration, method, path, requestHeaders, requestBody, status,
+                        reason, responseHeaders, responseBody));
+            }
+        } catch (EOFException e) {
+            log.warn("Recording " + file + " is truncated after " + exchanges.size() + " exchanges.");
+        } finally {
+            in.close();
+        }
+        return exchanges;
+    }
+
+    private void writeHeaders(Header[] headers) throws IOException {
+        out.writeShort(headers.length);
+        for (Header h : headers) {
+            out.writeUTF(h.getName());
+            out.writeUTF(h.getValue());
+        }
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static Header[] readHeaders(DataInputStream in) throws IOException {
+        Header[] headers = new Header[in.readUnsignedShort()];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = new BasicHeader(in.readUTF(), in.readUTF());
+        }
+        return headers;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
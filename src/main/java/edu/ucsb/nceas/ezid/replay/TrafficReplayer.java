@@ -0,0 +1,197 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.replay;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.ezid.ANVL;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+
+/**
+ * A TrafficReplayer runs the operations in a recording through the EZIDService
+ * API again, in their recorded order, with the service answering from the same
+ * recording.  The wall-clock and CPU time the library spends on each kind of
+ * operation are reported next to the recorded times, so a recording of
+ * production traffic can be replayed against a new version of the library to
+ * spot CPU or latency regressions without EZID being involved.
+ *
+ * Usage:
+ * <pre>
+ *   java edu.ucsb.nceas.ezid.replay.TrafficReplayer --file recording [--timing 0] [--repeat 1]
+ * </pre>
+ * --timing is the factor applied to recorded response times: 1 for the original
+ * timing, a fraction to compress it, or 0 (the default) for no delay.
+ */
+public class TrafficReplayer {
+
+    private static final String BASE_URL = "http://replay.invalid";
+
+    protected static Log log = LogFactory.getLog(TrafficReplayer.class);
+
+    private final List<Exchange> exchanges;
+    private final EZIDService ezid;
+    private final Map<String, long[]> totals = new TreeMap<String, long[]>();
+
+    /**
+     * Prepare to replay a recording.
+     * @param file the recording file
+     * @param timeScale the factor applied to recorded response times
+     * @throws IOException if the recording cannot be read
+     */
+    public TrafficReplayer(Path file, double timeScale) throws IOException {
+        exchanges = TrafficRecorder.read(file);
+        ezid = new EZIDService(BASE_URL);
+        ezid.startReplay(file, timeScale);
+    }
+
+    /**
+     * Replay every operation in the recording once, adding to the totals.
+     * @return the number of operations replayed
+     */
+    public int replay() throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean cpu = threads.isCurrentThreadCpuTimeSupported();
+        int count = 0;
+        for (Exchange exchange : exchanges) {
+            String operation = operation(exchange);
+            if (operation == null) {
+                continue;
+            }
+            long cpuStart = cpu ? threads.getCurrentThreadCpuTime() : 0;
+            long start = System.nanoTime();
+            try {
+                invoke(operation, exchange);
+            } catch (EZIDException e) {
+                // recorded failures replay as failures; only the time matters here
+                log.debug("Replayed " + exchange + ": " + e.getMessage());
+            }
+            long wall = System.nanoTime() - start;
+            long used = cpu ? threads.getCurrentThreadCpuTime() - cpuStart : 0;
+            long[] t = totals.get(operation);
+            if (t == null) {
+                t = new long[4];
+                totals.put(operation, t);
+            }
+            t[0]++;
+            t[1] += wall;
+            t[2] += used;
+            t[3] += exchange.getDurationMicros() * 1000;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Print the mean times per operation: recorded, replayed wall-clock and replayed CPU.
+     * @param out the destination
+     */
+    public void print(PrintStream out) {
+        out.println(String.format("%-8s %8s %12s %12s %12s", "op", "count", "recorded ms", "wall ms", "cpu ms"));
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            long[] t = entry.getValue();
+            out.println(String.format("%-8s %8d %12.3f %12.3f %12.3f", entry.getKey(), t[0], t[3] / 1e6 / t[0],
+                    t[1] / 1e6 / t[0], t[2] / 1e6 / t[0]));
+        }
+    }
+
+    /**
+     * @return the totals per operation: count, wall-clock, CPU and recorded nanoseconds
+     */
+    public Map<String, long[]> getTotals() {
+        return totals;
+    }
+
+    private static String operation(Exchange exchange) {
+        String path = exchange.getPath();
+        String method = exchange.getMethod();
+        if (path.startsWith("/shoulder/") && method.equals("POST")) {
+            return "mint";
+        }
+        if (!path.startsWith("/id/")) {
+            return null;
+        }
+        if (method.equals("GET")) {
+            return "get";
+        } else if (method.equals("PUT")) {
+            return "create";
+        } else if (method.equals("POST")) {
+            return "set";
+        } else if (method.equals("DELETE")) {
+            return "delete";
+        }
+        return null;
+    }
+
+    private void invoke(String operation, Exchange exchange) throws EZIDException, IOException {
+        String path = exchange.getPath();
+        String text = exchange.getRequestText();
+        HashMap<String, String> metadata = text == null ? null : ANVL.parse(text);
+        if (operation.equals("mint")) {
+            ezid.mintIdentifier(path.substring("/shoulder/".length()), metadata);
+            return;
+        }
+        String identifier = path.substring("/id/".length());
+        if (operation.equals("get")) {
+            ezid.getMetadata(identifier);
+        } else if (operation.equals("create")) {
+            ezid.createIdentifier(identifier, metadata);
+        } else if (operation.equals("set")) {
+            ezid.setMetadata(identifier, metadata);
+        } else {
+            ezid.deleteIdentifier(identifier);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                opts.put(args[i].substring(2), args[++i]);
+            } else {
+                System.err.println("Unrecognized argument: " + args[i]);
+                System.exit(2);
+            }
+        }
+        if (!opts.containsKey("file")) {
+            System.err.println("A recording must be given with --file.");
+            System.exit(2);
+        }
+        double timing = Double.parseDouble(opts.containsKey("timing") ? opts.get("timing") : "0");
+        int repeat = Integer.parseInt(opts.containsKey("repeat") ? opts.get("repeat") : "1");
+        TrafficReplayer replayer = new TrafficReplayer(Paths.get(opts.get("file")), timing);
+        for (int i = 0; i < repeat; i++) {
+            replayer.replay();
+        }
+        replayer.print(System.out);
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.schedule;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel, in the style of the Linux kernel's timer wheel.
+ * The first level has 256 buckets of one tick each; each of the three levels above
+ * it has 64 buckets, each spanning a whole turn of the level below.  Adding or
+ * cancelling a transition costs a constant time whatever the number pending, and
+ * as time advances the bucket of the coming turn on each higher level is cascaded
+ * down to the finer level below.  The wheel spans 2^26 ticks, over two years with
+ * one second ticks; later transitions wait in an overflow list that is re-examined
+ * once per turn of the top level.  Cancelled transitions are dropped lazily when
+ * their bucket is reached.  A wheel is not thread safe.
+ */
+class TimingWheel {
+
+    private static final int FIRST_BITS = 8;
+    private static final int LEVEL_BITS = 6;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final List<List<List<PendingTransition>>> levels = new ArrayList<List<List<PendingTransition>>>();
+    private List<PendingTransition> overflow = new ArrayList<PendingTransition>();
+    private long currentTick;
+
+    /**
+     * @param tickMillis the resolution of the wheel in milliseconds
+     * @param nowMillis the current time
+     */
+    TimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        for (int level = 0; level < LEVELS; level++) {
+            int buckets = 1 << (level == 0 ? FIRST_BITS : LEVEL_BITS);
+            List<List<PendingTransition>> wheel = new ArrayList<List<PendingTransition>>(buckets);
+            for (int i = 0; i < buckets; i++) {
+                wheel.add(new ArrayList<PendingTransition>());
+            }
+            levels.add(wheel);
+        }
+    }
+
+    /**
+     * Add a transition; one that is already due fires at the next advance.
+     */
+    void add(PendingTransition transition) {
+        long tick = Math.max(transition.fireAtMillis / tickMillis, currentTick);
+        long delta = tick - currentTick;
+        int shift = 0;
+        for (int level = 0; level < LEVELS; level++) {
+            int bits = level == 0 ? FIRST_BITS : LEVEL_BITS;
+            if (delta < (1L << (shift + bits))) {
+                levels.get(level).get((int) ((tick >>> shift) & ((1 << bits) - 1))).add(transition);
+                return;
+            }
+            shift += bits;
+        }
+        overflow.add(transition);
+    }
+
+    /**
+     * Advance the wheel to the given time, collecting every transition that is due.
+     * @param nowMillis the current time
+     * @param due the list to which due transitions that are not finished are added
+     */
+    void advance(long nowMillis, List<PendingTransition> due) {
+        long target = nowMillis / tickMillis;
+        while (currentTick <= target) {
+            int index = (int) (currentTick & ((1 << FIRST_BITS) - 1));
+            if (index == 0) {
+                cascade(1);
+            }
+            List<PendingTransition> bucket = levels.get(0).get(index);
+            for (PendingTransition transition : bucket) {
+                if (!transition.finished) {
+                    due.add(transition);
+                }
+            }
+            bucket.clear();
+            currentTick++;
+        }
+        // stay on the current tick, so transitions added for now fire at the next advance
+        currentTick = target;
+    }
+
+    /**
+     * Re-add the bucket of the current turn on the given level, and on the level
+     * above when this level has wrapped.
+     */
+    private void cascade(int level) {
+        if (level == LEVELS) {
+            List<PendingTransition> waiting = overflow;
+            overflow = new ArrayList<PendingTransition>();
+            readd(waiting);
+            return;
+        }
+        int shift = FIRST_BITS + (level - 1) * LEVEL_BITS;
+        int index = (int) ((currentTick >>> shift) & ((1 << LEVEL_BITS) - 1));
+        List<PendingTransition> bucket = levels.get(level).get(index);
+        List<PendingTransition> cascaded = new ArrayList<PendingTransition>(bucket);
+        bucket.clear();
+        if (index == 0) {
+            cascade(level + 1);
+        }
+        readd(cascaded);
+    }
+
+    private void readd(List<PendingTransition> transitions) {
+        for (PendingTransition transition : transitions) {
+            if (!transition.finished) {
+                add(transition);
+            }
+        }
+    }
+}
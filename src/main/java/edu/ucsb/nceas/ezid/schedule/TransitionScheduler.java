@@ -0,0 +1,896 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.schedule;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.ezid.EZIDClient;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDRequestListener;
+import edu.ucsb.nceas.ezid.EZIDServiceRequest;
+import edu.ucsb.nceas.ezid.RequestPriority;
+import edu.ucsb.nceas.ezid.profile.InternalProfile;
+import edu.ucsb.nceas.ezid.profile.InternalProfileValues;
+
+/**
+ * A TransitionScheduler holds metadata changes that are to be made at a future
+ * time, such as making a reserved identifier public when its embargo ends, and
+ * makes each one through an EZIDClient when it falls due.  Due transitions are
+ * queued as setMetadata requests in the client's BULK lane, so they are subject
+ * to the client's worker limit, any SharedRateLimiter and its dead letter sink,
+ * and the scheduler fires at most {@link #setMaxFiresPerTick(int) a set number}
+ * in each tick.
+ * <p>
+ * Every change is appended to a journal file: scheduling, cancelling, claiming a
+ * due transition and its completion.  On open the journal is replayed into a
+ * hierarchical timing wheel, which holds only the position of each pending
+ * transition so that millions can wait at once; the identifier and metadata are
+ * read back from the journal when the transition fires.  Several processes may
+ * share one journal, for example one per host: each update is made under an
+ * exclusive lock on the file after reading the other processes' new records, so a
+ * due transition is claimed by exactly one of them.  Transitions a process had
+ * claimed but not completed when it stopped are queued again when a scheduler
+ * with the same owner name opens the journal, so each process needs a stable,
+ * unique owner name.  Call {@link #close()} after the client has been shut down
+ * and has drained its queue, so that completions are recorded.
+ * <p>
+ * For example, to release an embargoed dataset:
+ * <pre>
+ *   TransitionScheduler scheduler = client.startScheduler(Paths.get("transitions.log"), "worker-1");
+ *   scheduler.scheduleStatus("doi:10.5072/FK2/ABC", embargoEndMillis, InternalProfileValues.PUBLIC);
+ * </pre>
+ */
+public class TransitionScheduler implements Closeable {
+
+    /** The default resolution of the schedule, one second. */
+    public static final long DEFAULT_TICK_MILLIS = 1000;
+
+    private static final int MAGIC = 0x455a5453; // "EZTS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final byte OP_SCHEDULE = 1;
+    private static final byte OP_CANCEL = 2;
+    private static final byte OP_CLAIM = 3;
+    private static final byte OP_DONE = 4;
+
+    /** Monitors for journal files, since FileLock excludes other processes but not other threads. */
+    private static final ConcurrentMap<Path, JournalFile> FILE_MONITORS = new ConcurrentHashMap<Path, JournalFile>();
+
+    protected static Log log = LogFactory.getLog(TransitionScheduler.class);
+
+    private final EZIDClient client;
+    private final Path path;
+    private final String owner;
+    private final String fairnessKey;
+    private final long tickMillis;
+    private final JournalFile monitor;
+    private final EZIDRequestListener listener = new CompletionListener();
+    private final Map<Long, PendingTransition> pending = new HashMap<Long, PendingTransition>();
+    private final Map<String, Deque<Long>> running = new HashMap<String, Deque<Long>>();
+    private final Map<Long, String> claimOwners = new HashMap<Long, String>();
+    private final Map<Long, Long> claimOffsets = new HashMap<Long, Long>();
+    private final AtomicLong fired = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private FileChannel channel;
+    private TimingWheel wheel;
+    private long readPosition;
+    private long nextId = 1;
+    private int maxFiresPerTick = Integer.MAX_VALUE;
+    private Thread ticker = null;
+    private volatile boolean closed = false;
+
+    /**
+     * Open or create a journal with one second ticks.
+     * @param client the client through which due transitions are made
+     * @param path the journal file
+     * @param owner a name for this process, stable across restarts and unique among
+     *          the processes sharing the journal
+     * @throws IOException if the journal cannot be opened or is not a transition journal
+     * @throws InterruptedException if interrupted while queueing resumed transitions
+     */
+    public TransitionScheduler(EZIDClient client, Path path, String owner) throws IOException, InterruptedException {
+        this(client, path, owner, DEFAULT_TICK_MILLIS);
+    }
+
+    /**
+     * Open or create a journal with the given tick.  Transitions fire within a tick
+     * of their time.
+     * @param client the client through which due transitions are made
+     * @param path the journal file
+     * @param owner a name for this process, stable across restarts and unique among
+     *          the processes sharing the journal
+     * @param tickMillis the resolution of the schedule in milliseconds
+     * @throws IOException if the journal cannot be opened or is not a transition journal
+     * @throws InterruptedException if interrupted while queueing resumed transitions
+     */
+    public TransitionScheduler(EZIDClient client, Path path, String owner, long tickMillis)
+            throws IOException, InterruptedException {
+        if (client == null || owner == null || owner.isEmpty()) {
+            throw new IllegalArgumentException("A client and an owner name are required.");
+        }
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("The tick must be at least 1 ms.");
+        }
+        this.client = client;
+        this.path = path.toAbsolutePath().normalize();
+        this.owner = owner;
+        this.fairnessKey = "scheduler:" + owner;
+        this.tickMillis = tickMillis;
+        JournalFile m = new JournalFile(this.path);
+        JournalFile existing = FILE_MONITORS.putIfAbsent(this.path, m);
+        this.monitor = existing == null ? m : existing;
+
+        Map<Long, Long> resume = new LinkedHashMap<Long, Long>();
+        synchronized (this) {
+            synchronized (monitor) {
+                monitor.join();
+            }
+            boolean opened = false;
+            try {
+                open();
+                opened = true;
+            } finally {
+                if (!opened) {
+                    synchronized (monitor) {
+                        monitor.leave();
+                    }
+                }
+            }
+            for (Map.Entry<Long, String> claim : claimOwners.entrySet()) {
+                if (claim.getValue().equals(owner)) {
+                    resume.put(claim.getKey(), claimOffsets.get(claim.getKey()));
+                }
+            }
+        }
+        client.addRequestListener(listener);
+        if (!resume.isEmpty()) {
+            log.info("Resuming " + resume.size() + " transitions claimed by " + owner + " but not completed.");
+        }
+        for (Map.Entry<Long, Long> claim : resume.entrySet()) {
+            submit(claim.getKey(), claim.getValue());
+        }
+    }
+
+    /**
+     * Schedule metadata to be set on an identifier at the given time.  A time in
+     * the past fires at the next tick.
+     * @param identifier the identifier to update
+     * @param fireAtMillis the time to make the change, in milliseconds since the epoch
+     * @param metadata the metadata to set, such as a new _status or _target
+     * @return the id of the scheduled transition, for {@link #cancel(long)}
+     * @throws IOException if the journal cannot be written
+     */
+    public long schedule(String identifier, long fireAtMillis, Map<String, String> metadata) throws IOException {
+        if (identifier == null || metadata == null || metadata.isEmpty()) {
+            throw new IllegalArgumentException("An identifier and the metadata to set are required.");
+        }
+        synchronized (this) {
+            checkOpen();
+            synchronized (monitor) {
+                FileLock lock = channel.lock();
+                try {
+                    catchUp();
+                    long id = nextId++;
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(bytes);
+                    out.writeLong(id);
+                    out.writeLong(fireAtMillis);
+                    writeString(out, identifier);
+                    out.writeInt(metadata.size());
+                    for (Map.Entry<String, String> field : metadata.entrySet()) {
+                        writeString(out, field.getKey());
+                        writeString(out, field.getValue());
+                    }
+                    long offset = append(OP_SCHEDULE, bytes.toByteArray());
+                    PendingTransition transition = new PendingTransition(id, fireAtMillis, offset);
+                    pending.put(id, transition);
+                    wheel.add(transition);
+                    return id;
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedule a change of an identifier's _status, such as making a reserved
+     * identifier public when its embargo ends.
+     * @param identifier the identifier to update
+     * @param fireAtMillis the time to make the change, in milliseconds since the epoch
+     * @param status the new status
+     * @return the id of the scheduled transition
+     * @throws IOException if the journal cannot be written
+     */
+    public long scheduleStatus(String identifier, long fireAtMillis, InternalProfileValues status)
+            throws IOException {
+        Map<String, String> metadata = new HashMap<String, String>();
+        metadata.put(InternalProfile.STATUS.toString(), status.toString());
+        return schedule(identifier, fireAtMillis, metadata);
+    }
+
+    /**
+     * Cancel a pending transition.
+     * @param id the id returned when the transition was scheduled
+     * @return true if it was cancelled, false if it had already been claimed or cancelled
+     * @throws IOException if the journal cannot be written
+     */
+    public synchronized boolean cancel(long id) throws IOException {
+        checkOpen();
+        synchronized (monitor) {
+            FileLock lock = channel.lock();
+            try {
+                catchUp();
+                PendingTransition transition = pending.remove(id);
+                if (transition == null) {
+                    return false;
+                }
+                transition.finished = true;
+                append(OP_CANCEL, longBytes(id));
+                return true;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Fire the transitions that are due: claim them in the journal and queue them
+     * with the client.  The scheduler's own thread calls this every tick once
+     * {@link #start()} has been called.
+     * @return the number of transitions queued
+     * @throws IOException if the journal cannot be read or written
+     * @throws InterruptedException if interrupted while queueing; the claimed
+     *          transitions are queued again when the journal is next opened
+     */
+    public int poll() throws IOException, InterruptedException {
+        Map<Long, Long> claimed = new LinkedHashMap<Long, Long>();
+        synchronized (this) {
+            checkOpen();
+            if (channel.size() > readPosition) {
+                synchronized (monitor) {
+                    FileLock lock = channel.lock();
+                    try {
+                        catchUp();
+                    } finally {
+                        lock.release();
+                    }
+                }
+            }
+            List<PendingTransition> due = new ArrayList<PendingTransition>();
+            wheel.advance(System.currentTimeMillis(), due);
+            if (due.isEmpty()) {
+                return 0;
+            }
+            if (due.size() > maxFiresPerTick) {
+                Collections.sort(due, new Comparator<PendingTransition>() {
+                    public int compare(PendingTransition a, PendingTransition b) {
+                        return Long.compare(a.fireAtMillis, b.fireAtMillis);
+                    }
+                });
+                // the rest wait for the next tick
+                for (PendingTransition later : due.subList(maxFiresPerTick, due.size())) {
+                    wheel.add(later);
+                }
+                due = due.subList(0, maxFiresPerTick);
+            }
+            synchronized (monitor) {
+                FileLock lock = channel.lock();
+                try {
+                    // another process may have claimed or cancelled some of them
+                    catchUp();
+                    for (PendingTransition transition : due) {
+                        if (!transition.finished) {
+                            transition.finished = true;
+                            pending.remove(transition.id);
+                            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                            DataOutputStream out = new DataOutputStream(bytes);
+                            out.writeLong(transition.id);
+                            writeString(out, owner);
+                            append(OP_CLAIM, bytes.toByteArray());
+                            claimOwners.put(transition.id, owner);
+                            claimOffsets.put(transition.id, transition.offset);
+                            claimed.put(transition.id, transition.offset);
+                        }
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+        // queue outside the lock, since a full queue blocks until workers finish
+        for (Map.Entry<Long, Long> claim : claimed.entrySet()) {
+            submit(claim.getKey(), claim.getValue());
+        }
+        return claimed.size();
+    }
+
+    /**
+     * Start a daemon thread that calls {@link #poll()} every tick.
+     */
+    public synchronized void start() {
+        checkOpen();
+        if (ticker != null) {
+            return;
+        }
+        ticker = new Thread(new Runnable() {
+            public void run() {
+                while (!closed) {
+                    try {
+                        poll();
+                        long now = System.currentTimeMillis();
+                        Thread.sleep(tickMillis - now % tickMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        log.error("Could not fire scheduled transitions from " + path + ": " + e.getMessage());
+                        try {
+                            Thread.sleep(tickMillis);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    } catch (IllegalStateException e) {
+                        return;
+                    }
+                }
+            }
+        }, "ezid-transition-scheduler");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Limit the number of transitions fired in each tick; the earliest are fired
+     * first and the rest wait for the following ticks.
+     * @param maxFiresPerTick the limit, at least 1
+     */
+    public synchronized void setMaxFiresPerTick(int maxFiresPerTick) {
+        if (maxFiresPerTick < 1) {
+            throw new IllegalArgumentException("At least one transition must fire per tick.");
+        }
+        this.maxFiresPerTick = maxFiresPerTick;
+    }
+
+    /**
+     * @return the number of transitions scheduled and not yet claimed or cancelled,
+     *          by any process, as of this scheduler's last read of the journal
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of transitions this scheduler has queued with the client
+     */
+    public long getFiredCount() {
+        return fired.get();
+    }
+
+    /**
+     * @return the number of queued transitions that EZID has made
+     */
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    /**
+     * @return the number of queued transitions that failed, and went to the client's
+     *          dead letter sink if it has one
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Force the journal to the storage device.
+     * @throws IOException if the journal cannot be written
+     */
+    public synchronized void sync() throws IOException {
+        checkOpen();
+        channel.force(false);
+    }
+
+    /**
+     * Rewrite the journal so that it holds only the pending transitions and those
+     * claimed but not completed, keeping the next transition id in the header so
+     * that ids are never reused.  Compaction replaces the journal file, so it is
+     * only done when no other scheduler, in this or any other process, has the
+     * journal open; schedulers that open the journal meanwhile wait for it to finish.
+     * @throws IOException if another scheduler has the journal open, or the
+     *          compacted journal cannot be written
+     */
+    public synchronized void compact() throws IOException {
+        checkOpen();
+        Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+        synchronized (monitor) {
+            if (!monitor.lockExclusive()) {
+                throw new IOException("Transition journal " + path
+                        + " is open in another scheduler and cannot be compacted.");
+            }
+            try {
+                try {
+                    writeCompacted(tmp);
+                    channel.close();
+                    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    channel.close();
+                    monitor.unlockExclusive();
+                }
+            } finally {
+                // reopen under the shared lock, so no other compaction can replace the file we open
+                open();
+            }
+        }
+    }
+
+    /**
+     * Write the live records of the journal to a new file.  The caller holds the
+     * exclusive lock on the lock file.
+     */
+    private void writeCompacted(Path tmp) throws IOException {
+        FileLock lock = channel.lock();
+        try {
+            catchUp();
+            Map<Long, Long> live = new HashMap<Long, Long>(claimOffsets);
+            for (PendingTransition transition : pending.values()) {
+                live.put(transition.id, transition.offset);
+            }
+            List<Long> ids = new ArrayList<Long>(live.keySet());
+            Collections.sort(ids);
+            FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                long position = write(out, 0, header(nextId));
+                for (Long id : ids) {
+                    position += write(out, position, readRecord(live.get(id)));
+                    String claimant = claimOwners.get(id);
+                    if (claimant != null) {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        DataOutputStream claim = new DataOutputStream(bytes);
+                        claim.writeLong(id);
+                        writeString(claim, claimant);
+                        position += write(out, position, record(OP_CLAIM, bytes.toByteArray()));
+                    }
+                }
+                out.force(false);
+            } finally {
+                out.close();
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Stop firing transitions and close the journal.  Transitions still queued
+     * with the client are not recorded as completed, and are queued again when the
+     * journal is next opened by this owner.
+     */
+    public void close() throws IOException {
+        Thread t;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            t = ticker;
+        }
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        client.removeRequestListener(listener);
+        synchronized (this) {
+            try {
+                channel.close();
+            } finally {
+                synchronized (monitor) {
+                    monitor.leave();
+                }
+            }
+        }
+    }
+
+    /**
+     * Open the journal, creating it if needed, and replay it into a new wheel.  The
+     * next id is the larger of the one kept in the header by the last compaction and
+     * the one after the last scheduled transition.
+     */
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        pending.clear();
+        claimOwners.clear();
+        claimOffsets.clear();
+        wheel = new TimingWheel(tickMillis, System.currentTimeMillis());
+        readPosition = HEADER_SIZE;
+        nextId = 1;
+        boolean loaded = false;
+        try {
+            synchronized (monitor) {
+                FileLock lock = channel.lock();
+                try {
+                    if (channel.size() == 0) {
+                        write(channel, 0, header(nextId));
+                    } else {
+                        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                        channel.read(header, 0);
+                        if (header.position() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+                            throw new IOException("Not a transition journal: " + path);
+                        }
+                        if (header.getInt(4) != VERSION) {
+                            throw new IOException("Unsupported transition journal version " + header.getInt(4)
+                                    + ": " + path);
+                        }
+                        nextId = Math.max(1, header.getLong(8));
+                    }
+                    catchUp();
+                } finally {
+                    lock.release();
+                }
+            }
+            loaded = true;
+        } finally {
+            if (!loaded) {
+                channel.close();
+            }
+        }
+        log.debug("Loaded " + pending.size() + " pending transitions from " + path);
+    }
+
+    /**
+     * Read the records appended since the last read, by this or any other process,
+     * and apply them.  A partial record at the end was left by a process that died
+     * while writing it, since records are written under the lock, and is removed.
+     * The caller holds the file lock.
+     */
+    private void catchUp() throws IOException {
+        long size = channel.size();
+        if (size <= readPosition) {
+            return;
+        }
+        channel.position(readPosition);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        while (readPosition < size) {
+            if (size - readPosition < 5) {
+                truncate(size);
+                return;
+            }
+            int length = in.readInt();
+            byte op = in.readByte();
+            if (length < 0 || size - readPosition - 5 < length) {
+                truncate(size);
+                return;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            apply(op, ByteBuffer.wrap(payload), readPosition);
+            readPosition += 5 + length;
+        }
+    }
+
+    private void truncate(long size) throws IOException {
+        log.warn("Transition journal " + path + " ends with an incomplete record at " + readPosition
+                + "; removing " + (size - readPosition) + " bytes.");
+        channel.truncate(readPosition);
+    }
+
+    private void apply(byte op, ByteBuffer payload, long offset) {
+        long id = payload.getLong();
+        if (op == OP_SCHEDULE) {
+            long fireAt = payload.getLong();
+            nextId = Math.max(nextId, id + 1);
+            PendingTransition transition = new PendingTransition(id, fireAt, offset);
+            pending.put(id, transition);
+            wheel.add(transition);
+        } else if (op == OP_CANCEL || op == OP_CLAIM) {
+            PendingTransition transition = pending.remove(id);
+            if (transition != null) {
+                transition.finished = true;
+                if (op == OP_CLAIM) {
+                    claimOwners.put(id, readString(payload));
+                    claimOffsets.put(id, transition.offset);
+                }
+            }
+        } else if (op == OP_DONE) {
+            claimOwners.remove(id);
+            claimOffsets.remove(id);
+        }
+    }
+
+    /**
+     * Append a record at the end of the journal.  The caller holds the file lock and
+     * has read every earlier record.
+     * @return the position of the record
+     */
+    private long append(byte op, byte[] payload) throws IOException {
+        long position = channel.size();
+        readPosition = position + write(channel, position, record(op, payload));
+        return position;
+    }
+
+    /**
+     * Queue a claimed transition with the client.
+     */
+    private void submit(long id, long offset) throws IOException, InterruptedException {
+        String identifier;
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        Deque<Long> ids;
+        synchronized (this) {
+            checkOpen();
+            ByteBuffer record = readRecord(offset);
+            // through Buffer, which binds to the Java 8 method rather than the JDK 9 override
+            ((Buffer) record).position(5 + 16);
+            identifier = readString(record);
+            int count = record.getInt();
+            for (int i = 0; i < count; i++) {
+                metadata.put(readString(record), readString(record));
+            }
+            ids = running.get(identifier);
+            if (ids == null) {
+                ids = new ArrayDeque<Long>();
+                running.put(identifier, ids);
+            }
+            ids.add(id);
+        }
+        try {
+            client.setMetadata(identifier, metadata, RequestPriority.BULK, fairnessKey);
+            fired.incrementAndGet();
+        } catch (IllegalArgumentException e) {
+            log.error("Scheduled transition " + id + " for " + identifier + " was rejected: " + e.getMessage());
+            failed.incrementAndGet();
+            finish(identifier);
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                ids = running.get(identifier);
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    running.remove(identifier);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Record the completion of the oldest running transition for an identifier.
+     */
+    private void finish(String identifier) {
+        synchronized (this) {
+            Deque<Long> ids = running.get(identifier);
+            Long id = ids == null ? null : ids.poll();
+            if (id == null) {
+                return;
+            }
+            if (ids.isEmpty()) {
+                running.remove(identifier);
+            }
+            claimOwners.remove(id);
+            claimOffsets.remove(id);
+            if (closed) {
+                return;
+            }
+            try {
+                synchronized (monitor) {
+                    FileLock lock = channel.lock();
+                    try {
+                        catchUp();
+                        append(OP_DONE, longBytes(id));
+                    } finally {
+                        lock.release();
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Could not record completion of scheduled transition " + id + " for " + identifier
+                        + "; it will be made again when the journal is reopened: " + e.getMessage());
+            }
+        }
+    }
+
+    private ByteBuffer readRecord(long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length, offset);
+        ByteBuffer record = ByteBuffer.allocate(5 + length.getInt(0));
+        readFully(record, offset);
+        ((Buffer) record).flip();
+        return record;
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Transition journal " + path + " is truncated at " + offset);
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The transition scheduler for " + path + " is closed.");
+        }
+    }
+
+    private static ByteBuffer header(long nextId) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(nextId);
+        ((Buffer) header).flip();
+        return header;
+    }
+
+    private static ByteBuffer record(byte op, byte[] payload) {
+        ByteBuffer record = ByteBuffer.allocate(5 + payload.length);
+        record.putInt(payload.length);
+        record.put(op);
+        record.put(payload);
+        ((Buffer) record).flip();
+        return record;
+    }
+
+    private static int write(FileChannel out, long position, ByteBuffer buffer) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private static byte[] longBytes(long value) {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The lock file of a journal, named after it with a ".lock" suffix, and the
+     * monitor on which the schedulers in this process that use the journal
+     * synchronize.  While any of them has the journal open, the process holds a
+     * shared lock on the lock file; compaction takes an exclusive lock instead, so
+     * that it replaces the journal only when no other process is appending to it.
+     * The caller synchronizes on the JournalFile.
+     */
+    private static class JournalFile {
+        private final Path lockFile;
+        private FileChannel channel = null;
+        private FileLock lock = null;
+        private int users = 0;
+
+        JournalFile(Path journal) {
+            this.lockFile = journal.resolveSibling(journal.getFileName() + ".lock");
+        }
+
+        /**
+         * Register a scheduler that opens the journal, waiting while another process
+         * compacts it.
+         */
+        void join() throws IOException {
+            if (users == 0) {
+                channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                try {
+                    lock = channel.lock(0, Long.MAX_VALUE, true);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+            users++;
+        }
+
+        /**
+         * Unregister a scheduler that has closed the journal.
+         */
+        void leave() throws IOException {
+            users--;
+            if (users == 0) {
+                try {
+                    lock.release();
+                } finally {
+                    channel.close();
+                }
+            }
+        }
+
+        /**
+         * Exchange the shared lock for an exclusive one, if no other scheduler in this
+         * process and no other process has the journal open.
+         * @return true if the exclusive lock is held
+         */
+        boolean lockExclusive() throws IOException {
+            if (users > 1) {
+                return false;
+            }
+            lock.release();
+            FileLock exclusive = channel.tryLock();
+            lock = exclusive != null ? exclusive : channel.lock(0, Long.MAX_VALUE, true);
+            return exclusive != null;
+        }
+
+        /**
+         * Exchange the exclusive lock for a shared one again.
+         */
+        void unlockExclusive() throws IOException {
+            lock.release();
+            lock = channel.lock(0, Long.MAX_VALUE, true);
+        }
+    }
+
+    /** Records the completion of the transitions this scheduler queued. */
+    private class CompletionListener implements EZIDRequestListener {
+        public void requestCompleted(EZIDServiceRequest request) {
+            if (fairnessKey.equals(request.getFairnessKey())) {
+                completed.incrementAndGet();
+                finish(request.getIdentifier());
+            }
+        }
+
+        public void requestFailed(EZIDServiceRequest request, EZIDException e) {
+            if (fairnessKey.equals(request.getFairnessKey())) {
+                failed.incrementAndGet();
+                finish(request.getIdentifier());
+            }
+        }
+    }
+}
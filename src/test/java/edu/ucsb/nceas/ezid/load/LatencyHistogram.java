@@ -0,0 +1,165 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.load;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear latency histogram in the style of HdrHistogram.  Values
+ * are recorded in microseconds into buckets that keep two significant decimal
+ * digits of precision (a relative error below 1%) across the full range of a long,
+ * so the histogram never needs resizing and recording costs a few atomic
+ * operations.  Histograms are safe to record into from many threads.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    private static final int BUCKETS = SUB_BUCKET_COUNT + (64 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalValue = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Record a single latency.
+     * @param micros the latency in microseconds; negative values are recorded as zero
+     */
+    public void recordMicros(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        totalValue.addAndGet(value);
+        long max;
+        while (value > (max = maxValue.get()) && !maxValue.compareAndSet(max, value)) {
+            // retry until the maximum is updated or another thread recorded a larger value
+        }
+    }
+
+    /**
+     * Record the latency between two System.nanoTime() readings.
+     * @param startNanos the intended start time of the operation
+     * @param endNanos the time the operation completed
+     */
+    public void recordNanos(long startNanos, long endNanos) {
+        recordMicros((endNanos - startNanos) / 1000);
+    }
+
+    /**
+     * Add the counts of another histogram into this one.
+     * @param other the histogram to be added
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        totalValue.addAndGet(other.totalValue.get());
+        long otherMax = other.maxValue.get();
+        long max;
+        while (otherMax > (max = maxValue.get()) && !maxValue.compareAndSet(max, otherMax)) {
+            // retry
+        }
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @return the largest recorded value in microseconds
+     */
+    public long getMaxMicros() {
+        return maxValue.get();
+    }
+
+    /**
+     * @return the mean of the recorded values in microseconds
+     */
+    public double getMeanMicros() {
+        long count = totalCount.get();
+        return count == 0 ? 0.0 : (double) totalValue.get() / count;
+    }
+
+    /**
+     * Return the value at a percentile, as the highest value equivalent to the
+     * bucket containing that percentile (so the reported value is never below the
+     * true value).
+     * @param percentile the percentile, from 0 to 100
+     * @return the value in microseconds
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalentValue(i), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    /**
+     * Print a summary of the distribution, in milliseconds, with one percentile per line.
+     * @param out the stream to print to
+     */
+    public void printPercentiles(PrintStream out) {
+        double[] percentiles = {50.0, 75.0, 90.0, 95.0, 99.0, 99.9, 99.99, 100.0};
+        out.println(String.format("    %10s %12s", "percentile", "latency(ms)"));
+        for (double p : percentiles) {
+            out.println(String.format("    %10s %12.3f", p, getValueAtPercentile(p) / 1000.0));
+        }
+        out.println(String.format("    count=%d mean=%.3fms max=%.3fms", getCount(),
+                getMeanMicros() / 1000.0, getMaxMicros() / 1000.0));
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + (int) ((value >>> shift) - SUB_BUCKET_HALF);
+    }
+
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        long sub = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        long highest = ((sub + 1) << shift) - 1;
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+}
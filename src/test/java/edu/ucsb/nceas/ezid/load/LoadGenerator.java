@@ -0,0 +1,513 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.load;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.ezid.EZIDClient;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDRequestListener;
+import edu.ucsb.nceas.ezid.EZIDServiceRequest;
+import edu.ucsb.nceas.ezid.LaneStatistics;
+import edu.ucsb.nceas.ezid.profile.DataCiteProfile;
+import edu.ucsb.nceas.ezid.profile.InternalProfile;
+
+/**
+ * A LoadGenerator drives an EZIDClient, and the EZIDService beneath it, with a
+ * configurable mix of mint, create, get, set and delete operations at a target
+ * arrival rate, and reports latency percentiles, throughput, queue depth and heap
+ * growth.  Arrivals are open-loop: operations are issued on a fixed schedule
+ * regardless of whether earlier operations have finished, and each latency is
+ * measured from the operation's scheduled start, so a slow server shows up as
+ * latency rather than as a silently reduced request rate (coordinated omission).
+ *
+ * The pacing thread only keeps time: each operation's metadata is generated and
+ * the operation issued on a pool of caller threads.  Create, set and delete go
+ * through the EZIDClient queue; mint and get are synchronous in EZIDClient and run
+ * on the caller thread.  Time an operation spends waiting for a caller thread is
+ * part of its latency.  A run can step through increasing rates to find the
+ * saturation point.
+ *
+ * Usage:
+ * <pre>
+ *   java -Dsun.net.httpserver.nodelay=true edu.ucsb.nceas.ezid.load.LoadGenerator
+ *       [--url baseUrl | --standin]
+ *       [--user apitest] [--password apitest] [--shoulder doi:10.5072/FK2]
+ *       [--rates 50,100,200] [--duration 30] [--callers 64]
+ *       [--mix mint=1,create=4,get=10,set=4,delete=1]
+ *       [--standin-latency 20,10] [--slowdown 15:500]
+ *       [--payload 200000] [--compress 4096]
+ * </pre>
+ * --standin runs against an in-process {@link LocalEZIDServer} with the given
+ * latency and jitter, and --slowdown raises its latency to the given milliseconds
+ * after the given number of seconds of each step.  --payload pads each record with
+ * a DataCite XML document of about the given number of characters, and --compress
+ * sets the client's request compression threshold, so that the effect of
+ * compressing large bodies can be compared against the stand-in's byte counts.
+ * The nodelay property matters only with --standin; see {@link LocalEZIDServer}.
+ */
+public class LoadGenerator {
+
+    /** The operation types that can be included in the load mix. */
+    public enum Operation { MINT, CREATE, GET, SET, DELETE }
+
+    private final String baseUrl;
+    private String username = "apitest";
+    private String password = "apitest";
+    private String shoulder = "doi:10.5072/FK2";
+    private int callerThreads = 64;
+    private long drainMillis = 60000;
+    private int compressionThreshold = -1;
+    private int payloadChars = 0;
+    private final Map<Operation, Integer> mix = new EnumMap<Operation, Integer>(Operation.class);
+
+    private final Random random = new Random();
+    private final List<String> live = new ArrayList<String>();
+    private final ConcurrentMap<String, Queue<Long>> intendedStarts = new ConcurrentHashMap<String, Queue<Long>>();
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    protected static Log log = LogFactory.getLog(LoadGenerator.class);
+
+    /**
+     * Create a generator for the EZID instance at the given base URL, with a default
+     * mix that is mostly reads.
+     * @param baseUrl the EZID base URL, or null for the production service
+     */
+    public LoadGenerator(String baseUrl) {
+        this.baseUrl = baseUrl;
+        mix.put(Operation.MINT, 1);
+        mix.put(Operation.CREATE, 4);
+        mix.put(Operation.GET, 10);
+        mix.put(Operation.SET, 4);
+        mix.put(Operation.DELETE, 1);
+    }
+
+    public void setCredentials(String username, String password) {
+        this.username = username;
+        this.password = password;
+    }
+
+    public void setShoulder(String shoulder) {
+        this.shoulder = shoulder;
+    }
+
+    public void setCallerThreads(int callerThreads) {
+        this.callerThreads = callerThreads;
+    }
+
+    /**
+     * @param drainMillis how long to wait for outstanding operations at the end of a step
+     */
+    public void setDrainMillis(long drainMillis) {
+        this.drainMillis = drainMillis;
+    }
+
+    /**
+     * @param thresholdChars request body length above which the client compresses, or -1
+     */
+    public void setCompressionThreshold(int thresholdChars) {
+        this.compressionThreshold = thresholdChars;
+    }
+
+    /**
+     * @param payloadChars approximate size of the DataCite XML added to each record, or 0
+     */
+    public void setPayloadChars(int payloadChars) {
+        this.payloadChars = payloadChars;
+    }
+
+    /**
+     * Set the relative weight of an operation in the mix; zero excludes it.
+     * @param op the operation
+     * @param weight its relative weight
+     */
+    public void setWeight(Operation op, int weight) {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Weights must not be negative.");
+        }
+        mix.put(op, weight);
+    }
+
+    /**
+     * Run one load step at a fixed arrival rate.
+     * @param ratePerSecond the target arrival rate
+     * @param durationMillis how long to issue operations for
+     * @param during an optional task to run part way through the step, or null
+     * @param duringAfterMillis when to run that task, measured from the start of the step
+     * @return the report for the step
+     * @throws EZIDException if login fails
+     */
+    public LoadReport run(double ratePerSecond, long durationMillis, Runnable during, long duringAfterMillis)
+            throws EZIDException, InterruptedException {
+        int total = 0;
+        for (int w : mix.values()) {
+            total += w;
+        }
+        if (total <= 0) {
+            throw new IllegalStateException("At least one operation must have a positive weight.");
+        }
+        final LoadReport report = new LoadReport(ratePerSecond, durationMillis);
+        final EZIDClient client = new EZIDClient(baseUrl);
+        client.setCompressionThreshold(compressionThreshold);
+        if (!client.login(username, password)) {
+            throw new EZIDException("Login failed for load test user " + username);
+        }
+        final AtomicLong outstanding = new AtomicLong();
+        client.addRequestListener(new EZIDRequestListener() {
+            public void requestCompleted(EZIDServiceRequest request) {
+                long end = System.nanoTime();
+                Operation op = operationOf(request);
+                report.recordLatency(op, takeIntended(request), end);
+                if (op == Operation.CREATE) {
+                    addLive(request.getIdentifier());
+                }
+                outstanding.decrementAndGet();
+            }
+
+            public void requestFailed(EZIDServiceRequest request, EZIDException e) {
+                takeIntended(request);
+                report.recordError(operationOf(request));
+                outstanding.decrementAndGet();
+            }
+        });
+        ExecutorService callers = Executors.newFixedThreadPool(callerThreads);
+
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long nextSample = start;
+        boolean duringDone = during == null;
+        long n = 0;
+        for (long intended = start; intended < end; intended = start + (++n) * interval) {
+            long now;
+            while ((now = System.nanoTime()) < intended) {
+                LockSupport.parkNanos(intended - now);
+            }
+            report.recordSchedulerLag(now - intended);
+            if (!duringDone && now - start >= TimeUnit.MILLISECONDS.toNanos(duringAfterMillis)) {
+                during.run();
+                duringDone = true;
+            }
+            if (now >= nextSample) {
+                sample(report, client);
+                nextSample = now + TimeUnit.SECONDS.toNanos(1);
+            }
+            outstanding.incrementAndGet();
+            final Operation op = chooseOperation();
+            final long seq = n;
+            final long scheduled = intended;
+            callers.execute(new Runnable() {
+                public void run() {
+                    issue(op, seq, scheduled, client, report, outstanding);
+                }
+            });
+        }
+        report.setIssued(n);
+
+        long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        while (outstanding.get() > 0 && System.nanoTime() < drainDeadline) {
+            sample(report, client);
+            Thread.sleep(100);
+        }
+        report.setElapsedMillis(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        if (outstanding.get() > 0) {
+            log.warn(outstanding.get() + " operations still outstanding after the drain period.");
+        }
+        callers.shutdownNow();
+        client.shutdown();
+        return report;
+    }
+
+    /**
+     * Prepare and issue one operation on a caller thread.  Queued operations are
+     * timed by the request listener from the intended start recorded here.
+     */
+    private void issue(Operation op, long n, long intended, EZIDClient client, LoadReport report,
+            AtomicLong outstanding) {
+        HashMap<String, String> metadata = generateMetadata(n);
+        String target = null;
+        if (op == Operation.GET || op == Operation.SET || op == Operation.DELETE) {
+            target = op == Operation.DELETE ? removeLive() : pickLive();
+            if (target == null) {
+                op = Operation.CREATE;
+            }
+        }
+        try {
+            switch (op) {
+            case CREATE:
+                String created = shoulder + "/LOAD/" + runId + "/" + n;
+                addIntended(created, intended);
+                client.create(created, metadata);
+                break;
+            case SET:
+                addIntended(target, intended);
+                client.setMetadata(target, metadata);
+                break;
+            case DELETE:
+                addIntended(target, intended);
+                client.delete(target);
+                break;
+            case GET:
+                try {
+                    client.getMetadata(target);
+                    report.recordLatency(Operation.GET, intended, System.nanoTime());
+                } catch (EZIDException e) {
+                    report.recordError(Operation.GET);
+                } finally {
+                    outstanding.decrementAndGet();
+                }
+                break;
+            case MINT:
+                try {
+                    String minted = client.mintIdentifier(shoulder, metadata);
+                    report.recordLatency(Operation.MINT, intended, System.nanoTime());
+                    addLive(minted);
+                } catch (EZIDException e) {
+                    report.recordError(Operation.MINT);
+                } finally {
+                    outstanding.decrementAndGet();
+                }
+                break;
+            }
+        } catch (InterruptedException e) {
+            // the step is over and the callers are being shut down
+            Thread.currentThread().interrupt();
+            report.recordError(op);
+            outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Remember the intended start of a queued operation on an identifier.  Several
+     * operations on one identifier are matched to their requests in order.
+     */
+    private void addIntended(String identifier, long intended) {
+        Queue<Long> starts = intendedStarts.get(identifier);
+        if (starts == null) {
+            Queue<Long> created = new ConcurrentLinkedQueue<Long>();
+            starts = intendedStarts.putIfAbsent(identifier, created);
+            if (starts == null) {
+                starts = created;
+            }
+        }
+        starts.add(intended);
+    }
+
+    /**
+     * @return the intended start of a finished queued request, or when it was
+     *          queued if the intended start is not known
+     */
+    private long takeIntended(EZIDServiceRequest request) {
+        Queue<Long> starts = intendedStarts.get(request.getIdentifier());
+        Long intended = starts == null ? null : starts.poll();
+        if (starts != null && starts.isEmpty()) {
+            intendedStarts.remove(request.getIdentifier(), starts);
+        }
+        return intended == null ? request.getCreatedNanos() : intended;
+    }
+
+    private Operation chooseOperation() {
+        int total = 0;
+        for (int w : mix.values()) {
+            total += w;
+        }
+        int pick;
+        synchronized (random) {
+            pick = random.nextInt(total);
+        }
+        for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                return entry.getKey();
+            }
+        }
+        return Operation.CREATE;
+    }
+
+    private static Operation operationOf(EZIDServiceRequest request) {
+        switch (request.getMethod()) {
+        case EZIDServiceRequest.SETMETADATA:
+            return Operation.SET;
+        case EZIDServiceRequest.DELETE:
+            return Operation.DELETE;
+        default:
+            return Operation.CREATE;
+        }
+    }
+
+    private void sample(LoadReport report, EZIDClient client) {
+        long depth = 0;
+        for (LaneStatistics lane : client.getLaneStatistics().values()) {
+            depth += lane.getQueued();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        report.sample(depth, runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    private void addLive(String identifier) {
+        synchronized (live) {
+            live.add(identifier);
+        }
+    }
+
+    private String pickLive() {
+        synchronized (live) {
+            return live.isEmpty() ? null : live.get(random.nextInt(live.size()));
+        }
+    }
+
+    private String removeLive() {
+        synchronized (live) {
+            if (live.isEmpty()) {
+                return null;
+            }
+            int i = random.nextInt(live.size());
+            String identifier = live.get(i);
+            live.set(i, live.get(live.size() - 1));
+            live.remove(live.size() - 1);
+            return identifier;
+        }
+    }
+
+    private HashMap<String, String> generateMetadata(long n) {
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        metadata.put(DataCiteProfile.TITLE.toString(), "Load test record " + n + " of run " + runId);
+        metadata.put(DataCiteProfile.CREATOR.toString(), "EZID Load Generator");
+        metadata.put(DataCiteProfile.PUBLISHER.toString(), "EZID Java Library");
+        metadata.put(DataCiteProfile.PUBLICATION_YEAR.toString(), "2024");
+        metadata.put(InternalProfile.TARGET.toString(), "http://example.com/load/" + runId + "/" + n);
+        if (payloadChars > 0) {
+            StringBuilder xml = new StringBuilder(payloadChars + 256);
+            xml.append("<?xml version=\"1.0\"?>\n<resource xmlns=\"http://datacite.org/schema/kernel-4\">\n");
+            xml.append("  <subjects>\n");
+            for (int i = 0; xml.length() < payloadChars; i++) {
+                xml.append("    <subject subjectScheme=\"load\">Subject ").append(i).append(" of record ")
+                        .append(n).append("</subject>\n");
+            }
+            xml.append("  </subjects>\n</resource>\n");
+            metadata.put("datacite", xml.toString());
+        }
+        return metadata;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--standin")) {
+                opts.put("standin", "true");
+            } else if (args[i].startsWith("--") && i + 1 < args.length) {
+                opts.put(args[i].substring(2), args[++i]);
+            } else {
+                System.err.println("Unrecognized argument: " + args[i]);
+                System.exit(2);
+            }
+        }
+
+        LocalEZIDServer standin = null;
+        String url = opts.get("url");
+        String[] latency = opts.containsKey("standin-latency") ? opts.get("standin-latency").split(",")
+                : new String[] {"10"};
+        long baseLatency = Long.parseLong(latency[0]);
+        long jitter = latency.length > 1 ? Long.parseLong(latency[1]) : 0;
+        if (opts.containsKey("standin")) {
+            standin = new LocalEZIDServer(0);
+            standin.start();
+            url = standin.getBaseUrl();
+        }
+
+        LoadGenerator generator = new LoadGenerator(url);
+        if (opts.containsKey("user")) {
+            generator.setCredentials(opts.get("user"), opts.get("password"));
+        }
+        if (opts.containsKey("shoulder")) {
+            generator.setShoulder(opts.get("shoulder"));
+        }
+        if (opts.containsKey("payload")) {
+            generator.setPayloadChars(Integer.parseInt(opts.get("payload")));
+        }
+        if (opts.containsKey("compress")) {
+            generator.setCompressionThreshold(Integer.parseInt(opts.get("compress")));
+        }
+        if (opts.containsKey("callers")) {
+            generator.setCallerThreads(Integer.parseInt(opts.get("callers")));
+        }
+        if (opts.containsKey("mix")) {
+            for (Operation op : Operation.values()) {
+                generator.setWeight(op, 0);
+            }
+            for (String part : opts.get("mix").split(",")) {
+                String[] kv = part.split("=");
+                generator.setWeight(Operation.valueOf(kv[0].trim().toUpperCase()), Integer.parseInt(kv[1].trim()));
+            }
+        }
+        long durationMillis = 1000 * Long.parseLong(opts.containsKey("duration") ? opts.get("duration") : "30");
+        String rates = opts.containsKey("rates") ? opts.get("rates") : "50";
+
+        Runnable slowdown = null;
+        long slowdownAfter = 0;
+        if (standin != null && opts.containsKey("slowdown")) {
+            String[] parts = opts.get("slowdown").split(":");
+            slowdownAfter = 1000 * Long.parseLong(parts[0]);
+            final long slowLatency = Long.parseLong(parts[1]);
+            final LocalEZIDServer server = standin;
+            slowdown = new Runnable() {
+                public void run() {
+                    log.info("Slowing stand-in server to " + slowLatency + "ms");
+                    server.setLatency(slowLatency, 0);
+                }
+            };
+        }
+
+        try {
+            for (String rate : rates.split(",")) {
+                if (standin != null) {
+                    standin.setLatency(baseLatency, jitter);
+                }
+                LoadReport report = generator.run(Double.parseDouble(rate), durationMillis, slowdown, slowdownAfter);
+                report.print(System.out);
+                if (standin != null) {
+                    System.out.println("    stand-in bytes received=" + standin.getBytesReceived()
+                            + " sent=" + standin.getBytesSent());
+                }
+            }
+        } finally {
+            if (standin != null) {
+                standin.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.load;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.ucsb.nceas.ezid.load.LoadGenerator.Operation;
+
+/**
+ * The results of one load step run by a {@link LoadGenerator}: latency histograms
+ * per operation, error counts, achieved throughput, and samples of queue depth and
+ * heap use taken while the step ran.
+ */
+public class LoadReport {
+
+    private final double targetRate;
+    private final long durationMillis;
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+    private final Map<Operation, AtomicLong> errors = new EnumMap<Operation, AtomicLong>(Operation.class);
+    private final LatencyHistogram schedulerLag = new LatencyHistogram();
+    private long issued = 0;
+    private long elapsedMillis = 0;
+    private long peakQueueDepth = 0;
+    private long heapStartBytes = 0;
+    private long heapPeakBytes = 0;
+    private long heapEndBytes = 0;
+
+    LoadReport(double targetRate, long durationMillis) {
+        this.targetRate = targetRate;
+        this.durationMillis = durationMillis;
+        for (Operation op : Operation.values()) {
+            latencies.put(op, new LatencyHistogram());
+            errors.put(op, new AtomicLong());
+        }
+    }
+
+    void recordLatency(Operation op, long startNanos, long endNanos) {
+        latencies.get(op).recordNanos(startNanos, endNanos);
+    }
+
+    void recordError(Operation op) {
+        errors.get(op).incrementAndGet();
+    }
+
+    void recordSchedulerLag(long lagNanos) {
+        schedulerLag.recordMicros(lagNanos / 1000);
+    }
+
+    void setIssued(long issued) {
+        this.issued = issued;
+    }
+
+    void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    synchronized void sample(long queueDepth, long heapBytes) {
+        if (heapStartBytes == 0) {
+            heapStartBytes = heapBytes;
+        }
+        peakQueueDepth = Math.max(peakQueueDepth, queueDepth);
+        heapPeakBytes = Math.max(heapPeakBytes, heapBytes);
+        heapEndBytes = heapBytes;
+    }
+
+    /**
+     * @return the requested arrival rate in operations per second
+     */
+    public double getTargetRate() {
+        return targetRate;
+    }
+
+    /**
+     * @return the number of operations that completed, successfully or not, per second
+     *          of the step, including the time taken to drain the backlog
+     */
+    public double getAchievedRate() {
+        return elapsedMillis == 0 ? 0.0 : getCompleted() * 1000.0 / elapsedMillis;
+    }
+
+    /**
+     * @return the number of operations that completed, successfully or not
+     */
+    public long getCompleted() {
+        long completed = 0;
+        for (Operation op : Operation.values()) {
+            completed += latencies.get(op).getCount() + errors.get(op).get();
+        }
+        return completed;
+    }
+
+    /**
+     * @param op the operation type
+     * @return the latency histogram of successful operations of that type
+     */
+    public LatencyHistogram getLatency(Operation op) {
+        return latencies.get(op);
+    }
+
+    /**
+     * @param op the operation type
+     * @return the number of failed operations of that type
+     */
+    public long getErrors(Operation op) {
+        return errors.get(op).get();
+    }
+
+    /**
+     * @return a histogram of all successful operations
+     */
+    public LatencyHistogram getOverallLatency() {
+        LatencyHistogram all = new LatencyHistogram();
+        for (LatencyHistogram h : latencies.values()) {
+            all.add(h);
+        }
+        return all;
+    }
+
+    /**
+     * @return the largest number of requests waiting in the EZIDClient queue
+     */
+    public long getPeakQueueDepth() {
+        return peakQueueDepth;
+    }
+
+    /**
+     * Print the report.
+     * @param out the stream to print to
+     */
+    public void print(PrintStream out) {
+        out.println(String.format("=== target %.1f ops/s for %.1fs: issued=%d completed=%d achieved=%.1f ops/s",
+                targetRate, durationMillis / 1000.0, issued, getCompleted(), getAchievedRate()));
+        out.println(String.format("    peak queue depth=%d heap start=%dMB peak=%dMB end=%dMB",
+                peakQueueDepth, heapStartBytes >> 20, heapPeakBytes >> 20, heapEndBytes >> 20));
+        out.println(String.format("    scheduler lag p99=%.3fms max=%.3fms",
+                schedulerLag.getValueAtPercentile(99.0) / 1000.0, schedulerLag.getMaxMicros() / 1000.0));
+        for (Operation op : Operation.values()) {
+            LatencyHistogram h = latencies.get(op);
+            if (h.getCount() == 0 && errors.get(op).get() == 0) {
+                continue;
+            }
+            out.println("  " + op + " (errors=" + errors.get(op).get() + ")");
+            h.printPercentiles(out);
+        }
+        out.println("  ALL");
+        getOverallLatency().printPercentiles(out);
+    }
+}
@@ -0,0 +1,367 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.load;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.ucsb.nceas.ezid.ANVL;
+import edu.ucsb.nceas.ezid.profile.InternalProfile;
+import edu.ucsb.nceas.ezid.profile.InternalProfileValues;
+
+/**
+ * A LocalEZIDServer is an in-memory stand-in for the EZID service that speaks
+ * the subset of the EZID API used by EZIDService: login, logout, status, create,
+ * mint, get, set and delete.  It accepts any credentials and keeps identifiers only in
+ * memory.  An artificial service latency can be configured, and changed while the
+ * server runs, to study how clients behave when EZID slows down.  Request bodies
+ * sent with a gzip or deflate Content-Encoding are decoded, and larger responses
+ * are gzip-compressed when the client accepts it; the counts of bytes actually
+ * sent and received allow the effect of compression to be measured.
+ *
+ * It is intended for load tests, benchmarks and offline tests, and can be run on
+ * its own with:
+ * <pre>
+ *   java -Dsun.net.httpserver.nodelay=true edu.ucsb.nceas.ezid.load.LocalEZIDServer [port] [latencyMillis]
+ * </pre>
+ * Without the nodelay property the JDK's HTTP server leaves Nagle's algorithm on,
+ * and responses on kept-alive connections wait for delayed ACKs, adding tens of
+ * milliseconds to each call.  The property is read once by the JVM, so it is set on
+ * the command line, or by the build for the tests, rather than by this class.
+ */
+public class LocalEZIDServer {
+
+    private static final int COMPRESSION_THRESHOLD = 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, HashMap<String, String>> identifiers = new ConcurrentHashMap<String, HashMap<String, String>>();
+    private final AtomicLong mintCounter = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger peakActiveRequests = new AtomicInteger();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final Random random = new Random();
+    private volatile long latencyMillis = 0;
+    private volatile long jitterMillis = 0;
+
+    protected static Log log = LogFactory.getLog(LocalEZIDServer.class);
+
+    /**
+     * Create a server listening on the given port of the loopback interface.
+     * @param port the port to listen on, or 0 to choose a free port
+     * @throws IOException if the port cannot be bound
+     */
+    public LocalEZIDServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new Handler());
+    }
+
+    /**
+     * Start accepting requests.
+     */
+    public void start() {
+        server.start();
+        log.info("Local EZID stand-in listening at " + getBaseUrl());
+    }
+
+    /**
+     * Stop the server and release its threads.
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the base URL to pass to the EZIDService constructor
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Set the artificial processing time added to every request.
+     * @param latencyMillis fixed latency in milliseconds
+     * @param jitterMillis additional uniformly distributed random latency in milliseconds
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * @return the number of requests served
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the largest number of requests that have been in their processing
+     *          time, before the response, at the same time
+     */
+    public int getPeakConcurrentRequests() {
+        return peakActiveRequests.get();
+    }
+
+    /**
+     * @return the number of request body bytes received, before any decompression
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return the number of response body bytes sent, after any compression
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return the number of identifiers currently held
+     */
+    public int getIdentifierCount() {
+        return identifiers.size();
+    }
+
+    /**
+     * @param identifier the identifier to look up
+     * @return a copy of the metadata stored for the identifier, or null if it does not exist
+     */
+    public HashMap<String, String> getStoredMetadata(String identifier) {
+        HashMap<String, String> metadata = identifiers.get(identifier);
+        return metadata == null ? null : new HashMap<String, String>(metadata);
+    }
+
+    private class Handler implements HttpHandler {
+        public void handle(HttpExchange exchange) throws IOException {
+            requestCount.incrementAndGet();
+            try {
+                int active = activeRequests.incrementAndGet();
+                int peak = peakActiveRequests.get();
+                while (active > peak && !peakActiveRequests.compareAndSet(peak, active)) {
+                    peak = peakActiveRequests.get();
+                }
+                try {
+                    simulateLatency();
+                } finally {
+                    // before responding, so a client's next request is never counted with this one
+                    activeRequests.decrementAndGet();
+                }
+                String method = exchange.getRequestMethod();
+                String path = exchange.getRequestURI().getPath();
+                String body = readBody(exchange);
+                if (path.startsWith("/login")) {
+                    exchange.getResponseHeaders().add("Set-Cookie", "sessionid=local" + System.nanoTime() + "; Path=/");
+                    respond(exchange, 200, "success: session cookie returned");
+                } else if (path.startsWith("/status")) {
+                    respond(exchange, 200, "success: EZID is up");
+                } else if (path.startsWith("/logout")) {
+                    respond(exchange, 200, "success: authentication credentials flushed");
+                } else if (path.startsWith("/shoulder/") && method.equals("POST")) {
+                    String shoulder = path.substring("/shoulder/".length());
+                    String identifier = shoulder + Long.toString(mintCounter.incrementAndGet(), 36);
+                    store(identifier, ANVL.parse(body), true);
+                    respond(exchange, 201, "success: " + identifier);
+                } else if (path.startsWith("/id/")) {
+                    handleIdentifier(exchange, method, path.substring("/id/".length()), body);
+                } else {
+                    respond(exchange, 404, "error: not found");
+                }
+            } catch (RuntimeException e) {
+                respond(exchange, 500, "error: internal server error - " + e.getMessage());
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void handleIdentifier(HttpExchange exchange, String method, String identifier, String body)
+                throws IOException {
+            HashMap<String, String> existing = identifiers.get(identifier);
+            if (method.equals("PUT")) {
+                if (existing != null) {
+                    respond(exchange, 400, "error: bad request - identifier already exists");
+                } else {
+                    store(identifier, ANVL.parse(body), true);
+                    respond(exchange, 201, "success: " + identifier);
+                }
+            } else if (existing == null) {
+                respond(exchange, 400, "error: bad request - no such identifier");
+            } else if (method.equals("GET")) {
+                StringBuilder anvl = new StringBuilder("success: ").append(ANVL.escape(identifier)).append("\n");
+                synchronized (existing) {
+                    anvl.append(ANVL.serialize(existing));
+                }
+                respond(exchange, 200, anvl.toString());
+            } else if (method.equals("POST")) {
+                store(identifier, ANVL.parse(body), false);
+                respond(exchange, 200, "success: " + identifier);
+            } else if (method.equals("DELETE")) {
+                identifiers.remove(identifier);
+                respond(exchange, 200, "success: " + identifier);
+            } else {
+                respond(exchange, 405, "error: method not allowed");
+            }
+        }
+    }
+
+    private void store(String identifier, HashMap<String, String> metadata, boolean create) {
+        String now = Long.toString(System.currentTimeMillis() / 1000);
+        if (create) {
+            HashMap<String, String> record = new HashMap<String, String>();
+            record.put(InternalProfile.OWNER.toString(), "apitest");
+            record.put(InternalProfile.CREATED.toString(), now);
+            record.put(InternalProfile.STATUS.toString(), InternalProfileValues.PUBLIC.toString());
+            record.put(InternalProfile.TARGET.toString(), "https://ezid.cdlib.org/id/" + identifier);
+            record.putAll(metadata);
+            record.put(InternalProfile.UPDATED.toString(), now);
+            identifiers.put(identifier, record);
+        } else {
+            HashMap<String, String> record = identifiers.get(identifier);
+            if (record != null) {
+                synchronized (record) {
+                    record.putAll(metadata);
+                    record.put(InternalProfile.UPDATED.toString(), now);
+                }
+            }
+        }
+    }
+
+    private void simulateLatency() {
+        long delay = latencyMillis;
+        long jitter = jitterMillis;
+        if (jitter > 0) {
+            synchronized (random) {
+                delay += (long) (random.nextDouble() * jitter);
+            }
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private String readBody(HttpExchange exchange) throws IOException {
+        CountingInputStream counted = new CountingInputStream(exchange.getRequestBody());
+        InputStream in = counted;
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        if ("gzip".equalsIgnoreCase(encoding)) {
+            in = new GZIPInputStream(in);
+        } else if ("deflate".equalsIgnoreCase(encoding)) {
+            in = new InflaterInputStream(in);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        bytesReceived.addAndGet(counted.count);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (bytes.length > COMPRESSION_THRESHOLD && accept != null && accept.toLowerCase().contains("gzip")) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(bytes);
+            gzip.close();
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        bytesSent.addAndGet(bytes.length);
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /** Counts the bytes read from the wire. */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Run a stand-in server until the process is killed.
+     * @param args optional port and latency in milliseconds
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        LocalEZIDServer server = new LocalEZIDServer(port);
+        if (args.length > 1) {
+            server.setLatency(Long.parseLong(args[1]), 0);
+        }
+        server.start();
+    }
+}
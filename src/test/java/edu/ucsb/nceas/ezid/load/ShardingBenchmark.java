@@ -0,0 +1,229 @@
+/**
+ * This work was created by the National Center for Ecological Analysis and Synthesis
+ * at the University of California Santa Barbara (UCSB).
+ *
+ *   Copyright 2011-2014 Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.ucsb.nceas.ezid.load;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.ShardSelection;
+
+/**
+ * A ShardingBenchmark measures the throughput and latency of getMetadata calls
+ * made by many threads through an EZIDService with different numbers of
+ * connection pool shards.  Sharding removes contention on the pool's lock, which
+ * only matters when calls are so fast that threads spend a noticeable part of
+ * each call leasing and releasing connections: many threads, a fast server and
+ * cheap responses.  With a slow server the pool lock is idle most of the time and
+ * one shard does as well as many.
+ *
+ * Usage:
+ * <pre>
+ *   java -Dsun.net.httpserver.nodelay=true edu.ucsb.nceas.ezid.load.ShardingBenchmark
+ *       [--threads 64] [--duration 10] [--shards 1,2,4,8] [--selection thread] [--latency 0]
+ * </pre>
+ * The benchmark runs against an in-process {@link LocalEZIDServer} answering after
+ * the given latency in milliseconds.  Each thread reads the same identifier in a
+ * closed loop, so the pool's connections are reused rather than opened.
+ */
+public class ShardingBenchmark {
+
+    private static final String IDENTIFIER = "doi:10.5072/FK2/SHARDING";
+
+    protected static Log log = LogFactory.getLog(ShardingBenchmark.class);
+
+    /**
+     * The outcome of one run.
+     */
+    public static class Result {
+        private final int shards;
+        private final long calls;
+        private final long failures;
+        private final double seconds;
+        private final long[] latencies;
+
+        Result(int shards, long calls, long failures, double seconds, long[] latencies) {
+            this.shards = shards;
+            this.calls = calls;
+            this.failures = failures;
+            this.seconds = seconds;
+            this.latencies = latencies;
+        }
+
+        public int getShards() {
+            return shards;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public double getCallsPerSecond() {
+            return calls / seconds;
+        }
+
+        /**
+         * @param p the percentile, from 0 to 100
+         * @return the latency at that percentile of the sampled calls, in milliseconds
+         */
+        public double getLatencyMillis(double p) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int i = (int) Math.min(latencies.length - 1, Math.floor(p / 100 * latencies.length));
+            return latencies[i] / 1e6;
+        }
+
+        public String toString() {
+            return String.format("shards=%d calls/s=%.0f p50=%.3fms p99=%.3fms failures=%d", shards,
+                    getCallsPerSecond(), getLatencyMillis(50), getLatencyMillis(99), failures);
+        }
+    }
+
+    private final String baseUrl;
+    private final int threads;
+
+    /**
+     * @param baseUrl the EZID instance to read from, holding the benchmark identifier
+     * @param threads the number of calling threads
+     */
+    public ShardingBenchmark(String baseUrl, int threads) {
+        this.baseUrl = baseUrl;
+        this.threads = threads;
+    }
+
+    /**
+     * Run the benchmark with one configuration.
+     * @param shards the number of connection pool shards
+     * @param selection how calls choose a shard
+     * @param durationMillis how long the threads call for
+     * @return the result of the run
+     */
+    public Result run(int shards, ShardSelection selection, final long durationMillis)
+            throws EZIDException, InterruptedException {
+        final EZIDService ezid = new EZIDService(baseUrl, shards, selection);
+        // let every thread hold a connection, so the runs differ only in pool locking
+        ezid.setMaxConnections(threads);
+        ezid.login("apitest", "apitest");
+        final CountDownLatch start = new CountDownLatch(1);
+        final long[] calls = new long[threads];
+        final long[] failures = new long[threads];
+        final List<long[]> samples = new ArrayList<long[]>();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int n = t;
+            final long[] sample = new long[4096];
+            samples.add(sample);
+            Thread worker = new Thread("sharding-benchmark-" + t) {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+                    long now = System.nanoTime();
+                    while (now < end) {
+                        try {
+                            ezid.getMetadata(IDENTIFIER);
+                        } catch (EZIDException e) {
+                            failures[n]++;
+                        }
+                        long done = System.nanoTime();
+                        sample[(int) (calls[n]++ % sample.length)] = done - now;
+                        now = done;
+                    }
+                }
+            };
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        long total = 0;
+        long failed = 0;
+        int kept = 0;
+        for (int t = 0; t < threads; t++) {
+            total += calls[t];
+            failed += failures[t];
+            kept += (int) Math.min(calls[t], samples.get(t).length);
+        }
+        long[] latencies = new long[kept];
+        int k = 0;
+        for (int t = 0; t < threads; t++) {
+            int m = (int) Math.min(calls[t], samples.get(t).length);
+            System.arraycopy(samples.get(t), 0, latencies, k, m);
+            k += m;
+        }
+        Arrays.sort(latencies);
+        return new Result(shards, total, failed, seconds, latencies);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--") && i + 1 < args.length) {
+                opts.put(args[i].substring(2), args[++i]);
+            } else {
+                System.err.println("Unrecognized argument: " + args[i]);
+                System.exit(2);
+            }
+        }
+        int threads = Integer.parseInt(opts.containsKey("threads") ? opts.get("threads") : "64");
+        long durationMillis = 1000 * Long.parseLong(opts.containsKey("duration") ? opts.get("duration") : "10");
+        String shards = opts.containsKey("shards") ? opts.get("shards") : "1,2,4,8";
+        ShardSelection selection = ShardSelection.valueOf(
+                (opts.containsKey("selection") ? opts.get("selection") : "thread").toUpperCase());
+        long latency = Long.parseLong(opts.containsKey("latency") ? opts.get("latency") : "0");
+
+        LocalEZIDServer server = new LocalEZIDServer(0);
+        server.start();
+        try {
+            EZIDService setup = new EZIDService(server.getBaseUrl());
+            setup.login("apitest", "apitest");
+            setup.createIdentifier(IDENTIFIER, null);
+            server.setLatency(latency, 0);
+            ShardingBenchmark benchmark = new ShardingBenchmark(server.getBaseUrl(), threads);
+            // a short untimed run warms up the JIT before the measured runs
+            benchmark.run(1, selection, Math.min(2000, durationMillis));
+            for (String n : shards.split(",")) {
+                Result result = benchmark.run(Integer.parseInt(n.trim()), selection, durationMillis);
+                System.out.println(result);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
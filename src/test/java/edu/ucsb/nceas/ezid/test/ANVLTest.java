@@ -0,0 +1,51 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.ANVL;
+
+/**
+ * Tests ANVL escaping and unescaping.
+ */
+public class ANVLTest {
+
+    @Test
+    public void roundTrip() {
+        String value = "http://example.com/a:b%c\nd\re";
+        assertEquals("http%3A//example.com/a%3Ab%25c%0Ad%0De", ANVL.escape(value));
+        assertEquals(value, ANVL.unescape(ANVL.escape(value)));
+        assertEquals(":", ANVL.unescape("%3a"));
+        String plain = "no escapes here";
+        assertSame(plain, ANVL.unescape(plain));
+    }
+
+    @Test
+    public void largeValuesUnescapeInLinearTime() {
+        StringBuilder xml = new StringBuilder();
+        while (xml.length() < 4 * 1024 * 1024) {
+            xml.append("<subject scheme=\"a:b\">100% line\n</subject>");
+        }
+        String escaped = ANVL.escape(xml.toString());
+        long start = System.nanoTime();
+        assertEquals(xml.toString(), ANVL.unescape(escaped));
+        // the quadratic version took minutes on a value this size
+        assertTrue(System.nanoTime() - start < 5000000000L);
+    }
+
+    @Test
+    public void malformedEscapes() {
+        for (String bad : new String[] {"abc%", "abc%2", "abc%zz"}) {
+            try {
+                ANVL.unescape(bad);
+                fail("Malformed escape should be rejected: " + bad);
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.AdaptiveConcurrencyLimiter;
+import edu.ucsb.nceas.ezid.EZIDClient;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+
+/**
+ * Tests sizing an EZIDClient's workers with an AdaptiveConcurrencyLimiter.
+ */
+public class AdaptiveConcurrencyLimiterTest {
+
+    private static final String DOISHOULDER = "doi:10.5072/FK2/ADAPTIVE/";
+
+    private LocalEZIDServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalEZIDServer(0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void limitGrowsWhileLatencyHolds() throws InterruptedException {
+        // the local server answers every request after the same delay, however many are in flight
+        server.setLatency(20, 0);
+        EZIDClient client = new EZIDClient(server.getBaseUrl());
+        client.login("apitest", "apitest");
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 32, 5, 1.5, 0.5);
+        client.setConcurrencyLimiter(limiter);
+        for (int i = 0; i < 400; i++) {
+            client.create(DOISHOULDER + i, null);
+        }
+        client.shutdown();
+        assertEquals(400, server.getIdentifierCount());
+        assertTrue(limiter.toString(), limiter.getLimit() > 8);
+        assertTrue(limiter.toString(), limiter.getShortRttMillis() >= 20);
+        assertTrue(limiter.toString(), limiter.getLongRttMillis() >= 20);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInitialLimitOutOfRange() {
+        new AdaptiveConcurrencyLimiter(10, 1, 5, 10, 1.5, 0.2);
+    }
+}
@@ -0,0 +1,116 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.ANVL;
+import edu.ucsb.nceas.ezid.AnvlTemplate;
+import edu.ucsb.nceas.ezid.EZIDClient;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+import edu.ucsb.nceas.ezid.profile.DataCiteProfile;
+import edu.ucsb.nceas.ezid.profile.InternalProfile;
+
+/**
+ * Tests rendering metadata from an AnvlTemplate and sending it to EZID.
+ */
+public class AnvlTemplateTest {
+
+    private static final String TITLE = DataCiteProfile.TITLE.toString();
+    private static final String PUBLISHER = DataCiteProfile.PUBLISHER.toString();
+
+    private LocalEZIDServer server;
+    private AnvlTemplate template;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalEZIDServer(0);
+        server.start();
+        LinkedHashMap<String, String> constants = new LinkedHashMap<String, String>();
+        constants.put(PUBLISHER, "NCEAS: Santa Barbara, 100%");
+        constants.put(InternalProfile.PROFILE.toString(), "datacite");
+        template = new AnvlTemplate(constants);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void rendersSameBytesAsSerializing() {
+        LinkedHashMap<String, String> fields = new LinkedHashMap<String, String>();
+        fields.put(TITLE, "Café 中文 🌊\r\nline two: 50%");
+        fields.put(InternalProfile.TARGET.toString(), "http://example.com/data?id=1");
+        LinkedHashMap<String, String> all = new LinkedHashMap<String, String>(template.getConstants());
+        all.putAll(fields);
+        byte[] expected = ANVL.serialize(all).getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(expected, template.render(fields));
+        assertEquals(all, ANVL.parse(new String(template.render(fields), StandardCharsets.UTF_8)));
+        assertEquals(ANVL.serialize(template.getConstants()).getBytes(StandardCharsets.UTF_8).length,
+                template.getConstantLength());
+        assertEquals(template.getConstantLength(), template.render(null).length);
+    }
+
+    @Test
+    public void rejectsFieldsThatRepeatConstants() {
+        HashMap<String, String> fields = new HashMap<String, String>();
+        fields.put(PUBLISHER, "Someone else");
+        try {
+            template.render(fields);
+            fail("a field repeating a constant should be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains(PUBLISHER));
+        }
+    }
+
+    @Test
+    public void mintsAndCreatesFromTemplate() throws EZIDException {
+        EZIDService ezid = new EZIDService(server.getBaseUrl());
+        ezid.login("apitest", "apitest");
+        StringBuilder longTitle = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            longTitle.append("été ");
+        }
+        ezid.setCompressionThreshold(500);
+        for (int i = 0; i < 10; i++) {
+            HashMap<String, String> fields = new HashMap<String, String>();
+            fields.put(TITLE, (i % 2 == 0 ? "Dataset " : longTitle.toString()) + i);
+            String minted = ezid.mintIdentifierFromTemplate("doi:10.5072/FK2", template, fields);
+            HashMap<String, String> stored = server.getStoredMetadata(minted);
+            assertEquals(fields.get(TITLE).trim(), stored.get(TITLE));
+            assertEquals("NCEAS: Santa Barbara, 100%", stored.get(PUBLISHER));
+        }
+        String created = ezid.createIdentifierFromTemplate("doi:10.5072/FK2/TEMPLATE", template, null);
+        assertEquals("datacite", server.getStoredMetadata(created).get(InternalProfile.PROFILE.toString()));
+    }
+
+    @Test
+    public void clientQueuesFromTemplate() throws InterruptedException {
+        EZIDClient client = new EZIDClient(server.getBaseUrl());
+        client.login("apitest", "apitest");
+        for (int i = 0; i < 20; i++) {
+            HashMap<String, String> fields = new HashMap<String, String>();
+            fields.put(TITLE, "Queued " + i);
+            client.createFromTemplate("doi:10.5072/FK2/QUEUED" + i, template, fields);
+        }
+        assertTrue(client.shutdown(30, TimeUnit.SECONDS).isEmpty());
+        assertEquals(20, server.getIdentifierCount());
+        HashMap<String, String> stored = server.getStoredMetadata("doi:10.5072/FK2/QUEUED7");
+        assertEquals("Queued 7", stored.get(TITLE));
+        assertEquals("NCEAS: Santa Barbara, 100%", stored.get(PUBLISHER));
+    }
+}
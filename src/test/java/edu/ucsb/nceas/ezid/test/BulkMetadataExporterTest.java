@@ -0,0 +1,91 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.export.BulkMetadataExporter;
+import edu.ucsb.nceas.ezid.export.CsvMetadataSink;
+import edu.ucsb.nceas.ezid.export.ExportSummary;
+import edu.ucsb.nceas.ezid.export.JsonLinesMetadataSink;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+
+/**
+ * Tests exporting the metadata of many identifiers with the BulkMetadataExporter.
+ */
+public class BulkMetadataExporterTest {
+
+    private static final String DOISHOULDER = "doi:10.5072/FK2/EXPORT/";
+
+    private LocalEZIDServer server;
+    private EZIDService ezid;
+    private List<String> identifiers;
+
+    @Before
+    public void setUp() throws IOException, EZIDException {
+        server = new LocalEZIDServer(0);
+        server.start();
+        ezid = new EZIDService(server.getBaseUrl());
+        ezid.login("apitest", "apitest");
+        identifiers = new ArrayList<String>();
+        for (int i = 0; i < 40; i++) {
+            HashMap<String, String> metadata = new HashMap<String, String>();
+            metadata.put("datacite.title", "Title \"" + i + "\", with comma");
+            identifiers.add(ezid.createIdentifier(DOISHOULDER + i, metadata));
+        }
+        identifiers.add(20, DOISHOULDER + "MISSING");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void exportsJsonLinesInCompletionOrder() throws IOException, InterruptedException {
+        server.setLatency(10, 10);
+        StringWriter out = new StringWriter();
+        ExportSummary summary = new BulkMetadataExporter(ezid, 5).export(identifiers.stream(),
+                new JsonLinesMetadataSink(out));
+        // the identifiers are read in parallel, but never by more than the five workers
+        assertTrue(server.getPeakConcurrentRequests() > 1);
+        assertTrue(server.getPeakConcurrentRequests() <= 5);
+        assertEquals(40, summary.getExported());
+        assertEquals(1, summary.getFailed());
+        String[] lines = out.toString().split("\n");
+        assertEquals(41, lines.length);
+        int errors = 0;
+        for (String line : lines) {
+            if (line.contains("\"error\":")) {
+                errors++;
+                assertTrue(line.startsWith("{\"identifier\":\"" + DOISHOULDER + "MISSING\""));
+            } else {
+                assertTrue(line, line.contains("\"datacite.title\":\"Title \\\""));
+            }
+        }
+        assertEquals(1, errors);
+    }
+
+    @Test
+    public void exportsCsvColumns() throws IOException, InterruptedException {
+        StringWriter out = new StringWriter();
+        CsvMetadataSink sink = new CsvMetadataSink(out, Arrays.asList("datacite.title", "_status"));
+        new BulkMetadataExporter(ezid, 1).export(identifiers.subList(0, 2).iterator(), sink);
+        String[] rows = out.toString().split("\r\n");
+        assertEquals("identifier,error,datacite.title,_status", rows[0]);
+        assertTrue(rows[1], rows[1].startsWith(DOISHOULDER + "0,,\"Title \"\"0\"\", with comma\","));
+        assertEquals(3, rows.length);
+    }
+}
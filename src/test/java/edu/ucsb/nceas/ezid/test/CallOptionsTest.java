@@ -0,0 +1,99 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.CallOptions;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+
+/**
+ * Tests that deadlines and cancellation abort calls against a server that
+ * accepts connections but never answers.
+ */
+public class CallOptionsTest {
+
+    private ServerSocket server;
+    private EZIDService ezid;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0);
+        Thread acceptor = new Thread() {
+            public void run() {
+                try {
+                    while (true) {
+                        Socket s = server.accept();
+                        // hold the connection open without responding
+                    }
+                } catch (IOException e) {
+                    // server closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        ezid = new EZIDService("http://127.0.0.1:" + server.getLocalPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void deadlineAbortsStuckRead() {
+        long start = System.currentTimeMillis();
+        try {
+            ezid.getMetadata("doi:10.5072/FK2/STUCK", CallOptions.withTimeout(Duration.ofMillis(300)));
+            fail("Call should have exceeded its deadline.");
+        } catch (EZIDException e) {
+            assertTrue(e.getMessage().startsWith("Deadline exceeded"));
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void cancelAbortsCallInProgress() throws InterruptedException {
+        final CallOptions options = CallOptions.cancellable();
+        Thread canceller = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                options.cancel();
+            }
+        };
+        canceller.start();
+        try {
+            ezid.deleteIdentifier("doi:10.5072/FK2/STUCK", options);
+            fail("Call should have been cancelled.");
+        } catch (EZIDException e) {
+            assertTrue(e.getMessage().startsWith("Call cancelled"));
+        }
+        canceller.join();
+    }
+
+    @Test
+    public void cancelledCallIsNotSent() {
+        CallOptions options = CallOptions.cancellable();
+        options.cancel();
+        try {
+            ezid.getMetadata("doi:10.5072/FK2/NEVER", options);
+            fail("Cancelled call should not have been sent.");
+        } catch (EZIDException e) {
+            assertTrue(e.getMessage().startsWith("Call cancelled"));
+        }
+    }
+}
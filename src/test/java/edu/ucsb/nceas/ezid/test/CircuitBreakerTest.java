@@ -0,0 +1,113 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.CircuitBreaker;
+import edu.ucsb.nceas.ezid.CircuitBreaker.State;
+import edu.ucsb.nceas.ezid.CircuitBreakerListener;
+
+/**
+ * Unit tests for the CircuitBreaker state machine.
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void tripsOnConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 1.0, 100, 60000, 1);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(breaker.tryAcquirePermission());
+            breaker.onFailure();
+        }
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquirePermission());
+        assertEquals(1, breaker.getRejectedCalls());
+    }
+
+    @Test
+    public void tripsOnErrorRate() {
+        CircuitBreaker breaker = new CircuitBreaker(100, 0.5, 10, 60000, 1);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(breaker.tryAcquirePermission());
+            if (i % 2 == 1) {
+                breaker.onFailure();
+            } else {
+                breaker.onSuccess();
+            }
+        }
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void halfOpenProbesCloseBreaker() throws InterruptedException {
+        final List<String> transitions = new ArrayList<String>();
+        CircuitBreaker breaker = new CircuitBreaker(1, 1.0, 10, 0, 2);
+        breaker.addListener(new CircuitBreakerListener() {
+            public void stateChanged(CircuitBreaker b, State from, State to) {
+                transitions.add(from + "->" + to);
+            }
+        });
+        assertTrue(breaker.tryAcquirePermission());
+        breaker.onFailure();
+        breaker.awaitPermission();
+        assertTrue(breaker.tryAcquirePermission());
+        assertTrue(breaker.tryAcquirePermission());
+        assertFalse(breaker.tryAcquirePermission());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        breaker.onSuccess();
+        breaker.onSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->CLOSED]", transitions.toString());
+    }
+
+    @Test
+    public void failedProbeReopens() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1.0, 10, 0, 1);
+        breaker.tryAcquirePermission();
+        breaker.onFailure();
+        assertTrue(breaker.tryAcquirePermission());
+        breaker.onFailure();
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void closedEraOutcomesDoNotCountAsProbes() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1.0, 10, 0, 1);
+        long slow = breaker.tryAcquirePermit();
+        long failing = breaker.tryAcquirePermit();
+        assertTrue(slow >= 0 && failing >= 0);
+        breaker.onFailure(failing);
+        breaker.awaitPermission();
+        long probe = breaker.tryAcquirePermit();
+        assertTrue(probe >= 0);
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        // the call admitted while CLOSED finishes now; it is not the probe
+        breaker.onSuccess(slow);
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        breaker.onFailure(slow);
+        breaker.onIgnored(slow);
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        // the probe slot is still taken, and was not freed twice
+        assertEquals(-1, breaker.tryAcquirePermit());
+        breaker.onSuccess(probe);
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void untrackedOutcomesNeverFreeMoreProbesThanPermitted() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1.0, 10, 0, 1);
+        breaker.tryAcquirePermission();
+        breaker.onFailure();
+        assertTrue(breaker.tryAcquirePermission());
+        breaker.onIgnored();
+        breaker.onIgnored();
+        assertTrue(breaker.tryAcquirePermission());
+        assertFalse(breaker.tryAcquirePermission());
+    }
+}
@@ -0,0 +1,130 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.DeadLetter;
+import edu.ucsb.nceas.ezid.EZIDClient;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.EZIDServiceRequest;
+import edu.ucsb.nceas.ezid.RequestAttempt;
+import edu.ucsb.nceas.ezid.RequestPriority;
+import edu.ucsb.nceas.ezid.deadletter.DeadLetterReplayer;
+import edu.ucsb.nceas.ezid.deadletter.FileDeadLetterSink;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+import edu.ucsb.nceas.ezid.profile.DataCiteProfile;
+
+/**
+ * Tests recording failed requests in a FileDeadLetterSink and replaying them.
+ */
+public class DeadLetterTest {
+
+    private static final String IDENTIFIER = "doi:10.5072/FK2/DEADLETTER";
+
+    private LocalEZIDServer server;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalEZIDServer(0);
+        server.start();
+        file = Files.createTempFile("deadletters", ".anvl");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void recordAndReplay() throws IOException, InterruptedException, EZIDException {
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        metadata.put(DataCiteProfile.TITLE.toString(), "Title: with\nnewline and 100%");
+
+        EZIDClient client = new EZIDClient(server.getBaseUrl());
+        client.login("apitest", "apitest");
+        FileDeadLetterSink sink = new FileDeadLetterSink(file);
+        client.setDeadLetterSink(sink);
+        client.setMetadata(IDENTIFIER, metadata, RequestPriority.BULK, "tenant-a");
+        client.delete(IDENTIFIER + "/OTHER");
+        client.shutdown();
+        sink.close();
+
+        List<DeadLetter> letters = FileDeadLetterSink.read(file);
+        assertEquals(2, letters.size());
+        List<DeadLetter> sets = DeadLetterReplayer.select(letters, null, IDENTIFIER, "setmetadata", null);
+        assertEquals(1, sets.size());
+        DeadLetter letter = sets.get(0);
+        assertEquals(EZIDServiceRequest.SETMETADATA, letter.getMethod());
+        assertEquals(RequestPriority.BULK, letter.getPriority());
+        assertEquals("tenant-a", letter.getFairnessKey());
+        assertEquals(metadata, letter.getMetadata());
+        assertTrue(letter.getError().contains("no such identifier"));
+        assertEquals(1, letter.getAttempts().size());
+
+        // once the identifier exists, replaying the update succeeds
+        EZIDService ezid = new EZIDService(server.getBaseUrl());
+        ezid.createIdentifier(IDENTIFIER, null);
+        EZIDClient replayClient = new EZIDClient(server.getBaseUrl());
+        assertEquals(1, new DeadLetterReplayer(replayClient, 100).replay(sets));
+        replayClient.shutdown();
+        assertEquals(metadata.get(DataCiteProfile.TITLE.toString()),
+                server.getStoredMetadata(IDENTIFIER).get(DataCiteProfile.TITLE.toString()));
+    }
+
+    @Test
+    public void tornLetterDoesNotSpillIntoNext() throws IOException {
+        FileDeadLetterSink sink = new FileDeadLetterSink(file);
+        sink.record(letter(IDENTIFIER + "/A"));
+        sink.close();
+        // a crash part way through writing a letter leaves a torn line at the end
+        Files.write(file, "\ndl.recorded: 1700000000000\ndl.method: setmeta".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        sink = new FileDeadLetterSink(file);
+        sink.record(letter(IDENTIFIER + "/B"));
+        sink.close();
+
+        List<DeadLetter> letters = FileDeadLetterSink.read(file);
+        assertEquals(2, letters.size());
+        assertEquals(IDENTIFIER + "/A", letters.get(0).getIdentifier());
+        assertEquals(IDENTIFIER + "/B", letters.get(1).getIdentifier());
+        assertEquals("Torn", letters.get(1).getMetadata().get(DataCiteProfile.TITLE.toString()));
+    }
+
+    @Test
+    public void missingValuesAreWrittenAsEmpty() throws IOException {
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        metadata.put(DataCiteProfile.TITLE.toString(), null);
+        FileDeadLetterSink sink = new FileDeadLetterSink(file);
+        sink.record(new DeadLetter(1700000000000L, EZIDServiceRequest.CREATE, IDENTIFIER, metadata, null, null,
+                null, Collections.singletonList(new RequestAttempt(1700000000000L, 5, null))));
+        sink.close();
+
+        List<DeadLetter> letters = FileDeadLetterSink.read(file);
+        assertEquals(1, letters.size());
+        assertEquals("", letters.get(0).getMetadata().get(DataCiteProfile.TITLE.toString()));
+        assertEquals(1, letters.get(0).getAttempts().size());
+    }
+
+    private static DeadLetter letter(String identifier) {
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        metadata.put(DataCiteProfile.TITLE.toString(), "Torn");
+        return new DeadLetter(System.currentTimeMillis(), EZIDServiceRequest.SETMETADATA, identifier, metadata,
+                RequestPriority.NORMAL, "tenant-a", "bad request", Collections.<RequestAttempt>emptyList());
+    }
+}
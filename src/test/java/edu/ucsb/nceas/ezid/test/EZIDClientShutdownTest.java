@@ -0,0 +1,120 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.DeadLetter;
+import edu.ucsb.nceas.ezid.DeadLetterSink;
+import edu.ucsb.nceas.ezid.EZIDClient;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDRequestListener;
+import edu.ucsb.nceas.ezid.EZIDServiceRequest;
+import edu.ucsb.nceas.ezid.SharedRateLimiter;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+
+/**
+ * Tests draining an EZIDClient with and without a shutdown deadline.
+ */
+public class EZIDClientShutdownTest {
+
+    private static final String DOISHOULDER = "doi:10.5072/FK2/SHUTDOWN/";
+
+    private LocalEZIDServer server;
+    private EZIDClient client;
+    private final AtomicInteger finished = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalEZIDServer(0);
+        server.start();
+        client = new EZIDClient(server.getBaseUrl());
+        client.login("apitest", "apitest");
+        client.addRequestListener(new EZIDRequestListener() {
+            public void requestCompleted(EZIDServiceRequest request) {
+                finished.incrementAndGet();
+            }
+
+            public void requestFailed(EZIDServiceRequest request, EZIDException e) {
+                finished.incrementAndGet();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void drainsEverythingWithoutDeadline() throws InterruptedException {
+        server.setLatency(5, 0);
+        for (int i = 0; i < 20; i++) {
+            client.create(DOISHOULDER + i, null);
+        }
+        List<EZIDServiceRequest> leftover = client.shutdown(30, TimeUnit.SECONDS);
+        assertTrue(leftover.isEmpty());
+        assertEquals(20, finished.get());
+        assertEquals(20, server.getIdentifierCount());
+    }
+
+    @Test
+    public void returnsUnrunRequestsAtDeadline() throws InterruptedException {
+        server.setLatency(200, 0);
+        int total = 20 * Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < total; i++) {
+            client.create(DOISHOULDER + i, null);
+        }
+        long start = System.nanoTime();
+        List<EZIDServiceRequest> leftover = client.shutdown(300, TimeUnit.MILLISECONDS);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertTrue(leftover.size() > 0);
+        // in-flight calls finish on their own; nothing is both run and returned
+        Thread.sleep(500);
+        assertEquals(total, finished.get() + leftover.size());
+    }
+
+    @Test
+    public void returnsRequestWaitingForLeaseAtDeadline() throws Exception {
+        Path dir = Files.createTempDirectory("shutdown");
+        Path file = dir.resolve("limit");
+        SharedRateLimiter holder = new SharedRateLimiter(file, 1000, 100, 1);
+        SharedRateLimiter shared = new SharedRateLimiter(file, 1000, 100, 1);
+        final List<DeadLetter> letters = new CopyOnWriteArrayList<DeadLetter>();
+        try {
+            // take the only in-flight lease so the queued request has to wait for it
+            assertTrue(holder.tryAcquire(1, TimeUnit.SECONDS));
+            client.setSharedRateLimiter(shared);
+            client.setDeadLetterSink(new DeadLetterSink() {
+                public void record(DeadLetter letter) {
+                    letters.add(letter);
+                }
+            });
+            client.create(DOISHOULDER + "leased", null);
+            Thread.sleep(200);
+
+            List<EZIDServiceRequest> leftover = client.shutdown(100, TimeUnit.MILLISECONDS);
+            assertEquals(1, leftover.size());
+            assertEquals(DOISHOULDER + "leased", leftover.get(0).getIdentifier());
+            assertTrue(letters.isEmpty());
+            assertEquals(0, finished.get());
+        } finally {
+            holder.release();
+            holder.close();
+            shared.close();
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.cli.EZIDCommandLine;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+
+/**
+ * Tests the ezid command-line client against a LocalEZIDServer.
+ */
+public class EZIDCommandLineTest {
+
+    private LocalEZIDServer server;
+    private ByteArrayOutputStream out;
+    private ByteArrayOutputStream err;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalEZIDServer(0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void singleCommands() {
+        assertEquals(0, run("", "create", "doi:10.5072/FK2/CLI", "datacite.title=A: title"));
+        assertEquals("success: doi:10.5072/FK2/CLI", output().trim());
+        assertEquals(0, run("datacite.creator: Me\n", "set", "doi:10.5072/FK2/CLI", "-"));
+        assertEquals(0, run("", "get", "doi:10.5072/FK2/CLI"));
+        assertTrue(output().contains("datacite.creator: Me\ndatacite.title: A%3A title\n"));
+        assertEquals(0, run("", "mint", "ark:/99999/fk4"));
+        assertTrue(output().startsWith("success: ark:/99999/fk4"));
+        assertEquals(1, run("", "delete", "doi:10.5072/FK2/NONE"));
+        assertEquals(2, run("", "create", "doi:10.5072/FK2/CLI", "title"));
+        assertEquals(2, run("", "frobnicate", "doi:10.5072/FK2/CLI"));
+    }
+
+    @Test
+    public void batchFromStandardInput() {
+        String records = "create: doi:10.5072/FK2/B1\n_target: http://example.com/1\n\n"
+                + "delete: doi:10.5072/FK2/MISSING\n\n\n"
+                + "set: doi:10.5072/FK2/B1\ndatacite.title: Batch%0Atitle\n\n"
+                + "get: doi:10.5072/FK2/B1";
+        assertEquals(1, run(records, "batch"));
+        String[] lines = output().split("\n");
+        assertEquals("success: doi:10.5072/FK2/B1", lines[0]);
+        assertTrue(lines[1].startsWith("error: delete doi:10.5072/FK2/MISSING: "));
+        assertEquals("success: doi:10.5072/FK2/B1", lines[2]);
+        assertEquals("success: doi:10.5072/FK2/B1", lines[3]);
+        assertTrue(output().contains("datacite.title: Batch%0Atitle\n"));
+        assertEquals(1, server.getIdentifierCount());
+    }
+
+    private int run(String stdin, String... command) {
+        out = new ByteArrayOutputStream();
+        err = new ByteArrayOutputStream();
+        String[] args = new String[command.length + 6];
+        args[0] = "--url";
+        args[1] = server.getBaseUrl();
+        args[2] = "--user";
+        args[3] = "apitest";
+        args[4] = "--password";
+        args[5] = "apitest";
+        System.arraycopy(command, 0, args, 6, command.length);
+        EZIDCommandLine cli = new EZIDCommandLine(new ByteArrayInputStream(stdin.getBytes(StandardCharsets.UTF_8)),
+                new PrintStream(out, true), new PrintStream(err, true));
+        return cli.run(args);
+    }
+
+    private String output() {
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
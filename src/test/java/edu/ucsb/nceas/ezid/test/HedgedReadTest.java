@@ -0,0 +1,103 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDCallEvent;
+import edu.ucsb.nceas.ezid.EZIDCallEvent.Phase;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDInterceptor;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.HedgingPolicy;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+import edu.ucsb.nceas.ezid.profile.DataCiteProfile;
+
+/**
+ * Tests that an EZIDService hedges slow reads, and only reads.
+ */
+public class HedgedReadTest {
+
+    private static final String IDENTIFIER = "doi:10.5072/FK2/HEDGED";
+
+    private LocalEZIDServer server;
+    private EZIDService ezid;
+    private HedgingPolicy policy;
+    private final List<EZIDCallEvent> events = Collections.synchronizedList(new ArrayList<EZIDCallEvent>());
+
+    @Before
+    public void setUp() throws IOException, EZIDException {
+        server = new LocalEZIDServer(0);
+        server.start();
+        ezid = new EZIDService(server.getBaseUrl());
+        ezid.login("apitest", "apitest");
+        // hedge after 20 ms, with budget for every read
+        policy = new HedgingPolicy(50.0, 20, 20, 1.0);
+        ezid.setHedgingPolicy(policy);
+        ezid.createIdentifier(IDENTIFIER, null);
+        // fast reads earn hedge budget
+        for (int i = 0; i < 5; i++) {
+            ezid.getMetadata(IDENTIFIER);
+        }
+        ezid.addInterceptor(new EZIDInterceptor() {
+            public void onEvent(EZIDCallEvent event) {
+                events.add(event);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void hedgesSlowReadsOnce() throws EZIDException {
+        server.setLatency(200, 0);
+        long before = server.getRequestCount();
+        ezid.getMetadata(IDENTIFIER);
+        assertEquals(1, policy.getHedgesIssued());
+        assertEquals(before + 2, server.getRequestCount());
+        // two requests, but each point of the call is reported once
+        for (Phase phase : new Phase[] { Phase.DISPATCHED, Phase.LEASED, Phase.RESPONSE, Phase.PARSED }) {
+            assertEquals(phase.toString(), 1, count(phase));
+        }
+        assertEquals(0, count(Phase.FAILED));
+    }
+
+    @Test
+    public void neverHedgesWrites() throws EZIDException {
+        server.setLatency(100, 0);
+        long before = server.getRequestCount();
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        metadata.put(DataCiteProfile.TITLE.toString(), "Not hedged");
+        ezid.createIdentifier(IDENTIFIER + "/PUT", metadata);
+        ezid.mintIdentifier("doi:10.5072/FK2", metadata);
+        ezid.setMetadata(IDENTIFIER, metadata);
+        ezid.deleteIdentifier(IDENTIFIER + "/PUT");
+        assertEquals(0, policy.getHedgesIssued());
+        assertEquals(0, policy.getHedgesDenied());
+        assertEquals(before + 4, server.getRequestCount());
+        assertEquals(4, count(Phase.DISPATCHED));
+    }
+
+    private int count(Phase phase) {
+        int n = 0;
+        synchronized (events) {
+            for (EZIDCallEvent event : events) {
+                if (event.getPhase() == phase) {
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+}
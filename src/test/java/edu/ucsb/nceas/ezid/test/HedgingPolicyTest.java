@@ -0,0 +1,48 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.HedgingPolicy;
+
+/**
+ * Unit tests for the hedge delay and budget calculations of HedgingPolicy.
+ */
+public class HedgingPolicyTest {
+
+    @Test
+    public void delayTracksPercentile() {
+        HedgingPolicy policy = new HedgingPolicy(90.0, 1, 10000, 0.05);
+        assertEquals(1, policy.getHedgeDelayMillis());
+        for (int i = 1; i <= 100; i++) {
+            policy.recordLatency(i);
+        }
+        assertEquals(90, policy.getHedgeDelayMillis());
+    }
+
+    @Test
+    public void delayIsBounded() {
+        HedgingPolicy policy = new HedgingPolicy(99.0, 20, 50, 0.05);
+        for (int i = 0; i < 100; i++) {
+            policy.recordLatency(5000);
+        }
+        assertEquals(50, policy.getHedgeDelayMillis());
+    }
+
+    @Test
+    public void budgetLimitsHedges() {
+        HedgingPolicy policy = new HedgingPolicy(95.0, 10, 1000, 0.05);
+        assertFalse(policy.tryAcquireHedge());
+        for (int i = 0; i < 45; i++) {
+            policy.recordLatency(10);
+        }
+        assertTrue(policy.tryAcquireHedge());
+        assertTrue(policy.tryAcquireHedge());
+        assertFalse(policy.tryAcquireHedge());
+        assertEquals(2, policy.getHedgesIssued());
+        assertEquals(2, policy.getHedgesDenied());
+    }
+}
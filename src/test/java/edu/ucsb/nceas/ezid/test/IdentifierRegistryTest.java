@@ -0,0 +1,191 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+import edu.ucsb.nceas.ezid.profile.InternalProfile;
+import edu.ucsb.nceas.ezid.registry.IdentifierRegistry;
+
+/**
+ * Tests the persistent IdentifierRegistry and its updates from EZIDService.
+ */
+public class IdentifierRegistryTest {
+
+    private static final String STATUS = InternalProfile.STATUS.toString();
+    private static final String CREATED = InternalProfile.CREATED.toString();
+
+    private Path dir;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("registry");
+        file = dir.resolve("ids.log");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void queriesSurviveReopen() throws IOException {
+        IdentifierRegistry registry = new IdentifierRegistry(file);
+        registry.recordCreate("doi:10.5072/FK2/a", metadata(STATUS, "reserved", CREATED, "100"), "apitest");
+        registry.recordCreate("doi:10.5072/FK2/b", metadata(STATUS, "public", CREATED, "200"), "apitest");
+        registry.recordCreate("ark:/99999/fk4c", metadata(STATUS, "reserved", CREATED, "300"), "other");
+        registry.recordUpdate("doi:10.5072/FK2/b", metadata(STATUS, "unavailable"));
+        registry.recordCreate("doi:10.5072/FK2/d", null, "apitest");
+        registry.recordDelete("doi:10.5072/FK2/d");
+        registry.close();
+
+        registry = new IdentifierRegistry(file);
+        assertEquals(3, registry.size());
+        assertEquals(2, registry.findByPrefix("doi:10.5072/FK2").size());
+        List<String> reserved = registry.findByPrefixAndField("doi:10.5072/FK2", STATUS, "reserved");
+        assertEquals(1, reserved.size());
+        assertEquals("doi:10.5072/FK2/a", reserved.get(0));
+        assertTrue(registry.findByField(STATUS, "unavailable").contains("doi:10.5072/FK2/b"));
+        assertFalse(registry.findByField(STATUS, "public").contains("doi:10.5072/FK2/b"));
+        assertEquals(1, registry.findByField(InternalProfile.OWNER.toString(), "other").size());
+        assertEquals(2, registry.findCreatedBetween(150, 301).size());
+        assertNull(registry.get("doi:10.5072/FK2/d"));
+
+        registry.compact();
+        assertEquals(3, registry.size());
+        registry.close();
+        registry = new IdentifierRegistry(file);
+        assertEquals("unavailable", registry.get("doi:10.5072/FK2/b").get(STATUS));
+        registry.close();
+    }
+
+    @Test
+    public void growsBeyondInitialMapping() throws IOException {
+        IdentifierRegistry registry = new IdentifierRegistry(file);
+        StringBuilder target = new StringBuilder("http://example.com/");
+        for (int i = 0; i < 2000; i++) {
+            target.append('x');
+        }
+        HashMap<String, String> md = metadata(InternalProfile.TARGET.toString(), target.toString());
+        for (int i = 0; i < 3000; i++) {
+            registry.recordCreate("ark:/99999/fk4" + i, md, null);
+        }
+        registry.close();
+        registry = new IdentifierRegistry(file);
+        assertEquals(3000, registry.size());
+        registry.close();
+    }
+
+    @Test
+    public void corruptTailIsDropped() throws IOException {
+        IdentifierRegistry registry = new IdentifierRegistry(file);
+        registry.recordCreate("doi:10.5072/FK2/a", metadata(STATUS, "reserved"), null);
+        registry.recordCreate("doi:10.5072/FK2/b", metadata(STATUS, "reserved"), null);
+        registry.close();
+
+        // overwrite the second record's field count with a negative value
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(4);
+        channel.read(header, 16);
+        header.flip();
+        long second = 16 + 5 + header.getInt();
+        ByteBuffer identifierLength = ByteBuffer.allocate(4);
+        channel.read(identifierLength, second + 5);
+        identifierLength.flip();
+        ByteBuffer count = ByteBuffer.allocate(4);
+        count.putInt(-7).flip();
+        channel.write(count, second + 5 + 4 + identifierLength.getInt());
+        channel.close();
+
+        registry = new IdentifierRegistry(file);
+        assertEquals(1, registry.size());
+        assertNull(registry.get("doi:10.5072/FK2/b"));
+        registry.recordCreate("doi:10.5072/FK2/c", metadata(STATUS, "reserved"), null);
+        registry.close();
+        registry = new IdentifierRegistry(file);
+        assertEquals(2, registry.size());
+        assertEquals("reserved", registry.get("doi:10.5072/FK2/c").get(STATUS));
+        registry.close();
+    }
+
+    @Test
+    public void queriesSeeEveryIdentifierDuringCompaction() throws Exception {
+        final IdentifierRegistry registry = new IdentifierRegistry(file);
+        for (int i = 0; i < 500; i++) {
+            registry.recordCreate("doi:10.5072/FK2/" + i, metadata(STATUS, "reserved"), null);
+            registry.recordUpdate("doi:10.5072/FK2/" + i, metadata(STATUS, "public"));
+        }
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicInteger misses = new AtomicInteger();
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                while (!done.get()) {
+                    if (registry.findByPrefix("doi:10.5072/FK2/").size() != 500
+                            || registry.findByField(STATUS, "public").size() != 500) {
+                        misses.incrementAndGet();
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 20; i++) {
+            registry.compact();
+        }
+        done.set(true);
+        reader.join();
+        assertEquals(0, misses.get());
+        registry.close();
+        Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".compact"));
+    }
+
+    @Test
+    public void serviceUpdatesRegistry() throws IOException, EZIDException {
+        LocalEZIDServer server = new LocalEZIDServer(0);
+        server.start();
+        IdentifierRegistry registry = new IdentifierRegistry(file);
+        try {
+            EZIDService ezid = new EZIDService(server.getBaseUrl());
+            ezid.login("apitest", "apitest");
+            ezid.setRegistry(registry);
+            String minted = ezid.mintIdentifier("doi:10.5072/FK2", metadata(STATUS, "reserved"));
+            assertEquals("apitest", registry.get(minted).get(InternalProfile.OWNER.toString()));
+            assertEquals(1, registry.findByPrefixAndField("doi:10.5072/FK2", STATUS, "reserved").size());
+            ezid.setMetadata(minted, metadata(STATUS, "public"));
+            assertEquals("public", registry.get(minted).get(STATUS));
+            ezid.deleteIdentifier(minted);
+            assertEquals(0, registry.size());
+        } finally {
+            registry.close();
+            server.stop();
+        }
+    }
+
+    private static HashMap<String, String> metadata(String... pairs) {
+        HashMap<String, String> md = new HashMap<String, String>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            md.put(pairs[i], pairs[i + 1]);
+        }
+        return md;
+    }
+}
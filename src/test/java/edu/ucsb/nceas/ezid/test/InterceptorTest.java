@@ -0,0 +1,116 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDCallEvent;
+import edu.ucsb.nceas.ezid.EZIDCallEvent.Operation;
+import edu.ucsb.nceas.ezid.EZIDCallEvent.Phase;
+import edu.ucsb.nceas.ezid.EZIDClient;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDInterceptor;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.intercept.LoggingInterceptor;
+import edu.ucsb.nceas.ezid.intercept.TracingInterceptor;
+import edu.ucsb.nceas.ezid.intercept.ZipkinJsonSpanExporter;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+
+/**
+ * Tests the lifecycle events reported to EZIDInterceptors.
+ */
+public class InterceptorTest {
+
+    private static final String IDENTIFIER = "doi:10.5072/FK2/INTERCEPT";
+
+    private LocalEZIDServer server;
+    private final List<EZIDCallEvent> events = Collections.synchronizedList(new ArrayList<EZIDCallEvent>());
+    private final EZIDInterceptor recorder = new EZIDInterceptor() {
+        public void onEvent(EZIDCallEvent event) {
+            events.add(event);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalEZIDServer(0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void lifecycle() throws EZIDException {
+        EZIDService ezid = new EZIDService(server.getBaseUrl());
+        ezid.addInterceptor(recorder);
+        ezid.addInterceptor(new LoggingInterceptor());
+        ezid.createIdentifier(IDENTIFIER, EZIDServiceTest.generateMetadata(IDENTIFIER));
+        assertEquals(4, events.size());
+        Phase[] expected = {Phase.DISPATCHED, Phase.LEASED, Phase.RESPONSE, Phase.PARSED};
+        for (int i = 0; i < expected.length; i++) {
+            EZIDCallEvent event = events.get(i);
+            assertEquals(expected[i], event.getPhase());
+            assertEquals(Operation.CREATE, event.getOperation());
+            assertEquals(IDENTIFIER, event.getIdentifier());
+            assertEquals(events.get(0).getCallId(), event.getCallId());
+        }
+        assertTrue(events.get(0).getPayloadSize() > 0);
+        assertEquals(201, events.get(2).getStatusCode());
+
+        events.clear();
+        try {
+            ezid.getMetadata(IDENTIFIER + "/MISSING");
+            fail("Missing identifier should not be found.");
+        } catch (EZIDException e) {
+            assertEquals(Phase.FAILED, events.get(events.size() - 1).getPhase());
+        }
+
+        events.clear();
+        ezid.removeInterceptor(recorder);
+        ezid.getMetadata(IDENTIFIER);
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void tracingAndEnqueue() throws InterruptedException {
+        StringWriter spans = new StringWriter();
+        EZIDClient client = new EZIDClient(server.getBaseUrl());
+        client.addInterceptor(recorder);
+        client.addInterceptor(new TracingInterceptor(new ZipkinJsonSpanExporter(spans, "ezid-test")));
+        client.create(IDENTIFIER, null);
+        client.shutdown();
+        assertEquals(Phase.ENQUEUED, events.get(0).getPhase());
+        String[] lines = spans.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[1].contains("\"name\":\"ezid create\""));
+        assertTrue(lines[1].contains("\"value\":\"connection_leased\""));
+        assertTrue(lines[1].contains("\"http.status_code\":\"201\""));
+    }
+
+    @Test
+    public void enqueuedSizeMatchesDispatchedBody() throws InterruptedException {
+        EZIDClient client = new EZIDClient(server.getBaseUrl());
+        client.addInterceptor(recorder);
+        HashMap<String, String> metadata = EZIDServiceTest.generateMetadata(IDENTIFIER);
+        metadata.put("_target", "http://example.com/a:b%c\nd");
+        client.create(IDENTIFIER, metadata);
+        client.shutdown();
+        assertEquals(Phase.ENQUEUED, events.get(0).getPhase());
+        assertEquals(Phase.DISPATCHED, events.get(1).getPhase());
+        assertEquals(events.get(1).getPayloadSize(), events.get(0).getPayloadSize());
+    }
+}
@@ -0,0 +1,45 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.load.LatencyHistogram;
+
+/**
+ * Unit tests for the percentile accuracy of LatencyHistogram.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentilesWithinOnePercent() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 100000; v++) {
+            h.recordMicros(v);
+        }
+        assertEquals(100000, h.getCount());
+        assertEquals(100000, h.getMaxMicros());
+        assertWithin(50000, h.getValueAtPercentile(50.0));
+        assertWithin(99000, h.getValueAtPercentile(99.0));
+        assertEquals(100000, h.getValueAtPercentile(100.0));
+        assertEquals(50000.5, h.getMeanMicros(), 0.001);
+    }
+
+    @Test
+    public void addMergesCounts() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.recordMicros(10);
+        b.recordMicros(5000000);
+        a.add(b);
+        assertEquals(2, a.getCount());
+        assertEquals(5000000, a.getMaxMicros());
+        assertEquals(10, a.getValueAtPercentile(50.0));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected ~" + expected + " but was " + actual,
+                actual >= expected && actual <= expected * 1.01);
+    }
+}
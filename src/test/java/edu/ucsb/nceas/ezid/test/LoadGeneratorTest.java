@@ -0,0 +1,68 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.load.LoadGenerator;
+import edu.ucsb.nceas.ezid.load.LoadGenerator.Operation;
+import edu.ucsb.nceas.ezid.load.LoadReport;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+
+/**
+ * Runs short LoadGenerator steps against the LocalEZIDServer stand-in.
+ */
+public class LoadGeneratorTest {
+
+    private LocalEZIDServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalEZIDServer(0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void rejectsMixWithoutWeights() throws Exception {
+        LoadGenerator generator = new LoadGenerator(server.getBaseUrl());
+        for (Operation op : Operation.values()) {
+            generator.setWeight(op, 0);
+        }
+        try {
+            generator.run(10, 100, null, 0);
+            fail("A mix with no weight should be rejected before the step starts.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void queuedOperationsAreTimedFromTheirIntendedStart() throws Exception {
+        server.setLatency(20, 0);
+        LoadGenerator generator = new LoadGenerator(server.getBaseUrl());
+        generator.setCallerThreads(4);
+        generator.setDrainMillis(5000);
+        for (Operation op : Operation.values()) {
+            generator.setWeight(op, 0);
+        }
+        generator.setWeight(Operation.CREATE, 1);
+        LoadReport report = generator.run(50, 1000, null, 0);
+
+        assertEquals(0, report.getErrors(Operation.CREATE));
+        assertTrue(report.getLatency(Operation.CREATE).getCount() > 0);
+        assertEquals(report.getCompleted(), report.getLatency(Operation.CREATE).getCount());
+        // every create waits at least for the stand-in's latency after it was due
+        assertTrue(report.getLatency(Operation.CREATE).getValueAtPercentile(0.0) >= 20000);
+    }
+}
@@ -0,0 +1,98 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+import edu.ucsb.nceas.ezid.profile.DataCiteProfile;
+import edu.ucsb.nceas.ezid.profile.InternalProfile;
+
+/**
+ * Exercises EZIDService against the in-memory LocalEZIDServer stand-in, so the
+ * full request and response path can be tested without the live EZID service.
+ */
+public class LocalEZIDServerTest {
+
+    private static final String DOISHOULDER = "doi:10.5072/FK2";
+
+    private LocalEZIDServer server;
+    private EZIDService ezid;
+
+    @Before
+    public void setUp() throws IOException, EZIDException {
+        server = new LocalEZIDServer(0);
+        server.start();
+        ezid = new EZIDService(server.getBaseUrl());
+        ezid.login("apitest", "apitest");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void createGetSetDelete() throws EZIDException {
+        String identifier = DOISHOULDER + "/TEST/" + EZIDServiceTest.generateTimeString();
+        HashMap<String, String> metadata = EZIDServiceTest.generateMetadata(identifier);
+        metadata.put(InternalProfile.TARGET.toString(), "http://example.com/a:b%c\nd");
+        assertEquals(identifier, ezid.createIdentifier(identifier, metadata));
+
+        HashMap<String, String> stored = ezid.getMetadata(identifier);
+        assertEquals("http://example.com/a:b%c\nd", stored.get(InternalProfile.TARGET.toString()));
+        assertEquals("Keyser Söze", stored.get(DataCiteProfile.CREATOR.toString()));
+
+        HashMap<String, String> update = new HashMap<String, String>();
+        update.put(DataCiteProfile.TITLE.toString(), "Updated title");
+        ezid.setMetadata(identifier, update);
+        assertEquals("Updated title", ezid.getMetadata(identifier).get(DataCiteProfile.TITLE.toString()));
+
+        ezid.deleteIdentifier(identifier);
+        assertNull(server.getStoredMetadata(identifier));
+        try {
+            ezid.getMetadata(identifier);
+            fail("Deleted identifier should not be found.");
+        } catch (EZIDException e) {
+            assertTrue(e.getMessage().contains("no such identifier"));
+        }
+    }
+
+    @Test
+    public void mint() throws EZIDException {
+        String identifier = ezid.mintIdentifier(DOISHOULDER, EZIDServiceTest.generateMetadata("ToBeMinted"));
+        assertTrue(identifier.startsWith(DOISHOULDER));
+        assertEquals(1, server.getIdentifierCount());
+    }
+
+    @Test
+    public void compressedBodies() throws EZIDException {
+        StringBuilder xml = new StringBuilder("<resource>\n");
+        while (xml.length() < 100000) {
+            xml.append("  <subject>Repeated subject: 100% compressible</subject>\n");
+        }
+        xml.append("</resource>");
+        String identifier = DOISHOULDER + "/TEST/" + EZIDServiceTest.generateTimeString();
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        metadata.put("datacite", xml.toString());
+
+        ezid.setCompressionThreshold(4096);
+        ezid.createIdentifier(identifier, metadata);
+        assertTrue(server.getBytesReceived() < xml.length() / 4);
+        assertEquals(xml.toString(), server.getStoredMetadata(identifier).get("datacite"));
+
+        long sentBefore = server.getBytesSent();
+        assertEquals(xml.toString(), ezid.getMetadata(identifier).get("datacite"));
+        assertTrue(server.getBytesSent() - sentBefore < xml.length() / 4);
+    }
+}
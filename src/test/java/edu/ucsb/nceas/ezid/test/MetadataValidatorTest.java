@@ -0,0 +1,174 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDClient;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.MetadataValidationException;
+import edu.ucsb.nceas.ezid.MetadataValidator;
+import edu.ucsb.nceas.ezid.ValidationError;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+import edu.ucsb.nceas.ezid.profile.DataCiteProfile;
+import edu.ucsb.nceas.ezid.profile.DataCiteProfileResourceTypeValues;
+import edu.ucsb.nceas.ezid.profile.ErcMissingValueCode;
+import edu.ucsb.nceas.ezid.profile.ErcProfile;
+import edu.ucsb.nceas.ezid.profile.InternalProfile;
+import edu.ucsb.nceas.ezid.profile.InternalProfileValues;
+
+/**
+ * Tests local checks of DataCite, ERC and internal metadata with a MetadataValidator.
+ */
+public class MetadataValidatorTest {
+
+    private static final String DOI = "doi:10.5072/FK2/VALID";
+
+    private final MetadataValidator validator = new MetadataValidator();
+
+    @Test
+    public void requiresDataCiteFieldsForPublicDois() {
+        HashMap<String, String> metadata = dataCite();
+        assertTrue(validator.validateCreate(DOI, metadata).isEmpty());
+
+        metadata.remove(DataCiteProfile.PUBLISHER.toString());
+        metadata.put(DataCiteProfile.PUBLICATION_YEAR.toString(), "15");
+        List<ValidationError> errors = validator.validateCreate(DOI, metadata);
+        assertEquals(2, errors.size());
+        assertEquals(DataCiteProfile.PUBLICATION_YEAR.toString(), errors.get(0).getField());
+        assertEquals(ValidationError.Kind.INVALID_VALUE, errors.get(0).getKind());
+        assertEquals(DataCiteProfile.PUBLISHER.toString(), errors.get(1).getField());
+        assertEquals(ValidationError.Kind.MISSING, errors.get(1).getKind());
+
+        // reserved DOIs, ARKs and updates need no DataCite fields
+        HashMap<String, String> reserved = new HashMap<String, String>();
+        reserved.put(InternalProfile.STATUS.toString(), InternalProfileValues.RESERVED.toString());
+        assertTrue(validator.validateCreate(DOI, reserved).isEmpty());
+        assertTrue(validator.validateCreate("ark:/99999/fk4valid", null).isEmpty());
+        assertTrue(validator.validateUpdate(DOI, reserved).isEmpty());
+        assertEquals(5, validator.validateCreate(DOI, null).size());
+    }
+
+    @Test
+    public void checksValuesAndMissingCodes() {
+        HashMap<String, String> metadata = dataCite();
+        metadata.put(DataCiteProfile.CREATOR.toString(), ErcMissingValueCode.UNKNOWN.toString());
+        metadata.put(DataCiteProfile.RESOURCE_TYPE.toString(), "Dataset/Survey results");
+        metadata.put(InternalProfile.STATUS.toString(), "unavailable | withdrawn by author");
+        metadata.put(ErcProfile.WHO.toString(), "(:at) http://example.com/who");
+        assertTrue(validator.validateCreate(DOI, metadata).isEmpty());
+        // DataCite 4.4 general types
+        metadata.put(DataCiteProfile.RESOURCE_TYPE.toString(), "JournalArticle/Peer reviewed");
+        assertTrue(validator.validateCreate(DOI, metadata).isEmpty());
+        metadata.put(DataCiteProfile.RESOURCE_TYPE.toString(), DataCiteProfileResourceTypeValues.PREPRINT.toString());
+        assertTrue(validator.validateCreate(DOI, metadata).isEmpty());
+        // values added to the enum keep the ordinals of the older ones
+        assertEquals(0, DataCiteProfileResourceTypeValues.COLLECTION.ordinal());
+        assertEquals(11, DataCiteProfileResourceTypeValues.TEXT.ordinal());
+
+        metadata.put(ErcProfile.WHAT.toString(), "(:unknown)");
+        metadata.put(DataCiteProfile.RESOURCE_TYPE.toString(), "Spreadsheet");
+        metadata.put(InternalProfile.EXPORT.toString(), "maybe");
+        metadata.put(InternalProfile.OWNER.toString(), "someone");
+        List<ValidationError> errors = validator.validateUpdate(DOI, metadata);
+        assertEquals(4, errors.size());
+        assertEquals(1, count(errors, ValidationError.Kind.INVALID_MISSING_CODE));
+        assertEquals(1, count(errors, ValidationError.Kind.READ_ONLY));
+        assertEquals(2, count(errors, ValidationError.Kind.INVALID_VALUE));
+    }
+
+    @Test
+    public void checksDataCiteXml() {
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        metadata.put("datacite", dataCiteXml("2015", "Dataset"));
+        assertTrue(validator.validateCreate(DOI, metadata).isEmpty());
+
+        metadata.put("datacite", dataCiteXml("circa 2015", "Spreadsheet"));
+        List<ValidationError> errors = validator.validateCreate(DOI, metadata);
+        assertEquals(2, errors.size());
+        assertEquals("datacite/publicationYear", errors.get(0).getField());
+        assertEquals("datacite/resourceType", errors.get(1).getField());
+
+        metadata.put("datacite", "<resource><titles><title>T</title></titles></resource>");
+        assertEquals(4, validator.validateCreate(DOI, metadata).size());
+
+        metadata.put("datacite", "<resource><creators>");
+        errors = validator.validateCreate(DOI, metadata);
+        assertEquals(1, errors.size());
+        assertEquals(ValidationError.Kind.MALFORMED_XML, errors.get(0).getKind());
+    }
+
+    @Test
+    public void serviceAndClientRejectBeforeSending() throws IOException, EZIDException, InterruptedException {
+        LocalEZIDServer server = new LocalEZIDServer(0);
+        server.start();
+        try {
+            EZIDService ezid = new EZIDService(server.getBaseUrl());
+            ezid.login("apitest", "apitest");
+            ezid.setMetadataValidator(validator);
+            HashMap<String, String> metadata = dataCite();
+            metadata.remove(DataCiteProfile.TITLE.toString());
+            long requests = server.getRequestCount();
+            try {
+                ezid.mintIdentifier("doi:10.5072/FK2", metadata);
+                fail("minting without a title should be rejected");
+            } catch (MetadataValidationException e) {
+                assertEquals(DataCiteProfile.TITLE.toString(), e.getErrors().get(0).getField());
+            }
+            assertEquals(requests, server.getRequestCount());
+            assertTrue(ezid.mintIdentifier("doi:10.5072/FK2", dataCite()).startsWith("doi:10.5072/FK2"));
+
+            EZIDClient client = new EZIDClient(server.getBaseUrl());
+            client.setMetadataValidator(validator);
+            try {
+                client.create(DOI, metadata);
+                fail("queueing without a title should be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getCause() instanceof MetadataValidationException);
+            }
+            client.shutdown();
+            assertEquals(1, server.getIdentifierCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static int count(List<ValidationError> errors, ValidationError.Kind kind) {
+        int n = 0;
+        for (ValidationError error : errors) {
+            if (error.getKind() == kind) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static HashMap<String, String> dataCite() {
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        metadata.put(DataCiteProfile.CREATOR.toString(), "Jones, Matthew");
+        metadata.put(DataCiteProfile.TITLE.toString(), "Test dataset");
+        metadata.put(DataCiteProfile.PUBLISHER.toString(), "NCEAS");
+        metadata.put(DataCiteProfile.PUBLICATION_YEAR.toString(), "2015");
+        metadata.put(DataCiteProfile.RESOURCE_TYPE.toString(), DataCiteProfileResourceTypeValues.DATASET.toString());
+        return metadata;
+    }
+
+    private static String dataCiteXml(String year, String type) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<resource xmlns=\"http://datacite.org/schema/kernel-4\">\n"
+                + "  <identifier identifierType=\"DOI\">10.5072/FK2/VALID</identifier>\n"
+                + "  <creators><creator><creatorName>Jones, Matthew</creatorName></creator></creators>\n"
+                + "  <titles><title>Test dataset</title></titles>\n"
+                + "  <publisher>NCEAS</publisher>\n"
+                + "  <publicationYear>" + year + "</publicationYear>\n"
+                + "  <resourceType resourceTypeGeneral=\"" + type + "\">Survey</resourceType>\n"
+                + "</resource>\n";
+    }
+}
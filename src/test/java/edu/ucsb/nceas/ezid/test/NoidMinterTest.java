@@ -0,0 +1,174 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDClient;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+import edu.ucsb.nceas.ezid.noid.NoidMinter;
+import edu.ucsb.nceas.ezid.noid.NoidTemplate;
+
+/**
+ * Tests local NOID minting, check characters and the shared counter file.
+ */
+public class NoidMinterTest {
+
+    private Path counter;
+
+    @Before
+    public void setUp() throws IOException {
+        counter = Files.createTempFile("noid", ".counter");
+        Files.delete(counter);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(counter);
+        Files.deleteIfExists(counter.resolveSibling(counter.getFileName() + ".lock"));
+        Files.deleteIfExists(counter.resolveSibling(counter.getFileName() + ".tmp"));
+    }
+
+    @Test
+    public void checkCharacters() {
+        // the example from the NOID documentation
+        assertEquals('q', NoidTemplate.checkCharacter("13030/xf93gt2"));
+        assertTrue(NoidTemplate.verifyCheckCharacter("13030/xf93gt2q"));
+        assertFalse(NoidTemplate.verifyCheckCharacter("13030/xf39gt2q"));
+        assertFalse(NoidTemplate.verifyCheckCharacter("13030/xf93gt3q"));
+    }
+
+    @Test
+    public void sequentialTemplates() {
+        NoidTemplate s = new NoidTemplate("sdd");
+        assertEquals(100, s.getCapacity());
+        assertEquals("07", s.format(7));
+        try {
+            s.format(100);
+            fail("an s template should be exhausted");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        NoidTemplate z = new NoidTemplate("x.zed");
+        assertEquals("x", z.getPrefix());
+        assertEquals("10", z.format(10));
+        assertEquals("z9", z.format(289));
+        assertEquals("100", z.format(290));
+    }
+
+    @Test
+    public void emptyCounterFileIsCorrupt() throws IOException, EZIDException {
+        NoidMinter minter = new NoidMinter("ark:/99999/fk4", new NoidTemplate("seedk"), counter);
+        minter.setBlockSize(1);
+        String first = minter.mint();
+        // a counter file emptied by a crash must not restart the counter from zero
+        Files.write(counter, new byte[0]);
+        try {
+            new NoidMinter("ark:/99999/fk4", new NoidTemplate("seedk"), counter).mint();
+            fail("an empty counter file should be reported as corrupt, not reused after " + first);
+        } catch (EZIDException e) {
+            assertTrue(e.getMessage().contains("Corrupt counter file"));
+        }
+    }
+
+    @Test
+    public void counterFileIsReplacedWhole() throws IOException, EZIDException {
+        NoidMinter minter = new NoidMinter("ark:/99999/fk4", new NoidTemplate("seedk"), counter);
+        minter.setBlockSize(1);
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(names.add(minter.mint()));
+        }
+        // a temporary file left by a crash before its rename does not affect the counter
+        Files.write(counter.resolveSibling(counter.getFileName() + ".tmp"), "next=0\n".getBytes("UTF-8"));
+        NoidMinter other = new NoidMinter("ark:/99999/fk4", new NoidTemplate("seedk"), counter);
+        other.setBlockSize(1);
+        assertTrue(names.add(other.mint()));
+        assertTrue(Files.readAllLines(counter).contains("next=6"));
+    }
+
+    @Test
+    public void randomNamesNeverRepeat() throws EZIDException {
+        NoidMinter minter = new NoidMinter("ark:/99999/fk4", new NoidTemplate("reek"), counter);
+        minter.setBlockSize(7);
+        Set<String> minted = new HashSet<String>();
+        for (int i = 0; i < 29 * 29; i++) {
+            String id = minter.mint();
+            assertTrue(minter.isValid(id));
+            assertTrue(minted.add(id));
+        }
+        try {
+            minter.mint();
+            fail("the template should be exhausted");
+        } catch (EZIDException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void mintersShareCounterFile() throws Exception {
+        final NoidTemplate template = new NoidTemplate("reeddeeedk");
+        final List<String> minted = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            // a minter per thread, as separate processes would have
+            final NoidMinter minter = new NoidMinter("doi:10.5072/FK2", template, counter);
+            minter.setBlockSize(13);
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 250; i++) {
+                            minted.add(minter.mint());
+                        }
+                    } catch (EZIDException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1000, minted.size());
+        assertEquals(1000, new HashSet<String>(minted).size());
+        NoidMinter verifier = new NoidMinter("doi:10.5072/FK2", template, counter);
+        for (String id : minted) {
+            assertTrue(id, id.startsWith("DOI:10.5072/FK2") && verifier.isValid(id));
+        }
+        assertTrue(verifier.isValid(minted.get(0).toLowerCase()));
+    }
+
+    @Test
+    public void createsMintedIdentifiers() throws Exception {
+        LocalEZIDServer server = new LocalEZIDServer(0);
+        server.start();
+        try {
+            EZIDClient client = new EZIDClient(server.getBaseUrl());
+            client.login("apitest", "apitest");
+            NoidMinter minter = new NoidMinter("ark:/99999/fk4", new NoidTemplate("reeddeeedk"), counter);
+            String id = client.create(minter, null);
+            client.shutdown();
+            assertEquals(1, server.getIdentifierCount());
+            assertTrue(client.getMetadata(id) != null);
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.PhaseProfiler;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Tests the Java Flight Recorder events of a PhaseProfiler.  These tests are
+ * kept apart from PhaseProfilerTest because they use the jdk.jfr API, and are
+ * skipped on runtimes without it.
+ */
+public class PhaseProfilerFlightRecorderTest {
+
+    private static final String EVENT = "edu.ucsb.nceas.ezid.Call";
+
+    private LocalEZIDServer server;
+    private EZIDService ezid;
+
+    @Before
+    public void setUp() throws IOException, EZIDException {
+        Assume.assumeTrue(PhaseProfiler.isFlightRecorderAvailable());
+        server = new LocalEZIDServer(0);
+        server.start();
+        ezid = new EZIDService(server.getBaseUrl());
+        ezid.login("apitest", "apitest");
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void commitsFlightRecorderEvents() throws IOException, EZIDException {
+        ezid.setPhaseProfiler(new PhaseProfiler(0, 50));
+        // warm up outside the recording, so only the delayed call is slow
+        ezid.mintIdentifier("doi:10.5072/FK2", null);
+        Path file = Files.createTempFile("ezid", ".jfr");
+        Recording recording = new Recording();
+        try {
+            recording.enable(EVENT);
+            recording.start();
+            ezid.mintIdentifier("doi:10.5072/FK2", null);
+            server.setLatency(80, 0);
+            ezid.mintIdentifier("doi:10.5072/FK2", null);
+            recording.stop();
+            recording.dump(file);
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            int calls = 0;
+            for (RecordedEvent event : events) {
+                if (event.getEventType().getName().equals(EVENT)) {
+                    calls++;
+                    assertEquals("MINT", event.getString("operation"));
+                    assertTrue(event.getBoolean("slow"));
+                    assertTrue(event.getDuration().toMillis() >= 75);
+                    assertTrue(event.getLong("timeToFirstByte") >= TimeUnit.MILLISECONDS.toNanos(75));
+                }
+            }
+            assertEquals(1, calls);
+        } finally {
+            recording.close();
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDCallEvent.Operation;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.PhaseProfiler;
+import edu.ucsb.nceas.ezid.PhaseTimingListener;
+import edu.ucsb.nceas.ezid.PhaseTimings;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+import edu.ucsb.nceas.ezid.profile.DataCiteProfile;
+
+/**
+ * Tests timing the phases of EZIDService calls with a PhaseProfiler.
+ */
+public class PhaseProfilerTest {
+
+    private LocalEZIDServer server;
+    private EZIDService ezid;
+    private final List<PhaseTimings> reported = new CopyOnWriteArrayList<PhaseTimings>();
+
+    @Before
+    public void setUp() throws IOException, EZIDException {
+        server = new LocalEZIDServer(0);
+        server.start();
+        ezid = new EZIDService(server.getBaseUrl());
+        ezid.login("apitest", "apitest");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void timesEveryPhaseOfSampledCalls() throws EZIDException {
+        PhaseProfiler profiler = profiler(1.0, -1);
+        // a new service, so the first call opens a connection
+        ezid = new EZIDService(server.getBaseUrl());
+        ezid.setPhaseProfiler(profiler);
+        server.setLatency(50, 0);
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        metadata.put(DataCiteProfile.TITLE.toString(), "Timed");
+        String minted = ezid.mintIdentifier("doi:10.5072/FK2", metadata);
+        HashMap<String, String> read = ezid.getMetadata(minted);
+        assertEquals("Timed", read.get(DataCiteProfile.TITLE.toString()));
+
+        assertEquals(2, reported.size());
+        PhaseTimings mint = reported.get(0);
+        assertEquals(Operation.MINT, mint.getOperation());
+        assertEquals(201, mint.getStatusCode());
+        assertTrue(mint.isSampled());
+        assertFalse(mint.isSlow());
+        assertTrue(mint.getConnectNanos() > 0);
+        assertTrue(mint.getTimeToFirstByteNanos() >= TimeUnit.MILLISECONDS.toNanos(45));
+        long phases = mint.getPrepareNanos() + mint.getLeaseNanos() + mint.getDnsNanos()
+                + mint.getConnectNanos() + mint.getTlsNanos() + mint.getSendNanos()
+                + mint.getTimeToFirstByteNanos() + mint.getBodyNanos() + mint.getParseNanos();
+        assertTrue(phases <= mint.getTotalNanos());
+
+        PhaseTimings get = reported.get(1);
+        assertEquals(Operation.GET, get.getOperation());
+        assertEquals(minted, get.getIdentifier());
+        assertEquals(200, get.getStatusCode());
+        // the pooled connection is reused
+        assertEquals(0, get.getConnectNanos());
+        assertEquals(2, profiler.getSampledCount());
+    }
+
+    @Test
+    public void reportsSlowCallsOutsideTheSample() throws EZIDException {
+        PhaseProfiler profiler = profiler(0, 100);
+        ezid.setPhaseProfiler(profiler);
+        for (int i = 0; i < 5; i++) {
+            ezid.mintIdentifier("doi:10.5072/FK2", null);
+        }
+        assertTrue(reported.isEmpty());
+        server.setLatency(150, 0);
+        try {
+            ezid.getMetadata("doi:10.5072/FK2/MISSING");
+            fail("reading a missing identifier should fail");
+        } catch (EZIDException e) {
+            // expected
+        }
+        assertEquals(6, profiler.getCallCount());
+        assertEquals(1, profiler.getSlowCount());
+        assertEquals(0, profiler.getSampledCount());
+        PhaseTimings slow = reported.get(0);
+        assertTrue(slow.isSlow());
+        assertTrue(slow.isFailed());
+        assertEquals(400, slow.getStatusCode());
+        assertTrue(slow.getTimeToFirstByteNanos() >= TimeUnit.MILLISECONDS.toNanos(140));
+    }
+
+    private PhaseProfiler profiler(double sampleRate, long slowThresholdMillis) {
+        PhaseProfiler profiler = new PhaseProfiler(sampleRate, slowThresholdMillis);
+        profiler.addListener(new PhaseTimingListener() {
+            public void callTimed(PhaseTimings timings) {
+                reported.add(timings);
+            }
+        });
+        return profiler;
+    }
+}
@@ -0,0 +1,91 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.LaneStatistics;
+import edu.ucsb.nceas.ezid.PriorityLaneQueue;
+import edu.ucsb.nceas.ezid.RequestPriority;
+
+/**
+ * Unit tests for lane weighting and per-key fairness in PriorityLaneQueue.
+ */
+public class PriorityLaneQueueTest {
+
+    /** A task that only carries a name, so dispatch order can be checked. */
+    private static class Named implements Runnable {
+        final String name;
+
+        Named(String name) {
+            this.name = name;
+        }
+
+        public void run() {
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    @Test
+    public void interactiveOvertakesBulkWithoutStarvingIt() {
+        PriorityLaneQueue queue = new PriorityLaneQueue();
+        for (int i = 0; i < 100; i++) {
+            queue.offer(new Named("bulk"), RequestPriority.BULK, "backfill");
+        }
+        for (int i = 0; i < 16; i++) {
+            queue.offer(new Named("interactive"), RequestPriority.INTERACTIVE, "user");
+        }
+        int interactive = 0;
+        int bulk = 0;
+        for (int i = 0; i < 17; i++) {
+            if (queue.poll().toString().equals("interactive")) {
+                interactive++;
+            } else {
+                bulk++;
+            }
+        }
+        assertEquals(16, interactive);
+        assertEquals(1, bulk);
+        assertEquals(99, queue.size());
+    }
+
+    @Test
+    public void fairnessKeysAreServedInTurn() {
+        PriorityLaneQueue queue = new PriorityLaneQueue();
+        for (int i = 0; i < 5; i++) {
+            queue.offer(new Named("a"), RequestPriority.NORMAL, "tenantA");
+        }
+        queue.offer(new Named("b"), RequestPriority.NORMAL, "tenantB");
+        queue.offer(new Named("c"), RequestPriority.NORMAL, "tenantC");
+        List<String> order = new ArrayList<String>();
+        Runnable r;
+        while ((r = queue.poll()) != null) {
+            order.add(r.toString());
+        }
+        assertEquals("[a, b, c, a, a, a, a]", order.toString());
+    }
+
+    @Test
+    public void removeAndStatistics() throws InterruptedException {
+        PriorityLaneQueue queue = new PriorityLaneQueue();
+        Named first = new Named("first");
+        Named second = new Named("second");
+        queue.offer(first);
+        queue.offer(second);
+        assertTrue(queue.remove(first));
+        assertSame(second, queue.take());
+        Map<RequestPriority, LaneStatistics> stats = queue.getStatistics();
+        assertEquals(1, stats.get(RequestPriority.NORMAL).getDispatched());
+        assertEquals(0, stats.get(RequestPriority.NORMAL).getQueued());
+        assertEquals(0, stats.get(RequestPriority.BULK).getDispatched());
+    }
+}
@@ -0,0 +1,114 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+import edu.ucsb.nceas.ezid.replay.Exchange;
+import edu.ucsb.nceas.ezid.replay.ReplayHttpClient;
+import edu.ucsb.nceas.ezid.replay.TrafficRecorder;
+import edu.ucsb.nceas.ezid.replay.TrafficReplayer;
+
+/**
+ * Tests recording EZIDService traffic and replaying it offline.
+ */
+public class RecordReplayTest {
+
+    private static final String IDENTIFIER = "doi:10.5072/FK2/REPLAY";
+    private static final String REPLAY_URL = "http://replay.invalid";
+
+    private LocalEZIDServer server;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalEZIDServer(0);
+        server.start();
+        file = Files.createTempFile("traffic", ".rec");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void replaysRecordedTraffic() throws IOException, EZIDException {
+        server.setLatency(50, 0);
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        metadata.put("datacite.title", "Recorded");
+        EZIDService ezid = new EZIDService(server.getBaseUrl());
+        ezid.setCompressionThreshold(0);
+        ezid.startRecording(file);
+        ezid.login("apitest", "apitest");
+        ezid.createIdentifier(IDENTIFIER, metadata);
+        String minted = ezid.mintIdentifier("ark:/99999/fk4", null);
+        ezid.getMetadata(IDENTIFIER);
+        ezid.stopRecording();
+
+        List<Exchange> exchanges = TrafficRecorder.read(file);
+        assertEquals(4, exchanges.size());
+        assertEquals("PUT", exchanges.get(1).getMethod());
+        assertEquals("/id/" + IDENTIFIER, exchanges.get(1).getPath());
+        assertTrue(exchanges.get(1).getRequestText().contains("datacite.title: Recorded"));
+        assertTrue(exchanges.get(3).getDurationMicros() >= 50000);
+        // the login's session cookie is not written to the recording
+        assertEquals("/login", exchanges.get(0).getPath());
+        for (Exchange exchange : exchanges) {
+            for (Header header : exchange.getResponseHeaders()) {
+                assertFalse(header.getName().equalsIgnoreCase("Set-Cookie"));
+            }
+        }
+        server.stop();
+
+        // the replaying service never reaches the (stopped) server
+        EZIDService offline = new EZIDService(REPLAY_URL);
+        offline.startReplay(file, ReplayHttpClient.NO_DELAY);
+        assertEquals("Recorded", offline.getMetadata(IDENTIFIER).get("datacite.title"));
+        assertEquals(minted, offline.mintIdentifier("ark:/99999/fk4", null));
+        try {
+            offline.deleteIdentifier(IDENTIFIER);
+            fail("an unrecorded request should fail");
+        } catch (EZIDException e) {
+            // expected
+        }
+        offline.stopReplay();
+
+        offline.startReplay(file, ReplayHttpClient.ORIGINAL_TIMING);
+        long start = System.nanoTime();
+        offline.getMetadata(IDENTIFIER);
+        assertTrue(System.nanoTime() - start >= 50000000L);
+        offline.stopReplay();
+
+        // NO_DELAY holds no response back, while ORIGINAL_TIMING waits out each recorded duration
+        Exchange get = exchanges.get(3);
+        ReplayHttpClient instant = new ReplayHttpClient(exchanges, REPLAY_URL, ReplayHttpClient.NO_DELAY);
+        EntityUtils.consume(instant.execute(new HttpGet(REPLAY_URL + get.getPath())).getEntity());
+        assertEquals(0, instant.getDelayedMicros());
+        ReplayHttpClient timed = new ReplayHttpClient(exchanges, REPLAY_URL, ReplayHttpClient.ORIGINAL_TIMING);
+        EntityUtils.consume(timed.execute(new HttpGet(REPLAY_URL + get.getPath())).getEntity());
+        assertEquals(get.getDurationMicros(), timed.getDelayedMicros());
+
+        TrafficReplayer replayer = new TrafficReplayer(file, 0);
+        assertEquals(3, replayer.replay());
+        assertEquals(1, replayer.getTotals().get("create")[0]);
+    }
+}
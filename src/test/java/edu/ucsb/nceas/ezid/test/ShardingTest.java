@@ -0,0 +1,95 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.ShardSelection;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+import edu.ucsb.nceas.ezid.profile.DataCiteProfile;
+
+/**
+ * Tests spreading an EZIDService's calls over several connection pools.
+ */
+public class ShardingTest {
+
+    private static final String DOISHOULDER = "doi:10.5072/FK2/SHARD/";
+
+    private LocalEZIDServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalEZIDServer(0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void threadShardsShareOneLogin() throws Exception {
+        final EZIDService ezid = new EZIDService(server.getBaseUrl(), 4, ShardSelection.THREAD);
+        assertEquals(4, ezid.getShardCount());
+        assertEquals(20, ezid.getPoolStats().getMax());
+        ezid.login("apitest", "apitest");
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < 40; i++) {
+            final String id = DOISHOULDER + i;
+            results.add(pool.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    HashMap<String, String> metadata = new HashMap<String, String>();
+                    metadata.put(DataCiteProfile.TITLE.toString(), id);
+                    ezid.createIdentifier(id, metadata);
+                    return ezid.getMetadata(id).get(DataCiteProfile.TITLE.toString());
+                }
+            }));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(DOISHOULDER + i, results.get(i).get());
+        }
+        pool.shutdown();
+        assertEquals(40, server.getIdentifierCount());
+        assertEquals(0, ezid.getPoolStats().getLeased());
+    }
+
+    @Test
+    public void identifierShardsAndPoolSizing() throws Exception {
+        EZIDService ezid = new EZIDService(server.getBaseUrl(), 3, ShardSelection.IDENTIFIER);
+        ezid.setMaxConnections(7);
+        // seven connections round up to three per shard
+        assertEquals(9, ezid.getPoolStats().getMax());
+        ezid.warmUp(6, "apitest", "apitest");
+        // the timed status checks may leave a connection of their own behind
+        assertTrue(ezid.getIdleConnections() >= 6);
+
+        for (int i = 0; i < 10; i++) {
+            HashMap<String, String> metadata = new HashMap<String, String>();
+            metadata.put(DataCiteProfile.TITLE.toString(), "title " + i);
+            ezid.createIdentifier(DOISHOULDER + i, metadata);
+            assertEquals("title " + i, ezid.getMetadata(DOISHOULDER + i).get(DataCiteProfile.TITLE.toString()));
+        }
+        assertEquals(10, server.getIdentifierCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFewerConnectionsThanShards() {
+        new EZIDService(server.getBaseUrl(), 4, ShardSelection.THREAD).setMaxConnections(3);
+    }
+}
@@ -0,0 +1,164 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.SharedRateLimiter;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+
+/**
+ * Tests sharing a rate and in-flight limit through a SharedRateLimiter state file,
+ * between limiters in this JVM and with a separate process.
+ */
+public class SharedRateLimiterTest {
+
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("ratelimit", ".state");
+        Files.delete(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void sharesInFlightLimitAndPartitionsWork() throws IOException, InterruptedException {
+        SharedRateLimiter a = new SharedRateLimiter(file, 1000, 100, 3);
+        // a later participant adopts the limits already in the file
+        SharedRateLimiter b = new SharedRateLimiter(file, 5, 1, 50);
+        try {
+            assertEquals(1000, b.getPermitsPerSecond(), 0);
+            assertTrue(a.tryAcquire(0, TimeUnit.MILLISECONDS));
+            assertTrue(b.tryAcquire(0, TimeUnit.MILLISECONDS));
+            assertTrue(b.tryAcquire(0, TimeUnit.MILLISECONDS));
+            assertFalse(a.tryAcquire(50, TimeUnit.MILLISECONDS));
+            assertEquals(3, a.getInFlight());
+            b.release();
+            assertTrue(a.tryAcquire(50, TimeUnit.MILLISECONDS));
+            assertEquals(2, a.getLocalInFlight());
+
+            assertEquals(2, a.getParticipantCount());
+            assertEquals(2, b.getParticipantCount());
+            assertTrue(a.getParticipantIndex() != b.getParticipantIndex());
+            int assignedToA = 0;
+            for (int i = 0; i < 1000; i++) {
+                String key = "doi:10.5072/FK2/" + i;
+                assertTrue(a.isAssigned(key) != b.isAssigned(key));
+                if (a.isAssigned(key)) {
+                    assignedToA++;
+                }
+            }
+            assertTrue(assignedToA > 400 && assignedToA < 600);
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    public void refillsAtSharedRate() throws IOException, InterruptedException {
+        SharedRateLimiter a = new SharedRateLimiter(file, 20, 2, 100);
+        SharedRateLimiter b = new SharedRateLimiter(file, 20, 2, 100);
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < 8; i++) {
+                SharedRateLimiter limiter = i % 2 == 0 ? a : b;
+                assertTrue(limiter.tryAcquire(5, TimeUnit.SECONDS));
+                limiter.release();
+            }
+            // two from the burst, then six at 20 per second across both participants
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("took " + elapsed + " ms", elapsed >= 250 && elapsed < 2000);
+        } finally {
+            a.close();
+            b.close();
+        }
+    }
+
+    @Test
+    public void reclaimsCapacityOfCrashedProcess() throws Exception {
+        SharedRateLimiter limiter = new SharedRateLimiter(file, 1000, 100, 4, 600);
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Participant.class.getName(), file.toString()).start();
+        try {
+            BufferedReader out = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("ready", out.readLine());
+            assertEquals(3, limiter.getInFlight());
+            assertTrue(limiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+            assertFalse(limiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+            limiter.release();
+
+            child.destroyForcibly().waitFor();
+            // the child's lease runs out and its three calls in flight are reclaimed
+            assertTrue(limiter.tryAcquire(0, TimeUnit.MILLISECONDS));
+            assertTrue(limiter.tryAcquire(5, TimeUnit.SECONDS));
+            assertEquals(2, limiter.getInFlight());
+            assertEquals(1, limiter.getParticipantCount());
+        } finally {
+            child.destroyForcibly();
+            limiter.close();
+        }
+    }
+
+    @Test
+    public void serviceWaitsForPermits() throws IOException, EZIDException {
+        LocalEZIDServer server = new LocalEZIDServer(0);
+        server.start();
+        SharedRateLimiter limiter = new SharedRateLimiter(file, 50, 1, 2);
+        try {
+            EZIDService ezid = new EZIDService(server.getBaseUrl());
+            ezid.setSharedRateLimiter(limiter);
+            ezid.login("apitest", "apitest");
+            long start = System.nanoTime();
+            for (int i = 0; i < 5; i++) {
+                ezid.createIdentifier("ark:/99999/fk4rate" + i, new HashMap<String, String>());
+            }
+            // login and the first create use the burst and the next token, then 20 ms each
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 60);
+            assertEquals(5, server.getIdentifierCount());
+            assertEquals(0, limiter.getInFlight());
+        } finally {
+            limiter.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * A separate participant process that takes three permits and holds them
+     * until it is killed.
+     */
+    public static class Participant {
+        public static void main(String[] args) throws Exception {
+            SharedRateLimiter limiter = new SharedRateLimiter(Paths.get(args[0]), 1000, 100, 4, 600);
+            for (int i = 0; i < 3; i++) {
+                limiter.tryAcquire(5, TimeUnit.SECONDS);
+            }
+            System.out.println("ready");
+            System.out.flush();
+            Thread.sleep(60000);
+        }
+    }
+}
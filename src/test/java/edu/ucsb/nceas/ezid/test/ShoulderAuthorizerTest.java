@@ -0,0 +1,81 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDClient;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.ShoulderAuthorizer;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+
+/**
+ * Tests local identifier syntax and shoulder checks.
+ */
+public class ShoulderAuthorizerTest {
+
+    private final ShoulderAuthorizer authorizer = new ShoulderAuthorizer("doi:10.5072/FK2", "ark:/99999/fk4",
+            "doi:10.5072/FK2/SUB");
+
+    @Test
+    public void syntax() {
+        assertNull(authorizer.checkCreate("doi:10.5072/FK2ABC"));
+        assertNull(authorizer.checkCreate("DOI:10.5072/fk2abc"));
+        assertNull(authorizer.checkCreate("ark:/99999/fk4xyz"));
+        assertNotNull(authorizer.checkCreate("doi:10.5072"));
+        assertNotNull(authorizer.checkCreate("doi:11.5072/FK2ABC"));
+        assertNotNull(authorizer.checkCreate("ark:99999/fk4xyz"));
+        assertNotNull(authorizer.checkCreate("doi:10.5072/FK2 ABC"));
+        assertNotNull(authorizer.checkCreate("hdl:10.5072/FK2ABC"));
+        assertNull(new ShoulderAuthorizer().checkCreate("urn:uuid:0f8fad5b-d9cb-469f-a165-70867728950e"));
+        assertEquals(5, authorizer.getRejectedSyntaxCount());
+    }
+
+    @Test
+    public void shoulders() {
+        assertNotNull(authorizer.checkCreate("doi:10.5072/FK3ABC"));
+        assertNotNull(authorizer.checkCreate("ark:/99999/FK4xyz"));
+        assertNull(authorizer.checkMint("doi:10.5072/FK2"));
+        assertNull(authorizer.checkMint("doi:10.5072/FK2/SUB"));
+        assertNotNull(authorizer.checkMint("doi:10.5072/FK"));
+        assertNull(authorizer.checkExisting("doi:10.9999/ELSEWHERE"));
+        assertEquals(3, authorizer.getRejectedShoulderCount());
+        assertEquals(3, authorizer.getRejectedCount());
+        assertEquals(3, authorizer.getAcceptedCount());
+    }
+
+    @Test
+    public void rejectsBeforeSending() throws IOException, InterruptedException {
+        LocalEZIDServer server = new LocalEZIDServer(0);
+        server.start();
+        try {
+            EZIDService ezid = new EZIDService(server.getBaseUrl());
+            ezid.setShoulderAuthorizer(authorizer);
+            try {
+                ezid.createIdentifier("doi:10.5072/OTHER/1", null);
+                fail("Identifier outside the shoulders should be rejected.");
+            } catch (EZIDException e) {
+                assertTrue(e.getMessage().contains("authorized shoulder"));
+            }
+            EZIDClient client = new EZIDClient(server.getBaseUrl());
+            client.setShoulderAuthorizer(authorizer);
+            try {
+                client.create("doi:10.5072/OTHER/2", null);
+                fail("Identifier outside the shoulders should be rejected on the caller thread.");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("authorized shoulder"));
+            }
+            client.shutdown();
+            assertEquals(0, server.getRequestCount());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.StreamingMetadata;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+
+/**
+ * Tests sending metadata values streamed from files and sources.
+ */
+public class StreamingMetadataTest {
+
+    private LocalEZIDServer server;
+    private EZIDService ezid;
+    private Path file;
+    private String document;
+
+    @Before
+    public void setUp() throws IOException, EZIDException {
+        server = new LocalEZIDServer(0);
+        server.start();
+        ezid = new EZIDService(server.getBaseUrl());
+        ezid.login("apitest", "apitest");
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<resource>\n");
+        for (int i = 0; xml.length() < 2000000; i++) {
+            xml.append("  <title>Título 100% été: résumé ").append(i).append("</title>\r\n");
+        }
+        document = xml.append("</resource>").toString();
+        file = Files.createTempFile("datacite", ".xml");
+        Files.write(file, document.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void streamsFileValues() throws EZIDException {
+        StreamingMetadata metadata = new StreamingMetadata().put("_target", "http://example.com/a:b")
+                .put("datacite", file);
+        String id = ezid.createIdentifierStreaming("doi:10.5072/FK2/STREAM", metadata);
+        HashMap<String, String> stored = server.getStoredMetadata(id);
+        assertEquals("http://example.com/a:b", stored.get("_target"));
+        assertEquals(document, stored.get("datacite"));
+    }
+
+    @Test
+    public void streamsCompressedSourceValues() throws EZIDException {
+        ezid.setCompressionThreshold(1024);
+        ezid.createIdentifier("doi:10.5072/FK2/STREAM2", null);
+        StreamingMetadata metadata = new StreamingMetadata().put("datacite", new StreamingMetadata.ValueSource() {
+            public InputStream open() {
+                return new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        ezid.setMetadataStreaming("doi:10.5072/FK2/STREAM2", metadata);
+        assertEquals(document, server.getStoredMetadata("doi:10.5072/FK2/STREAM2").get("datacite"));
+        // a file's size is known, so its body is compressed
+        long before = server.getBytesReceived();
+        String minted = ezid.mintIdentifierStreaming("ark:/99999/fk4", new StreamingMetadata().put("datacite", file));
+        assertEquals(document, server.getStoredMetadata(minted).get("datacite"));
+        assertTrue(server.getBytesReceived() - before < document.length() / 4);
+    }
+}
@@ -0,0 +1,164 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.ucsb.nceas.ezid.EZIDClient;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.linkcheck.LinkCheckReport;
+import edu.ucsb.nceas.ezid.linkcheck.LinkCheckResult;
+import edu.ucsb.nceas.ezid.linkcheck.TargetLinkChecker;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+import edu.ucsb.nceas.ezid.profile.InternalProfile;
+
+/**
+ * Tests the link checker against a local landing-page server with healthy,
+ * redirected and broken targets.
+ */
+public class TargetLinkCheckerTest {
+
+    private HttpServer landing;
+    private String base;
+    private final Map<String, Long> arrivals = new ConcurrentHashMap<String, Long>();
+
+    @Before
+    public void setUp() throws IOException {
+        landing = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        landing.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                arrivals.put(exchange.getRequestURI().toString(), System.nanoTime());
+                if (path.equals("/ok")) {
+                    exchange.sendResponseHeaders(200, -1);
+                } else if (path.equals("/moved")) {
+                    exchange.getResponseHeaders().add("Location", "/ok");
+                    exchange.sendResponseHeaders(301, -1);
+                } else {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+                exchange.close();
+            }
+        });
+        landing.start();
+        base = "http://127.0.0.1:" + landing.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        landing.stop(0);
+    }
+
+    @Test
+    public void checkExport() throws InterruptedException {
+        String export = ":: doi:10.5072/FK2/A\n_target: " + base.replace(":", "%3A") + "/ok\n\n"
+                + ":: doi:10.5072/FK2/B\n_target: " + base + "/moved\n\n"
+                + ":: doi:10.5072/FK2/C\n_target: " + base + "/gone\n\n"
+                + ":: doi:10.5072/FK2/D\n_target: " + base + "/ok\n\n"
+                + ":: doi:10.5072/FK2/E\ndatacite.title: no target\n";
+        TargetLinkChecker checker = new TargetLinkChecker(null);
+        checker.setPolitenessDelayMillis(0);
+        LinkCheckReport report = checker.checkTargets(
+                TargetLinkChecker.readExport(new BufferedReader(new StringReader(export))));
+        assertEquals(2, report.getCount(LinkCheckResult.Status.OK));
+        assertEquals(1, report.getCount(LinkCheckResult.Status.REDIRECTED));
+        assertEquals(1, report.getCount(LinkCheckResult.Status.BROKEN));
+        assertEquals(1, report.getCount(LinkCheckResult.Status.MISSING));
+        assertEquals(1, report.getCacheHits());
+        LinkCheckResult moved = report.getResults(LinkCheckResult.Status.REDIRECTED).get(0);
+        assertEquals("doi:10.5072/FK2/B", moved.getIdentifier());
+        assertEquals(base + "/ok", moved.getFinalUrl());
+        assertEquals(404, report.getResults(LinkCheckResult.Status.BROKEN).get(0).getHttpStatus());
+    }
+
+    @Test
+    public void checkIdentifiersAndFixRedirects() throws Exception {
+        LocalEZIDServer ezidServer = new LocalEZIDServer(0);
+        ezidServer.start();
+        try {
+            EZIDService ezid = new EZIDService(ezidServer.getBaseUrl());
+            ezid.login("apitest", "apitest");
+            List<String> ids = Arrays.asList("doi:10.5072/FK2/OK", "doi:10.5072/FK2/MOVED");
+            create(ezid, ids.get(0), base + "/ok");
+            create(ezid, ids.get(1), base + "/moved");
+
+            TargetLinkChecker checker = new TargetLinkChecker(ezid);
+            LinkCheckReport report = checker.checkIdentifiers(ids.iterator());
+            assertEquals(1, report.getCount(LinkCheckResult.Status.REDIRECTED));
+
+            EZIDClient client = new EZIDClient(ezidServer.getBaseUrl());
+            client.login("apitest", "apitest");
+            assertEquals(1, checker.fixRedirects(report, client));
+            client.shutdown();
+            assertEquals(base + "/ok",
+                    ezidServer.getStoredMetadata(ids.get(1)).get(InternalProfile.TARGET.toString()));
+        } finally {
+            ezidServer.stop();
+        }
+    }
+
+    @Test
+    public void politenessDelayDoesNotHoldWorkers() throws InterruptedException {
+        String other = base.replace("127.0.0.1", "localhost");
+        List<Map.Entry<String, String>> targets = new ArrayList<Map.Entry<String, String>>();
+        for (int i = 0; i < 4; i++) {
+            targets.add(new AbstractMap.SimpleImmutableEntry<String, String>("doi:10.5072/FK2/S" + i,
+                    base + "/ok?slow=" + i));
+        }
+        targets.add(new AbstractMap.SimpleImmutableEntry<String, String>("doi:10.5072/FK2/F", other + "/ok?fast"));
+        TargetLinkChecker checker = new TargetLinkChecker(null);
+        checker.setConcurrency(2);
+        checker.setPerHostConnections(1);
+        checker.setPolitenessDelayMillis(500);
+        long begin = System.nanoTime();
+        LinkCheckReport report = checker.checkTargets(targets.iterator());
+        assertEquals(5, report.getCount(LinkCheckResult.Status.OK));
+        // the other host is not kept waiting behind the paced requests to the first
+        long fast = (arrivals.get("/ok?fast") - begin) / 1000000;
+        assertTrue("other host waited " + fast + "ms", fast < 400);
+        long last = 0;
+        for (int i = 0; i < 4; i++) {
+            last = Math.max(last, (arrivals.get("/ok?slow=" + i) - begin) / 1000000);
+        }
+        assertTrue("paced host finished after " + last + "ms", last >= 1400);
+    }
+
+    @Test
+    public void targetCacheIsBounded() throws InterruptedException {
+        String export = ":: doi:10.5072/FK2/A\n_target: " + base + "/ok\n\n"
+                + ":: doi:10.5072/FK2/B\n_target: " + base + "/ok\n\n";
+        TargetLinkChecker checker = new TargetLinkChecker(null);
+        checker.setPolitenessDelayMillis(0);
+        checker.setMaxCachedTargets(0);
+        LinkCheckReport report = checker.checkTargets(
+                TargetLinkChecker.readExport(new BufferedReader(new StringReader(export))));
+        assertEquals(2, report.getCount(LinkCheckResult.Status.OK));
+        assertEquals(0, report.getCacheHits());
+    }
+
+    private static void create(EZIDService ezid, String identifier, String target) throws EZIDException {
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        metadata.put(InternalProfile.TARGET.toString(), target);
+        ezid.createIdentifier(identifier, metadata);
+    }
+}
@@ -0,0 +1,223 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDClient;
+import edu.ucsb.nceas.ezid.EZIDException;
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+import edu.ucsb.nceas.ezid.profile.InternalProfile;
+import edu.ucsb.nceas.ezid.profile.InternalProfileValues;
+import edu.ucsb.nceas.ezid.schedule.TransitionScheduler;
+
+/**
+ * Tests firing scheduled transitions from a shared, persistent journal.
+ */
+public class TransitionSchedulerTest {
+
+    private static final String STATUS = InternalProfile.STATUS.toString();
+    private static final String DOISHOULDER = "doi:10.5072/FK2/EMBARGO/";
+    private static final long DAY = 24 * 3600 * 1000L;
+
+    private LocalEZIDServer server;
+    private Path dir;
+    private Path journal;
+
+    @Before
+    public void setUp() throws IOException, EZIDException {
+        server = new LocalEZIDServer(0);
+        server.start();
+        dir = Files.createTempDirectory("transitions");
+        journal = dir.resolve("transitions.log");
+        EZIDService ezid = new EZIDService(server.getBaseUrl());
+        ezid.login("apitest", "apitest");
+        HashMap<String, String> reserved = new HashMap<String, String>();
+        reserved.put(STATUS, InternalProfileValues.RESERVED.toString());
+        for (int i = 0; i < 3; i++) {
+            ezid.createIdentifier(DOISHOULDER + i, reserved);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop();
+        Files.deleteIfExists(journal);
+        Files.deleteIfExists(journal.resolveSibling(journal.getFileName() + ".lock"));
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void sharedJournalFiresEachTransitionOnce() throws Exception {
+        EZIDClient client = new EZIDClient(server.getBaseUrl());
+        client.login("apitest", "apitest");
+        TransitionScheduler first = new TransitionScheduler(client, journal, "worker-1", 10);
+        TransitionScheduler second = new TransitionScheduler(client, journal, "worker-2", 10);
+        long now = System.currentTimeMillis();
+        first.scheduleStatus(DOISHOULDER + 0, now - 1000, InternalProfileValues.PUBLIC);
+        second.scheduleStatus(DOISHOULDER + 1, now + 200, InternalProfileValues.PUBLIC);
+        first.scheduleStatus(DOISHOULDER + 2, now + 365 * DAY, InternalProfileValues.PUBLIC);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (first.getFiredCount() + second.getFiredCount() < 2 && System.currentTimeMillis() < deadline) {
+            second.poll();
+            first.poll();
+            Thread.sleep(5);
+        }
+        client.shutdown();
+        assertEquals(2, first.getFiredCount() + second.getFiredCount());
+        assertEquals(2, first.getCompletedCount() + second.getCompletedCount());
+        assertEquals("public", server.getStoredMetadata(DOISHOULDER + 0).get(STATUS));
+        assertEquals("public", server.getStoredMetadata(DOISHOULDER + 1).get(STATUS));
+        assertEquals("reserved", server.getStoredMetadata(DOISHOULDER + 2).get(STATUS));
+        assertEquals(1, first.getPendingCount());
+        assertEquals(1, second.getPendingCount());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void survivesRestart() throws Exception {
+        EZIDClient client = new EZIDClient(server.getBaseUrl());
+        client.login("apitest", "apitest");
+        TransitionScheduler scheduler = new TransitionScheduler(client, journal, "worker-1");
+        long later = scheduler.scheduleStatus(DOISHOULDER + 2, System.currentTimeMillis() + DAY,
+                InternalProfileValues.PUBLIC);
+        scheduler.scheduleStatus(DOISHOULDER + 0, System.currentTimeMillis() + 30 * DAY,
+                InternalProfileValues.UNAVAILABLE);
+        scheduler.close();
+        client.shutdown();
+
+        client = new EZIDClient(server.getBaseUrl());
+        client.login("apitest", "apitest");
+        scheduler = new TransitionScheduler(client, journal, "worker-1");
+        assertEquals(2, scheduler.getPendingCount());
+        assertTrue(scheduler.cancel(later));
+        assertFalse(scheduler.cancel(later));
+        scheduler.compact();
+        assertEquals(1, scheduler.getPendingCount());
+        scheduler.close();
+
+        scheduler = new TransitionScheduler(client, journal, "worker-1");
+        assertEquals(1, scheduler.getPendingCount());
+        assertEquals(0, scheduler.poll());
+        scheduler.close();
+        client.shutdown();
+    }
+
+    @Test
+    public void compactionNeedsTheOnlyOpenScheduler() throws Exception {
+        EZIDClient client = new EZIDClient(server.getBaseUrl());
+        TransitionScheduler first = new TransitionScheduler(client, journal, "worker-1");
+        TransitionScheduler second = new TransitionScheduler(client, journal, "worker-2");
+        first.scheduleStatus(DOISHOULDER + 0, System.currentTimeMillis() + DAY, InternalProfileValues.PUBLIC);
+        try {
+            first.compact();
+            fail("a journal open in another scheduler should not be compacted");
+        } catch (IOException e) {
+            // expected
+        }
+        // the refused compaction leaves both schedulers working
+        second.scheduleStatus(DOISHOULDER + 1, System.currentTimeMillis() + DAY, InternalProfileValues.PUBLIC);
+        assertEquals(0, first.poll());
+        assertEquals(2, first.getPendingCount());
+        second.close();
+        first.compact();
+        assertEquals(2, first.getPendingCount());
+        first.close();
+        client.shutdown();
+    }
+
+    @Test
+    public void compactionDoesNotReuseIds() throws Exception {
+        EZIDClient client = new EZIDClient(server.getBaseUrl());
+        TransitionScheduler scheduler = new TransitionScheduler(client, journal, "worker-1");
+        scheduler.scheduleStatus(DOISHOULDER + 0, System.currentTimeMillis() + DAY, InternalProfileValues.PUBLIC);
+        long cancelled = scheduler.scheduleStatus(DOISHOULDER + 1, System.currentTimeMillis() + DAY,
+                InternalProfileValues.PUBLIC);
+        assertTrue(scheduler.cancel(cancelled));
+        scheduler.compact();
+        scheduler.close();
+
+        scheduler = new TransitionScheduler(client, journal, "worker-1");
+        assertTrue(scheduler.scheduleStatus(DOISHOULDER + 2, System.currentTimeMillis() + DAY,
+                InternalProfileValues.PUBLIC) > cancelled);
+        // a cancel meant for the old transition cannot reach the new one
+        assertFalse(scheduler.cancel(cancelled));
+        assertEquals(2, scheduler.getPendingCount());
+        scheduler.close();
+        client.shutdown();
+    }
+
+    @Test
+    public void resumesClaimedButUnfinishedTransitions() throws Exception {
+        server.setLatency(300, 0);
+        EZIDClient client = new EZIDClient(server.getBaseUrl());
+        client.login("apitest", "apitest");
+        TransitionScheduler scheduler = new TransitionScheduler(client, journal, "worker-1");
+        scheduler.scheduleStatus(DOISHOULDER + 0, System.currentTimeMillis() - 1, InternalProfileValues.PUBLIC);
+        assertEquals(1, scheduler.poll());
+        // stop before the slow request completes, so its completion is not recorded
+        scheduler.close();
+        client.shutdown();
+
+        server.setLatency(0, 0);
+        client = new EZIDClient(server.getBaseUrl());
+        client.login("apitest", "apitest");
+        TransitionScheduler other = new TransitionScheduler(client, journal, "worker-2");
+        assertEquals(0, other.getFiredCount());
+        other.close();
+        scheduler = new TransitionScheduler(client, journal, "worker-1");
+        assertEquals(1, scheduler.getFiredCount());
+        client.shutdown();
+        assertEquals(1, scheduler.getCompletedCount());
+        scheduler.close();
+
+        // completion was recorded, so nothing is resumed again
+        client = new EZIDClient(server.getBaseUrl());
+        scheduler = new TransitionScheduler(client, journal, "worker-1");
+        assertEquals(0, scheduler.getFiredCount());
+        scheduler.close();
+        client.shutdown();
+    }
+
+    @Test
+    public void firesManyTransitionsAcrossWheelLevels() throws Exception {
+        EZIDClient client = new EZIDClient(server.getBaseUrl());
+        client.login("apitest", "apitest");
+        TransitionScheduler scheduler = new TransitionScheduler(client, journal, "worker-1", 1);
+        scheduler.setMaxFiresPerTick(50);
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        metadata.put("datacite.title", "released");
+        for (int i = 0; i < 1000; i++) {
+            // up to 2.4 s at 1 ms ticks spans the first two levels of the wheel; the
+            // first is far enough out that journalling all of them never reaches it
+            scheduler.schedule(DOISHOULDER + (i % 3), now + 1000 + random.nextInt(1400), metadata);
+        }
+        assertEquals(0, scheduler.poll());
+        long deadline = System.currentTimeMillis() + 10000;
+        while (scheduler.getFiredCount() < 1000 && System.currentTimeMillis() < deadline) {
+            scheduler.poll();
+            Thread.sleep(1);
+        }
+        client.shutdown();
+        assertEquals(1000, scheduler.getFiredCount());
+        assertEquals(1000, scheduler.getCompletedCount());
+        assertEquals(0, scheduler.getPendingCount());
+        scheduler.close();
+    }
+}
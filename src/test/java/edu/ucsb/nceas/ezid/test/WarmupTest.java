@@ -0,0 +1,53 @@
+package edu.ucsb.nceas.ezid.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.ucsb.nceas.ezid.EZIDService;
+import edu.ucsb.nceas.ezid.WarmupReport;
+import edu.ucsb.nceas.ezid.load.LocalEZIDServer;
+
+/**
+ * Tests warming up the connection pool of an EZIDService.
+ */
+public class WarmupTest {
+
+    private LocalEZIDServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalEZIDServer(0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void warmUpOpensConnectionsAndLogsIn() throws Exception {
+        EZIDService ezid = new EZIDService(server.getBaseUrl());
+        WarmupReport report = ezid.warmUp(4, "apitest", "apitest");
+        assertEquals(4, report.getConnectionsOpened());
+        assertTrue(report.isLoggedIn());
+        assertTrue(ezid.getIdleConnections() >= 4);
+        assertTrue(report.getColdRequestMicros() > 0 && report.getWarmRequestMicros() > 0);
+        assertTrue(report.toString().contains("cold first request"));
+    }
+
+    @Test
+    public void backgroundWarmUp() throws Exception {
+        EZIDService ezid = new EZIDService(server.getBaseUrl(), 2, "apitest", "apitest");
+        WarmupReport report = ezid.getWarmup().get(30, TimeUnit.SECONDS);
+        assertEquals(2, report.getConnectionsOpened());
+        assertTrue(ezid.mintIdentifier("doi:10.5072/FK2", null).startsWith("doi:10.5072/FK2"));
+    }
+}